@@ -0,0 +1,758 @@
+package net.logstash.json;
+
+import net.minidev.json.JSONValue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Streaming writer for the binary {@link OutputFormat}s, encoding into a reusable byte buffer like
+ * {@link JsonWriter} does.
+ * <p>
+ * The layouts write their events through the {@link TokenWriter} methods, so an event is encoded once, straight
+ * into the binary format. The fragments the layouts pre-encode as JSON (field names, constant fields, call sites)
+ * are translated token by token without building a tree; {@link #writeFieldName(byte[])} and
+ * {@link #writeRawFields(byte[])} keep the translation of the last fragments they saw, by identity, so a fragment
+ * that is written into every event is only translated once per writer. {@link #transcode(JsonWriter)} translates a whole JSON document the same way.
+ * <p>
+ * Instances are not thread safe. Use {@link #acquire(OutputFormat)} / {@link #release()} to borrow the calling
+ * thread's writer.
+ */
+public abstract class BinaryWriter implements TokenWriter {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    /** Buffers grown beyond this are dropped when the writer is released. */
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final int FRAGMENT_SLOTS = 64;
+    private static final int MAX_FRAGMENT_LENGTH = 4096;
+
+    private static final byte[] LOWER_HEX = "0123456789abcdef".getBytes(JsonWriter.UTF_8);
+    private static final String MIN_LONG = Long.toString(Long.MIN_VALUE);
+
+    private static final ThreadLocal<BinaryWriter[]> THREAD_WRITERS = new ThreadLocal<BinaryWriter[]>() {
+        @Override
+        protected BinaryWriter[] initialValue() {
+            return new BinaryWriter[OutputFormat.values().length];
+        }
+    };
+
+    byte[] buf = new byte[INITIAL_CAPACITY];
+    int count;
+
+    private boolean inUse;
+    private byte[] input;
+    private byte[] unescaped;
+
+    /** the UTF-8 content of the string being written, assembled before its length is known */
+    private byte[] text = new byte[256];
+    private int textLength;
+    private boolean textAscii;
+    private final TimestampFormatter timestamps = new TimestampFormatter();
+    private StringBuilder scratch;
+
+    /** pre-encoded names and fragments seen last, their encoding in this format and the number of their members */
+    private final byte[][] fragments = new byte[FRAGMENT_SLOTS][];
+    private final byte[][] encodedFragments = new byte[FRAGMENT_SLOTS][];
+    private final int[] fragmentMembers = new int[FRAGMENT_SLOTS];
+
+    BinaryWriter() {
+    }
+
+    /**
+     * Borrows the calling thread's writer for a binary format, already reset. If that writer is busy a fresh one is
+     * returned instead.
+     */
+    public static BinaryWriter acquire(OutputFormat format) {
+        BinaryWriter[] writers = THREAD_WRITERS.get();
+        BinaryWriter writer = writers[format.ordinal()];
+        if (writer == null) {
+            writer = format.newWriter();
+            writers[format.ordinal()] = writer;
+        } else if (writer.inUse) {
+            writer = format.newWriter();
+        }
+        writer.inUse = true;
+        writer.reset();
+        return writer;
+    }
+
+    /**
+     * Hands a writer obtained through {@link #acquire(OutputFormat)} back to its thread.
+     */
+    public void release() {
+        inUse = false;
+        if (buf.length > MAX_RETAINED_CAPACITY) {
+            buf = new byte[INITIAL_CAPACITY];
+        }
+        if (text.length > MAX_RETAINED_CAPACITY) {
+            text = new byte[256];
+        }
+        count = 0;
+    }
+
+    public abstract OutputFormat getFormat();
+
+    public void reset() {
+        count = 0;
+    }
+
+    /**
+     * Writes whatever the format puts in front of every document.
+     */
+    public void writeStartDocument() {
+    }
+
+    public abstract void writeStartObject();
+
+    public abstract void writeEndObject();
+
+    public abstract void writeStartArray();
+
+    public abstract void writeEndArray();
+
+    /**
+     * @param ascii true if all bytes are 7-bit, which lets some formats pick a shorter token
+     */
+    public abstract void writeFieldName(byte[] utf8, int offset, int length, boolean ascii);
+
+    /**
+     * @param ascii true if all bytes are 7-bit, which lets some formats pick a shorter token
+     */
+    public abstract void writeString(byte[] utf8, int offset, int length, boolean ascii);
+
+    public abstract void writeNumber(long value);
+
+    public abstract void writeNumber(double value);
+
+    public abstract void writeBoolean(boolean value);
+
+    public abstract void writeNull();
+
+    public void writeFieldName(String name) {
+        startText();
+        appendText(name);
+        writeFieldName(text, 0, textLength, textAscii);
+    }
+
+    /**
+     * @param encodedName a name produced by {@link JsonWriter#fieldName(String)}
+     */
+    public void writeFieldName(byte[] encodedName) {
+        int slot = System.identityHashCode(encodedName) & (FRAGMENT_SLOTS - 1);
+        if (fragments[slot] == encodedName) {
+            writeMembers(encodedFragments[slot], 1);
+            return;
+        }
+        int start = count;
+        input = encodedName;
+        try {
+            string(1, true);
+        } finally {
+            input = null;
+        }
+        fragments[slot] = encodedName;
+        encodedFragments[slot] = Arrays.copyOfRange(buf, start, count);
+        fragmentMembers[slot] = 1;
+    }
+
+    /**
+     * Translates a fragment of JSON members into the current object, or copies its translation if the same
+     * fragment instance was written recently.
+     */
+    public void writeRawFields(byte[] fragment) {
+        if (fragment.length == 0) {
+            return;
+        }
+        int slot = System.identityHashCode(fragment) & (FRAGMENT_SLOTS - 1);
+        if (fragments[slot] == fragment) {
+            writeMembers(encodedFragments[slot], fragmentMembers[slot]);
+            return;
+        }
+        int start = count;
+        int members = transcodeMembers(fragment, 0, fragment.length);
+        if (count - start <= MAX_FRAGMENT_LENGTH) {
+            fragments[slot] = fragment;
+            encodedFragments[slot] = Arrays.copyOfRange(buf, start, count);
+            fragmentMembers[slot] = members;
+        }
+    }
+
+    /**
+     * Writes a value encoded in this format before, such as an "mdc" object cached by {@link MdcFragmentCache}.
+     */
+    public void writeRawValue(byte[] value, int offset, int length) {
+        writeBytes(value, offset, length);
+    }
+
+    /**
+     * Copies {@code members} object members encoded in this format before; formats that count the members of an
+     * object override this.
+     */
+    void writeMembers(byte[] encoded, int members) {
+        writeBytes(encoded, 0, encoded.length);
+    }
+
+    public void writeString(String value) {
+        if (value == null) {
+            writeNull();
+            return;
+        }
+        startText();
+        appendText(value);
+        writeString(text, 0, textLength, textAscii);
+    }
+
+    /**
+     * Writes the string without the cache, which holds JSON encodings.
+     */
+    public void writeString(String value, StringFragmentCache cache) {
+        writeString(value);
+    }
+
+    public void writeJoinedString(String[] lines, char separator) {
+        startText();
+        for (int i = 0; i < lines.length; i++) {
+            if (i > 0) {
+                appendText(separator);
+            }
+            if (lines[i] != null) {
+                appendText(lines[i]);
+            }
+        }
+        writeString(text, 0, textLength, textAscii);
+    }
+
+    public void writeStartString() {
+        startText();
+    }
+
+    public void writeStringContent(String value) {
+        appendText(value);
+    }
+
+    public void writeStringContent(char value) {
+        appendText(value);
+    }
+
+    public void writeStringContent(long value) {
+        if (value == Long.MIN_VALUE) {
+            appendText(MIN_LONG);
+            return;
+        }
+        ensureText(textLength + 20);
+        if (value < 0) {
+            text[textLength++] = '-';
+            value = -value;
+        }
+        int start = textLength;
+        do {
+            text[textLength++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = textLength - 1; i < j; i++, j--) {
+            byte tmp = text[i];
+            text[i] = text[j];
+            text[j] = tmp;
+        }
+    }
+
+    public void writeEndString() {
+        writeString(text, 0, textLength, textAscii);
+    }
+
+    public void writeTimestamp(long epochMillis) {
+        ensureText(TimestampFormatter.length(TimestampFormatter.Precision.MILLISECONDS));
+        textLength = timestamps.format(epochMillis, text, 0);
+        writeString(text, 0, textLength, true);
+    }
+
+    public void writeTimestamp(long epochSecond, int nanoOfSecond, TimestampFormatter.Precision precision) {
+        ensureText(TimestampFormatter.length(precision));
+        textLength = timestamps.format(epochSecond, nanoOfSecond, precision, text, 0);
+        writeString(text, 0, textLength, true);
+    }
+
+    public void writeHexString(long value) {
+        ensureText(16);
+        textLength = 0;
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            text[textLength++] = LOWER_HEX[(int) (value >>> shift) & 0xF];
+        }
+        writeString(text, 0, textLength, true);
+    }
+
+    /**
+     * Writes the value like {@link JsonWriter#writeObject(Object)}; values of other types than strings, integers,
+     * booleans, maps, collections and arrays are rendered by json-smart and translated.
+     */
+    public void writeObject(Object value) {
+        if (value == null) {
+            writeNull();
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            writeNumber(((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            writeBoolean((Boolean) value);
+        } else if (value instanceof Map) {
+            writeStartObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                writeFieldName(String.valueOf(entry.getKey()));
+                writeObject(entry.getValue());
+            }
+            writeEndObject();
+        } else if (value instanceof Collection) {
+            writeStartArray();
+            for (Object item : (Collection<?>) value) {
+                writeObject(item);
+            }
+            writeEndArray();
+        } else if (value instanceof Object[]) {
+            writeStartArray();
+            for (Object item : (Object[]) value) {
+                writeObject(item);
+            }
+            writeEndArray();
+        } else {
+            writeForeign(value);
+        }
+    }
+
+    /**
+     * Appends the document held by {@code json}; a trailing newline is dropped, binary documents delimit
+     * themselves.
+     */
+    public void transcode(JsonWriter json) {
+        transcode(json.buffer(), 0, json.size());
+    }
+
+    /**
+     * Appends the JSON document found in {@code json} from {@code offset} on.
+     *
+     * @throws IllegalArgumentException if the JSON is malformed
+     */
+    public void transcode(byte[] json, int offset, int length) {
+        writeStartDocument();
+        transcodeValue(json, offset, length);
+    }
+
+    private void transcodeValue(byte[] json, int offset, int length) {
+        input = json;
+        try {
+            int end = offset + length;
+            int pos = value(skipWhitespace(offset, end), end);
+            if (skipWhitespace(pos, end) != end) {
+                throw new IllegalArgumentException("Trailing content at offset " + pos);
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated JSON document");
+        } finally {
+            input = null;
+        }
+    }
+
+    /**
+     * Translates JSON object members without the braces, such as a {@link ConstantFields} fragment.
+     *
+     * @return the number of members
+     */
+    private int transcodeMembers(byte[] json, int offset, int length) {
+        input = json;
+        try {
+            int end = offset + length;
+            int members = 0;
+            int pos = skipWhitespace(offset, end);
+            while (pos < end) {
+                pos = string(expect(pos, end, '"') + 1, true);
+                pos = expect(skipWhitespace(pos, end), end, ':') + 1;
+                pos = skipWhitespace(value(skipWhitespace(pos, end), end), end);
+                members++;
+                if (pos < end) {
+                    pos = skipWhitespace(expect(pos, end, ',') + 1, end);
+                }
+            }
+            return members;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated JSON fragment");
+        } finally {
+            input = null;
+        }
+    }
+
+    private void writeForeign(Object value) {
+        if (scratch == null) {
+            scratch = new StringBuilder(64);
+        }
+        scratch.setLength(0);
+        try {
+            JSONValue.writeJSONString(value, scratch);
+        } catch (IOException e) {
+            // StringBuilder never throws
+            throw new IllegalStateException(e);
+        }
+        byte[] json = scratch.toString().getBytes(JsonWriter.UTF_8);
+        transcodeValue(json, 0, json.length);
+    }
+
+    private void startText() {
+        textLength = 0;
+        textAscii = true;
+    }
+
+    /**
+     * UTF-8 encodes a string into the text buffer; the 7-bit fast path needs no capacity check per character.
+     */
+    private void appendText(String value) {
+        int length = value.length();
+        ensureText(textLength + length);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (textLength == text.length) {
+                    ensureText(textLength + length - i);
+                }
+                text[textLength++] = (byte) c;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                ensureText(textLength + 4);
+                textLength = encodeUtf8(Character.toCodePoint(c, value.charAt(++i)), text, textLength);
+                textAscii = false;
+            } else {
+                appendText(c);
+            }
+        }
+    }
+
+    private void appendText(char c) {
+        ensureText(textLength + 3);
+        textLength = encodeUtf8(c, text, textLength);
+        // unpaired surrogates become '?'
+        textAscii &= c < 0x80 || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE);
+    }
+
+    private void ensureText(int capacity) {
+        if (text.length < capacity) {
+            byte[] grown = new byte[Math.max(capacity, text.length * 2)];
+            System.arraycopy(text, 0, grown, 0, textLength);
+            text = grown;
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the internal buffer; only the first {@link #size()} bytes are valid.
+     */
+    public byte[] buffer() {
+        return buf;
+    }
+
+    public byte[] toByteArray() {
+        byte[] copy = new byte[count];
+        System.arraycopy(buf, 0, copy, 0, count);
+        return copy;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
+
+    /**
+     * Copies the encoded bytes into {@code destination}, draining it whenever it fills up.
+     */
+    public void writeTo(ByteDestination destination) {
+        ByteBuffer target = destination.getByteBuffer();
+        int offset = 0;
+        while (offset < count) {
+            if (!target.hasRemaining()) {
+                target = destination.drain(target);
+            }
+            int chunk = Math.min(target.remaining(), count - offset);
+            target.put(buf, offset, chunk);
+            offset += chunk;
+        }
+    }
+
+    private int value(int pos, int end) {
+        if (pos >= end) {
+            throw new IllegalArgumentException("Missing value at offset " + pos);
+        }
+        switch (input[pos]) {
+            case '{':
+                return object(pos + 1, end);
+            case '[':
+                return array(pos + 1, end);
+            case '"':
+                return string(pos + 1, false);
+            case 't':
+                writeBoolean(true);
+                return pos + 4;
+            case 'f':
+                writeBoolean(false);
+                return pos + 5;
+            case 'n':
+                writeNull();
+                return pos + 4;
+            default:
+                return number(pos, end);
+        }
+    }
+
+    private int object(int pos, int end) {
+        writeStartObject();
+        pos = skipWhitespace(pos, end);
+        if (input[pos] == '}') {
+            writeEndObject();
+            return pos + 1;
+        }
+        while (true) {
+            pos = string(expect(pos, end, '"') + 1, true);
+            pos = expect(skipWhitespace(pos, end), end, ':') + 1;
+            pos = skipWhitespace(value(skipWhitespace(pos, end), end), end);
+            if (input[pos] == '}') {
+                writeEndObject();
+                return pos + 1;
+            }
+            pos = skipWhitespace(expect(pos, end, ',') + 1, end);
+        }
+    }
+
+    private int array(int pos, int end) {
+        writeStartArray();
+        pos = skipWhitespace(pos, end);
+        if (input[pos] == ']') {
+            writeEndArray();
+            return pos + 1;
+        }
+        while (true) {
+            pos = skipWhitespace(value(pos, end), end);
+            if (input[pos] == ']') {
+                writeEndArray();
+                return pos + 1;
+            }
+            pos = skipWhitespace(expect(pos, end, ',') + 1, end);
+        }
+    }
+
+    /**
+     * @param pos the offset following the opening quote
+     * @return the offset following the closing quote
+     */
+    private int string(int pos, boolean name) {
+        int start = pos;
+        boolean ascii = true;
+        byte b;
+        while ((b = input[pos]) != '"') {
+            if (b == '\\') {
+                return escapedString(start, pos, name);
+            }
+            ascii &= b >= 0;
+            pos++;
+        }
+        emit(input, start, pos - start, ascii, name);
+        return pos + 1;
+    }
+
+    private int escapedString(int start, int pos, boolean name) {
+        int length = pos - start;
+        ensureUnescaped(length + 16);
+        System.arraycopy(input, start, unescaped, 0, length);
+        byte b;
+        while ((b = input[pos]) != '"') {
+            ensureUnescaped(length + 4);
+            if (b != '\\') {
+                unescaped[length++] = b;
+                pos++;
+                continue;
+            }
+            byte escape = input[pos + 1];
+            pos += 2;
+            switch (escape) {
+                case 'b':
+                    unescaped[length++] = '\b';
+                    break;
+                case 't':
+                    unescaped[length++] = '\t';
+                    break;
+                case 'n':
+                    unescaped[length++] = '\n';
+                    break;
+                case 'f':
+                    unescaped[length++] = '\f';
+                    break;
+                case 'r':
+                    unescaped[length++] = '\r';
+                    break;
+                case 'u':
+                    int c = hex(pos);
+                    pos += 4;
+                    if (Character.isHighSurrogate((char) c) && input[pos] == '\\' && input[pos + 1] == 'u'
+                            && Character.isLowSurrogate((char) hex(pos + 2))) {
+                        c = Character.toCodePoint((char) c, (char) hex(pos + 2));
+                        pos += 6;
+                    }
+                    length = encodeUtf8(c, unescaped, length);
+                    break;
+                default:
+                    // '"', '\\' and '/'
+                    unescaped[length++] = escape;
+            }
+        }
+        boolean ascii = true;
+        for (int i = 0; i < length && ascii; i++) {
+            ascii = unescaped[i] >= 0;
+        }
+        emit(unescaped, 0, length, ascii, name);
+        return pos + 1;
+    }
+
+    private void emit(byte[] utf8, int offset, int length, boolean ascii, boolean name) {
+        if (name) {
+            writeFieldName(utf8, offset, length, ascii);
+        } else {
+            writeString(utf8, offset, length, ascii);
+        }
+    }
+
+    /**
+     * UTF-8 encodes a code point into {@code target}; unpaired surrogates become '?' like {@link JsonWriter} does.
+     *
+     * @return the length following the encoded code point
+     */
+    private static int encodeUtf8(int c, byte[] target, int length) {
+        if (c < 0x80) {
+            target[length++] = (byte) c;
+        } else if (c < 0x800) {
+            target[length++] = (byte) (0xC0 | (c >> 6));
+            target[length++] = (byte) (0x80 | (c & 0x3F));
+        } else if (c >= 0x10000) {
+            target[length++] = (byte) (0xF0 | (c >> 18));
+            target[length++] = (byte) (0x80 | ((c >> 12) & 0x3F));
+            target[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            target[length++] = (byte) (0x80 | (c & 0x3F));
+        } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+            target[length++] = '?';
+        } else {
+            target[length++] = (byte) (0xE0 | (c >> 12));
+            target[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            target[length++] = (byte) (0x80 | (c & 0x3F));
+        }
+        return length;
+    }
+
+    private int hex(int pos) {
+        int value = 0;
+        for (int i = pos; i < pos + 4; i++) {
+            int digit = Character.digit(input[i], 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid unicode escape at offset " + pos);
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private int number(int pos, int end) {
+        int start = pos;
+        boolean integral = true;
+        while (pos < end) {
+            byte b = input[pos];
+            if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+                break;
+            }
+            integral &= (b >= '0' && b <= '9') || (b == '-' && pos == start);
+            pos++;
+        }
+        int length = pos - start;
+        if (length == 0) {
+            throw new IllegalArgumentException("Unexpected character at offset " + start);
+        }
+        if (integral && length <= 18 && (length > 1 || input[start] != '-')) {
+            // at most 18 characters cannot overflow a long
+            boolean negative = input[start] == '-';
+            long value = 0;
+            for (int i = negative ? start + 1 : start; i < pos; i++) {
+                value = value * 10 + (input[i] - '0');
+            }
+            writeNumber(negative ? -value : value);
+            return pos;
+        }
+        String text = new String(input, start, length, JsonWriter.UTF_8);
+        if (integral) {
+            try {
+                writeNumber(Long.parseLong(text));
+                return pos;
+            } catch (NumberFormatException e) {
+                // beyond the range of a long, loses precision like most JSON parsers do
+            }
+        }
+        writeNumber(Double.parseDouble(text));
+        return pos;
+    }
+
+    private int skipWhitespace(int pos, int end) {
+        while (pos < end) {
+            byte b = input[pos];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                break;
+            }
+            pos++;
+        }
+        return pos;
+    }
+
+    private int expect(int pos, int end, char expected) {
+        if (pos >= end || input[pos] != expected) {
+            throw new IllegalArgumentException("Expected '" + expected + "' at offset " + pos);
+        }
+        return pos;
+    }
+
+    private void ensureUnescaped(int capacity) {
+        if (unescaped == null || unescaped.length < capacity) {
+            byte[] grown = new byte[Math.max(capacity, unescaped == null ? 256 : unescaped.length * 2)];
+            if (unescaped != null) {
+                System.arraycopy(unescaped, 0, grown, 0, unescaped.length);
+            }
+            unescaped = grown;
+        }
+    }
+
+    final void writeByte(int b) {
+        if (count == buf.length) {
+            ensureCapacity(1);
+        }
+        buf[count++] = (byte) b;
+    }
+
+    final void writeBytes(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buf, count, length);
+        count += length;
+    }
+
+    /**
+     * Writes the {@code length} lowest bytes of {@code value}, most significant first.
+     */
+    final void writeBigEndian(long value, int length) {
+        ensureCapacity(length);
+        for (int shift = (length - 1) * 8; shift >= 0; shift -= 8) {
+            buf[count++] = (byte) (value >>> shift);
+        }
+    }
+
+    final void ensureCapacity(int extra) {
+        int required = count + extra;
+        if (required > buf.length) {
+            int capacity = Math.max(buf.length * 2, required);
+            byte[] grown = new byte[capacity];
+            System.arraycopy(buf, 0, grown, 0, count);
+            buf = grown;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package net.logstash.json;
+
+import org.apache.commons.lang.time.FastDateFormat;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The Elasticsearch bulk API action line the layouts write in front of every document in bulk output mode, e.g.
+ * {@code {"index":{"_index":"logstash-2026.10.18"}}}.
+ * <p>
+ * The index name is a pattern like {@code logstash-%{+yyyy.MM.dd}}, where every {@code %{+FORMAT}} is replaced by
+ * the event's "@timestamp" formatted in UTC with {@link java.text.SimpleDateFormat} letters. The Logstash style
+ * {@code YYYY}, Joda's year of era, is read as {@code yyyy}. The encoded line is cached for the hour the last event fell into, so a pattern with minutes or seconds is formatted per event.
+ * <p>
+ * Optionally every action carries a generated "_id", which makes a retried bulk request overwrite its documents
+ * instead of duplicating them. Ids are 32 hex digits: the event's milliseconds and a sequence number first, so that
+ * ids of consecutive events share prefixes, which Lucene indexes efficiently, followed by a random per-layout node
+ * id. Instances are thread safe.
+ */
+public final class BulkAction {
+
+    private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private static final byte[] ID_SUFFIX = "}}\n".getBytes(JsonWriter.UTF_8);
+
+    private final String indexPattern;
+    private final boolean generateIds;
+    /** literal Strings and FastDateFormats, in pattern order */
+    private final Object[] segments;
+    private final long cachePeriod;
+    private final long node = new SecureRandom().nextLong();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private volatile CachedLine cached = new CachedLine(Long.MAX_VALUE, Long.MIN_VALUE, null);
+
+    /**
+     * @param indexPattern the index name, see the class comment
+     * @param generateIds true to add a generated "_id" to every action
+     * @throws IllegalArgumentException if a {@code %{} is not closed or holds an invalid date format
+     */
+    public BulkAction(String indexPattern, boolean generateIds) {
+        this.indexPattern = indexPattern;
+        this.generateIds = generateIds;
+        List<Object> parsed = new ArrayList<Object>();
+        boolean subHourly = false;
+        int pos = 0;
+        while (pos < indexPattern.length()) {
+            int start = indexPattern.indexOf("%{+", pos);
+            if (start < 0) {
+                parsed.add(indexPattern.substring(pos));
+                break;
+            }
+            int end = indexPattern.indexOf('}', start);
+            if (end < 0) {
+                throw new IllegalArgumentException("Unterminated date format in index pattern: " + indexPattern);
+            }
+            if (start > pos) {
+                parsed.add(indexPattern.substring(pos, start));
+            }
+            String format = yearOfEra(indexPattern.substring(start + 3, end));
+            try {
+                parsed.add(FastDateFormat.getInstance(format, UTC));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid date format %{+" + format + "} in index pattern "
+                        + indexPattern + ": " + e.getMessage(), e);
+            }
+            subHourly |= format.indexOf('m') >= 0 || format.indexOf('s') >= 0 || format.indexOf('S') >= 0;
+            pos = end + 1;
+        }
+        this.segments = parsed.toArray();
+        this.cachePeriod = subHourly ? 1 : HOUR_MILLIS;
+    }
+
+    public String getIndexPattern() {
+        return indexPattern;
+    }
+
+    public boolean isGeneratingIds() {
+        return generateIds;
+    }
+
+    /**
+     * @return the index name for an event at {@code timestampMillis}
+     */
+    public String indexName(long timestampMillis) {
+        StringBuilder name = new StringBuilder(indexPattern.length() + 16);
+        for (Object segment : segments) {
+            if (segment instanceof FastDateFormat) {
+                name.append(((FastDateFormat) segment).format(timestampMillis));
+            } else {
+                name.append((String) segment);
+            }
+        }
+        return name.toString();
+    }
+
+    /**
+     * Writes the action line, including its newline, for an event at {@code timestampMillis}.
+     */
+    public void write(JsonWriter writer, long timestampMillis) {
+        CachedLine line = cached;
+        if (timestampMillis < line.from || timestampMillis >= line.until) {
+            line = encode(timestampMillis);
+        }
+        writer.writeRawValue(line.encoded, 0, line.encoded.length);
+        if (generateIds) {
+            long next = sequence.getAndIncrement();
+            writer.writeHexString((timestampMillis << 16) | (next & 0xFFFF), node ^ (next >>> 16));
+            writer.writeRawValue(ID_SUFFIX, 0, ID_SUFFIX.length);
+        }
+    }
+
+    private CachedLine encode(long timestampMillis) {
+        JsonWriter writer = new JsonWriter();
+        writer.writeStartObject();
+        writer.writeFieldName("index");
+        writer.writeStartObject();
+        writer.writeFieldName("_index");
+        writer.writeString(indexName(timestampMillis));
+        if (generateIds) {
+            // the id and the closing braces are appended per event
+            writer.writeFieldName("_id");
+        } else {
+            writer.writeEndObject();
+            writer.writeEndObject();
+            writer.writeNewLine();
+        }
+        long from = cachePeriod == 1 ? timestampMillis : timestampMillis - floorMod(timestampMillis, cachePeriod);
+        CachedLine line = new CachedLine(from, from + cachePeriod, writer.toByteArray());
+        cached = line;
+        return line;
+    }
+
+    /**
+     * Replaces Joda's year of era {@code Y}, common in Logstash index patterns, by {@code y} outside quoted text.
+     */
+    private static String yearOfEra(String format) {
+        StringBuilder translated = new StringBuilder(format.length());
+        boolean quoted = false;
+        for (int i = 0; i < format.length(); i++) {
+            char c = format.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            }
+            translated.append(c == 'Y' && !quoted ? 'y' : c);
+        }
+        return translated.toString();
+    }
+
+    private static long floorMod(long value, long divisor) {
+        long mod = value % divisor;
+        return mod < 0 ? mod + divisor : mod;
+    }
+
+    private static final class CachedLine {
+        final long from;
+        final long until;
+        final byte[] encoded;
+
+        CachedLine(long from, long until, byte[] encoded) {
+            this.from = from;
+            this.until = until;
+            this.encoded = encoded;
+        }
+    }
+}
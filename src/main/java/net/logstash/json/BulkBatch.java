@@ -0,0 +1,122 @@
+package net.logstash.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Collects events formatted in bulk output mode (action line and document) into the body of one Elasticsearch bulk
+ * request, capped by byte size and event count.
+ * <p>
+ * {@link #add} refuses an event that would exceed either limit, which tells the caller to send the batch, clear it
+ * and add the event again. An event larger than {@code maxBytes} on its own is still accepted into an empty batch,
+ * so it is sent by itself rather than lost. The body is kept in one growable buffer and is not copied until it is
+ * written. Instances are not thread safe.
+ */
+public final class BulkBatch {
+
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+
+    private final int maxBytes;
+    private final int maxEvents;
+
+    private byte[] buf;
+    private int count;
+    private int events;
+
+    /**
+     * @param maxBytes the maximum size of a bulk body, Elasticsearch's own limit is 100MB
+     * @param maxEvents the maximum number of events per bulk body
+     */
+    public BulkBatch(int maxBytes, int maxEvents) {
+        if (maxBytes <= 0 || maxEvents <= 0) {
+            throw new IllegalArgumentException("Bulk limits must be positive: " + maxBytes + " bytes, " + maxEvents + " events");
+        }
+        this.maxBytes = maxBytes;
+        this.maxEvents = maxEvents;
+        this.buf = new byte[Math.min(INITIAL_CAPACITY, maxBytes)];
+    }
+
+    /**
+     * @return false if the event was not added because the batch is full
+     */
+    public boolean add(byte[] event) {
+        return add(event, 0, event.length);
+    }
+
+    /**
+     * Adds the document a layout encoded into {@code writer}.
+     *
+     * @return false if the event was not added because the batch is full
+     */
+    public boolean add(JsonWriter writer) {
+        return add(writer.buffer(), 0, writer.size());
+    }
+
+    /**
+     * @return false if the event was not added because the batch is full
+     */
+    public boolean add(byte[] event, int offset, int length) {
+        if (events > 0 && (events >= maxEvents || count + length > maxBytes)) {
+            return false;
+        }
+        if (count + length > buf.length) {
+            byte[] grown = new byte[Math.max(Math.min(buf.length * 2, maxBytes), count + length)];
+            System.arraycopy(buf, 0, grown, 0, count);
+            buf = grown;
+        }
+        System.arraycopy(event, offset, buf, count, length);
+        count += length;
+        events++;
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return events == 0;
+    }
+
+    /**
+     * @return true if no further event can be added
+     */
+    public boolean isFull() {
+        return events >= maxEvents || count >= maxBytes;
+    }
+
+    /**
+     * @return the number of events in the batch
+     */
+    public int getEvents() {
+        return events;
+    }
+
+    /**
+     * @return the size of the bulk body in bytes
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the internal buffer; only the first {@link #size()} bytes are valid.
+     */
+    public byte[] buffer() {
+        return buf;
+    }
+
+    public byte[] toByteArray() {
+        byte[] copy = new byte[count];
+        System.arraycopy(buf, 0, copy, 0, count);
+        return copy;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
+
+    /**
+     * Empties the batch, keeping its buffer for the next one.
+     */
+    public void clear() {
+        count = 0;
+        events = 0;
+    }
+}
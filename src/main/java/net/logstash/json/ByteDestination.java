@@ -0,0 +1,26 @@
+package net.logstash.json;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Target for encoded events that owns a reusable {@link ByteBuffer}.
+ * <p>
+ * Mirrors the contract of log4j2's {@code ByteBufferDestination} (log4j 2.6+), so an appender or manager can
+ * receive events from {@link JsonWriter#writeTo(ByteDestination, java.nio.charset.Charset)} without any
+ * intermediate byte arrays.
+ */
+public interface ByteDestination {
+
+    /**
+     * @return the buffer to write to, in write mode
+     */
+    ByteBuffer getByteBuffer();
+
+    /**
+     * Consumes the bytes written so far because the buffer is full.
+     *
+     * @param buf the buffer returned by {@link #getByteBuffer()}, still in write mode
+     * @return the buffer to continue writing to, in write mode and with at least one byte of space
+     */
+    ByteBuffer drain(ByteBuffer buf);
+}
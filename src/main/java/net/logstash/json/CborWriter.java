@@ -0,0 +1,102 @@
+package net.logstash.json;
+
+/**
+ * CBOR (RFC 7049) encoding. Objects and arrays use the indefinite length form, so they are written without
+ * knowing their size in advance.
+ */
+final class CborWriter extends BinaryWriter {
+
+    private static final int UNSIGNED = 0;
+    private static final int NEGATIVE = 1 << 5;
+    private static final int TEXT = 3 << 5;
+
+    private static final int START_ARRAY = 0x9F;
+    private static final int START_MAP = 0xBF;
+    private static final int BREAK = 0xFF;
+    private static final int FALSE = 0xF4;
+    private static final int TRUE = 0xF5;
+    private static final int NULL = 0xF6;
+    private static final int DOUBLE = 0xFB;
+
+    @Override
+    public OutputFormat getFormat() {
+        return OutputFormat.CBOR;
+    }
+
+    @Override
+    public void writeStartObject() {
+        writeByte(START_MAP);
+    }
+
+    @Override
+    public void writeEndObject() {
+        writeByte(BREAK);
+    }
+
+    @Override
+    public void writeStartArray() {
+        writeByte(START_ARRAY);
+    }
+
+    @Override
+    public void writeEndArray() {
+        writeByte(BREAK);
+    }
+
+    @Override
+    public void writeFieldName(byte[] utf8, int offset, int length, boolean ascii) {
+        writeString(utf8, offset, length, ascii);
+    }
+
+    @Override
+    public void writeString(byte[] utf8, int offset, int length, boolean ascii) {
+        writeHead(TEXT, length);
+        writeBytes(utf8, offset, length);
+    }
+
+    @Override
+    public void writeNumber(long value) {
+        if (value >= 0) {
+            writeHead(UNSIGNED, value);
+        } else {
+            writeHead(NEGATIVE, -1 - value);
+        }
+    }
+
+    @Override
+    public void writeNumber(double value) {
+        writeByte(DOUBLE);
+        writeBigEndian(Double.doubleToLongBits(value), 8);
+    }
+
+    @Override
+    public void writeBoolean(boolean value) {
+        writeByte(value ? TRUE : FALSE);
+    }
+
+    @Override
+    public void writeNull() {
+        writeByte(NULL);
+    }
+
+    /**
+     * Writes a major type with its argument in the shortest form.
+     */
+    private void writeHead(int majorType, long argument) {
+        if (argument < 24) {
+            writeByte(majorType | (int) argument);
+        } else if (argument <= 0xFF) {
+            writeByte(majorType | 24);
+            writeByte((int) argument);
+        } else if (argument <= 0xFFFF) {
+            writeByte(majorType | 25);
+            writeBigEndian(argument, 2);
+        } else if (argument <= 0xFFFFFFFFL) {
+            writeByte(majorType | 26);
+            writeBigEndian(argument, 4);
+        } else {
+            writeByte(majorType | 27);
+            writeBigEndian(argument, 8);
+        }
+    }
+}
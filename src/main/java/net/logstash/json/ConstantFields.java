@@ -0,0 +1,61 @@
+package net.logstash.json;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Fields that are identical for every event of a layout ({@code @version}, {@code source_host}, user fields),
+ * escaped and encoded once into a fragment that {@link JsonWriter#writeRawFields(byte[])} copies into each event.
+ * <p>
+ * User fields can be overridden through a system property, so a fragment remembers the property value it was
+ * built from. {@link #isBuiltFrom(String)} compares by identity: {@code System.getProperty} keeps returning the
+ * same instance until the property is set again, which makes the per-event staleness check a single lookup.
+ * Instances are immutable and can be shared between threads.
+ */
+public final class ConstantFields {
+
+    private final String propertyValue;
+    private final byte[] fragment;
+
+    /**
+     * @param fields the fields in the order they should appear; values are written with {@link JsonWriter#writeObject(Object)}
+     * @param propertyValue the system property value the fields were built from, may be null
+     */
+    public ConstantFields(Map<String, ?> fields, String propertyValue) {
+        this.propertyValue = propertyValue;
+        JsonWriter writer = new JsonWriter();
+        writer.writeStartObject();
+        for (Map.Entry<String, ?> field : fields.entrySet()) {
+            writer.writeFieldName(field.getKey());
+            writer.writeObject(field.getValue());
+        }
+        writer.writeEndObject();
+        // strip the braces, only the members are copied into events
+        byte[] members = new byte[writer.size() - 2];
+        System.arraycopy(writer.buffer(), 1, members, 0, members.length);
+        this.fragment = members;
+    }
+
+    public boolean isBuiltFrom(String currentPropertyValue) {
+        return currentPropertyValue == propertyValue;
+    }
+
+    public byte[] getFragment() {
+        return fragment;
+    }
+
+    /**
+     * Parses comma separated {@code key:value} pairs into {@code userFields}, overwriting existing keys.
+     * Pairs without a colon and keys contained in {@code reserved} are skipped.
+     */
+    public static void parseUserFields(String data, Map<String, Object> userFields, Set<String> reserved) {
+        if (null != data) {
+            for (String pair : data.trim().split(",")) {
+                String[] field = pair.trim().split(":", 2);
+                if (field.length == 2 && !reserved.contains(field[0])) {
+                    userFields.put(field[0], field[1]);
+                }
+            }
+        }
+    }
+}
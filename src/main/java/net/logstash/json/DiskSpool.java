@@ -0,0 +1,373 @@
+package net.logstash.json;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Persistent queue of encoded events in memory-mapped segment files, which lets a shipper keep accepting events at
+ * memory speed while its endpoint is unreachable.
+ * <p>
+ * Events are appended to {@code <directory>/spool.<sequence>} segments of {@code segmentSize} bytes, each as its
+ * length followed by its bytes; the length is written last, so that a record torn by a crash of the process reads
+ * as the end of the segment. {@link #read()} returns the events in order from the read cursor, and
+ * {@link #acknowledge(long)} moves the acknowledged cursor forward, stores it in {@code <directory>/checkpoint} and
+ * deletes the segments it leaves behind. When a spool is opened again, reading resumes from the checkpoint: events
+ * read but not acknowledged before a restart are read again, so delivery is at least once.
+ * <p>
+ * The segments on disk take at most {@code maxBytes}; past that {@link #append(byte[])} refuses events until
+ * acknowledged segments are deleted. Like {@link MappedSegmentFile} with its default durability, the spool
+ * survives the process but not the host. Segments are unmapped before they are deleted and when the spool is
+ * closed, where the JVM allows it (see {@link MappedBuffers}). Instances are thread safe.
+ */
+public final class DiskSpool {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+    static final String SEGMENT_PREFIX = "spool.";
+    static final String CHECKPOINT = "checkpoint";
+
+    private static final int HEADER = 4;
+    private static final int CHECKPOINT_SIZE = 12;
+    private static final int CHECKPOINT_MAGIC = 0x5350304c;
+
+    private final File directory;
+    private final int segmentSize;
+    private final long maxBytes;
+    private final MappedByteBuffer checkpoint;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+
+    private Segment writeSegment;
+    /** null for the start of the first segment */
+    private Segment readSegment;
+    private int readPosition;
+    private Segment ackSegment;
+    private int ackPosition;
+    private long diskBytes;
+    private long pendingEvents;
+    private long unreadEvents;
+    private boolean closed;
+
+    /**
+     * Opens the spool, resuming from the checkpoint of a previous process if there is one.
+     *
+     * @param directory   the directory holding the segments and the checkpoint, created if needed
+     * @param segmentSize the size of a segment in bytes
+     * @param maxBytes    the number of bytes the segments may take on disk
+     */
+    public DiskSpool(File directory, int segmentSize, long maxBytes) throws IOException {
+        if (segmentSize <= HEADER) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        if (maxBytes < segmentSize) {
+            throw new IllegalArgumentException("The disk budget must hold a segment: " + maxBytes);
+        }
+        this.directory = directory.getAbsoluteFile();
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IOException("Could not create directory " + this.directory);
+        }
+        this.checkpoint = map(new File(this.directory, CHECKPOINT), CHECKPOINT_SIZE);
+        recover();
+    }
+
+    /**
+     * Appends an event.
+     *
+     * @return false if the event would take the spool beyond its disk budget, or the spool is closed
+     */
+    public synchronized boolean append(byte[] event) throws IOException {
+        if (closed) {
+            return false;
+        }
+        if (event.length == 0) {
+            return true;
+        }
+        int needed = HEADER + event.length;
+        if (writeSegment == null || writeSegment.buffer.remaining() < needed) {
+            int size = Math.max(segmentSize, needed);
+            if (diskBytes + size > maxBytes) {
+                return false;
+            }
+            int sequence = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+            writeSegment = new Segment(sequence, segmentFile(sequence), size);
+            segments.put(sequence, writeSegment);
+            diskBytes += size;
+        }
+        ByteBuffer buffer = writeSegment.buffer;
+        int position = buffer.position();
+        buffer.position(position + HEADER);
+        buffer.put(event);
+        buffer.putInt(position, event.length);
+        pendingEvents++;
+        unreadEvents++;
+        return true;
+    }
+
+    /**
+     * @return the event after the read cursor, or null if all events appended were read
+     */
+    public synchronized byte[] read() {
+        if (closed || unreadEvents == 0) {
+            return null;
+        }
+        if (readSegment == null) {
+            readSegment = segments.firstEntry().getValue();
+            readPosition = 0;
+        }
+        int length;
+        while ((length = lengthAt(readSegment, readPosition)) == 0) {
+            readSegment = segments.higherEntry(readSegment.sequence).getValue();
+            readPosition = 0;
+        }
+        byte[] event = new byte[length];
+        ByteBuffer view = readSegment.view;
+        view.position(readPosition + HEADER);
+        view.get(event);
+        readPosition += HEADER + length;
+        unreadEvents--;
+        return event;
+    }
+
+    /**
+     * Moves the acknowledged cursor over the next {@code events} events read, stores it and deletes the segments
+     * that hold no unacknowledged event any more.
+     */
+    public synchronized void acknowledge(long events) throws IOException {
+        if (closed) {
+            return;
+        }
+        long readable = pendingEvents - unreadEvents;
+        for (long i = Math.min(events, readable); i > 0; i--) {
+            if (ackSegment == null) {
+                ackSegment = segments.firstEntry().getValue();
+                ackPosition = 0;
+            }
+            int length;
+            while ((length = lengthAt(ackSegment, ackPosition)) == 0) {
+                Segment next = segments.higherEntry(ackSegment.sequence).getValue();
+                delete(ackSegment);
+                ackSegment = next;
+                ackPosition = 0;
+            }
+            ackPosition += HEADER + length;
+            pendingEvents--;
+        }
+        if (ackSegment != null && ackSegment != writeSegment && lengthAt(ackSegment, ackPosition) == 0) {
+            // a completed segment goes as soon as its last event is acknowledged, not when the next one is
+            Segment next = segments.higherEntry(ackSegment.sequence).getValue();
+            if (readSegment == ackSegment) {
+                readSegment = next;
+                readPosition = 0;
+            }
+            delete(ackSegment);
+            ackSegment = next;
+            ackPosition = 0;
+        }
+        storeCheckpoint();
+    }
+
+    /**
+     * Stores the acknowledged cursor and releases the segments; events not acknowledged are read again when the
+     * spool is opened next time.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        storeCheckpoint();
+        closed = true;
+        for (Segment segment : segments.values()) {
+            MappedBuffers.unmap(segment.buffer);
+        }
+        MappedBuffers.unmap(checkpoint);
+        segments.clear();
+        writeSegment = null;
+        readSegment = null;
+        ackSegment = null;
+    }
+
+    /**
+     * @return the number of events appended and not acknowledged yet
+     */
+    public synchronized long getPendingEvents() {
+        return pendingEvents;
+    }
+
+    /**
+     * @return the number of events appended and not read yet
+     */
+    public synchronized long getUnreadEvents() {
+        return unreadEvents;
+    }
+
+    /**
+     * @return the number of bytes the segments take on disk
+     */
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    File segmentFile(int sequence) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%06d", sequence));
+    }
+
+    /**
+     * @return the length of the record at {@code position}, 0 at the end of the segment's records
+     */
+    private int lengthAt(Segment segment, int position) {
+        if (segment == writeSegment && position >= segment.buffer.position()) {
+            return 0;
+        }
+        if (position + HEADER > segment.size) {
+            return 0;
+        }
+        int length = segment.view.getInt(position);
+        return length < 0 || length > segment.size - position - HEADER ? 0 : length;
+    }
+
+    private void delete(Segment segment) throws IOException {
+        segments.remove(segment.sequence);
+        diskBytes -= segment.size;
+        if (segment == writeSegment) {
+            writeSegment = null;
+        }
+        // a file that is still mapped cannot be deleted on Windows
+        MappedBuffers.unmap(segment.buffer);
+        if (!segment.file.delete()) {
+            throw new IOException("Could not delete " + segment.file);
+        }
+    }
+
+    private void storeCheckpoint() {
+        int sequence = ackSegment == null ? 0 : ackSegment.sequence;
+        checkpoint.putInt(0, sequence);
+        checkpoint.putInt(4, ackPosition);
+        checkpoint.putInt(8, sequence * 31 + ackPosition ^ CHECKPOINT_MAGIC);
+    }
+
+    /**
+     * Maps the segments left by a previous process, drops those the checkpoint says were acknowledged and counts
+     * the events in the others.
+     */
+    private void recover() throws IOException {
+        String[] names = directory.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX);
+            }
+        });
+        for (String name : names == null ? new String[0] : names) {
+            int sequence;
+            try {
+                sequence = Integer.parseInt(name.substring(SEGMENT_PREFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            File file = new File(directory, name);
+            long length = file.length();
+            if (length <= HEADER || length > Integer.MAX_VALUE) {
+                if (!file.delete()) {
+                    throw new IOException("Could not delete " + file);
+                }
+                continue;
+            }
+            segments.put(sequence, new Segment(sequence, file, (int) length));
+            diskBytes += length;
+        }
+
+        int sequence = checkpoint.getInt(0);
+        int position = checkpoint.getInt(4);
+        boolean valid = checkpoint.getInt(8) == (sequence * 31 + position ^ CHECKPOINT_MAGIC) && sequence > 0;
+        if (valid && segments.containsKey(sequence)) {
+            while (segments.firstKey() < sequence) {
+                delete(segments.firstEntry().getValue());
+            }
+            ackSegment = segments.get(sequence);
+            ackPosition = Math.min(position, ackSegment.size);
+        }
+
+        if (!segments.isEmpty()) {
+            // the last segment is written on from the end of its records
+            Segment last = segments.lastEntry().getValue();
+            int end = 0;
+            int length;
+            while ((length = lengthAt(last, end)) > 0) {
+                end += HEADER + length;
+            }
+            last.buffer.position(end);
+            writeSegment = last;
+        }
+
+        if (ackSegment != null) {
+            Segment segment = ackSegment;
+            int at = ackPosition;
+            while (segment != null) {
+                int length;
+                while ((length = lengthAt(segment, at)) > 0) {
+                    at += HEADER + length;
+                    pendingEvents++;
+                }
+                Map.Entry<Integer, Segment> next = segments.higherEntry(segment.sequence);
+                segment = next == null ? null : next.getValue();
+                at = 0;
+            }
+        } else {
+            for (Segment segment : segments.values()) {
+                int at = 0;
+                int length;
+                while ((length = lengthAt(segment, at)) > 0) {
+                    at += HEADER + length;
+                    pendingEvents++;
+                }
+            }
+        }
+        unreadEvents = pendingEvents;
+        readSegment = ackSegment;
+        readPosition = ackPosition;
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * A mapped segment file, preallocated and zero filled.
+     */
+    private static final class Segment {
+        final int sequence;
+        final File file;
+        final int size;
+        /** written through by {@link #append(byte[])}, its position is the end of the records */
+        final MappedByteBuffer buffer;
+        /** read through by the cursors */
+        final ByteBuffer view;
+
+        Segment(int sequence, File file, int size) throws IOException {
+            this.sequence = sequence;
+            this.file = file;
+            this.size = size;
+            this.buffer = map(file, size);
+            this.view = buffer.duplicate();
+        }
+    }
+}
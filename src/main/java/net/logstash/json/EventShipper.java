@@ -0,0 +1,362 @@
+package net.logstash.json;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Base of the shippers that send encoded events to a remote endpoint from a single I/O thread.
+ * <p>
+ * {@link #send(byte[])} only puts the event into a {@link RingBuffer}, applying the {@link OverflowPolicy} while
+ * it is full; the I/O thread, run by the subclass, takes the events from there. Subclasses connect through
+ * {@link #backOff(Exception)} and {@link #connected()} so that failed connection attempts are spaced exponentially, from
+ * {@code reconnectDelay} up to {@code maxReconnectDelay} milliseconds.
+ * <p>
+ * With a {@link DiskSpool} set through {@link #spoolTo(DiskSpool)}, {@link #send(byte[])} appends the event to the
+ * spool instead, so that the logging thread does not wait for the endpoint however long it is down, up to the
+ * spool's disk budget. A spool thread moves the events from the spool into the buffer as space frees up, and
+ * acknowledges them in the spool once the subclass reports them {@link #settled(long)}; the events not settled when
+ * the shipper closes stay in the spool and are sent by the next shipper opening it.
+ */
+public abstract class EventShipper {
+
+    public enum OverflowPolicy {
+        /** makes the logging thread wait for space */
+        BLOCK,
+        /** discards the oldest buffered event to make room */
+        DROP_OLDEST,
+        /** discards the event being sent */
+        DROP_NEWEST;
+
+        /**
+         * @return the policy with the given case insensitive name, {@link #BLOCK} for null or an empty name
+         */
+        public static OverflowPolicy parse(String name) {
+            if (name == null || name.trim().length() == 0) {
+                return BLOCK;
+            }
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    /**
+     * Receives the failures of the I/O thread, which has no caller to throw to.
+     */
+    public interface ErrorReporter {
+        void error(String message, Exception e);
+    }
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    public static final long DEFAULT_RECONNECT_DELAY = 100;
+    public static final long DEFAULT_MAX_RECONNECT_DELAY = 30000;
+
+    protected static final int CONNECT_TIMEOUT = 5000;
+
+    private static final long SPOOL_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    protected final String host;
+    protected final int port;
+    protected final ErrorReporter reporter;
+    protected final RingBuffer<byte[]> ringBuffer;
+
+    protected final long reconnectDelay;
+    protected final long maxReconnectDelay;
+
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong settledEvents = new AtomicLong();
+
+    private Thread thread;
+    private volatile DiskSpool spool;
+    private Thread spoolThread;
+    /** set while the spool thread waits for events, so that senders know to wake it */
+    private volatile boolean spoolIdle;
+    /** the settled events acknowledged in the spool */
+    private long spoolAcknowledged;
+    /** stops {@link #send(byte[])}, and the spool thread once it has emptied the spool */
+    private volatile boolean closing;
+    protected volatile boolean stopped;
+    /** set when the events left could not be sent within the shutdown timeout */
+    protected volatile boolean abandoned;
+
+    /** I/O thread state */
+    private long delay;
+    private boolean connectedBefore;
+    private boolean reported;
+
+    /**
+     * @param bufferSize the number of events buffered for the I/O thread
+     */
+    protected EventShipper(String host, int port, int bufferSize, OverflowPolicy overflowPolicy, long reconnectDelay,
+                           long maxReconnectDelay, ErrorReporter reporter) {
+        if (host == null) {
+            throw new IllegalArgumentException("No host set");
+        }
+        this.host = host;
+        this.port = port;
+        this.overflowPolicy = overflowPolicy;
+        this.reconnectDelay = Math.max(1, reconnectDelay);
+        this.maxReconnectDelay = Math.max(this.reconnectDelay, maxReconnectDelay);
+        this.delay = this.reconnectDelay;
+        this.reporter = reporter;
+        this.ringBuffer = new RingBuffer<byte[]>(bufferSize, RingBuffer.WaitStrategy.PARK);
+    }
+
+    /**
+     * Starts the I/O thread; called by subclasses once they are fully constructed.
+     */
+    protected final void start(Runnable sender) {
+        thread = new Thread(sender, getClass().getSimpleName() + "-" + host + ":" + port);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues an event, applying the overflow policy if the buffer is full.
+     *
+     * @param event the encoded event; it must not be modified afterwards
+     * @return false if the event was dropped
+     */
+    public boolean send(byte[] event) {
+        DiskSpool disk = spool;
+        if (disk != null) {
+            return spool(disk, event);
+        }
+        RingBuffer<byte[]> buffer = ringBuffer;
+        while (!buffer.offer(event)) {
+            if (stopped) {
+                droppedEvents.incrementAndGet();
+                return false;
+            }
+            switch (overflowPolicy) {
+                case DROP_NEWEST:
+                    droppedEvents.incrementAndGet();
+                    return false;
+                case DROP_OLDEST:
+                    if (buffer.poll() != null) {
+                        droppedEvents.incrementAndGet();
+                    }
+                    break;
+                default:
+                    if (!thread.isAlive() || Thread.currentThread().isInterrupted()) {
+                        droppedEvents.incrementAndGet();
+                        return false;
+                    }
+                    buffer.awaitSpace();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes the events sent from now on go through {@code spool}, starting with those a previous shipper left in
+     * it, and starts the spool thread. The spool is closed with the shipper.
+     */
+    public void spoolTo(DiskSpool spool) {
+        if (this.spool != null) {
+            throw new IllegalStateException("Already spooling to " + this.spool.getDirectory());
+        }
+        this.spool = spool;
+        spoolThread = new Thread(new SpoolReader(spool), getClass().getSimpleName() + "-spool-" + host + ":" + port);
+        spoolThread.setDaemon(true);
+        spoolThread.start();
+    }
+
+    /**
+     * @return the spool set by {@link #spoolTo(DiskSpool)}, or null
+     */
+    public DiskSpool getSpool() {
+        return spool;
+    }
+
+    /**
+     * Stops accepting events and waits up to {@code timeout} milliseconds for the buffered ones to be sent; those
+     * left are dropped, or kept in the spool if there is one.
+     */
+    public void close(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        closing = true;
+        try {
+            if (spoolThread != null) {
+                LockSupport.unpark(spoolThread);
+                spoolThread.join(remaining(deadline));
+            }
+            stopped = true;
+            LockSupport.unpark(thread);
+            thread.join(remaining(deadline));
+            if (thread.isAlive()) {
+                abandoned = true;
+                disconnect();
+                LockSupport.unpark(thread);
+                thread.join(timeout);
+            }
+            awaitDelivery(deadline);
+            if (spoolThread != null) {
+                abandoned = true;
+                spoolThread.join(timeout);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        DiskSpool disk = spool;
+        if (disk != null) {
+            acknowledgeSettled(disk);
+            disk.close();
+        }
+    }
+
+    /**
+     * Called by {@link #close(long)} once the I/O thread ended, for subclasses that hand events over to other
+     * threads to wait for them until {@code deadline}.
+     */
+    protected void awaitDelivery(long deadline) throws InterruptedException {
+    }
+
+    protected static long remaining(long deadline) {
+        return Math.max(1, deadline - System.currentTimeMillis());
+    }
+
+    /**
+     * @return true while the I/O thread is connected
+     */
+    public abstract boolean isConnected();
+
+    /**
+     * Closes the connection, from the I/O thread or, to make it give up, from {@link #close(long)}.
+     */
+    protected abstract void disconnect();
+
+    /**
+     * @return the number of events dropped by the overflow policy or left unsent on close
+     */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * @return the number of connections established after the first one
+     */
+    public long getReconnects() {
+        return reconnects.get();
+    }
+
+    protected void dropped(long events) {
+        droppedEvents.addAndGet(events);
+    }
+
+    /**
+     * Reports that the next {@code events} events, in the order they were sent, were delivered or rejected for good
+     * by the endpoint, so that a spool can let go of them.
+     */
+    protected void settled(long events) {
+        settledEvents.addAndGet(events);
+    }
+
+    /**
+     * Drops the events left in the buffer when the I/O thread ends.
+     */
+    protected void dropBuffered() {
+        long unsent = 0;
+        while (ringBuffer.poll() != null) {
+            unsent++;
+        }
+        droppedEvents.addAndGet(unsent);
+    }
+
+    /**
+     * Reports the first of a series of failed connection attempts and waits before the next one.
+     */
+    protected void backOff(Exception e) {
+        if (!reported) {
+            reported = true;
+            reporter.error("Could not connect to " + host + ":" + port + ", retrying with backoff", e);
+        }
+        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(delay));
+        delay = Math.min(delay * 2, maxReconnectDelay);
+    }
+
+    /**
+     * Resets the backoff after a connection was established.
+     */
+    protected void connected() {
+        if (connectedBefore) {
+            reconnects.incrementAndGet();
+        }
+        connectedBefore = true;
+        reported = false;
+        delay = reconnectDelay;
+    }
+
+    private boolean spool(DiskSpool disk, byte[] event) {
+        boolean spooled = false;
+        if (!closing) {
+            try {
+                spooled = disk.append(event);
+            } catch (IOException e) {
+                reporter.error("Could not spool to " + disk.getDirectory(), e);
+            }
+        }
+        if (!spooled) {
+            droppedEvents.incrementAndGet();
+            return false;
+        }
+        if (spoolIdle) {
+            LockSupport.unpark(spoolThread);
+        }
+        return true;
+    }
+
+    private synchronized void acknowledgeSettled(DiskSpool disk) {
+        long settled = settledEvents.get();
+        if (settled > spoolAcknowledged) {
+            try {
+                disk.acknowledge(settled - spoolAcknowledged);
+            } catch (IOException e) {
+                reporter.error("Could not update " + disk.getDirectory(), e);
+            }
+            spoolAcknowledged = settled;
+        }
+    }
+
+    /**
+     * Moves the spooled events into the buffer, waiting for space rather than applying the overflow policy, and
+     * acknowledges those settled since.
+     */
+    private final class SpoolReader implements Runnable {
+        private final DiskSpool disk;
+
+        SpoolReader(DiskSpool disk) {
+            this.disk = disk;
+        }
+
+        public void run() {
+            RingBuffer<byte[]> buffer = ringBuffer;
+            byte[] event = null;
+            while (!abandoned) {
+                acknowledgeSettled(disk);
+                if (event == null) {
+                    event = disk.read();
+                }
+                if (event != null) {
+                    if (buffer.offer(event)) {
+                        event = null;
+                    } else if (!thread.isAlive()) {
+                        break;
+                    } else {
+                        buffer.awaitSpace();
+                    }
+                } else if (closing) {
+                    break;
+                } else {
+                    spoolIdle = true;
+                    if (disk.getUnreadEvents() == 0) {
+                        LockSupport.parkNanos(this, SPOOL_POLL_NANOS);
+                    }
+                    spoolIdle = false;
+                }
+            }
+        }
+    }
+}
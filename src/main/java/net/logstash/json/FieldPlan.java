@@ -0,0 +1,207 @@
+package net.logstash.json;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiled field projection of the V1 layouts: which of the standard fields are written and under which name, and
+ * which MDC keys make it into the "mdc" object.
+ * <p>
+ * The configuration is parsed once; per event the layouts only look up pre-encoded names by index, and skip
+ * producing the value of a dropped field altogether. "@timestamp" and "@version" are required by the logstash
+ * event format and can neither be dropped nor renamed. Instances are immutable and thread safe.
+ */
+public final class FieldPlan {
+
+    public static final int MESSAGE = 0;
+    public static final int EXCEPTION = 1;
+    public static final int FILE = 2;
+    public static final int LINE_NUMBER = 3;
+    public static final int CLASS = 4;
+    public static final int METHOD = 5;
+    public static final int LOGGER_NAME = 6;
+    public static final int MDC = 7;
+    public static final int NDC = 8;
+    public static final int LEVEL = 9;
+    public static final int THREAD_NAME = 10;
+    public static final int SOURCE_HOST = 11;
+
+    private static final String[] STANDARD_FIELDS = {
+            "message", "exception", "file", "line_number", "class", "method",
+            "logger_name", "mdc", "ndc", "level", "thread_name", "source_host"};
+
+    /**
+     * Writes every field under its standard name, including the whole MDC.
+     */
+    public static final FieldPlan DEFAULT = compile(null, null, null, null);
+
+    private final String[] names;
+    private final byte[][] encodedNames;
+    private final String[] mdcIncludes;
+    private final Set<String> mdcExcludes;
+
+    private FieldPlan(String[] names, String[] mdcIncludes, Set<String> mdcExcludes) {
+        this.names = names;
+        this.encodedNames = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            encodedNames[i] = names[i] == null ? null : JsonWriter.fieldName(names[i]);
+        }
+        this.mdcIncludes = mdcIncludes;
+        this.mdcExcludes = mdcExcludes;
+    }
+
+    /**
+     * @param dropFields comma separated standard fields to leave out, e.g. {@code ndc,thread_name}
+     * @param renameFields comma separated {@code standard:new} names, e.g. {@code logger_name:logger}
+     * @param mdcIncludes comma separated MDC keys to write, all keys if null
+     * @param mdcExcludes comma separated MDC keys to leave out
+     * @throws IllegalArgumentException if a rule names a field the layouts do not write or cannot change, or two
+     *                                  fields that are written would end up with the same name
+     */
+    public static FieldPlan compile(String dropFields, String renameFields, String mdcIncludes, String mdcExcludes) {
+        String[] names = STANDARD_FIELDS.clone();
+        for (String rename : split(renameFields)) {
+            int colon = rename.indexOf(':');
+            if (colon <= 0 || colon == rename.length() - 1) {
+                throw new IllegalArgumentException("Invalid field rename, expected standard:new but got " + rename);
+            }
+            names[indexOf(rename.substring(0, colon).trim())] = rename.substring(colon + 1).trim();
+        }
+        for (String drop : split(dropFields)) {
+            names[indexOf(drop)] = null;
+        }
+        Set<String> outputNames = new LinkedHashSet<String>();
+        for (String name : names) {
+            if (name == null) {
+                continue;
+            }
+            if (name.equals("@timestamp") || name.equals("@version")) {
+                throw new IllegalArgumentException("Cannot rename a field to " + name + ", which the layouts always write");
+            }
+            if (!outputNames.add(name)) {
+                throw new IllegalArgumentException("Two fields would be written as " + name + ": " + renameFields);
+            }
+        }
+        Set<String> includes = split(mdcIncludes);
+        Set<String> excludes = split(mdcExcludes);
+        includes.removeAll(excludes);
+        return new FieldPlan(names, mdcIncludes == null ? null : includes.toArray(new String[includes.size()]),
+                excludes.isEmpty() ? Collections.<String>emptySet() : excludes);
+    }
+
+    /**
+     * @return the encoded {@code "name":} of a standard field, null if the field is dropped
+     */
+    public byte[] fieldName(int field) {
+        return encodedNames[field];
+    }
+
+    /**
+     * @return the output name of a standard field, null if the field is dropped
+     */
+    public String outputName(int field) {
+        return names[field];
+    }
+
+    /**
+     * @return the output names of the fields that are written
+     */
+    public Set<String> outputNames() {
+        Set<String> outputNames = new LinkedHashSet<String>();
+        for (String name : names) {
+            if (name != null) {
+                outputNames.add(name);
+            }
+        }
+        return outputNames;
+    }
+
+    public boolean includes(int field) {
+        return encodedNames[field] != null;
+    }
+
+    /**
+     * @return whether any of the location fields is written, i.e. whether the location has to be captured
+     */
+    public boolean includesLocation() {
+        return includes(FILE) || includes(LINE_NUMBER) || includes(CLASS) || includes(METHOD);
+    }
+
+    /**
+     * @return the allowed MDC keys in output order, null if all keys not excluded are written
+     */
+    public String[] getMdcIncludes() {
+        return mdcIncludes == null ? null : mdcIncludes.clone();
+    }
+
+    /**
+     * @return the allowed MDC keys without copying them, for {@link MdcFragmentCache}
+     */
+    String[] mdcIncludes() {
+        return mdcIncludes;
+    }
+
+    public boolean hasMdcIncludes() {
+        return mdcIncludes != null;
+    }
+
+    /**
+     * @return whether the MDC is written as is
+     */
+    public boolean isMdcUnfiltered() {
+        return mdcIncludes == null && mdcExcludes.isEmpty();
+    }
+
+    /**
+     * Writes the projected MDC as an object value. Values of allowed keys that are missing from the MDC are left
+     * out, not written as null.
+     */
+    public void writeMdc(TokenWriter writer, Map<?, ?> mdc) {
+        if (isMdcUnfiltered()) {
+            writer.writeObject(mdc);
+            return;
+        }
+        writer.writeStartObject();
+        if (mdcIncludes != null) {
+            for (String key : mdcIncludes) {
+                Object value = mdc.get(key);
+                if (value != null) {
+                    writer.writeFieldName(key);
+                    writer.writeObject(value);
+                }
+            }
+        } else {
+            for (Map.Entry<?, ?> entry : mdc.entrySet()) {
+                String key = String.valueOf(entry.getKey());
+                if (!mdcExcludes.contains(key)) {
+                    writer.writeFieldName(key);
+                    writer.writeObject(entry.getValue());
+                }
+            }
+        }
+        writer.writeEndObject();
+    }
+
+    private static int indexOf(String field) {
+        int index = Arrays.asList(STANDARD_FIELDS).indexOf(field);
+        if (index < 0) {
+            throw new IllegalArgumentException("Unknown field " + field + ", expected one of " + Arrays.toString(STANDARD_FIELDS));
+        }
+        return index;
+    }
+
+    private static Set<String> split(String list) {
+        Set<String> values = new LinkedHashSet<String>();
+        if (list != null) {
+            for (String value : list.split(",")) {
+                if (value.trim().length() > 0) {
+                    values.add(value.trim());
+                }
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,240 @@
+package net.logstash.json;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Formats events on several worker threads and writes them out in the order they were added, for asynchronous
+ * appenders whose single background thread cannot format as many events as the application logs.
+ * <p>
+ * The thread driving the pipeline, the sequencer, collects events into batches of {@code batchSize} and hands each
+ * batch to a worker. Every batch sits in a slot with an encoding buffer of its own, so the workers format without
+ * sharing anything; the sequencer passes the buffers to the {@link Output} strictly in the order the batches were
+ * filled, whichever worker finishes first. There are four slots per worker: when all of them are being formatted
+ * or wait for an earlier one, the sequencer waits in {@link #add(Object)}.
+ * <p>
+ * Only the sequencer, the thread that created the pipeline, may call its methods. The {@link Formatter} is called by
+ * all workers at once.
+ */
+public final class FormattingPipeline<E> {
+
+    /**
+     * Encodes events, on several threads at once.
+     */
+    public interface Formatter<E> {
+        /**
+         * Appends the encoded event to {@code writer}; what it appended is discarded if it throws, and the
+         * worker goes on with the next event whatever it throws.
+         */
+        void format(E event, JsonWriter writer);
+    }
+
+    /**
+     * Receives the formatted batches, in order, on the sequencer thread.
+     */
+    public interface Output {
+        void write(JsonWriter batch);
+    }
+
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    private static final int SLOTS_PER_WORKER = 4;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Formatter<E> formatter;
+    private final Output output;
+    private final EventShipper.ErrorReporter errorReporter;
+    private final int batchSize;
+    private final Slot[] slots;
+    private final BlockingQueue<Slot> filled = new LinkedBlockingQueue<Slot>();
+    private final Thread[] workers;
+    private final Thread sequencer;
+
+    /** the sequence of the batch being filled */
+    private long filling;
+    /** the sequence of the next batch to write */
+    private long writing;
+    private volatile boolean closed;
+
+    /**
+     * Starts the workers; the calling thread becomes the sequencer.
+     *
+     * @param name      the prefix of the workers' thread names
+     * @param workers   the number of worker threads
+     * @param batchSize the number of events handed to a worker at once
+     */
+    public FormattingPipeline(String name, int workers, int batchSize, Formatter<E> formatter, Output output,
+                              EventShipper.ErrorReporter errorReporter) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("At least one worker is needed: " + workers);
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size out of range: " + batchSize);
+        }
+        this.formatter = formatter;
+        this.output = output;
+        this.errorReporter = errorReporter;
+        this.batchSize = batchSize;
+        this.sequencer = Thread.currentThread();
+        this.slots = new Slot[workers * SLOTS_PER_WORKER];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot(batchSize);
+        }
+        this.workers = new Thread[workers];
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(new Worker(), name + "-worker-" + i);
+            worker.setDaemon(true);
+            this.workers[i] = worker;
+            worker.start();
+        }
+    }
+
+    /**
+     * Adds an event to the batch being filled, and hands the batch to the workers once it is full.
+     */
+    public void add(E event) {
+        Slot slot = slot(filling);
+        slot.events[slot.count++] = event;
+        if (slot.count == batchSize) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Hands the batch being filled to the workers even though it is not full, e.g. because no more events are
+     * waiting.
+     */
+    public void flush() {
+        if (slot(filling).count > 0) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Passes the batches formatted so far to the output, up to the first one still being formatted.
+     *
+     * @return the number of batches written
+     */
+    public int write() {
+        int written = 0;
+        while (writing < filling) {
+            Slot slot = slot(writing);
+            if (!slot.formatted) {
+                break;
+            }
+            output.write(slot.writer);
+            slot.writer.reset();
+            slot.count = 0;
+            slot.formatted = false;
+            writing++;
+            written++;
+        }
+        return written;
+    }
+
+    /**
+     * @return true if no event is waiting to be formatted or written
+     */
+    public boolean isEmpty() {
+        return writing == filling && slot(filling).count == 0;
+    }
+
+    /**
+     * Flushes, waits up to {@code timeout} milliseconds for the batches to be formatted and written, and stops the
+     * workers.
+     *
+     * @return true if all events were written
+     */
+    public boolean close(long timeout) {
+        flush();
+        long deadline = System.currentTimeMillis() + timeout;
+        while (writing < filling) {
+            if (write() == 0) {
+                if (System.currentTimeMillis() >= deadline) {
+                    break;
+                }
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        }
+        closed = true;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        return writing == filling;
+    }
+
+    private Slot slot(long sequence) {
+        return slots[(int) (sequence % slots.length)];
+    }
+
+    /**
+     * Queues the batch being filled for the workers and waits until the slot of the next one is written.
+     */
+    private void dispatch() {
+        filled.add(slot(filling));
+        filling++;
+        while (filling - writing == slots.length) {
+            if (write() == 0) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * A batch of events and the buffer they are formatted into.
+     */
+    private static final class Slot {
+        final Object[] events;
+        final JsonWriter writer = new JsonWriter();
+        /** written by the sequencer only, before the slot is queued */
+        int count;
+        /** set by the worker once the batch is formatted, and by the sequencer once it is written */
+        volatile boolean formatted;
+
+        Slot(int batchSize) {
+            this.events = new Object[batchSize];
+        }
+    }
+
+    /**
+     * Formats the queued batches until the pipeline is closed.
+     */
+    private final class Worker implements Runnable {
+        public void run() {
+            while (!closed) {
+                Slot slot;
+                try {
+                    slot = filled.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                try {
+                    format(slot);
+                } finally {
+                    // the sequencer waits for every batch it queued, so a batch is never left unfinished
+                    slot.formatted = true;
+                    LockSupport.unpark(sequencer);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void format(Slot slot) {
+            JsonWriter writer = slot.writer;
+            for (int i = 0; i < slot.count; i++) {
+                int start = writer.size();
+                try {
+                    formatter.format((E) slot.events[i], writer);
+                } catch (Throwable t) {
+                    // an Error, e.g. a StackOverflowError in a message's toString, must not end the worker either
+                    writer.truncate(start);
+                    errorReporter.error("Could not format event",
+                            t instanceof Exception ? (Exception) t : new RuntimeException(t));
+                }
+                slot.events[i] = null;
+            }
+        }
+    }
+}
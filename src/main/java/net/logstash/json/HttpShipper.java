@@ -0,0 +1,370 @@
+package net.logstash.json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Ships events to an HTTP endpoint, such as a Logstash {@code http} input or Elasticsearch's {@code _bulk} API, in
+ * gzip compressed newline-delimited batches.
+ * <p>
+ * The I/O thread concatenates the events into a batch until it holds {@code batchSize} bytes or its first event
+ * is {@code linger} milliseconds old, compresses it and hands it to one of {@code inFlight} request threads. Each
+ * request thread POSTs one batch at a time over a persistent HTTP/1.1 connection, so up to {@code inFlight}
+ * requests are outstanding; batches may therefore arrive out of order. A batch that fails with an I/O error, a
+ * 408, 429 or 5xx status is retried with exponential backoff from {@code reconnectDelay} up to
+ * {@code maxReconnectDelay} milliseconds; other 4xx statuses drop it. Batches waiting for or being retried by a
+ * request thread take at most {@code maxPendingBytes}: beyond that the I/O thread stops taking events, the buffer
+ * fills up and the {@link OverflowPolicy} applies.
+ */
+public final class HttpShipper extends EventShipper {
+
+    public static final int DEFAULT_BATCH_SIZE = 1024 * 1024;
+    public static final long DEFAULT_LINGER = 200;
+    public static final int DEFAULT_IN_FLIGHT = 2;
+    public static final long DEFAULT_MAX_PENDING_BYTES = 16 * 1024 * 1024;
+
+    private static final int READ_TIMEOUT = 30000;
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final URL url;
+    private final String contentType;
+    private final boolean compress;
+    private final int batchSize;
+    private final long linger;
+    private final long maxPendingBytes;
+
+    private final BlockingQueue<Batch> ready = new LinkedBlockingQueue<Batch>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicLong acknowledgedEvents = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicBoolean reported = new AtomicBoolean();
+    private final Thread[] senders;
+    private volatile boolean batcherDone;
+    private volatile boolean connected;
+
+    /** the sequence of the oldest batch not settled yet, and the batches after it that already were */
+    private long nextSettled;
+    private final Map<Long, Integer> settledAhead = new HashMap<Long, Integer>();
+
+    /**
+     * Starts the I/O thread and the request threads.
+     *
+     * @param url             the endpoint batches are POSTed to
+     * @param contentType     the content type of the events, usually the layout's
+     * @param compress        true to send the batches gzip compressed
+     * @param bufferSize      the number of events buffered for the I/O thread
+     * @param batchSize       the number of uncompressed bytes after which a batch is sent
+     * @param linger          the milliseconds a batch waits for more events
+     * @param inFlight        the number of concurrent requests
+     * @param maxPendingBytes the number of compressed bytes of batches waiting to be sent or retried
+     */
+    public HttpShipper(String url, String contentType, boolean compress, int bufferSize, int batchSize, long linger, int inFlight,
+                       long maxPendingBytes, OverflowPolicy overflowPolicy, long reconnectDelay, long maxReconnectDelay,
+                       ErrorReporter reporter) throws MalformedURLException {
+        this(new URL(url), contentType, compress, bufferSize, batchSize, linger, inFlight, maxPendingBytes, overflowPolicy,
+                reconnectDelay, maxReconnectDelay, reporter);
+    }
+
+    private HttpShipper(URL url, String contentType, boolean compress, int bufferSize, int batchSize, long linger, int inFlight,
+                        long maxPendingBytes, OverflowPolicy overflowPolicy, long reconnectDelay, long maxReconnectDelay,
+                        ErrorReporter reporter) {
+        super(url.getHost(), url.getPort() < 0 ? url.getDefaultPort() : url.getPort(), bufferSize, overflowPolicy,
+                reconnectDelay, maxReconnectDelay, reporter);
+        if (inFlight <= 0) {
+            throw new IllegalArgumentException("At least one request must be in flight: " + inFlight);
+        }
+        this.url = url;
+        this.contentType = contentType;
+        this.compress = compress;
+        this.batchSize = batchSize;
+        this.linger = linger;
+        this.maxPendingBytes = maxPendingBytes;
+        this.senders = new Thread[inFlight];
+        for (int i = 0; i < inFlight; i++) {
+            senders[i] = new Thread(new Sender(), "HttpShipper-" + url.getHost() + ":" + port + "-" + i);
+            senders[i].setDaemon(true);
+            senders[i].start();
+        }
+        start(new Batcher());
+    }
+
+    /**
+     * Waits for the request threads to send the batches left, then drops those they could not send in time.
+     */
+    @Override
+    protected void awaitDelivery(long deadline) throws InterruptedException {
+        for (Thread sender : senders) {
+            sender.join(remaining(deadline));
+        }
+        abandoned = true;
+        disconnect();
+        for (Thread sender : senders) {
+            sender.join(remaining(deadline));
+        }
+        Batch left;
+        while ((left = ready.poll()) != null) {
+            dropped(left.events);
+        }
+    }
+
+    /**
+     * @return true if the last request reached the endpoint
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Wakes the request threads waiting to retry, so that they notice the shipper is abandoned.
+     */
+    protected void disconnect() {
+        for (Thread sender : senders) {
+            LockSupport.unpark(sender);
+        }
+    }
+
+    /**
+     * @return the number of events in batches the endpoint accepted
+     */
+    public long getAcknowledgedEvents() {
+        return acknowledgedEvents.get();
+    }
+
+    /**
+     * @return the number of requests sent, including retries
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Reports the events of the batches settled in the order the batches were made, although concurrent requests
+     * complete out of order.
+     */
+    private synchronized void settle(Batch batch) {
+        if (batch.sequence != nextSettled) {
+            settledAhead.put(batch.sequence, batch.events);
+            return;
+        }
+        long events = batch.events;
+        Integer ahead;
+        while ((ahead = settledAhead.remove(++nextSettled)) != null) {
+            events += ahead;
+        }
+        settled(events);
+    }
+
+    private static final class Batch {
+        final byte[] body;
+        final int events;
+        final long sequence;
+
+        Batch(byte[] body, int events, long sequence) {
+            this.body = body;
+            this.events = events;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Growable buffer that can be read without copying it first.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+        Buffer(int size) {
+            super(size);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    private final class Batcher implements Runnable {
+        private final Buffer batch = new Buffer(Math.min(batchSize, 1024 * 1024) + 1024);
+        private final Buffer compressed = new Buffer(64 * 1024);
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final CRC32 crc = new CRC32();
+        private final byte[] deflated = new byte[64 * 1024];
+        private int events;
+        private long started;
+        private long batches;
+
+        public void run() {
+            RingBuffer<byte[]> buffer = ringBuffer;
+            try {
+                while (!abandoned) {
+                    byte[] event = buffer.poll();
+                    if (event != null) {
+                        if (events == 0) {
+                            started = System.currentTimeMillis();
+                        }
+                        batch.write(event, 0, event.length);
+                        events++;
+                        if (batch.size() >= batchSize) {
+                            flush();
+                        }
+                    } else if (events > 0 && (stopped || System.currentTimeMillis() - started >= linger)) {
+                        flush();
+                    } else if (stopped) {
+                        break;
+                    } else {
+                        buffer.awaitElement();
+                    }
+                }
+            } finally {
+                batcherDone = true;
+                dropped(events);
+                dropBuffered();
+                deflater.end();
+            }
+        }
+
+        private void flush() {
+            byte[] body = compress ? gzip() : batch.toByteArray();
+            // bounds the memory held by batches that cannot be sent
+            while (pendingBytes.get() > 0 && pendingBytes.get() + body.length > maxPendingBytes && !abandoned) {
+                LockSupport.parkNanos(this, POLL_NANOS);
+            }
+            pendingBytes.addAndGet(body.length);
+            ready.add(new Batch(body, events, batches++));
+            batch.reset();
+            events = 0;
+        }
+
+        /**
+         * Compresses the batch with the thread's reusable deflater, in the gzip format.
+         */
+        private byte[] gzip() {
+            compressed.reset();
+            compressed.write(new byte[]{0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff}, 0, 10);
+            deflater.reset();
+            deflater.setInput(batch.buffer(), 0, batch.size());
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(deflated);
+                compressed.write(deflated, 0, n);
+            }
+            crc.reset();
+            crc.update(batch.buffer(), 0, batch.size());
+            writeIntLE(compressed, (int) crc.getValue());
+            writeIntLE(compressed, batch.size());
+            return compressed.toByteArray();
+        }
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    private final class Sender implements Runnable {
+        private final byte[] discard = new byte[8192];
+
+        public void run() {
+            try {
+                while (!abandoned) {
+                    Batch batch = ready.poll(10, TimeUnit.MILLISECONDS);
+                    if (batch != null) {
+                        deliver(batch);
+                        pendingBytes.addAndGet(-batch.body.length);
+                    } else if (batcherDone && ready.isEmpty()) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void deliver(Batch batch) {
+            long delay = reconnectDelay;
+            while (true) {
+                if (abandoned) {
+                    dropped(batch.events);
+                    return;
+                }
+                int status;
+                IOException failure = null;
+                try {
+                    status = post(batch.body);
+                } catch (IOException e) {
+                    status = -1;
+                    failure = e;
+                }
+                if (status >= 200 && status < 300) {
+                    connected = true;
+                    reported.set(false);
+                    acknowledgedEvents.addAndGet(batch.events);
+                    settle(batch);
+                    return;
+                }
+                if (status >= 400 && status < 500 && status != 408 && status != 429) {
+                    connected = true;
+                    reporter.error("Batch of " + batch.events + " events rejected by " + url + " with status " + status, null);
+                    dropped(batch.events);
+                    settle(batch);
+                    return;
+                }
+                connected = status > 0;
+                if (reported.compareAndSet(false, true)) {
+                    reporter.error((failure == null ? "Status " + status + " from " : "Could not send to ") + url
+                            + ", retrying with backoff", failure);
+                }
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(delay));
+                delay = Math.min(delay * 2, maxReconnectDelay);
+            }
+        }
+
+        /**
+         * Sends one batch and reads the whole response, which lets the JDK keep the connection alive for the next.
+         */
+        private int post(byte[] body) throws IOException {
+            requests.incrementAndGet();
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            try {
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setUseCaches(false);
+                connection.setConnectTimeout(CONNECT_TIMEOUT);
+                connection.setReadTimeout(READ_TIMEOUT);
+                connection.setFixedLengthStreamingMode(body.length);
+                connection.setRequestProperty("Content-Type", contentType);
+                if (compress) {
+                    connection.setRequestProperty("Content-Encoding", "gzip");
+                }
+                OutputStream out = connection.getOutputStream();
+                out.write(body);
+                out.close();
+                int status = connection.getResponseCode();
+                InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+                if (in != null) {
+                    while (in.read(discard) >= 0) {
+                        // the response body is not used
+                    }
+                    in.close();
+                }
+                return status;
+            } catch (IOException e) {
+                connection.disconnect();
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,642 @@
+package net.logstash.json;
+
+import net.minidev.json.JSONValue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Streaming JSON writer that encodes straight into a reusable UTF-8 byte buffer.
+ * <p>
+ * Strings are escaped exactly like json-smart does in its default (non compressed) style, so documents
+ * produced here are byte compatible with what {@code JSONObject.toString()} used to produce for the same values.
+ * Values of types the writer does not know about are handed to json-smart, which keeps the output identical
+ * for arbitrary MDC content.
+ * <p>
+ * Instances are not thread safe. Use {@link #acquire()} / {@link #release()} to borrow the calling thread's writer.
+ */
+public final class JsonWriter implements TokenWriter {
+
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int INITIAL_CAPACITY = 1024;
+    /** Buffers grown beyond this (deep stack traces, huge messages) are dropped when the writer is released. */
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final int TRANSCODE_CHUNK = 1024;
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(UTF_8);
+    private static final byte[] LOWER_HEX = "0123456789abcdef".getBytes(UTF_8);
+    private static final byte[] NULL = "null".getBytes(UTF_8);
+    private static final byte[] TRUE = "true".getBytes(UTF_8);
+    private static final byte[] FALSE = "false".getBytes(UTF_8);
+    private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(UTF_8);
+
+    /**
+     * Escape table for 7-bit characters: 0 means "copy as is", 'u' means "\\u00XX", anything else is the
+     * character following the backslash.
+     */
+    private static final byte[] ESCAPES = new byte[128];
+
+    static {
+        for (int i = 0; i < 0x20; i++) {
+            ESCAPES[i] = 'u';
+        }
+        ESCAPES['\b'] = 'b';
+        ESCAPES['\t'] = 't';
+        ESCAPES['\n'] = 'n';
+        ESCAPES['\f'] = 'f';
+        ESCAPES['\r'] = 'r';
+        ESCAPES['"'] = '"';
+        ESCAPES['\\'] = '\\';
+        ESCAPES['/'] = '/';
+        ESCAPES[0x7F] = 'u';
+    }
+
+    private static final ThreadLocal<JsonWriter> THREAD_WRITER = new ThreadLocal<JsonWriter>() {
+        @Override
+        protected JsonWriter initialValue() {
+            return new JsonWriter();
+        }
+    };
+
+    private byte[] buf = new byte[INITIAL_CAPACITY];
+    private int count;
+
+    private boolean[] needsComma = new boolean[16];
+    private int depth;
+    private boolean afterName;
+
+    private boolean inUse;
+    private StringBuilder scratch;
+    private final TimestampFormatter timestamps = new TimestampFormatter();
+
+    private CharsetDecoder decoder;
+    private CharsetEncoder encoder;
+    private CharBuffer chars;
+
+    /**
+     * Borrows the calling thread's writer, already reset. If the thread's writer is busy (a layout re-entered
+     * through a logging call made while rendering a value) a fresh writer is returned instead.
+     */
+    public static JsonWriter acquire() {
+        JsonWriter writer = THREAD_WRITER.get();
+        if (writer.inUse) {
+            writer = new JsonWriter();
+        }
+        writer.inUse = true;
+        writer.reset();
+        return writer;
+    }
+
+    /**
+     * Hands a writer obtained through {@link #acquire()} back to its thread.
+     */
+    public void release() {
+        inUse = false;
+        if (buf.length > MAX_RETAINED_CAPACITY) {
+            buf = new byte[INITIAL_CAPACITY];
+        }
+        count = 0;
+    }
+
+    /**
+     * Pre-encodes a field name, including quotes and colon, so that it can be written with
+     * {@link #writeFieldName(byte[])} without escaping it again.
+     */
+    public static byte[] fieldName(String name) {
+        JsonWriter writer = new JsonWriter();
+        writer.writeQuoted(name);
+        writer.writeByte(':');
+        return writer.toByteArray();
+    }
+
+    public OutputFormat getFormat() {
+        return OutputFormat.JSON;
+    }
+
+    public void reset() {
+        count = 0;
+        depth = 0;
+        afterName = false;
+        needsComma[0] = false;
+    }
+
+    /**
+     * Drops everything written after the first {@code size} bytes, such as a partly encoded event following
+     * complete ones, and returns to the top level.
+     */
+    public void truncate(int size) {
+        if (size < 0 || size > count) {
+            throw new IndexOutOfBoundsException("Size " + size + " out of 0.." + count);
+        }
+        count = size;
+        depth = 0;
+        afterName = false;
+        needsComma[0] = false;
+    }
+
+    public void writeStartObject() {
+        beforeValue();
+        push();
+        writeByte('{');
+    }
+
+    public void writeEndObject() {
+        depth--;
+        writeByte('}');
+    }
+
+    public void writeStartArray() {
+        beforeValue();
+        push();
+        writeByte('[');
+    }
+
+    public void writeEndArray() {
+        depth--;
+        writeByte(']');
+    }
+
+    public void writeFieldName(String name) {
+        beforeName();
+        writeQuoted(name);
+        writeByte(':');
+        afterName = true;
+    }
+
+    /**
+     * @param encodedName a name produced by {@link #fieldName(String)}
+     */
+    public void writeFieldName(byte[] encodedName) {
+        beforeName();
+        writeBytes(encodedName, 0, encodedName.length);
+        afterName = true;
+    }
+
+    /**
+     * Writes a fragment of complete, already encoded members ({@code "a":1,"b":"c"}) into the current object.
+     */
+    public void writeRawFields(byte[] fragment) {
+        if (fragment.length == 0) {
+            return;
+        }
+        beforeName();
+        writeBytes(fragment, 0, fragment.length);
+    }
+
+    /**
+     * Writes an already encoded JSON value.
+     */
+    public void writeRawValue(byte[] value, int offset, int length) {
+        beforeValue();
+        writeBytes(value, offset, length);
+    }
+
+    public void writeString(String value) {
+        beforeValue();
+        if (value == null) {
+            writeBytes(NULL, 0, NULL.length);
+        } else {
+            writeQuoted(value);
+        }
+    }
+
+    /**
+     * Writes a string, copying its encoding from {@code cache} if it was written before, see
+     * {@link StringFragmentCache}.
+     */
+    public void writeString(String value, StringFragmentCache cache) {
+        if (value == null) {
+            writeNull();
+            return;
+        }
+        beforeValue();
+        byte[] fragment = cache.get(value);
+        if (fragment != null) {
+            writeBytes(fragment, 0, fragment.length);
+        } else {
+            int start = count;
+            writeQuoted(value);
+            cache.put(value, buf, start, count);
+        }
+    }
+
+    /**
+     * Writes the given lines as one JSON string, separated by {@code separator}, without joining them first.
+     */
+    public void writeJoinedString(String[] lines, char separator) {
+        beforeValue();
+        writeByte('"');
+        for (int i = 0; i < lines.length; i++) {
+            if (i > 0) {
+                writeEscaped(separator);
+            }
+            if (lines[i] != null) {
+                writeEscaped(lines[i]);
+            }
+        }
+        writeByte('"');
+    }
+
+    /**
+     * Opens a string value whose content is then written piecewise with the {@code writeStringContent} methods
+     * and closed with {@link #writeEndString()}.
+     */
+    public void writeStartString() {
+        beforeValue();
+        writeByte('"');
+    }
+
+    public void writeStringContent(String value) {
+        writeEscaped(value);
+    }
+
+    public void writeStringContent(char value) {
+        writeEscaped(value);
+    }
+
+    public void writeStringContent(long value) {
+        writeLong(value);
+    }
+
+    public void writeEndString() {
+        writeByte('"');
+    }
+
+    /**
+     * Writes a UTC timestamp string with millisecond precision, see {@link TimestampFormatter}.
+     */
+    public void writeTimestamp(long epochMillis) {
+        beforeValue();
+        ensureCapacity(TimestampFormatter.length(TimestampFormatter.Precision.MILLISECONDS) + 2);
+        buf[count++] = '"';
+        count = timestamps.format(epochMillis, buf, count);
+        buf[count++] = '"';
+    }
+
+    /**
+     * Writes a UTC timestamp string with the given sub-second precision, see {@link TimestampFormatter}.
+     */
+    public void writeTimestamp(long epochSecond, int nanoOfSecond, TimestampFormatter.Precision precision) {
+        beforeValue();
+        ensureCapacity(TimestampFormatter.length(precision) + 2);
+        buf[count++] = '"';
+        count = timestamps.format(epochSecond, nanoOfSecond, precision, buf, count);
+        buf[count++] = '"';
+    }
+
+    /**
+     * Writes {@code value} as a string of 16 lower case hex digits.
+     */
+    public void writeHexString(long value) {
+        beforeValue();
+        ensureCapacity(18);
+        buf[count++] = '"';
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            buf[count++] = LOWER_HEX[(int) (value >>> shift) & 0xF];
+        }
+        buf[count++] = '"';
+    }
+
+    /**
+     * Writes {@code high} and {@code low} as one string of 32 lower case hex digits.
+     */
+    public void writeHexString(long high, long low) {
+        beforeValue();
+        ensureCapacity(34);
+        buf[count++] = '"';
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            buf[count++] = LOWER_HEX[(int) (high >>> shift) & 0xF];
+        }
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            buf[count++] = LOWER_HEX[(int) (low >>> shift) & 0xF];
+        }
+        buf[count++] = '"';
+    }
+
+    public void writeNumber(long value) {
+        beforeValue();
+        writeLong(value);
+    }
+
+    public void writeBoolean(boolean value) {
+        beforeValue();
+        byte[] literal = value ? TRUE : FALSE;
+        writeBytes(literal, 0, literal.length);
+    }
+
+    public void writeNull() {
+        beforeValue();
+        writeBytes(NULL, 0, NULL.length);
+    }
+
+    /**
+     * Writes an arbitrary value the way json-smart would: maps become objects, collections and object arrays
+     * become arrays, and anything else is delegated to {@link JSONValue#writeJSONString(Object, Appendable)}.
+     */
+    public void writeObject(Object value) {
+        if (value == null) {
+            writeNull();
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            writeNumber(((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            writeBoolean((Boolean) value);
+        } else if (value instanceof Map) {
+            writeStartObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                writeFieldName(String.valueOf(entry.getKey()));
+                writeObject(entry.getValue());
+            }
+            writeEndObject();
+        } else if (value instanceof Collection) {
+            writeStartArray();
+            for (Object item : (Collection) value) {
+                writeObject(item);
+            }
+            writeEndArray();
+        } else if (value instanceof Object[]) {
+            writeStartArray();
+            for (Object item : (Object[]) value) {
+                writeObject(item);
+            }
+            writeEndArray();
+        } else {
+            writeForeign(value);
+        }
+    }
+
+    public void writeNewLine() {
+        writeByte('\n');
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the internal buffer; only the first {@link #size()} bytes are valid.
+     */
+    public byte[] buffer() {
+        return buf;
+    }
+
+    public byte[] toByteArray() {
+        byte[] copy = new byte[count];
+        System.arraycopy(buf, 0, copy, 0, count);
+        return copy;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
+
+    /**
+     * Copies the encoded bytes into {@code destination}, draining it whenever it fills up. For charsets other than
+     * UTF-8 the content is transcoded through a decoder/encoder pair owned by this writer, so no intermediate
+     * String or byte array is created either way.
+     */
+    public void writeTo(ByteDestination destination, Charset charset) {
+        if (UTF_8.equals(charset)) {
+            ByteBuffer target = destination.getByteBuffer();
+            int offset = 0;
+            while (offset < count) {
+                if (!target.hasRemaining()) {
+                    target = destination.drain(target);
+                }
+                int chunk = Math.min(target.remaining(), count - offset);
+                target.put(buf, offset, chunk);
+                offset += chunk;
+            }
+        } else {
+            transcodeTo(destination, charset);
+        }
+    }
+
+    private void transcodeTo(ByteDestination destination, Charset charset) {
+        if (encoder == null || !encoder.charset().equals(charset)) {
+            encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        if (decoder == null) {
+            decoder = UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            chars = CharBuffer.allocate(TRANSCODE_CHUNK);
+        }
+        decoder.reset();
+        encoder.reset();
+        chars.clear();
+        ByteBuffer source = ByteBuffer.wrap(buf, 0, count);
+        ByteBuffer target = destination.getByteBuffer();
+        boolean endOfInput = false;
+        while (!endOfInput) {
+            decoder.decode(source, chars, true);
+            endOfInput = !source.hasRemaining();
+            chars.flip();
+            while (encoder.encode(chars, target, endOfInput).isOverflow()) {
+                target = destination.drain(target);
+            }
+            // keeps a dangling high surrogate for the next round
+            chars.compact();
+        }
+        while (encoder.flush(target).isOverflow()) {
+            target = destination.drain(target);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, count, UTF_8);
+    }
+
+    private void push() {
+        depth++;
+        if (depth == needsComma.length) {
+            boolean[] grown = new boolean[depth * 2];
+            System.arraycopy(needsComma, 0, grown, 0, depth);
+            needsComma = grown;
+        }
+        needsComma[depth] = false;
+    }
+
+    private void beforeName() {
+        if (needsComma[depth]) {
+            writeByte(',');
+        }
+        needsComma[depth] = true;
+    }
+
+    private void beforeValue() {
+        if (afterName) {
+            afterName = false;
+        } else if (depth > 0) {
+            if (needsComma[depth]) {
+                writeByte(',');
+            }
+            needsComma[depth] = true;
+        }
+    }
+
+    private void writeForeign(Object value) {
+        if (scratch == null) {
+            scratch = new StringBuilder(64);
+        }
+        scratch.setLength(0);
+        try {
+            JSONValue.writeJSONString(value, scratch);
+        } catch (IOException e) {
+            // StringBuilder never throws
+            throw new IllegalStateException(e);
+        }
+        beforeValue();
+        for (int i = 0; i < scratch.length(); i++) {
+            char c = scratch.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < scratch.length() && Character.isLowSurrogate(scratch.charAt(i + 1))) {
+                writeCodePoint(Character.toCodePoint(c, scratch.charAt(++i)));
+            } else {
+                writeChar(c);
+            }
+        }
+    }
+
+    private void writeQuoted(String value) {
+        writeByte('"');
+        writeEscaped(value);
+        writeByte('"');
+    }
+
+    /**
+     * Escapes and UTF-8 encodes a string; the 7-bit fast path writes directly into the buffer.
+     */
+    public void writeEscaped(String value) {
+        int length = value.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                byte escape = ESCAPES[c];
+                if (escape == 0) {
+                    if (count == buf.length) {
+                        ensureCapacity(length - i);
+                    }
+                    buf[count++] = (byte) c;
+                } else {
+                    writeEscape(c, escape);
+                }
+            } else if (c <= 0x9F || (c >= 0x2000 && c <= 0x20FF)) {
+                writeEscape(c, (byte) 'u');
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                writeCodePoint(Character.toCodePoint(c, value.charAt(++i)));
+            } else {
+                writeChar(c);
+            }
+        }
+    }
+
+    private void writeEscaped(char c) {
+        if (c < 0x80 && ESCAPES[c] != 0) {
+            writeEscape(c, ESCAPES[c]);
+        } else if ((c >= 0x7F && c <= 0x9F) || (c >= 0x2000 && c <= 0x20FF)) {
+            writeEscape(c, (byte) 'u');
+        } else {
+            writeChar(c);
+        }
+    }
+
+    private void writeEscape(char c, byte escape) {
+        ensureCapacity(6);
+        buf[count++] = '\\';
+        if (escape == 'u') {
+            buf[count++] = 'u';
+            buf[count++] = HEX[(c >> 12) & 0xF];
+            buf[count++] = HEX[(c >> 8) & 0xF];
+            buf[count++] = HEX[(c >> 4) & 0xF];
+            buf[count++] = HEX[c & 0xF];
+        } else {
+            buf[count++] = escape;
+        }
+    }
+
+    /**
+     * UTF-8 encodes a single BMP character; unpaired surrogates become '?' like {@link String#getBytes(Charset)}.
+     */
+    private void writeChar(char c) {
+        ensureCapacity(3);
+        if (c < 0x80) {
+            buf[count++] = (byte) c;
+        } else if (c < 0x800) {
+            buf[count++] = (byte) (0xC0 | (c >> 6));
+            buf[count++] = (byte) (0x80 | (c & 0x3F));
+        } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+            buf[count++] = '?';
+        } else {
+            buf[count++] = (byte) (0xE0 | (c >> 12));
+            buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buf[count++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    private void writeCodePoint(int codePoint) {
+        ensureCapacity(4);
+        buf[count++] = (byte) (0xF0 | (codePoint >> 18));
+        buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+        buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        buf[count++] = (byte) (0x80 | (codePoint & 0x3F));
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeBytes(MIN_LONG, 0, MIN_LONG.length);
+            return;
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            buf[count++] = '-';
+            value = -value;
+        }
+        int start = count;
+        do {
+            buf[count++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = count - 1; i < j; i++, j--) {
+            byte tmp = buf[i];
+            buf[i] = buf[j];
+            buf[j] = tmp;
+        }
+    }
+
+    private void writeByte(int b) {
+        if (count == buf.length) {
+            ensureCapacity(1);
+        }
+        buf[count++] = (byte) b;
+    }
+
+    private void writeBytes(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buf, count, length);
+        count += length;
+    }
+
+    private void ensureCapacity(int extra) {
+        int required = count + extra;
+        if (required > buf.length) {
+            int capacity = Math.max(buf.length * 2, required);
+            byte[] grown = new byte[capacity];
+            System.arraycopy(buf, 0, grown, 0, count);
+            buf = grown;
+        }
+    }
+}
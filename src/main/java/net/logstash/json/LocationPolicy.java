@@ -0,0 +1,113 @@
+package net.logstash.json;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides for which events the caller location is captured, which is the most expensive part of encoding an event
+ * on both log4j versions.
+ * <p>
+ * Policies are written as
+ * <ul>
+ *     <li>{@code always} or {@code never}</li>
+ *     <li>{@code threshold:WARN}, for events at or above the given level; the layouts resolve the level name
+ *     with their log4j version's {@code Level.toLevel} and reject names it does not know</li>
+ *     <li>{@code sampled:100}, for every 100th event</li>
+ * </ul>
+ * Instances are thread safe; the sampling counter is shared by all threads using the policy.
+ */
+public final class LocationPolicy {
+
+    public enum Mode {
+        ALWAYS,
+        NEVER,
+        THRESHOLD,
+        SAMPLED
+    }
+
+    public static final LocationPolicy ALWAYS = new LocationPolicy(Mode.ALWAYS, null, 1);
+    public static final LocationPolicy NEVER = new LocationPolicy(Mode.NEVER, null, 1);
+
+    private final Mode mode;
+    private final String threshold;
+    private final int sampleRate;
+    private final AtomicLong events = new AtomicLong();
+
+    private LocationPolicy(Mode mode, String threshold, int sampleRate) {
+        this.mode = mode;
+        this.threshold = threshold;
+        this.sampleRate = sampleRate;
+    }
+
+    public static LocationPolicy threshold(String level) {
+        return new LocationPolicy(Mode.THRESHOLD, level, 1);
+    }
+
+    /**
+     * @param sampleRate capture the location of one in {@code sampleRate} events, 1 or less for every event
+     */
+    public static LocationPolicy sampled(int sampleRate) {
+        return sampleRate <= 1 ? ALWAYS : new LocationPolicy(Mode.SAMPLED, null, sampleRate);
+    }
+
+    /**
+     * Parses a policy, see the class comment for the syntax.
+     *
+     * @throws IllegalArgumentException if the policy is malformed
+     */
+    public static LocationPolicy parse(String policy) {
+        String trimmed = policy.trim();
+        int colon = trimmed.indexOf(':');
+        String name = (colon < 0 ? trimmed : trimmed.substring(0, colon)).trim();
+        String argument = colon < 0 ? "" : trimmed.substring(colon + 1).trim();
+        if (name.equalsIgnoreCase("always") && colon < 0) {
+            return ALWAYS;
+        } else if (name.equalsIgnoreCase("never") && colon < 0) {
+            return NEVER;
+        } else if (name.equalsIgnoreCase("threshold") && argument.length() > 0) {
+            return threshold(argument);
+        } else if (name.equalsIgnoreCase("sampled") && argument.length() > 0) {
+            try {
+                return sampled(Integer.parseInt(argument));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid sample rate in location policy: " + policy);
+            }
+        }
+        throw new IllegalArgumentException("Invalid location policy: " + policy);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the level name of a {@link Mode#THRESHOLD} policy, null otherwise
+     */
+    public String getThreshold() {
+        return threshold;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Counts an event for a {@link Mode#SAMPLED} policy.
+     *
+     * @return true for the first and then every {@code sampleRate}th event
+     */
+    public boolean sample() {
+        return events.getAndIncrement() % sampleRate == 0;
+    }
+
+    @Override
+    public String toString() {
+        switch (mode) {
+            case THRESHOLD:
+                return "threshold:" + threshold;
+            case SAMPLED:
+                return "sampled:" + sampleRate;
+            default:
+                return mode.name().toLowerCase();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package net.logstash.json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Ships JSON events to a Logstash {@code beats} input over the Lumberjack v2 protocol, from a single I/O thread.
+ * <p>
+ * Events are sent in windows of up to {@code windowSize} events: a window frame announcing the count, then one
+ * JSON data frame per event numbered from 1, all of them deflated into one compressed frame unless
+ * {@code compressionLevel} is 0. The peer acknowledges the highest sequence number it has processed, possibly
+ * several times per window. Up to {@code pipelining} windows are in flight at once; a window is only released
+ * once its last event is acknowledged. When the connection fails, or no acknowledgement arrives for
+ * {@code ackTimeout} milliseconds, the shipper reconnects with backoff and sends the events not yet acknowledged
+ * again, so events are delivered at least once.
+ */
+public final class LumberjackShipper extends EventShipper {
+
+    public static final int DEFAULT_WINDOW_SIZE = 1024;
+    public static final int DEFAULT_PIPELINING = 2;
+    public static final int DEFAULT_COMPRESSION_LEVEL = 3;
+    public static final long DEFAULT_ACK_TIMEOUT = 30000;
+
+    static final byte VERSION = '2';
+    static final byte WINDOW_SIZE = 'W';
+    static final byte JSON = 'J';
+    static final byte COMPRESSED = 'C';
+    static final byte ACK = 'A';
+
+    /** how long the I/O thread waits for acknowledgements before looking for new events again */
+    private static final int ACK_POLL_MILLIS = 10;
+
+    private final int windowSize;
+    private final int pipelining;
+    private final int compressionLevel;
+    private final long ackTimeout;
+
+    private volatile Socket socket;
+    private long acknowledgedEvents;
+
+    /**
+     * Starts the I/O thread, which connects once there are events to send.
+     *
+     * @param bufferSize       the number of events buffered for the I/O thread
+     * @param windowSize       the maximum number of events per window
+     * @param pipelining       the number of windows sent before waiting for acknowledgements
+     * @param compressionLevel the deflate level from 1 to 9, 0 to send windows uncompressed
+     * @param ackTimeout       the milliseconds to wait for an acknowledgement before reconnecting
+     */
+    public LumberjackShipper(String host, int port, int bufferSize, int windowSize, int pipelining, int compressionLevel,
+                             long ackTimeout, OverflowPolicy overflowPolicy, long reconnectDelay, long maxReconnectDelay,
+                             ErrorReporter reporter) {
+        super(host, port, bufferSize, overflowPolicy, reconnectDelay, maxReconnectDelay, reporter);
+        if (windowSize <= 0 || pipelining <= 0) {
+            throw new IllegalArgumentException("Window size and pipelining must be positive: " + windowSize + ", " + pipelining);
+        }
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9: " + compressionLevel);
+        }
+        this.windowSize = windowSize;
+        this.pipelining = pipelining;
+        this.compressionLevel = compressionLevel;
+        this.ackTimeout = ackTimeout;
+        start(new Sender());
+    }
+
+    public boolean isConnected() {
+        return socket != null;
+    }
+
+    /**
+     * @return the number of events the peer acknowledged
+     */
+    public synchronized long getAcknowledgedEvents() {
+        return acknowledgedEvents;
+    }
+
+    private synchronized void acknowledged(int events) {
+        acknowledgedEvents += events;
+        settled(events);
+    }
+
+    protected void disconnect() {
+        Socket open = socket;
+        socket = null;
+        if (open != null) {
+            try {
+                open.close();
+            } catch (IOException e) {
+                // nothing left to do with a broken connection
+            }
+        }
+    }
+
+    /**
+     * Events sent together, of which the first {@code acked} are acknowledged.
+     */
+    private static final class Window {
+        final List<byte[]> events;
+        int acked;
+
+        Window(List<byte[]> events) {
+            this.events = events;
+        }
+    }
+
+    private final class Sender implements Runnable {
+        /** windows sent on the current connection, oldest first */
+        private final LinkedList<Window> inFlight = new LinkedList<Window>();
+        /** windows to send again after the connection failed */
+        private final LinkedList<Window> retry = new LinkedList<Window>();
+        private final Frames frames = new Frames();
+        private final Frames window = new Frames();
+        private final Frames compressed = new Frames();
+        private final Deflater deflater = compressionLevel > 0 ? new Deflater(compressionLevel) : null;
+        private final byte[] deflated = new byte[64 * 1024];
+        private final byte[] acks = new byte[6 * 64];
+        private int ackBytes;
+        private long lastProgress;
+
+        public void run() {
+            RingBuffer<byte[]> buffer = ringBuffer;
+            try {
+                while (!abandoned) {
+                    if (inFlight.isEmpty() && retry.isEmpty() && buffer.isEmpty()) {
+                        if (stopped) {
+                            break;
+                        }
+                        buffer.awaitElement();
+                    } else if (socket == null) {
+                        connect();
+                    } else {
+                        try {
+                            exchange(buffer);
+                        } catch (IOException e) {
+                            if (!abandoned) {
+                                reporter.error("Connection to " + host + ":" + port + " failed, reconnecting", e);
+                            }
+                            disconnect();
+                            // unacknowledged windows go out again, before any newer one
+                            retry.addAll(0, inFlight);
+                            inFlight.clear();
+                        }
+                    }
+                }
+            } finally {
+                disconnect();
+                for (Window unsent : inFlight) {
+                    dropped(unsent.events.size() - unsent.acked);
+                }
+                for (Window unsent : retry) {
+                    dropped(unsent.events.size() - unsent.acked);
+                }
+                dropBuffered();
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+        }
+
+        private void connect() {
+            Socket opened = new Socket();
+            try {
+                opened.setKeepAlive(true);
+                opened.setTcpNoDelay(true);
+                opened.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+                opened.setSoTimeout(ACK_POLL_MILLIS);
+            } catch (IOException e) {
+                try {
+                    opened.close();
+                } catch (IOException ignored) {
+                    // not connected anyway
+                }
+                backOff(e);
+                return;
+            }
+            socket = opened;
+            ackBytes = 0;
+            lastProgress = System.currentTimeMillis();
+            connected();
+        }
+
+        /**
+         * Sends windows while fewer than {@code pipelining} are in flight, then reads the acknowledgements that
+         * arrive within a short poll interval.
+         */
+        private void exchange(RingBuffer<byte[]> buffer) throws IOException {
+            Socket open = socket;
+            if (open == null) {
+                throw new IOException("Connection closed");
+            }
+            OutputStream out = open.getOutputStream();
+            while (inFlight.size() < pipelining) {
+                Window next = retry.isEmpty() ? take(buffer) : retry.removeFirst();
+                if (next == null) {
+                    break;
+                }
+                if (inFlight.isEmpty()) {
+                    lastProgress = System.currentTimeMillis();
+                }
+                write(next, out);
+                inFlight.add(next);
+            }
+            if (inFlight.isEmpty()) {
+                return;
+            }
+            readAcks(open.getInputStream());
+            if (!inFlight.isEmpty() && System.currentTimeMillis() - lastProgress > ackTimeout) {
+                throw new IOException("No acknowledgement within " + ackTimeout + "ms");
+            }
+        }
+
+        private Window take(RingBuffer<byte[]> buffer) {
+            List<byte[]> events = null;
+            byte[] event;
+            while ((events == null || events.size() < windowSize) && (event = buffer.poll()) != null) {
+                if (events == null) {
+                    events = new ArrayList<byte[]>(Math.min(windowSize, buffer.size() + 1));
+                }
+                events.add(event);
+            }
+            return events == null ? null : new Window(events);
+        }
+
+        /**
+         * Writes the events of the window not acknowledged yet, numbered from 1.
+         */
+        private void write(Window next, OutputStream out) throws IOException {
+            if (next.acked > 0) {
+                // what is left of a partly acknowledged window goes out as a window of its own
+                next.events.subList(0, next.acked).clear();
+                next.acked = 0;
+            }
+            frames.reset();
+            header(frames, WINDOW_SIZE);
+            writeInt(frames, next.events.size());
+            window.reset();
+            int sequence = 0;
+            for (byte[] event : next.events) {
+                int length = event.length;
+                // the layouts terminate documents with a newline, which is not part of a frame
+                while (length > 0 && (event[length - 1] == '\n' || event[length - 1] == '\r')) {
+                    length--;
+                }
+                header(window, JSON);
+                writeInt(window, ++sequence);
+                writeInt(window, length);
+                window.write(event, 0, length);
+            }
+            if (deflater == null) {
+                window.writeTo(frames);
+            } else {
+                deflater.reset();
+                deflater.setInput(window.buffer(), 0, window.size());
+                deflater.finish();
+                compressed.reset();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(deflated);
+                    compressed.write(deflated, 0, n);
+                }
+                header(frames, COMPRESSED);
+                writeInt(frames, compressed.size());
+                compressed.writeTo(frames);
+            }
+            out.write(frames.buffer(), 0, frames.size());
+            out.flush();
+        }
+
+        private void readAcks(InputStream in) throws IOException {
+            int read;
+            try {
+                read = in.read(acks, ackBytes, acks.length - ackBytes);
+            } catch (SocketTimeoutException e) {
+                return;
+            }
+            if (read < 0) {
+                throw new IOException("Connection closed by peer");
+            }
+            ackBytes += read;
+            int frame = 0;
+            for (; frame + 6 <= ackBytes; frame += 6) {
+                if (acks[frame] != VERSION || acks[frame + 1] != ACK) {
+                    throw new IOException("Unexpected frame " + (char) acks[frame] + (char) acks[frame + 1]);
+                }
+                acknowledge(readInt(acks, frame + 2));
+            }
+            System.arraycopy(acks, frame, acks, 0, ackBytes - frame);
+            ackBytes -= frame;
+        }
+
+        /**
+         * Applies an acknowledgement to the oldest window in flight, which the peer processes first.
+         */
+        private void acknowledge(int sequence) {
+            lastProgress = System.currentTimeMillis();
+            Window oldest = inFlight.peek();
+            if (oldest == null) {
+                return;
+            }
+            if (sequence >= oldest.events.size()) {
+                acknowledged(oldest.events.size() - oldest.acked);
+                inFlight.removeFirst();
+            } else if (sequence > oldest.acked) {
+                acknowledged(sequence - oldest.acked);
+                oldest.acked = sequence;
+            }
+        }
+    }
+
+    /**
+     * Growable frame buffer that can be written without copying it first.
+     */
+    private static final class Frames extends ByteArrayOutputStream {
+        Frames() {
+            super(64 * 1024);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    static void header(ByteArrayOutputStream out, byte type) {
+        out.write(VERSION);
+        out.write(type);
+    }
+
+    static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16 | (bytes[offset + 2] & 0xff) << 8
+                | (bytes[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,66 @@
+package net.logstash.json;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Releases the mapping of a {@link MappedByteBuffer} at once instead of when the buffer is garbage collected. A file
+ * that is still mapped can neither be truncated, renamed nor deleted on Windows, and elsewhere its pages stay
+ * mapped until the next collection.
+ * <p>
+ * There is no public API for this; {@link #unmap(MappedByteBuffer)} uses {@code sun.misc.Unsafe.invokeCleaner} on
+ * Java 9 and later and the buffer's {@code sun.misc.Cleaner} before, and leaves the mapping to the garbage
+ * collector where neither is accessible.
+ */
+final class MappedBuffers {
+
+    /** the instance of sun.misc.Unsafe, null where it is not accessible */
+    static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Field theUnsafe = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafe.getClass().getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception e) {
+            // before Java 9, the buffer's cleaner is used
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private MappedBuffers() {
+    }
+
+    /**
+     * Unmaps {@code buffer}. Neither the buffer nor any duplicate or slice of it must be accessed afterwards, as
+     * that would crash the JVM.
+     *
+     * @return false if the mapping is left to the garbage collector
+     */
+    static boolean unmap(MappedByteBuffer buffer) {
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                return true;
+            }
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner == null) {
+                return false;
+            }
+            cleaner.getClass().getMethod("clean").invoke(cleaner);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package net.logstash.json;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Ordered stores and volatile loads of the little endian longs in a mapped buffer, for the counters through which
+ * two processes hand each other the records in between. A {@link ByteBuffer} has no such accesses, and the Java
+ * memory model says nothing about memory shared with another process; these go through
+ * {@code sun.misc.Unsafe.putOrderedLong} and {@code getLongVolatile} at the buffer's address, which emit the
+ * barriers the processor needs.
+ * <p>
+ * Where {@code sun.misc.Unsafe} is not accessible, the longs are read and written through the buffer next to a
+ * volatile access, which keeps the compiler from reordering them but orders them in memory on x86 only.
+ */
+final class MappedLongs {
+
+    private static final Method PUT_ORDERED_LONG;
+    private static final Method GET_LONG_VOLATILE;
+    private static final Method GET_LONG;
+    private static final long ADDRESS_OFFSET;
+    private static final boolean SWAP = ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN;
+
+    private static volatile int fence;
+
+    static {
+        Method putOrderedLong = null;
+        Method getLongVolatile = null;
+        Method getLong = null;
+        long addressOffset = -1;
+        Object unsafe = MappedBuffers.UNSAFE;
+        if (unsafe != null) {
+            try {
+                Class<?> unsafeClass = unsafe.getClass();
+                putOrderedLong = unsafeClass.getMethod("putOrderedLong", Object.class, long.class, long.class);
+                getLongVolatile = unsafeClass.getMethod("getLongVolatile", Object.class, long.class);
+                getLong = unsafeClass.getMethod("getLong", Object.class, long.class);
+                Field address = Buffer.class.getDeclaredField("address");
+                addressOffset = (Long) unsafeClass.getMethod("objectFieldOffset", Field.class).invoke(unsafe, address);
+            } catch (Exception e) {
+                putOrderedLong = null;
+            }
+        }
+        PUT_ORDERED_LONG = putOrderedLong;
+        GET_LONG_VOLATILE = getLongVolatile;
+        GET_LONG = getLong;
+        ADDRESS_OFFSET = addressOffset;
+    }
+
+    private final ByteBuffer buffer;
+    /** the native address of the buffer's first byte, 0 where the buffer is accessed directly */
+    private final long address;
+
+    /**
+     * @param buffer a little endian direct buffer, such as a mapped file
+     */
+    MappedLongs(ByteBuffer buffer) {
+        this.buffer = buffer;
+        long base = 0;
+        if (PUT_ORDERED_LONG != null && buffer.isDirect()) {
+            try {
+                base = (Long) GET_LONG.invoke(MappedBuffers.UNSAFE, buffer, ADDRESS_OFFSET);
+            } catch (Exception e) {
+                base = 0;
+            }
+        }
+        this.address = base;
+    }
+
+    /**
+     * @return true if the accesses are ordered on every processor, not only on x86
+     */
+    boolean isOrdered() {
+        return address != 0;
+    }
+
+    /**
+     * Stores {@code value} at {@code index}, a multiple of 8, after all the stores that precede it.
+     */
+    void putOrdered(int index, long value) {
+        if (address == 0) {
+            // keeps the compiler from moving the stores that precede after this one
+            fence = 0;
+            buffer.putLong(index, value);
+            return;
+        }
+        try {
+            long stored = SWAP ? Long.reverseBytes(value) : value;
+            PUT_ORDERED_LONG.invoke(MappedBuffers.UNSAFE, null, address + index, stored);
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not store at " + index, e);
+        }
+    }
+
+    /**
+     * Loads the long at {@code index}, a multiple of 8, before all the loads that follow it.
+     */
+    long getVolatile(int index) {
+        if (address == 0) {
+            long value = buffer.getLong(index);
+            // keeps the compiler from moving the loads that follow before this one
+            int ordered = fence;
+            return value + ordered - ordered;
+        }
+        try {
+            long value = (Long) GET_LONG_VOLATILE.invoke(MappedBuffers.UNSAFE, null, address + index);
+            return SWAP ? Long.reverseBytes(value) : value;
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not load from " + index, e);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package net.logstash.json;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Writes newline-delimited records into memory-mapped segments of a fixed size, so that appending a record is a
+ * copy into the page cache rather than a write system call.
+ * <p>
+ * The segment being written is {@code <file>.active}; it is preallocated to the segment size, so its tail is
+ * zero filled and it should not be tailed. When the next record does not fit, the segment is truncated to its
+ * content and renamed to {@code <file>.<sequence>} (e.g. {@code app.json.000042}), and a new one is mapped: a
+ * record is never split across segments, and a record larger than the segment size gets a segment of its own.
+ * A segment is also completed after {@code maxSegmentAge} milliseconds, so that readers harvesting the completed
+ * segments see quiet logs too. An {@code .active} segment left behind by a crash is cut after its last newline and
+ * completed when the file is opened again.
+ * <p>
+ * With {@link Durability#PAGE_CACHE} the data survives the process but not the host; {@link Durability#PERIODIC}
+ * also forces the active segment to disk every {@code forceInterval} milliseconds and forces every segment before
+ * it is completed. A segment is unmapped when it is completed; where the JVM does not allow that, see
+ * {@link MappedBuffers}, the mapping is released by the garbage collector, and on Windows, which does not let a
+ * mapped file be truncated or renamed, completing the segment fails. Instances are thread safe.
+ */
+public final class MappedSegmentFile {
+
+    public enum Durability {
+        /** leaves writing the pages back to the operating system */
+        PAGE_CACHE,
+        /** forces the written pages to the device at a fixed interval */
+        PERIODIC;
+
+        /**
+         * @return the durability with the given case insensitive name, {@link #PAGE_CACHE} for null or an empty name
+         */
+        public static Durability parse(String name) {
+            if (name == null || name.trim().length() == 0) {
+                return PAGE_CACHE;
+            }
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_FORCE_INTERVAL = 1000;
+
+    static final String ACTIVE_SUFFIX = ".active";
+
+    private final File file;
+    private final File activeFile;
+    private final int segmentSize;
+    private final Durability durability;
+    private final long maxSegmentAge;
+    private final Timer timer;
+
+    private RandomAccessFile raf;
+    private MappedByteBuffer segment;
+    private long segmentStart;
+    private int sequence;
+    private boolean dirty;
+    private boolean closed;
+
+    /**
+     * Opens the file, completing an active segment left behind by a previous process.
+     *
+     * @param fileName      the name completed segments are numbered after
+     * @param segmentSize   the size of a segment in bytes
+     * @param durability    when the written pages are forced to disk
+     * @param forceInterval the milliseconds between two forces with {@link Durability#PERIODIC}
+     * @param maxSegmentAge the milliseconds after which a segment with content is completed, 0 for no limit
+     */
+    public MappedSegmentFile(String fileName, int segmentSize, Durability durability, long forceInterval, long maxSegmentAge)
+            throws IOException {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Segment size must be positive: " + segmentSize);
+        }
+        this.file = new File(fileName).getAbsoluteFile();
+        this.activeFile = new File(file.getPath() + ACTIVE_SUFFIX);
+        this.segmentSize = segmentSize;
+        this.durability = durability;
+        this.maxSegmentAge = maxSegmentAge;
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        this.sequence = lastSequence();
+        if (activeFile.exists()) {
+            recover();
+        }
+
+        long period = 0;
+        if (durability == Durability.PERIODIC && forceInterval > 0) {
+            period = forceInterval;
+        }
+        if (maxSegmentAge > 0 && (period == 0 || maxSegmentAge < period)) {
+            period = maxSegmentAge;
+        }
+        if (period > 0) {
+            timer = new Timer("MappedSegmentFile-" + file.getName(), true);
+            timer.schedule(new Maintenance(), period, period);
+        } else {
+            timer = null;
+        }
+    }
+
+    /**
+     * Appends a record, completing the active segment first if the record does not fit into it.
+     */
+    public synchronized void write(byte[] record, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException(file + " is closed");
+        }
+        if (segment == null) {
+            map(length);
+        } else if (segment.remaining() < length) {
+            complete();
+            map(length);
+        }
+        segment.put(record, offset, length);
+        dirty = true;
+    }
+
+    public void write(byte[] record) throws IOException {
+        write(record, 0, record.length);
+    }
+
+    /**
+     * Appends the records encoded into {@code writer}.
+     */
+    public void write(JsonWriter writer) throws IOException {
+        write(writer.buffer(), 0, writer.size());
+    }
+
+    /**
+     * Forces the content of the active segment to disk, whatever the durability.
+     */
+    public synchronized void force() {
+        if (segment != null && dirty) {
+            segment.force();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Completes the active segment, if it has content, so that it can be read.
+     */
+    public synchronized void roll() throws IOException {
+        if (segment != null) {
+            complete();
+        }
+    }
+
+    /**
+     * Completes the active segment and stops the periodic force.
+     */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (timer != null) {
+            timer.cancel();
+        }
+        if (segment != null) {
+            complete();
+        }
+    }
+
+    /**
+     * @return the number of the last completed segment, 0 if there is none
+     */
+    public synchronized int getSequence() {
+        return sequence;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the name of the segment completed with the given number
+     */
+    public File segmentFile(int sequence) {
+        return new File(file.getPath() + '.' + format(sequence));
+    }
+
+    private void map(int length) throws IOException {
+        if (activeFile.exists()) {
+            // a segment that could not be completed before
+            recover();
+        }
+        raf = new RandomAccessFile(activeFile, "rw");
+        segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, length));
+        segmentStart = System.currentTimeMillis();
+    }
+
+    /**
+     * Cuts the active segment to its content and renames it, or deletes it if it is empty.
+     */
+    private void complete() throws IOException {
+        int length = segment.position();
+        if (durability == Durability.PERIODIC) {
+            segment.force();
+        }
+        dirty = false;
+        // a file that is still mapped cannot be truncated or renamed on Windows
+        MappedBuffers.unmap(segment);
+        segment = null;
+        try {
+            raf.getChannel().truncate(length);
+        } finally {
+            raf.close();
+            raf = null;
+        }
+        publish(length);
+    }
+
+    private void publish(long length) throws IOException {
+        if (length == 0) {
+            if (!activeFile.delete()) {
+                throw new IOException("Could not delete " + activeFile);
+            }
+            return;
+        }
+        File completed = segmentFile(sequence + 1);
+        if (!activeFile.renameTo(completed)) {
+            throw new IOException("Could not rename " + activeFile + " to " + completed);
+        }
+        sequence++;
+    }
+
+    /**
+     * Cuts an active segment of a previous process after its last newline, dropping the zero filled tail and a
+     * record that was only partly written.
+     */
+    private void recover() throws IOException {
+        RandomAccessFile previous = new RandomAccessFile(activeFile, "rw");
+        long length;
+        try {
+            length = previous.length();
+            byte[] chunk = new byte[8192];
+            while (length > 0) {
+                int size = (int) Math.min(chunk.length, length);
+                previous.seek(length - size);
+                previous.readFully(chunk, 0, size);
+                int i = size - 1;
+                while (i >= 0 && chunk[i] != '\n') {
+                    i--;
+                }
+                if (i >= 0) {
+                    length = length - size + i + 1;
+                    break;
+                }
+                length -= size;
+            }
+            previous.setLength(length);
+        } finally {
+            previous.close();
+        }
+        publish(length);
+    }
+
+    private int lastSequence() {
+        File dir = file.getParentFile();
+        String[] names = dir == null ? null : dir.list();
+        int last = 0;
+        if (names == null) {
+            return last;
+        }
+        String prefix = file.getName() + '.';
+        for (String name : names) {
+            if (name.length() > prefix.length() && name.startsWith(prefix)) {
+                String suffix = name.substring(prefix.length());
+                boolean digits = true;
+                for (int i = 0; i < suffix.length() && digits; i++) {
+                    digits = Character.isDigit(suffix.charAt(i));
+                }
+                if (digits && suffix.length() < 10) {
+                    last = Math.max(last, Integer.parseInt(suffix));
+                }
+            }
+        }
+        return last;
+    }
+
+    private static String format(int sequence) {
+        String digits = Integer.toString(sequence);
+        if (digits.length() >= 6) {
+            return digits;
+        }
+        return "000000".substring(digits.length()) + digits;
+    }
+
+    private final class Maintenance extends TimerTask {
+        @Override
+        public void run() {
+            synchronized (MappedSegmentFile.this) {
+                if (closed || segment == null) {
+                    return;
+                }
+                try {
+                    if (maxSegmentAge > 0 && System.currentTimeMillis() - segmentStart >= maxSegmentAge && segment.position() > 0) {
+                        complete();
+                    } else if (durability == Durability.PERIODIC) {
+                        force();
+                    }
+                } catch (IOException e) {
+                    // the next write retries completing the segment and reports the failure
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package net.logstash.json;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the encoded "mdc" object of the last few distinct MDCs each thread has written, so that the log lines
+ * of a request, which share request id, user and tenant, copy the encoded bytes instead of escaping them again.
+ * <p>
+ * Two ways of recognizing an unchanged MDC are supported:
+ * <ul>
+ *     <li>{@link #writeByIdentity} for immutable maps that are replaced on every change, like log4j2's context
+ *     map; the map instance itself is the key</li>
+ *     <li>{@link #writeByContent} for maps that are copied or changed in place, like log4j 1.x's MDC; the cached
+ *     entry keeps a snapshot that is compared with the map, which is much cheaper than encoding it. Only MDCs
+ *     whose values are strings, numbers or booleans are cached, since mutable values could change unnoticed.</li>
+ * </ul>
+ * Fragments are kept in the {@link OutputFormat} of the writer they were written with and are only copied into
+ * writers of the same format. Every thread keeps at most {@code entriesPerThread} fragments of up to
+ * {@link #MAX_FRAGMENT_LENGTH} bytes, replaced round robin. An instance belongs to a single layout.
+ */
+public final class MdcFragmentCache {
+
+    public static final int DEFAULT_ENTRIES_PER_THREAD = 4;
+    public static final int MAX_FRAGMENT_LENGTH = 4096;
+
+    private final int entriesPerThread;
+    private final ThreadLocal<Slots> slots = new ThreadLocal<Slots>() {
+        @Override
+        protected Slots initialValue() {
+            return new Slots(entriesPerThread);
+        }
+    };
+
+    public MdcFragmentCache() {
+        this(DEFAULT_ENTRIES_PER_THREAD);
+    }
+
+    public MdcFragmentCache(int entriesPerThread) {
+        this.entriesPerThread = Math.max(1, entriesPerThread);
+    }
+
+    /**
+     * Writes the projected MDC as an object value, reusing the fragment previously encoded for the same map
+     * instance. The map must not change after it was first written.
+     */
+    public void writeByIdentity(TokenWriter writer, FieldPlan plan, Map<?, ?> mdc) {
+        Slots threadSlots = slots.get();
+        for (Entry entry : threadSlots.entries) {
+            if (entry != null && entry.key == mdc && entry.plan == plan && entry.format == writer.getFormat()) {
+                writer.writeRawValue(entry.fragment, 0, entry.fragment.length);
+                return;
+            }
+        }
+        int start = writer.size();
+        plan.writeMdc(writer, mdc);
+        threadSlots.add(writer, start, plan, mdc);
+    }
+
+    /**
+     * Writes the projected MDC as an object value, reusing the fragment previously encoded for an MDC with the
+     * same (projected) content.
+     */
+    public void writeByContent(TokenWriter writer, FieldPlan plan, Map<?, ?> mdc) {
+        Slots threadSlots = slots.get();
+        for (Entry entry : threadSlots.entries) {
+            if (entry != null && entry.plan == plan && entry.format == writer.getFormat()
+                    && sameContent(entry.key, mdc, plan)) {
+                writer.writeRawValue(entry.fragment, 0, entry.fragment.length);
+                return;
+            }
+        }
+        int start = writer.size();
+        plan.writeMdc(writer, mdc);
+        Map<Object, Object> snapshot = snapshot(mdc, plan);
+        if (snapshot != null) {
+            threadSlots.add(writer, start, plan, snapshot);
+        }
+    }
+
+    private static boolean sameContent(Map<?, ?> snapshot, Map<?, ?> mdc, FieldPlan plan) {
+        String[] includes = plan.mdcIncludes();
+        if (includes == null) {
+            return snapshot.equals(mdc);
+        }
+        for (String key : includes) {
+            Object cached = snapshot.get(key);
+            Object current = mdc.get(key);
+            if (cached == null ? current != null : !cached.equals(current)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return a copy of the MDC entries the plan looks at, null if a value is not immutable
+     */
+    private static Map<Object, Object> snapshot(Map<?, ?> mdc, FieldPlan plan) {
+        Map<Object, Object> snapshot = new HashMap<Object, Object>();
+        String[] includes = plan.mdcIncludes();
+        if (includes == null) {
+            for (Map.Entry<?, ?> entry : mdc.entrySet()) {
+                if (!isImmutable(entry.getValue())) {
+                    return null;
+                }
+                snapshot.put(entry.getKey(), entry.getValue());
+            }
+        } else {
+            for (String key : includes) {
+                Object value = mdc.get(key);
+                if (value != null && !isImmutable(value)) {
+                    return null;
+                }
+                snapshot.put(key, value);
+            }
+        }
+        return snapshot;
+    }
+
+    private static boolean isImmutable(Object value) {
+        return value instanceof String || value instanceof Number || value instanceof Boolean;
+    }
+
+    private static final class Slots {
+        final Entry[] entries;
+        int next;
+
+        Slots(int size) {
+            this.entries = new Entry[size];
+        }
+
+        void add(TokenWriter writer, int start, FieldPlan plan, Map<?, ?> key) {
+            int end = writer.size();
+            if (end - start <= MAX_FRAGMENT_LENGTH) {
+                entries[next] = new Entry(plan, key, writer.getFormat(), Arrays.copyOfRange(writer.buffer(), start, end));
+                next = (next + 1) % entries.length;
+            }
+        }
+    }
+
+    private static final class Entry {
+        final FieldPlan plan;
+        final Map<?, ?> key;
+        final OutputFormat format;
+        final byte[] fragment;
+
+        Entry(FieldPlan plan, Map<?, ?> key, OutputFormat format, byte[] fragment) {
+            this.plan = plan;
+            this.key = key;
+            this.format = format;
+            this.fragment = fragment;
+        }
+    }
+}
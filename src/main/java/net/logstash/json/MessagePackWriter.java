@@ -0,0 +1,222 @@
+package net.logstash.json;
+
+/**
+ * MessagePack encoding. Maps and arrays carry their size up front, so each one is written behind a placeholder
+ * for the largest header, which is replaced by the shortest header for the actual size once the container ends,
+ * moving its content if necessary.
+ */
+final class MessagePackWriter extends BinaryWriter {
+
+    private static final int MAX_HEADER = 5;
+
+    private static final int FIXMAP = 0x80;
+    private static final int FIXARRAY = 0x90;
+    private static final int FIXSTR = 0xA0;
+    private static final int NIL = 0xC0;
+    private static final int FALSE = 0xC2;
+    private static final int TRUE = 0xC3;
+    private static final int FLOAT_64 = 0xCB;
+    private static final int UINT_8 = 0xCC;
+    private static final int UINT_16 = 0xCD;
+    private static final int UINT_32 = 0xCE;
+    private static final int UINT_64 = 0xCF;
+    private static final int INT_8 = 0xD0;
+    private static final int INT_16 = 0xD1;
+    private static final int INT_32 = 0xD2;
+    private static final int INT_64 = 0xD3;
+    private static final int STR_8 = 0xD9;
+    private static final int STR_16 = 0xDA;
+    private static final int STR_32 = 0xDB;
+    private static final int ARRAY_16 = 0xDC;
+    private static final int ARRAY_32 = 0xDD;
+    private static final int MAP_16 = 0xDE;
+    private static final int MAP_32 = 0xDF;
+
+    private int[] starts = new int[16];
+    private int[] sizes = new int[16];
+    private boolean[] maps = new boolean[16];
+    private int depth;
+
+    @Override
+    public OutputFormat getFormat() {
+        return OutputFormat.MSGPACK;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        depth = 0;
+    }
+
+    @Override
+    public void writeStartObject() {
+        start(true);
+    }
+
+    @Override
+    public void writeEndObject() {
+        end(FIXMAP, MAP_16, MAP_32);
+    }
+
+    @Override
+    public void writeStartArray() {
+        start(false);
+    }
+
+    @Override
+    public void writeEndArray() {
+        end(FIXARRAY, ARRAY_16, ARRAY_32);
+    }
+
+    @Override
+    public void writeFieldName(byte[] utf8, int offset, int length, boolean ascii) {
+        // a map's size counts its keys
+        sizes[depth]++;
+        writeStr(utf8, offset, length);
+    }
+
+    @Override
+    public void writeString(byte[] utf8, int offset, int length, boolean ascii) {
+        beforeValue();
+        writeStr(utf8, offset, length);
+    }
+
+    @Override
+    public void writeNumber(long value) {
+        beforeValue();
+        if (value >= -32 && value <= 0x7F) {
+            // positive and negative fixint
+            writeByte((int) value);
+        } else if (value >= 0) {
+            if (value <= 0xFF) {
+                writeByte(UINT_8);
+                writeByte((int) value);
+            } else if (value <= 0xFFFF) {
+                writeByte(UINT_16);
+                writeBigEndian(value, 2);
+            } else if (value <= 0xFFFFFFFFL) {
+                writeByte(UINT_32);
+                writeBigEndian(value, 4);
+            } else {
+                writeByte(UINT_64);
+                writeBigEndian(value, 8);
+            }
+        } else if (value >= Byte.MIN_VALUE) {
+            writeByte(INT_8);
+            writeByte((int) value);
+        } else if (value >= Short.MIN_VALUE) {
+            writeByte(INT_16);
+            writeBigEndian(value, 2);
+        } else if (value >= Integer.MIN_VALUE) {
+            writeByte(INT_32);
+            writeBigEndian(value, 4);
+        } else {
+            writeByte(INT_64);
+            writeBigEndian(value, 8);
+        }
+    }
+
+    @Override
+    public void writeNumber(double value) {
+        beforeValue();
+        writeByte(FLOAT_64);
+        writeBigEndian(Double.doubleToLongBits(value), 8);
+    }
+
+    @Override
+    public void writeBoolean(boolean value) {
+        beforeValue();
+        writeByte(value ? TRUE : FALSE);
+    }
+
+    @Override
+    public void writeNull() {
+        beforeValue();
+        writeByte(NIL);
+    }
+
+    @Override
+    public void writeRawValue(byte[] value, int offset, int length) {
+        beforeValue();
+        writeBytes(value, offset, length);
+    }
+
+    @Override
+    void writeMembers(byte[] encoded, int members) {
+        sizes[depth] += members;
+        writeBytes(encoded, 0, encoded.length);
+    }
+
+    private void writeStr(byte[] utf8, int offset, int length) {
+        if (length < 32) {
+            writeByte(FIXSTR | length);
+        } else if (length <= 0xFF) {
+            writeByte(STR_8);
+            writeByte(length);
+        } else if (length <= 0xFFFF) {
+            writeByte(STR_16);
+            writeBigEndian(length, 2);
+        } else {
+            writeByte(STR_32);
+            writeBigEndian(length, 4);
+        }
+        writeBytes(utf8, offset, length);
+    }
+
+    /**
+     * Array elements count towards the array's size, map values were counted with their key.
+     */
+    private void beforeValue() {
+        if (depth > 0 && !maps[depth]) {
+            sizes[depth]++;
+        }
+    }
+
+    private void start(boolean map) {
+        beforeValue();
+        depth++;
+        if (depth == starts.length) {
+            int[] grownStarts = new int[depth * 2];
+            int[] grownSizes = new int[depth * 2];
+            boolean[] grownMaps = new boolean[depth * 2];
+            System.arraycopy(starts, 0, grownStarts, 0, depth);
+            System.arraycopy(sizes, 0, grownSizes, 0, depth);
+            System.arraycopy(maps, 0, grownMaps, 0, depth);
+            starts = grownStarts;
+            sizes = grownSizes;
+            maps = grownMaps;
+        }
+        starts[depth] = count;
+        sizes[depth] = 0;
+        maps[depth] = map;
+        ensureCapacity(MAX_HEADER);
+        count += MAX_HEADER;
+    }
+
+    private void end(int fixType, int type16, int type32) {
+        int start = starts[depth];
+        int size = sizes[depth];
+        depth--;
+        int header;
+        if (size < 16) {
+            buf[start] = (byte) (fixType | size);
+            header = 1;
+        } else if (size <= 0xFFFF) {
+            buf[start] = (byte) type16;
+            buf[start + 1] = (byte) (size >>> 8);
+            buf[start + 2] = (byte) size;
+            header = 3;
+        } else {
+            buf[start] = (byte) type32;
+            buf[start + 1] = (byte) (size >>> 24);
+            buf[start + 2] = (byte) (size >>> 16);
+            buf[start + 3] = (byte) (size >>> 8);
+            buf[start + 4] = (byte) size;
+            header = 5;
+        }
+        if (header < MAX_HEADER) {
+            System.arraycopy(buf, start + MAX_HEADER, buf, start + header, count - start - MAX_HEADER);
+            count -= MAX_HEADER - header;
+        }
+    }
+}
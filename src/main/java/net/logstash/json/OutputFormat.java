@@ -0,0 +1,55 @@
+package net.logstash.json;
+
+/**
+ * Encodings the layouts can emit an event in. All of them carry the same document; the binary ones are smaller and
+ * cheaper to parse for Logstash, Elasticsearch and Fluent style shippers that accept them.
+ */
+public enum OutputFormat {
+
+    /** newline terminated JSON text */
+    JSON("application/json"),
+    /** RFC 7049, with indefinite length objects and arrays */
+    CBOR("application/cbor"),
+    /** Jackson's Smile, every document starts with its ":)\n" header */
+    SMILE("application/x-jackson-smile"),
+    /** MessagePack */
+    MSGPACK("application/x-msgpack");
+
+    private final String contentType;
+
+    OutputFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public boolean isBinary() {
+        return this != JSON;
+    }
+
+    /**
+     * @return the format with the given case insensitive name, {@link #JSON} for null or an empty name
+     * @throws IllegalArgumentException if there is no such format
+     */
+    public static OutputFormat parse(String name) {
+        if (name == null || name.trim().length() == 0) {
+            return JSON;
+        }
+        return valueOf(name.trim().toUpperCase());
+    }
+
+    BinaryWriter newWriter() {
+        switch (this) {
+            case CBOR:
+                return new CborWriter();
+            case SMILE:
+                return new SmileWriter();
+            case MSGPACK:
+                return new MessagePackWriter();
+            default:
+                throw new IllegalStateException(name() + " is not a binary format");
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package net.logstash.json;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * File that many threads append to without a lock: a thread reserves the region for its event by moving the end of
+ * the file forward with an atomic increment, then writes the event there with a positional
+ * {@link FileChannel#write(ByteBuffer, long)}. Events are never interleaved, and threads only contend on the
+ * increment, whatever the size of their events.
+ * <p>
+ * Regions are filled in no particular order, so while a thread is between its reservation and its write the file
+ * can already hold the events of threads that came after it, and a reader tailing the file may see zero bytes where
+ * the event is still to come. A region whose write fails stays filled with zero bytes.
+ * <p>
+ * An interrupt during a write closes a {@link FileChannel} for every thread; the file is then opened again, and the
+ * interrupted thread writes its event nevertheless and keeps its interrupt status.
+ */
+public final class PositionalFile {
+
+    private final File file;
+    private final AtomicLong end;
+    private volatile FileChannel channel;
+    private volatile boolean closed;
+
+    /**
+     * @param append true to write after the current content of the file, false to truncate it
+     */
+    public PositionalFile(File file, boolean append) throws IOException {
+        this.file = file.getAbsoluteFile();
+        File dir = this.file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        this.channel = open();
+        if (!append) {
+            channel.truncate(0);
+        }
+        this.end = new AtomicLong(channel.size());
+    }
+
+    /**
+     * Reserves the next {@code length} bytes of the file and writes the event there.
+     */
+    public void write(byte[] event, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        long position = end.getAndAdd(length);
+        ByteBuffer buffer = ByteBuffer.wrap(event, offset, length);
+        boolean interrupted = false;
+        try {
+            while (buffer.hasRemaining()) {
+                FileChannel current = channel;
+                try {
+                    position += current.write(buffer, position);
+                } catch (ClosedChannelException e) {
+                    if (closed) {
+                        throw e;
+                    }
+                    // an interrupt closed the channel, of this thread or another one
+                    interrupted |= Thread.interrupted() || e instanceof ClosedByInterruptException;
+                    reopen(current);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void write(byte[] event) throws IOException {
+        write(event, 0, event.length);
+    }
+
+    /**
+     * Writes the event encoded into {@code writer}.
+     */
+    public void write(JsonWriter writer) throws IOException {
+        write(writer.buffer(), 0, writer.size());
+    }
+
+    /**
+     * Closes the file; writes still in progress may fail.
+     */
+    public synchronized void close() throws IOException {
+        closed = true;
+        channel.close();
+    }
+
+    /**
+     * @return the end of the file, including the regions reserved and not written yet
+     */
+    public long size() {
+        return end.get();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private synchronized void reopen(FileChannel failed) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (channel == failed) {
+            channel = open();
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        return new RandomAccessFile(file, "rw").getChannel();
+    }
+}
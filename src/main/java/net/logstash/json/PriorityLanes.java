@@ -0,0 +1,165 @@
+package net.logstash.json;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lanes of {@link RingBuffer}s, one per priority, that let an asynchronous appender keep passing important
+ * events on while it is overloaded with unimportant ones. Lane 0 has the highest priority.
+ * <p>
+ * The consumer drains the lanes by weighted round robin: it takes up to {@code weights[i]} events from lane
+ * {@code i} before it moves on to the next lane, and a lane that is empty hands its turn on at once. Events of
+ * different lanes are therefore not passed on in the order they were offered.
+ * <p>
+ * Under pressure the lowest priorities are shed first. Every lane but the first refuses events once the events
+ * queued in all lanes reach its watermark. The watermarks fall with the priority, evenly from the total capacity
+ * down to half of it for the last lane; with four lanes they are 100%, 83%, 67% and 50% of the total. The first lane
+ * refuses events only when it is full itself.
+ */
+public final class PriorityLanes<E> {
+
+    private static final long CONSUMER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final RingBuffer<E>[] lanes;
+    private final int[] weights;
+    private final int[] watermarks;
+    private final RingBuffer.WaitStrategy waitStrategy;
+
+    /** the lane the consumer takes from, and how many more events it may take from it in this turn */
+    private int lane;
+    private int credit;
+
+    private volatile Thread parkedConsumer;
+
+    /**
+     * @param capacity     the number of events each lane holds, rounded up to a power of two
+     * @param weights      the number of events taken from each lane in a turn, one weight per lane
+     * @param waitStrategy how the consumer waits for events and producers for space
+     */
+    @SuppressWarnings("unchecked")
+    public PriorityLanes(int capacity, int[] weights, RingBuffer.WaitStrategy waitStrategy) {
+        if (weights.length < 2) {
+            throw new IllegalArgumentException("At least two lanes are needed: " + weights.length);
+        }
+        this.lanes = (RingBuffer<E>[]) new RingBuffer<?>[weights.length];
+        this.weights = weights.clone();
+        this.watermarks = new int[weights.length];
+        this.waitStrategy = waitStrategy;
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] < 1) {
+                throw new IllegalArgumentException("Lane weights must be positive: " + weights[i]);
+            }
+            lanes[i] = new RingBuffer<E>(capacity, waitStrategy);
+        }
+        long total = (long) lanes[0].capacity() * lanes.length;
+        for (int i = 0; i < lanes.length; i++) {
+            watermarks[i] = (int) Math.min(Integer.MAX_VALUE, total - total * i / (2 * (lanes.length - 1)));
+        }
+        this.credit = this.weights[0];
+    }
+
+    /**
+     * Parses weights such as "8,4,2,1", one per lane starting with the highest priority.
+     */
+    public static int[] parseWeights(String weights) {
+        String[] parts = weights.split(",");
+        int[] parsed = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            parsed[i] = Integer.parseInt(parts[i].trim());
+        }
+        return parsed;
+    }
+
+    public int lanes() {
+        return lanes.length;
+    }
+
+    /**
+     * Adds an element to a lane unless the lane is full or shedding.
+     *
+     * @return false if the element was refused
+     */
+    public boolean offer(int lane, E element) {
+        if (lane > 0 && size() >= watermarks[lane]) {
+            return false;
+        }
+        if (!lanes[lane].offer(element)) {
+            return false;
+        }
+        Thread consumer = parkedConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Waits a moment, as set by the wait strategy, before a producer that found its lane full tries again.
+     */
+    public void awaitSpace(int lane) {
+        lanes[lane].awaitSpace();
+    }
+
+    /**
+     * Takes the next element by weighted round robin. Must only be called by the consumer thread.
+     *
+     * @return the element, or null if all lanes are empty
+     */
+    public E poll() {
+        for (int i = 0; i <= lanes.length; i++) {
+            if (credit > 0) {
+                E element = lanes[lane].poll();
+                if (element != null) {
+                    credit--;
+                    return element;
+                }
+            }
+            lane = lane + 1 == lanes.length ? 0 : lane + 1;
+            credit = weights[lane];
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of elements waiting in all lanes, exact only while producers are idle
+     */
+    public int size() {
+        int size = 0;
+        for (RingBuffer<E> buffer : lanes) {
+            size += buffer.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of elements waiting in a lane, exact only while producers are idle
+     */
+    public int size(int lane) {
+        return lanes[lane].size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Waits a moment, as set by the wait strategy, for an element to arrive in any lane. Must only be called by the
+     * consumer thread; with the park strategy it returns when a producer adds an element, the thread is unparked or
+     * interrupted, or after 10ms.
+     */
+    public void awaitElement() {
+        switch (waitStrategy) {
+            case SPIN:
+                return;
+            case YIELD:
+                Thread.yield();
+                return;
+            default:
+                parkedConsumer = Thread.currentThread();
+                if (isEmpty()) {
+                    LockSupport.parkNanos(this, CONSUMER_PARK_NANOS);
+                }
+                parkedConsumer = null;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package net.logstash.json;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, preallocated, lock-free queue for many producers and a single consumer, used by the asynchronous
+ * appenders to hand events from the logging threads to their I/O thread.
+ * <p>
+ * Every slot carries a sequence number telling whether it is free for the producer claiming that position or
+ * holds an element for the consumer (Dmitry Vyukov's bounded queue), so producers only contend on one
+ * compare-and-set of the claim counter and never on a lock. Taking an element is a compare-and-set as well, so a
+ * producer may also {@link #poll()} to drop the oldest element when the buffer is full. How threads wait for
+ * space or elements is set by the {@link WaitStrategy}.
+ */
+public final class RingBuffer<E> {
+
+    public enum WaitStrategy {
+        /** busy spins, lowest latency at the cost of a core per waiting thread */
+        SPIN,
+        /** spins with {@link Thread#yield()} in between */
+        YIELD,
+        /** parks; the consumer is woken by producers, producers retry every 0.1ms */
+        PARK;
+
+        /**
+         * @return the strategy with the given case insensitive name, {@link #PARK} for null or an empty name
+         */
+        public static WaitStrategy parse(String name) {
+            if (name == null || name.trim().length() == 0) {
+                return PARK;
+            }
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long CONSUMER_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    private volatile Thread parkedConsumer;
+
+    /**
+     * @param capacity the number of slots, rounded up to a power of two
+     */
+    public RingBuffer(int capacity, WaitStrategy waitStrategy) {
+        int size = 2;
+        while (size < capacity && size < (1 << 30)) {
+            size <<= 1;
+        }
+        this.elements = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    public int capacity() {
+        return elements.length;
+    }
+
+    /**
+     * @return the number of elements waiting for the consumer, exact only while producers are idle
+     */
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Adds an element unless the buffer is full.
+     *
+     * @return false if the buffer is full
+     */
+    public boolean offer(E element) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long delta = sequences.get(index) - position;
+            if (delta == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements[index] = element;
+                    sequences.lazySet(index, position + 1);
+                    Thread consumer = parkedConsumer;
+                    if (consumer != null) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return true;
+                }
+            } else if (delta < 0) {
+                return false;
+            }
+            // another producer claimed the position first
+        }
+    }
+
+    /**
+     * Waits a moment, as set by the wait strategy, before a producer that found the buffer full tries again. Returns
+     * early if the thread is interrupted.
+     */
+    public void awaitSpace() {
+        switch (waitStrategy) {
+            case SPIN:
+                return;
+            case YIELD:
+                Thread.yield();
+                return;
+            default:
+                LockSupport.parkNanos(this, PRODUCER_PARK_NANOS);
+        }
+    }
+
+    /**
+     * Takes the oldest element.
+     *
+     * @return the element, or null if the buffer is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        while (true) {
+            long position = head.get();
+            int index = (int) position & mask;
+            long delta = sequences.get(index) - (position + 1);
+            if (delta == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = (E) elements[index];
+                    elements[index] = null;
+                    sequences.lazySet(index, position + elements.length);
+                    return element;
+                }
+            } else if (delta < 0) {
+                return null;
+            }
+            // another thread took the element first
+        }
+    }
+
+    /**
+     * Waits a moment, as set by the wait strategy, for an element to arrive. Must only be called by the consumer
+     * thread; with the park strategy it returns when a producer adds an element, the thread is unparked or
+     * interrupted, or after 10ms.
+     */
+    public void awaitElement() {
+        switch (waitStrategy) {
+            case SPIN:
+                return;
+            case YIELD:
+                Thread.yield();
+                return;
+            default:
+                parkedConsumer = Thread.currentThread();
+                if (isEmpty()) {
+                    LockSupport.parkNanos(this, CONSUMER_PARK_NANOS);
+                }
+                parkedConsumer = null;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package net.logstash.json;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Memory-mapped file of rings through which the logging threads of one process hand encoded events to a shipper
+ * process on the same host, without a system call per event; {@link SharedRingReader} is the shipper's side.
+ * <p>
+ * Every logging thread claims a ring of its own, so that each ring has a single producer and a single consumer and
+ * writing an event takes no lock. Ring 0 is shared, under a lock, by the threads that find no ring free; the ring
+ * of a thread that died goes to the next thread asking for one. When the reader falls behind and the ring of a
+ * thread is full, the thread waits for space if {@code blocking}, otherwise the event is dropped.
+ * <p>
+ * The file layout, with all numbers little endian:
+ * <pre>
+ * header, 64 bytes
+ *   0  int   magic 0x474e4952 ("RING")
+ *   4  int   version, 1
+ *   8  int   number of rings
+ *  12  int   capacity of a ring in bytes, a power of two
+ *  16  long  generation, changed whenever a producer initializes the file
+ *  24  int   1 once the producer closed the file
+ * ring i, at 64 + i * (128 + capacity)
+ *   0  long  tail: the number of bytes the producer ever wrote to the ring
+ *  64  long  head: the number of bytes the reader ever consumed, written by the reader
+ * 128  data, capacity bytes, where the record at position p of the stream starts at p &amp; (capacity - 1)
+ * record, 4-byte aligned, never wrapping around the end of the data
+ *   int   length n &gt; 0, followed by the n bytes of the event and padding to a multiple of 4
+ *   int   -1: padding to the end of the data, the next record is at offset 0
+ * </pre>
+ * A producer writes the record before it moves {@code tail} past it, and a reader reads a record before it moves
+ * {@code head} past it. Both sides store {@code tail} and {@code head} with ordered stores and load them with
+ * volatile loads, see {@link MappedLongs}, so that neither sees a counter before the records it covers.
+ */
+public final class SharedRingFile {
+
+    public static final int MAGIC = 0x474e4952;
+    public static final int VERSION = 1;
+    public static final int DEFAULT_RING_COUNT = 16;
+    public static final int DEFAULT_RING_SIZE = 1024 * 1024;
+
+    static final int HEADER_SIZE = 64;
+    static final int RING_HEADER_SIZE = 128;
+    static final int MAGIC_OFFSET = 0;
+    static final int VERSION_OFFSET = 4;
+    static final int RING_COUNT_OFFSET = 8;
+    static final int CAPACITY_OFFSET = 12;
+    static final int GENERATION_OFFSET = 16;
+    static final int CLOSED_OFFSET = 24;
+    static final int TAIL_OFFSET = 0;
+    static final int HEAD_OFFSET = 64;
+    static final int PADDING = -1;
+
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final File file;
+    private final ByteBuffer mapped;
+    private final MappedLongs counters;
+    private final int capacity;
+    private final boolean blocking;
+    private final Ring[] rings;
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final ThreadLocal<Ring> threadRing = new ThreadLocal<Ring>();
+    private volatile boolean closed;
+
+    /**
+     * Creates or initializes the file, discarding what a previous producer left in it.
+     *
+     * @param ringCount the number of rings, at least 2: the shared one and one thread's
+     * @param ringSize  the capacity of a ring in bytes, rounded up to a power of two
+     * @param blocking  true to make threads wait while their ring is full, false to drop the event
+     */
+    public SharedRingFile(File file, int ringCount, int ringSize, boolean blocking) throws IOException {
+        if (ringCount < 2) {
+            throw new IllegalArgumentException("At least two rings are needed: " + ringCount);
+        }
+        if (ringSize < 64 || ringSize > 1 << 30) {
+            throw new IllegalArgumentException("Ring size out of range: " + ringSize);
+        }
+        this.file = file.getAbsoluteFile();
+        this.capacity = Integer.highestOneBit(ringSize - 1) << 1;
+        this.blocking = blocking;
+        long length = HEADER_SIZE + (long) ringCount * (RING_HEADER_SIZE + capacity);
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The rings do not fit into 2GB: " + ringCount + " x " + capacity);
+        }
+        File dir = this.file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+        try {
+            raf.setLength(length);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            this.mapped = buffer;
+        } finally {
+            raf.close();
+        }
+        this.counters = new MappedLongs(mapped);
+
+        mapped.putInt(MAGIC_OFFSET, 0);
+        rings = new Ring[ringCount];
+        for (int i = 0; i < ringCount; i++) {
+            int offset = HEADER_SIZE + i * (RING_HEADER_SIZE + capacity);
+            mapped.putLong(offset + TAIL_OFFSET, 0);
+            mapped.putLong(offset + HEAD_OFFSET, 0);
+            rings[i] = new Ring(offset);
+        }
+        mapped.putInt(VERSION_OFFSET, VERSION);
+        mapped.putInt(RING_COUNT_OFFSET, ringCount);
+        mapped.putInt(CAPACITY_OFFSET, capacity);
+        mapped.putLong(GENERATION_OFFSET, System.currentTimeMillis() ^ System.nanoTime());
+        mapped.putInt(CLOSED_OFFSET, 0);
+        mapped.putInt(MAGIC_OFFSET, MAGIC);
+    }
+
+    /**
+     * Writes an event to the calling thread's ring.
+     *
+     * @return false if the event was dropped: it is larger than a ring, the ring is full and the file is not
+     * blocking, or the file is closed
+     */
+    public boolean write(byte[] event, int offset, int length) {
+        if (closed) {
+            droppedEvents.incrementAndGet();
+            return false;
+        }
+        Ring ring = threadRing.get();
+        if (ring == null) {
+            ring = claim();
+            threadRing.set(ring);
+        }
+        boolean written;
+        if (ring == rings[0]) {
+            synchronized (ring) {
+                written = ring.write(event, offset, length);
+            }
+        } else {
+            written = ring.write(event, offset, length);
+        }
+        if (!written) {
+            droppedEvents.incrementAndGet();
+        }
+        return written;
+    }
+
+    public boolean write(byte[] event) {
+        return write(event, 0, event.length);
+    }
+
+    /**
+     * Writes the event encoded into {@code writer}.
+     */
+    public boolean write(JsonWriter writer) {
+        return write(writer.buffer(), 0, writer.size());
+    }
+
+    /**
+     * Marks the file closed for the reader; events written afterwards are dropped.
+     */
+    public void close() {
+        closed = true;
+        mapped.putInt(CLOSED_OFFSET, 1);
+    }
+
+    /**
+     * @return the number of events dropped
+     */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return a ring of its own for the calling thread, or the shared one if none is free
+     */
+    private synchronized Ring claim() {
+        Thread current = Thread.currentThread();
+        for (int i = 1; i < rings.length; i++) {
+            Thread owner = rings[i].owner.get();
+            if (owner == null || !owner.isAlive()) {
+                rings[i].owner = new WeakReference<Thread>(current);
+                return rings[i];
+            }
+        }
+        return rings[0];
+    }
+
+    private static int align(int size) {
+        return (size + 3) & ~3;
+    }
+
+    /**
+     * The producer side of one ring.
+     */
+    private final class Ring {
+        final int offset;
+        final int data;
+        /** for the bulk copies, which need a position of their own */
+        final ByteBuffer view = mapped.duplicate();
+        WeakReference<Thread> owner = new WeakReference<Thread>(null);
+        /** the tail, only changed by the producer */
+        long tail;
+        /** the reader's head when last read, to read the shared one only when the ring seems full */
+        long head;
+
+        Ring(int offset) {
+            this.offset = offset;
+            this.data = offset + RING_HEADER_SIZE;
+        }
+
+        boolean write(byte[] event, int from, int length) {
+            int size = align(4 + length);
+            if (length <= 0 || size > capacity) {
+                return length == 0;
+            }
+            while (true) {
+                int position = (int) tail & (capacity - 1);
+                int toEnd = capacity - position;
+                int needed = size > toEnd ? toEnd : size;
+                if (!awaitSpace(needed)) {
+                    return false;
+                }
+                if (size > toEnd) {
+                    mapped.putInt(data + position, PADDING);
+                    publish(tail + toEnd);
+                    continue;
+                }
+                view.position(data + position + 4);
+                view.put(event, from, length);
+                mapped.putInt(data + position, length);
+                publish(tail + size);
+                return true;
+            }
+        }
+
+        private boolean awaitSpace(int needed) {
+            while (capacity - (tail - head) < needed) {
+                head = counters.getVolatile(offset + HEAD_OFFSET);
+                if (capacity - (tail - head) >= needed) {
+                    return true;
+                }
+                if (!blocking || closed) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, PARK_NANOS);
+                if (Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void publish(long newTail) {
+            counters.putOrdered(offset + TAIL_OFFSET, newTail);
+            tail = newTail;
+        }
+    }
+}
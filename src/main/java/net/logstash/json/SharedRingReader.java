@@ -0,0 +1,171 @@
+package net.logstash.json;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the events a {@link SharedRingFile} receives, for a shipper process on the same host. Reading touches
+ * only the mapped memory: the reader polls, and should back off on its own when {@link #read(Handler, int)} finds
+ * nothing.
+ * <p>
+ * The rings are read in turn, so events from one thread come in the order it wrote them, but the events of
+ * different threads are interleaved in no particular order. When the producer initializes the file again, e.g.
+ * after a restart, the reader notices the new generation and starts over at the beginning of every ring; what the
+ * previous producer left unread is lost. A reader is meant to be used by a single thread, and a file to be read by
+ * a single reader.
+ */
+public final class SharedRingReader {
+
+    /**
+     * Receives the events read.
+     */
+    public interface Handler {
+        /**
+         * @param buffer the mapped file, valid only during the call
+         * @param offset the offset of the event in {@code buffer}
+         * @param length the length of the event
+         */
+        void event(ByteBuffer buffer, int offset, int length);
+    }
+
+    private final File file;
+    private final ByteBuffer mapped;
+    private final MappedLongs counters;
+    private final int ringCount;
+    private final int capacity;
+    private long generation;
+    /** the heads, as last written */
+    private final long[] heads;
+    private int nextRing;
+
+    /**
+     * Maps a file a producer initialized.
+     *
+     * @throws IOException if the file is not a ring file of a known version
+     */
+    public SharedRingReader(File file) throws IOException {
+        this.file = file.getAbsoluteFile();
+        if (!this.file.isFile()) {
+            throw new FileNotFoundException(this.file + " does not exist");
+        }
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            this.mapped = buffer;
+        } finally {
+            raf.close();
+        }
+        this.counters = new MappedLongs(mapped);
+        if (mapped.capacity() < SharedRingFile.HEADER_SIZE
+                || mapped.getInt(SharedRingFile.MAGIC_OFFSET) != SharedRingFile.MAGIC) {
+            throw new IOException(this.file + " is not an initialized ring file");
+        }
+        int version = mapped.getInt(SharedRingFile.VERSION_OFFSET);
+        if (version != SharedRingFile.VERSION) {
+            throw new IOException(this.file + " has version " + version + ", not " + SharedRingFile.VERSION);
+        }
+        this.ringCount = mapped.getInt(SharedRingFile.RING_COUNT_OFFSET);
+        this.capacity = mapped.getInt(SharedRingFile.CAPACITY_OFFSET);
+        long length = SharedRingFile.HEADER_SIZE + (long) ringCount * (SharedRingFile.RING_HEADER_SIZE + capacity);
+        if (ringCount <= 0 || Integer.bitCount(capacity) != 1 || length > mapped.capacity()) {
+            throw new IOException(this.file + " is shorter than its rings");
+        }
+        this.generation = mapped.getLong(SharedRingFile.GENERATION_OFFSET);
+        this.heads = new long[ringCount];
+        for (int i = 0; i < ringCount; i++) {
+            heads[i] = mapped.getLong(ringOffset(i) + SharedRingFile.HEAD_OFFSET);
+        }
+    }
+
+    /**
+     * Passes up to {@code maxEvents} events to {@code handler}, going through the rings in turn.
+     *
+     * @return the number of events read
+     * @throws IllegalStateException if the file was initialized again with other dimensions, and has to be
+     *                               mapped again by a new reader
+     */
+    public int read(Handler handler, int maxEvents) {
+        checkGeneration();
+        int read = 0;
+        for (int i = 0; i < ringCount && read < maxEvents; i++) {
+            int ring = nextRing;
+            nextRing = nextRing + 1 == ringCount ? 0 : nextRing + 1;
+            read += readRing(ring, handler, maxEvents - read);
+        }
+        return read;
+    }
+
+    /**
+     * @return true once the producer closed the file; a {@link #read(Handler, int)} after that finds whatever is
+     * left
+     */
+    public boolean isProducerClosed() {
+        return mapped.getInt(SharedRingFile.CLOSED_OFFSET) != 0;
+    }
+
+    /**
+     * @return the generation of the file, which changes whenever a producer initializes it
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private int readRing(int ring, Handler handler, int maxEvents) {
+        int offset = ringOffset(ring);
+        int data = offset + SharedRingFile.RING_HEADER_SIZE;
+        long head = heads[ring];
+        long tail = counters.getVolatile(offset + SharedRingFile.TAIL_OFFSET);
+        if (tail == head) {
+            return 0;
+        }
+        int read = 0;
+        while (head < tail && read < maxEvents) {
+            int position = (int) head & (capacity - 1);
+            int length = mapped.getInt(data + position);
+            if (length == SharedRingFile.PADDING) {
+                head += capacity - position;
+                continue;
+            }
+            if (length <= 0 || length > capacity - position - 4) {
+                throw new IllegalStateException("Corrupt record of length " + length + " in ring " + ring + " of "
+                        + file);
+            }
+            handler.event(mapped, data + position + 4, length);
+            head += (4 + length + 3) & ~3;
+            read++;
+        }
+        counters.putOrdered(offset + SharedRingFile.HEAD_OFFSET, head);
+        heads[ring] = head;
+        return read;
+    }
+
+    private void checkGeneration() {
+        long current = mapped.getLong(SharedRingFile.GENERATION_OFFSET);
+        if (current == generation) {
+            return;
+        }
+        if (mapped.getInt(SharedRingFile.RING_COUNT_OFFSET) != ringCount
+                || mapped.getInt(SharedRingFile.CAPACITY_OFFSET) != capacity) {
+            throw new IllegalStateException(file + " was initialized again with other dimensions");
+        }
+        generation = current;
+        for (int i = 0; i < ringCount; i++) {
+            heads[i] = 0;
+        }
+    }
+
+    private int ringOffset(int ring) {
+        return SharedRingFile.HEADER_SIZE + ring * (SharedRingFile.RING_HEADER_SIZE + capacity);
+    }
+}
@@ -0,0 +1,159 @@
+package net.logstash.json;
+
+/**
+ * Smile encoding, as produced by Jackson's {@code SmileGenerator} with shared names and values disabled. Every
+ * document starts with the ":)\n" header, so documents can simply be concatenated.
+ */
+final class SmileWriter extends BinaryWriter {
+
+    /** ":)\n" followed by version 0 and no shared names, shared values or raw binary */
+    private static final byte[] HEADER = {':', ')', '\n', 0};
+
+    private static final int EMPTY_STRING = 0x20;
+    private static final int NULL = 0x21;
+    private static final int FALSE = 0x22;
+    private static final int TRUE = 0x23;
+    private static final int INT_32 = 0x24;
+    private static final int INT_64 = 0x25;
+    private static final int DOUBLE = 0x29;
+    private static final int LONG_NAME = 0x34;
+    private static final int TINY_ASCII = 0x40;
+    private static final int SHORT_ASCII = 0x60;
+    private static final int TINY_UNICODE = 0x80;
+    private static final int SHORT_UNICODE = 0xA0;
+    private static final int SMALL_INT = 0xC0;
+    private static final int LONG_ASCII = 0xE0;
+    private static final int LONG_UNICODE = 0xE4;
+    private static final int START_ARRAY = 0xF8;
+    private static final int END_ARRAY = 0xF9;
+    private static final int START_OBJECT = 0xFA;
+    private static final int END_OBJECT = 0xFB;
+    private static final int END_STRING = 0xFC;
+
+    private static final int SHORT_ASCII_NAME = 0x80;
+    private static final int SHORT_UNICODE_NAME = 0xC0;
+
+    @Override
+    public OutputFormat getFormat() {
+        return OutputFormat.SMILE;
+    }
+
+    @Override
+    public void writeStartDocument() {
+        writeBytes(HEADER, 0, HEADER.length);
+    }
+
+    @Override
+    public void writeStartObject() {
+        writeByte(START_OBJECT);
+    }
+
+    @Override
+    public void writeEndObject() {
+        writeByte(END_OBJECT);
+    }
+
+    @Override
+    public void writeStartArray() {
+        writeByte(START_ARRAY);
+    }
+
+    @Override
+    public void writeEndArray() {
+        writeByte(END_ARRAY);
+    }
+
+    @Override
+    public void writeFieldName(byte[] utf8, int offset, int length, boolean ascii) {
+        if (length == 0) {
+            writeByte(EMPTY_STRING);
+        } else if (ascii && length <= 64) {
+            writeByte(SHORT_ASCII_NAME + length - 1);
+            writeBytes(utf8, offset, length);
+        } else if (!ascii && length <= 57) {
+            writeByte(SHORT_UNICODE_NAME + length - 2);
+            writeBytes(utf8, offset, length);
+        } else {
+            writeByte(LONG_NAME);
+            writeBytes(utf8, offset, length);
+            writeByte(END_STRING);
+        }
+    }
+
+    @Override
+    public void writeString(byte[] utf8, int offset, int length, boolean ascii) {
+        if (length == 0) {
+            writeByte(EMPTY_STRING);
+            return;
+        }
+        if (ascii && length <= 32) {
+            writeByte(TINY_ASCII + length - 1);
+        } else if (ascii && length <= 64) {
+            writeByte(SHORT_ASCII + length - 33);
+        } else if (!ascii && length <= 33) {
+            writeByte(TINY_UNICODE + length - 2);
+        } else if (!ascii && length <= 65) {
+            writeByte(SHORT_UNICODE + length - 34);
+        } else {
+            writeByte(ascii ? LONG_ASCII : LONG_UNICODE);
+            writeBytes(utf8, offset, length);
+            writeByte(END_STRING);
+            return;
+        }
+        writeBytes(utf8, offset, length);
+    }
+
+    @Override
+    public void writeNumber(long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        if (value == (int) value) {
+            if (zigzag <= 0x1F) {
+                writeByte(SMALL_INT + (int) zigzag);
+                return;
+            }
+            writeByte(INT_32);
+        } else {
+            writeByte(INT_64);
+        }
+        writeVInt(zigzag);
+    }
+
+    @Override
+    public void writeNumber(double value) {
+        long bits = Double.doubleToLongBits(value);
+        ensureCapacity(11);
+        buf[count++] = (byte) DOUBLE;
+        buf[count++] = (byte) (bits >>> 63);
+        // the remaining 63 bits in 7 bit groups, most significant first
+        for (int shift = 56; shift >= 0; shift -= 7) {
+            buf[count++] = (byte) ((bits >>> shift) & 0x7F);
+        }
+    }
+
+    @Override
+    public void writeBoolean(boolean value) {
+        writeByte(value ? TRUE : FALSE);
+    }
+
+    @Override
+    public void writeNull() {
+        writeByte(NULL);
+    }
+
+    /**
+     * Writes an unsigned variable length integer: 7 bit groups, most significant first, except for the last byte,
+     * which holds 6 bits and has its high bit set.
+     */
+    private void writeVInt(long value) {
+        long rest = value >>> 6;
+        int groups = 0;
+        for (long v = rest; v != 0; v >>>= 7) {
+            groups++;
+        }
+        ensureCapacity(groups + 1);
+        for (int i = groups - 1; i >= 0; i--) {
+            buf[count++] = (byte) ((rest >>> (7 * i)) & 0x7F);
+        }
+        buf[count++] = (byte) (0x80 | (value & 0x3F));
+    }
+}
@@ -0,0 +1,120 @@
+package net.logstash.json;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Remembers which stack traces were written recently, so that repeated exceptions can be logged with a
+ * fingerprint reference instead of the full trace.
+ * <p>
+ * The fingerprint covers the exception classes and the frames (class, method, file, line) of the throwable and
+ * its causes, but not the messages, which usually contain ids or timestamps. It only depends on
+ * {@link String#hashCode()}, so the same trace gets the same fingerprint in every JVM.
+ * <p>
+ * The cache is a fixed-size, 4-way set associative table of immutable entries: lookups are lock free, a full
+ * set evicts its oldest entry, and the memory used never grows beyond the configured size. Two threads seeing
+ * a new trace at the same moment may both write it in full, which is harmless.
+ */
+public final class StackTraceDeduplicator {
+
+    public static final long DEFAULT_WINDOW_MILLIS = 60000L;
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    private static final int WAYS = 4;
+    private static final int MAX_CAUSES = 64;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int setMask;
+    private final long windowMillis;
+
+    /**
+     * @param windowMillis how long a trace is considered known after it was written in full; 0 or less means
+     *                     until it is evicted from the cache
+     * @param cacheSize the number of fingerprints to remember, rounded up to a power of two
+     */
+    public StackTraceDeduplicator(long windowMillis, int cacheSize) {
+        int size = WAYS;
+        while (size < cacheSize && size < (1 << 24)) {
+            size <<= 1;
+        }
+        this.entries = new AtomicReferenceArray<Entry>(size);
+        this.setMask = size / WAYS - 1;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Computes the fingerprint of a throwable and its causes.
+     */
+    public static long fingerprint(Throwable throwable) {
+        long hash = FNV_OFFSET_BASIS;
+        Throwable current = throwable;
+        for (int causes = 0; current != null && causes < MAX_CAUSES; causes++) {
+            hash = mix(hash, current.getClass().getName().hashCode());
+            for (StackTraceElement frame : current.getStackTrace()) {
+                hash = mix(hash, frame.getClassName().hashCode());
+                hash = mix(hash, frame.getMethodName().hashCode());
+                hash = mix(hash, frame.getFileName() == null ? 0 : frame.getFileName().hashCode());
+                hash = mix(hash, frame.getLineNumber());
+            }
+            Throwable cause = current.getCause();
+            current = cause == current ? null : cause;
+        }
+        // final avalanche (murmur3 fmix64) so that the low bits used for the cache index are well distributed
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Records that a trace is being logged at {@code timestamp}.
+     *
+     * @return true if the full trace should be written, i.e. the fingerprint is unknown, was evicted or was last
+     *         written in full more than the window ago
+     */
+    public boolean isFirstOccurrence(long fingerprint, long timestamp) {
+        int base = ((int) (fingerprint ^ (fingerprint >>> 32)) & setMask) * WAYS;
+        int victim = base;
+        long victimTimestamp = Long.MAX_VALUE;
+        for (int i = base; i < base + WAYS; i++) {
+            Entry entry = entries.get(i);
+            if (entry == null) {
+                if (victimTimestamp != Long.MIN_VALUE) {
+                    victim = i;
+                    victimTimestamp = Long.MIN_VALUE;
+                }
+                continue;
+            }
+            if (entry.fingerprint == fingerprint) {
+                if (windowMillis <= 0 || timestamp - entry.timestamp < windowMillis) {
+                    return false;
+                }
+                victim = i;
+                break;
+            }
+            if (entry.timestamp < victimTimestamp) {
+                victim = i;
+                victimTimestamp = entry.timestamp;
+            }
+        }
+        entries.set(victim, new Entry(fingerprint, timestamp));
+        return true;
+    }
+
+    private static long mix(long hash, int value) {
+        return (hash ^ value) * FNV_PRIME;
+    }
+
+    private static final class Entry {
+        final long fingerprint;
+        final long timestamp;
+
+        Entry(long fingerprint, long timestamp) {
+            this.fingerprint = fingerprint;
+            this.timestamp = timestamp;
+        }
+    }
+}
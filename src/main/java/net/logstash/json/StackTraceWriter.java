@@ -0,0 +1,340 @@
+package net.logstash.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a throwable directly from its {@link StackTraceElement}s, either as a "stacktrace" string in the familiar
+ * {@link Throwable#printStackTrace()} format or as a structured "causes" array, with optional compaction:
+ * <ul>
+ *     <li>at most {@code maxFrames} frames per throwable, the rest is summarized as {@code ... n frames truncated}</li>
+ *     <li>frames whose class name starts with one of the excluded prefixes are dropped, consecutive dropped
+ *     frames are summarized as {@code ... n filtered}</li>
+ *     <li>frames a cause shares with its enclosing trace are folded into {@code ... n more}, like the JDK does</li>
+ * </ul>
+ * In the structured format the summaries become the "frames_in_common", "filtered_frames" and
+ * "truncated_frames" counts of each cause. Nothing is rendered into intermediate strings. Instances are immutable
+ * and thread safe.
+ */
+public final class StackTraceWriter {
+
+    /**
+     * How the stack trace is written into the "exception" object.
+     */
+    public enum Format {
+        /** a single "stacktrace" string, as printed by {@link Throwable#printStackTrace()} */
+        TEXT,
+        /** a "causes" array with one object per throwable, each holding its "frames" */
+        STRUCTURED;
+
+        /**
+         * Parses a format name, case insensitive; {@code null} or an empty string mean text.
+         */
+        public static Format parse(String name) {
+            if (name == null || name.trim().length() == 0) {
+                return TEXT;
+            }
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    private static final int MAX_CAUSES = 64;
+    private static final StackTraceElement[] NO_FRAMES = new StackTraceElement[0];
+
+    private static final byte[] STACKTRACE_FIELD = JsonWriter.fieldName("stacktrace");
+    private static final byte[] CAUSES_FIELD = JsonWriter.fieldName("causes");
+    private static final byte[] CLASS_FIELD = JsonWriter.fieldName("class");
+    private static final byte[] MESSAGE_FIELD = JsonWriter.fieldName("message");
+    private static final byte[] CIRCULAR_REFERENCE_FIELD = JsonWriter.fieldName("circular_reference");
+    private static final byte[] FRAMES_FIELD = JsonWriter.fieldName("frames");
+    private static final byte[] FRAMES_IN_COMMON_FIELD = JsonWriter.fieldName("frames_in_common");
+    private static final byte[] FILTERED_FRAMES_FIELD = JsonWriter.fieldName("filtered_frames");
+    private static final byte[] TRUNCATED_FRAMES_FIELD = JsonWriter.fieldName("truncated_frames");
+    private static final byte[] METHOD_FIELD = JsonWriter.fieldName("method");
+    private static final byte[] FILE_FIELD = JsonWriter.fieldName("file");
+    private static final byte[] LINE_FIELD = JsonWriter.fieldName("line");
+
+    private final Format format;
+    private final int maxFrames;
+    private final String[] excludedPrefixes;
+    private final boolean foldCommonFrames;
+
+    /**
+     * Creates a writer for the text format.
+     *
+     * @param maxFrames the maximum number of frames written per throwable, 0 or less for no limit
+     * @param excludedPrefixes class name prefixes of frames to leave out
+     * @param foldCommonFrames whether frames a cause shares with its enclosing trace are folded
+     */
+    public StackTraceWriter(int maxFrames, String[] excludedPrefixes, boolean foldCommonFrames) {
+        this(Format.TEXT, maxFrames, excludedPrefixes, foldCommonFrames);
+    }
+
+    /**
+     * @param format whether to write a "stacktrace" string or a "causes" array
+     * @param maxFrames the maximum number of frames written per throwable, 0 or less for no limit
+     * @param excludedPrefixes class name prefixes of frames to leave out
+     * @param foldCommonFrames whether frames a cause shares with its enclosing trace are folded
+     */
+    public StackTraceWriter(Format format, int maxFrames, String[] excludedPrefixes, boolean foldCommonFrames) {
+        this.format = format;
+        this.maxFrames = maxFrames;
+        this.excludedPrefixes = excludedPrefixes.clone();
+        this.foldCommonFrames = foldCommonFrames;
+    }
+
+    /**
+     * Parses a comma separated list of class name prefixes, such as {@code sun.reflect.,java.lang.reflect.}.
+     */
+    public static String[] parsePrefixes(String prefixes) {
+        List<String> parsed = new ArrayList<String>();
+        if (prefixes != null) {
+            for (String prefix : prefixes.split(",")) {
+                if (prefix.trim().length() > 0) {
+                    parsed.add(prefix.trim());
+                }
+            }
+        }
+        return parsed.toArray(new String[parsed.size()]);
+    }
+
+    /**
+     * Writes the "stacktrace" or "causes" field, depending on the format, into the current object.
+     */
+    public void writeField(TokenWriter writer, Throwable throwable) {
+        if (format == Format.STRUCTURED) {
+            writer.writeFieldName(CAUSES_FIELD);
+            writeCauses(writer, throwable);
+        } else {
+            writer.writeFieldName(STACKTRACE_FIELD);
+            write(writer, throwable);
+        }
+    }
+
+    /**
+     * Writes the throwable and its causes as an array of objects with "class", "message" and "frames", each frame
+     * being an object with "class", "method", "file" and "line".
+     */
+    public void writeCauses(TokenWriter writer, Throwable throwable) {
+        writer.writeStartArray();
+        Throwable[] seen = new Throwable[MAX_CAUSES];
+        StackTraceElement[] enclosing = NO_FRAMES;
+        Throwable current = throwable;
+        for (int depth = 0; current != null && depth < MAX_CAUSES; depth++) {
+            writer.writeStartObject();
+            writer.writeFieldName(CLASS_FIELD);
+            writer.writeString(current.getClass().getName());
+            String message = current.getLocalizedMessage();
+            if (message != null) {
+                writer.writeFieldName(MESSAGE_FIELD);
+                writer.writeString(message);
+            }
+            if (isCircular(seen, depth, current)) {
+                writer.writeFieldName(CIRCULAR_REFERENCE_FIELD);
+                writer.writeBoolean(true);
+                writer.writeEndObject();
+                break;
+            }
+            seen[depth] = current;
+            StackTraceElement[] frames = current.getStackTrace();
+            writeFrameObjects(writer, frames, enclosing);
+            writer.writeEndObject();
+            enclosing = frames;
+            current = current.getCause();
+        }
+        writer.writeEndArray();
+    }
+
+    /**
+     * Writes the stack trace of {@code throwable} and its causes as a single JSON string value.
+     */
+    public void write(TokenWriter writer, Throwable throwable) {
+        writer.writeStartString();
+        Throwable[] seen = new Throwable[MAX_CAUSES];
+        StackTraceElement[] enclosing = NO_FRAMES;
+        Throwable current = throwable;
+        for (int depth = 0; current != null && depth < MAX_CAUSES; depth++) {
+            if (depth > 0) {
+                writer.writeStringContent('\n');
+                writer.writeStringContent("Caused by: ");
+            }
+            if (isCircular(seen, depth, current)) {
+                writer.writeStringContent("[CIRCULAR REFERENCE: ");
+                writeHeader(writer, current);
+                writer.writeStringContent(']');
+                break;
+            }
+            seen[depth] = current;
+            writeHeader(writer, current);
+            StackTraceElement[] frames = current.getStackTrace();
+            writeFrames(writer, frames, enclosing);
+            enclosing = frames;
+            current = current.getCause();
+        }
+        writer.writeEndString();
+    }
+
+    /**
+     * Writes a single frame in {@link StackTraceElement#toString()} format, as string content.
+     */
+    public static void writeFrame(TokenWriter writer, StackTraceElement frame) {
+        writer.writeStringContent(frame.getClassName());
+        writer.writeStringContent('.');
+        writer.writeStringContent(frame.getMethodName());
+        writer.writeStringContent('(');
+        if (frame.isNativeMethod()) {
+            writer.writeStringContent("Native Method");
+        } else if (frame.getFileName() == null) {
+            writer.writeStringContent("Unknown Source");
+        } else {
+            writer.writeStringContent(frame.getFileName());
+            if (frame.getLineNumber() >= 0) {
+                writer.writeStringContent(':');
+                writer.writeStringContent(frame.getLineNumber());
+            }
+        }
+        writer.writeStringContent(')');
+    }
+
+    /**
+     * @return whether the frame's class matches one of the excluded prefixes
+     */
+    public boolean isExcluded(StackTraceElement frame) {
+        String className = frame.getClassName();
+        for (String prefix : excludedPrefixes) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of trailing frames shared with the enclosing trace, 0 if folding is disabled
+     */
+    public int framesInCommon(StackTraceElement[] frames, StackTraceElement[] enclosing) {
+        if (!foldCommonFrames) {
+            return 0;
+        }
+        int m = frames.length - 1;
+        int n = enclosing.length - 1;
+        while (m >= 0 && n >= 0 && frames[m].equals(enclosing[n])) {
+            m--;
+            n--;
+        }
+        return frames.length - 1 - m;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public int getMaxFrames() {
+        return maxFrames;
+    }
+
+    private void writeFrameObjects(TokenWriter writer, StackTraceElement[] frames, StackTraceElement[] enclosing) {
+        int inCommon = framesInCommon(frames, enclosing);
+        int end = frames.length - inCommon;
+        int written = 0;
+        int filtered = 0;
+        int truncated = 0;
+        writer.writeFieldName(FRAMES_FIELD);
+        writer.writeStartArray();
+        for (int i = 0; i < end; i++) {
+            if (maxFrames > 0 && written == maxFrames) {
+                truncated = end - i;
+                break;
+            }
+            StackTraceElement frame = frames[i];
+            if (isExcluded(frame)) {
+                filtered++;
+                continue;
+            }
+            writer.writeStartObject();
+            writer.writeFieldName(CLASS_FIELD);
+            writer.writeString(frame.getClassName());
+            writer.writeFieldName(METHOD_FIELD);
+            writer.writeString(frame.getMethodName());
+            if (frame.getFileName() != null) {
+                writer.writeFieldName(FILE_FIELD);
+                writer.writeString(frame.getFileName());
+            }
+            if (frame.getLineNumber() >= 0) {
+                writer.writeFieldName(LINE_FIELD);
+                writer.writeNumber(frame.getLineNumber());
+            }
+            writer.writeEndObject();
+            written++;
+        }
+        writer.writeEndArray();
+        writeCount(writer, FRAMES_IN_COMMON_FIELD, inCommon);
+        writeCount(writer, FILTERED_FRAMES_FIELD, filtered);
+        writeCount(writer, TRUNCATED_FRAMES_FIELD, truncated);
+    }
+
+    private static void writeCount(TokenWriter writer, byte[] name, int count) {
+        if (count > 0) {
+            writer.writeFieldName(name);
+            writer.writeNumber(count);
+        }
+    }
+
+    private void writeFrames(TokenWriter writer, StackTraceElement[] frames, StackTraceElement[] enclosing) {
+        int inCommon = framesInCommon(frames, enclosing);
+        int end = frames.length - inCommon;
+        int written = 0;
+        int filtered = 0;
+        for (int i = 0; i < end; i++) {
+            if (maxFrames > 0 && written == maxFrames) {
+                writeFiltered(writer, filtered);
+                filtered = 0;
+                writer.writeStringContent("\n\t... ");
+                writer.writeStringContent(end - i);
+                writer.writeStringContent(" frames truncated");
+                break;
+            }
+            if (isExcluded(frames[i])) {
+                filtered++;
+                continue;
+            }
+            writeFiltered(writer, filtered);
+            filtered = 0;
+            writer.writeStringContent("\n\tat ");
+            writeFrame(writer, frames[i]);
+            written++;
+        }
+        writeFiltered(writer, filtered);
+        if (inCommon > 0) {
+            writer.writeStringContent("\n\t... ");
+            writer.writeStringContent(inCommon);
+            writer.writeStringContent(" more");
+        }
+    }
+
+    private static void writeFiltered(TokenWriter writer, int filtered) {
+        if (filtered > 0) {
+            writer.writeStringContent("\n\t... ");
+            writer.writeStringContent(filtered);
+            writer.writeStringContent(" filtered");
+        }
+    }
+
+    private static void writeHeader(TokenWriter writer, Throwable throwable) {
+        writer.writeStringContent(throwable.getClass().getName());
+        String message = throwable.getLocalizedMessage();
+        if (message != null) {
+            writer.writeStringContent(": ");
+            writer.writeStringContent(message);
+        }
+    }
+
+    private static boolean isCircular(Throwable[] seen, int count, Throwable throwable) {
+        for (int i = 0; i < count; i++) {
+            if (seen[i] == throwable) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,119 @@
+package net.logstash.json;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Maps frequently repeated string values, such as logger names, levels, thread names and location fields, to their
+ * quoted, escaped UTF-8 encoding, so that writing them again is a plain array copy.
+ * <p>
+ * The cache is a fixed-size, 2-way set associative table of immutable entries indexed by
+ * {@link String#hashCode()}, which strings cache themselves. A lookup compares the cached string by identity first
+ * and then by equality; a new string takes the first way of its set and moves the previous one to the second.
+ * Only strings of up to {@link #MAX_LENGTH} characters are cached, so memory stays bounded. Lookups are lock free;
+ * hits and misses are counted in striped counters so that threads do not contend on a single cache line.
+ * <p>
+ * Strings are written through the cache with {@link JsonWriter#writeString(String, StringFragmentCache)}.
+ */
+public final class StringFragmentCache {
+
+    public static final int DEFAULT_SIZE = 1024;
+    public static final int MAX_LENGTH = 256;
+
+    private static final int STRIPES = 16;
+    // 16 longs apart, so that no two stripes share a cache line
+    private static final int STRIPE_WIDTH = 16;
+    private static final int HITS = 0;
+    private static final int MISSES = 8;
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+    private final AtomicLongArray counters = new AtomicLongArray(STRIPES * STRIPE_WIDTH);
+
+    public StringFragmentCache() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * @param size the number of strings to remember, rounded up to a power of two
+     */
+    public StringFragmentCache(int size) {
+        int capacity = 2;
+        while (capacity < size && capacity < (1 << 20)) {
+            capacity <<= 1;
+        }
+        this.entries = new AtomicReferenceArray<Entry>(capacity);
+        this.mask = capacity - 2;
+    }
+
+    /**
+     * @return the encoded string including its quotes, or null if it is not cached
+     */
+    byte[] get(String value) {
+        int index = index(value);
+        Entry entry = entries.get(index);
+        if (entry == null || (entry.value != value && !entry.value.equals(value))) {
+            entry = entries.get(index + 1);
+            if (entry == null || (entry.value != value && !entry.value.equals(value))) {
+                count(MISSES);
+                return null;
+            }
+        }
+        count(HITS);
+        return entry.fragment;
+    }
+
+    /**
+     * Caches the encoding of {@code value}, found in {@code buffer} from {@code start} to {@code end}.
+     */
+    void put(String value, byte[] buffer, int start, int end) {
+        if (value.length() > MAX_LENGTH) {
+            return;
+        }
+        byte[] fragment = new byte[end - start];
+        System.arraycopy(buffer, start, fragment, 0, fragment.length);
+        int index = index(value);
+        Entry first = entries.get(index);
+        if (first != null && !first.value.equals(value)) {
+            // the first way holds the newest entry, the second one the entry it replaced
+            entries.set(index + 1, first);
+        }
+        entries.set(index, new Entry(value, fragment));
+    }
+
+    public long getHits() {
+        return sum(HITS);
+    }
+
+    public long getMisses() {
+        return sum(MISSES);
+    }
+
+    private int index(String value) {
+        int hash = value.hashCode();
+        hash ^= hash >>> 16;
+        return hash & mask;
+    }
+
+    private void count(int counter) {
+        counters.incrementAndGet(((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIPE_WIDTH + counter);
+    }
+
+    private long sum(int counter) {
+        long sum = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            sum += counters.get(stripe * STRIPE_WIDTH + counter);
+        }
+        return sum;
+    }
+
+    private static final class Entry {
+        final String value;
+        final byte[] fragment;
+
+        Entry(String value, byte[] fragment) {
+            this.value = value;
+            this.fragment = fragment;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package net.logstash.json;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Ships encoded events to a TCP endpoint, such as a Logstash {@code tcp} input with the {@code json_lines} codec,
+ * from a single I/O thread.
+ * <p>
+ * The I/O thread takes up to {@code batchSize} bytes of events at a time and writes them with one gathering write
+ * on a {@link SocketChannel}. When the connection fails it reconnects with backoff and sends the events of the
+ * failed batch again, the interrupted one from its start. While the peer is slow or unreachable the buffer fills
+ * up and the {@link OverflowPolicy} decides what happens to further events.
+ */
+public final class TcpShipper extends EventShipper {
+
+    public static final int DEFAULT_BATCH_SIZE = 256 * 1024;
+
+    /** Linux limits a gathering write to 1024 buffers */
+    private static final int MAX_BATCH_EVENTS = 1024;
+
+    private final int batchSize;
+    private volatile SocketChannel channel;
+
+    /**
+     * Starts the I/O thread, which connects in the background.
+     *
+     * @param bufferSize the number of events buffered for the I/O thread
+     * @param batchSize  the number of bytes sent with one gathering write
+     */
+    public TcpShipper(String host, int port, int bufferSize, int batchSize, OverflowPolicy overflowPolicy,
+                      long reconnectDelay, long maxReconnectDelay, ErrorReporter reporter) {
+        super(host, port, bufferSize, overflowPolicy, reconnectDelay, maxReconnectDelay, reporter);
+        this.batchSize = batchSize;
+        start(new Sender());
+    }
+
+    public boolean isConnected() {
+        return channel != null;
+    }
+
+    protected void disconnect() {
+        SocketChannel open = channel;
+        channel = null;
+        if (open != null) {
+            try {
+                open.close();
+            } catch (IOException e) {
+                // nothing left to do with a broken connection
+            }
+        }
+    }
+
+    private final class Sender implements Runnable {
+        private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH_EVENTS];
+        /** the events in {@link #batch} from {@code offset} to {@code count} are still to be sent */
+        private int offset;
+        private int count;
+
+        public void run() {
+            RingBuffer<byte[]> buffer = ringBuffer;
+            while (!abandoned) {
+                if (offset == count) {
+                    fill(buffer);
+                }
+                if (offset == count) {
+                    if (stopped && buffer.isEmpty()) {
+                        break;
+                    }
+                    buffer.awaitElement();
+                } else if (channel == null && !connect()) {
+                    continue;
+                } else {
+                    write();
+                }
+            }
+            disconnect();
+            dropped(count - offset);
+            dropBuffered();
+        }
+
+        private void fill(RingBuffer<byte[]> buffer) {
+            for (int i = 0; i < count; i++) {
+                batch[i] = null;
+            }
+            offset = 0;
+            count = 0;
+            int bytes = 0;
+            byte[] event;
+            while (count < batch.length && bytes < batchSize && (event = buffer.poll()) != null) {
+                batch[count++] = ByteBuffer.wrap(event);
+                bytes += event.length;
+            }
+        }
+
+        private boolean connect() {
+            SocketChannel opened = null;
+            try {
+                opened = SocketChannel.open();
+                opened.socket().setKeepAlive(true);
+                opened.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            } catch (IOException e) {
+                if (opened != null) {
+                    try {
+                        opened.close();
+                    } catch (IOException ignored) {
+                        // not connected anyway
+                    }
+                }
+                backOff(e);
+                return false;
+            }
+            channel = opened;
+            connected();
+            return true;
+        }
+
+        private void write() {
+            SocketChannel open = channel;
+            int written = offset;
+            try {
+                while (offset < count) {
+                    open.write(batch, offset, count - offset);
+                    while (offset < count && !batch[offset].hasRemaining()) {
+                        offset++;
+                    }
+                }
+            } catch (IOException e) {
+                if (!abandoned) {
+                    reporter.error("Connection to " + host + ":" + port + " failed, reconnecting", e);
+                }
+                disconnect();
+                if (offset < count) {
+                    // a partly sent event goes out again as a whole on the next connection
+                    batch[offset].rewind();
+                }
+            }
+            settled(offset - written);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package net.logstash.json;
+
+/**
+ * Formats UTC timestamps as {@code yyyy-MM-dd'T'HH:mm:ss.SSS'Z'} straight into a byte array.
+ * <p>
+ * The {@code yyyy-MM-ddTHH:mm:ss} part is computed once per second and cached, so events arriving within the
+ * same second only pay for the fraction digits. The calendar arithmetic is done on plain longs (proleptic
+ * Gregorian calendar, which matches {@code FastDateFormat} for the years 1583 to 9999), nothing is allocated.
+ * <p>
+ * Instances are not thread safe; every {@link JsonWriter} owns one.
+ */
+public final class TimestampFormatter {
+
+    /**
+     * Number of fraction digits written after the seconds.
+     */
+    public enum Precision {
+        MILLISECONDS(3),
+        MICROSECONDS(6),
+        NANOSECONDS(9);
+
+        private final int digits;
+
+        Precision(int digits) {
+            this.digits = digits;
+        }
+
+        public int getDigits() {
+            return digits;
+        }
+
+        /**
+         * Parses a precision name, case insensitive; {@code null} or an empty string mean milliseconds.
+         */
+        public static Precision parse(String name) {
+            if (name == null || name.trim().length() == 0) {
+                return MILLISECONDS;
+            }
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    private static final int PREFIX_LENGTH = 19;
+    private static final long SECONDS_PER_DAY = 86400L;
+    private static final int[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000};
+
+    private long cachedSecond = Long.MIN_VALUE;
+    private final byte[] prefix = new byte[PREFIX_LENGTH];
+
+    /**
+     * @return the number of bytes {@link #format(long, int, Precision, byte[], int)} writes
+     */
+    public static int length(Precision precision) {
+        return PREFIX_LENGTH + 2 + precision.digits;
+    }
+
+    /**
+     * Convenience for callers that need a String, such as the layouts' {@code dateFormat(long)}.
+     * Uses a throwaway formatter, so it is thread safe but does not benefit from the cache.
+     */
+    public static String format(long epochMillis) {
+        byte[] bytes = new byte[length(Precision.MILLISECONDS)];
+        new TimestampFormatter().format(epochMillis, bytes, 0);
+        return new String(bytes, 0, bytes.length, JsonWriter.UTF_8);
+    }
+
+    /**
+     * Writes the millisecond timestamp into {@code dest}.
+     *
+     * @return the offset after the last byte written
+     */
+    public int format(long epochMillis, byte[] dest, int offset) {
+        long epochSecond = floorDiv(epochMillis, 1000L);
+        int millis = (int) (epochMillis - epochSecond * 1000L);
+        return format(epochSecond, millis * 1000000, Precision.MILLISECONDS, dest, offset);
+    }
+
+    /**
+     * Writes a timestamp with the given sub-second precision into {@code dest}; surplus digits of
+     * {@code nanoOfSecond} are truncated.
+     *
+     * @return the offset after the last byte written
+     */
+    public int format(long epochSecond, int nanoOfSecond, Precision precision, byte[] dest, int offset) {
+        if (epochSecond != cachedSecond) {
+            computePrefix(epochSecond);
+            cachedSecond = epochSecond;
+        }
+        System.arraycopy(prefix, 0, dest, offset, PREFIX_LENGTH);
+        int pos = offset + PREFIX_LENGTH;
+        dest[pos++] = '.';
+        int fraction = nanoOfSecond / POWERS_OF_TEN[9 - precision.digits];
+        for (int i = pos + precision.digits - 1; i >= pos; i--) {
+            dest[i] = (byte) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        pos += precision.digits;
+        dest[pos++] = 'Z';
+        return pos;
+    }
+
+    private void computePrefix(long epochSecond) {
+        long days = floorDiv(epochSecond, SECONDS_PER_DAY);
+        int secondOfDay = (int) (epochSecond - days * SECONDS_PER_DAY);
+
+        // civil-from-days, see http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        writeDigits((int) year, 4, 0);
+        prefix[4] = '-';
+        writeDigits(month, 2, 5);
+        prefix[7] = '-';
+        writeDigits(day, 2, 8);
+        prefix[10] = 'T';
+        writeDigits(secondOfDay / 3600, 2, 11);
+        prefix[13] = ':';
+        writeDigits((secondOfDay / 60) % 60, 2, 14);
+        prefix[16] = ':';
+        writeDigits(secondOfDay % 60, 2, 17);
+    }
+
+    private void writeDigits(int value, int digits, int offset) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            prefix[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x < 0) != (y < 0))) {
+            q--;
+        }
+        return q;
+    }
+}
@@ -0,0 +1,100 @@
+package net.logstash.json;
+
+/**
+ * The tokens the layouts write an event with, implemented by {@link JsonWriter} and by the {@link BinaryWriter}s, so
+ * that an event is encoded in its output format in a single pass.
+ * <p>
+ * Field names and constant fields are pre-encoded as JSON once (see {@link JsonWriter#fieldName(String)} and
+ * {@link ConstantFields}); binary writers translate each of these fragments once and copy the result afterwards.
+ */
+public interface TokenWriter {
+
+    /**
+     * @return the encoding this writer produces
+     */
+    OutputFormat getFormat();
+
+    void writeStartObject();
+
+    void writeEndObject();
+
+    void writeStartArray();
+
+    void writeEndArray();
+
+    void writeFieldName(String name);
+
+    /**
+     * @param encodedName a name produced by {@link JsonWriter#fieldName(String)}
+     */
+    void writeFieldName(byte[] encodedName);
+
+    /**
+     * Writes a fragment of complete members pre-encoded as JSON ({@code "a":1,"b":"c"}) into the current object.
+     */
+    void writeRawFields(byte[] fragment);
+
+    /**
+     * Writes a value already encoded in this writer's format, such as one copied from {@link #buffer()}.
+     */
+    void writeRawValue(byte[] value, int offset, int length);
+
+    void writeString(String value);
+
+    /**
+     * Writes a string, copying its encoding from {@code cache} where the format allows it.
+     */
+    void writeString(String value, StringFragmentCache cache);
+
+    /**
+     * Writes the given lines as one string, separated by {@code separator}, without joining them first.
+     */
+    void writeJoinedString(String[] lines, char separator);
+
+    /**
+     * Opens a string value whose content is then written piecewise with the {@code writeStringContent} methods
+     * and closed with {@link #writeEndString()}.
+     */
+    void writeStartString();
+
+    void writeStringContent(String value);
+
+    void writeStringContent(char value);
+
+    void writeStringContent(long value);
+
+    void writeEndString();
+
+    /**
+     * Writes a UTC timestamp string with millisecond precision, see {@link TimestampFormatter}.
+     */
+    void writeTimestamp(long epochMillis);
+
+    /**
+     * Writes a UTC timestamp string with the given sub-second precision, see {@link TimestampFormatter}.
+     */
+    void writeTimestamp(long epochSecond, int nanoOfSecond, TimestampFormatter.Precision precision);
+
+    /**
+     * Writes {@code value} as a string of 16 lower case hex digits.
+     */
+    void writeHexString(long value);
+
+    void writeNumber(long value);
+
+    void writeBoolean(boolean value);
+
+    void writeNull();
+
+    /**
+     * Writes an arbitrary value the way json-smart would, see {@link JsonWriter#writeObject(Object)}.
+     */
+    void writeObject(Object value);
+
+    int size();
+
+    /**
+     * @return the internal buffer; only the first {@link #size()} bytes are valid.
+     */
+    byte[] buffer();
+}
@@ -0,0 +1,630 @@
+package net.logstash.log4j;
+
+import net.logstash.json.EventShipper;
+import net.logstash.json.FormattingPipeline;
+import net.logstash.json.JsonWriter;
+import net.logstash.json.PriorityLanes;
+import net.logstash.json.RingBuffer;
+import org.apache.log4j.Category;
+import org.apache.log4j.Layout;
+import org.apache.log4j.Level;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous appender that hands events to a background thread through a preallocated, lock-free
+ * {@link RingBuffer} and writes them to a file, or to standard out if no file is set.
+ * <p>
+ * Unlike log4j's {@link org.apache.log4j.AsyncAppender}, which queues events in a synchronized list and passes
+ * them on to other appenders, the logging thread only snapshots what the layout needs from the event (message,
+ * MDC, NDC, thread name and, if the layout includes it, the location) and the background thread formats it:
+ * a {@link JSONEventLayoutV1} encodes the events straight into one buffer, which is written once it holds
+ * {@code BatchSize} bytes or the ring buffer runs empty. Other layouts are supported through
+ * {@link Layout#format(LoggingEvent)}.
+ * <p>
+ * {@link #doAppend(LoggingEvent)} is not synchronized, so threads logging through different loggers do not contend
+ * (log4j 1.2 still serializes the threads logging through the same logger). When the ring buffer is full the
+ * logging thread waits as set by {@code WaitStrategy} ({@code spin}, {@code yield} or {@code park}), or, with
+ * {@code Blocking=false}, drops the event and counts it.
+ * <p>
+ * With {@code Workers} above 1 the background thread only sequences: it hands the events in batches of
+ * {@code WorkerBatchSize} to that many worker threads, which format the batches in parallel, and writes the
+ * formatted batches in the order the events were appended. A {@link JSONEventLayoutV1} is called by all workers at
+ * once; other layouts, which log4j does not require to be thread safe, are called by one worker at a time.
+ * <p>
+ * With {@code PriorityLanes=true} the events are queued in four {@link PriorityLanes} of {@code BufferSize} events
+ * each, for ERROR and above, WARN, INFO, and DEBUG and below, drained by weighted round robin as set by
+ * {@code LaneWeights}. Under pressure the lower lanes shed their events, the lowest first, and never make the
+ * logging thread wait; only the ERROR lane waits for space, unless {@code Blocking=false}. Once the lanes run empty,
+ * and at most once a second, the appender writes a WARN event per level and logger that lost events, through the
+ * layout, with the number of events lost as {@code dropped_count} and their level as {@code dropped_level} in the
+ * MDC.
+ */
+public class AsyncJSONAppender extends ConcurrentAppenderSkeleton {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    public static final int DEFAULT_BATCH_SIZE = 64 * 1024;
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT = 5000;
+    public static final String DEFAULT_LANE_WEIGHTS = "8,4,2,1";
+
+    private static final long DROP_SUMMARY_INTERVAL = 1000;
+
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private RingBuffer.WaitStrategy waitStrategy = RingBuffer.WaitStrategy.PARK;
+    private boolean blocking = true;
+    private boolean locationInfo = false;
+    private String fileName;
+    private boolean fileAppend = true;
+    private long shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+    private int workers = 1;
+    private int workerBatchSize = FormattingPipeline.DEFAULT_BATCH_SIZE;
+    private boolean priorityLanes = false;
+    private String laneWeights = DEFAULT_LANE_WEIGHTS;
+
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private volatile RingBuffer<LoggingEvent> ringBuffer;
+    private volatile PriorityLanes<LoggingEvent> lanes;
+    /** the events shed or dropped from the lanes, per level and logger */
+    private final ConcurrentMap<String, DropCount> dropCounts = new ConcurrentHashMap<String, DropCount>();
+    private volatile boolean dropsPending;
+    private volatile Thread dispatcher;
+    private OutputStream out;
+    private boolean ownsStream;
+
+    public AsyncJSONAppender() {
+    }
+
+    public AsyncJSONAppender(Layout layout, String fileName) {
+        this.layout = layout;
+        this.fileName = fileName;
+        activateOptions();
+    }
+
+    @Override
+    public void activateOptions() {
+        if (out == null) {
+            if (fileName == null) {
+                out = System.out;
+            } else {
+                try {
+                    out = new FileOutputStream(fileName, fileAppend);
+                    ownsStream = true;
+                } catch (IOException e) {
+                    errorHandler.error("Could not open [" + fileName + "]", e, ErrorCode.FILE_OPEN_FAILURE);
+                    return;
+                }
+            }
+        }
+        start();
+    }
+
+    /**
+     * Writes to {@code out} instead of a file; the stream is not closed with the appender.
+     */
+    void setOutputStream(OutputStream out) {
+        this.out = out;
+        this.ownsStream = false;
+    }
+
+    private void start() {
+        if (dispatcher != null) {
+            return;
+        }
+        if (priorityLanes) {
+            int[] weights;
+            try {
+                weights = PriorityLanes.parseWeights(laneWeights);
+            } catch (NumberFormatException e) {
+                weights = null;
+            }
+            if (weights == null || weights.length != 4) {
+                errorHandler.error("LaneWeights of appender [" + name + "] must be four numbers: " + laneWeights);
+                return;
+            }
+            lanes = new PriorityLanes<LoggingEvent>(bufferSize, weights, waitStrategy);
+        } else {
+            ringBuffer = new RingBuffer<LoggingEvent>(bufferSize, waitStrategy);
+        }
+        Runnable consumer = workers > 1 ? new Sequencer() : new Dispatcher();
+        Thread thread = new Thread(consumer, "AsyncJSONAppender-" + getName());
+        thread.setDaemon(true);
+        dispatcher = thread;
+        thread.start();
+    }
+
+    @Override
+    protected void append(LoggingEvent event) {
+        RingBuffer<LoggingEvent> buffer = ringBuffer;
+        PriorityLanes<LoggingEvent> priority = lanes;
+        if (buffer == null && priority == null) {
+            errorHandler.error("No output stream or file set for the appender named [" + name + "].");
+            return;
+        }
+        // everything the layout reads from the logging thread has to be captured before the event leaves it
+        event.getNDC();
+        event.getThreadName();
+        event.getMDCCopy();
+        event.getRenderedMessage();
+        if (locationInfo || (layout instanceof JSONEventLayoutV1 && ((JSONEventLayoutV1) layout).getLocationInfo())) {
+            event.getLocationInformation();
+        }
+        if (priority != null) {
+            offer(priority, event);
+            return;
+        }
+        while (!buffer.offer(event)) {
+            if (!blocking || stopped || !dispatcher.isAlive()) {
+                droppedEvents.incrementAndGet();
+                return;
+            }
+            if (Thread.interrupted()) {
+                droppedEvents.incrementAndGet();
+                Thread.currentThread().interrupt();
+                return;
+            }
+            buffer.awaitSpace();
+        }
+    }
+
+    private void offer(PriorityLanes<LoggingEvent> priority, LoggingEvent event) {
+        int lane = lane(event.getLevel());
+        while (!priority.offer(lane, event)) {
+            if (lane > 0 || !blocking || stopped || !dispatcher.isAlive()) {
+                drop(event);
+                return;
+            }
+            if (Thread.interrupted()) {
+                drop(event);
+                Thread.currentThread().interrupt();
+                return;
+            }
+            priority.awaitSpace(lane);
+        }
+    }
+
+    private static int lane(Level level) {
+        int value = level.toInt();
+        if (value >= Level.ERROR_INT) {
+            return 0;
+        } else if (value >= Level.WARN_INT) {
+            return 1;
+        } else if (value >= Level.INFO_INT) {
+            return 2;
+        }
+        return 3;
+    }
+
+    /**
+     * Counts an event the lanes refused, for the drop summary.
+     */
+    private void drop(LoggingEvent event) {
+        droppedEvents.incrementAndGet();
+        String key = event.getLevel() + " " + event.getLoggerName();
+        DropCount count = dropCounts.get(key);
+        if (count == null) {
+            DropCount created = new DropCount(event.getLogger(), event.getLevel());
+            count = dropCounts.putIfAbsent(key, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.events.incrementAndGet();
+        dropsPending = true;
+    }
+
+    /**
+     * Takes the events dropped since the last summary, as one WARN event per level and logger.
+     */
+    private List<LoggingEvent> dropSummary() {
+        dropsPending = false;
+        List<LoggingEvent> summary = new ArrayList<LoggingEvent>();
+        long now = System.currentTimeMillis();
+        for (DropCount count : dropCounts.values()) {
+            long events = count.events.getAndSet(0);
+            if (events == 0) {
+                continue;
+            }
+            Map<String, Object> properties = new HashMap<String, Object>();
+            properties.put("dropped_count", events);
+            properties.put("dropped_level", count.level.toString());
+            summary.add(new LoggingEvent(AsyncJSONAppender.class.getName(), count.logger, now, Level.WARN,
+                    "Dropped " + events + " " + count.level + " events under backpressure",
+                    Thread.currentThread().getName(), null, null, LocationInfo.NA_LOCATION_INFO, properties));
+        }
+        return summary;
+    }
+
+    /**
+     * Stops accepting events and waits up to {@code ShutdownTimeout} milliseconds for the queued ones to be written.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        stopped = true;
+        Thread thread = dispatcher;
+        if (thread != null) {
+            try {
+                thread.join(shutdownTimeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (thread.isAlive()) {
+                LogLog.warn("[" + name + "] " + queued() + " events were not written within " + shutdownTimeout + "ms");
+            }
+        }
+    }
+
+    public boolean requiresLayout() {
+        return true;
+    }
+
+    /**
+     * @return the number of events dropped because the ring buffer was full, or shed by the priority lanes
+     */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param bufferSize the number of events the ring buffer holds, rounded up to a power of two
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize the number of bytes collected before they are written
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public String getWaitStrategy() {
+        return waitStrategy.name().toLowerCase();
+    }
+
+    /**
+     * @param waitStrategy how threads wait for the ring buffer: "park" (default), "yield" or "spin"
+     */
+    public void setWaitStrategy(String waitStrategy) {
+        this.waitStrategy = RingBuffer.WaitStrategy.parse(waitStrategy);
+    }
+
+    public boolean getBlocking() {
+        return blocking;
+    }
+
+    /**
+     * @param blocking false to drop events instead of waiting while the ring buffer is full
+     */
+    public void setBlocking(boolean blocking) {
+        this.blocking = blocking;
+    }
+
+    public boolean getLocationInfo() {
+        return locationInfo;
+    }
+
+    /**
+     * @param locationInfo true to capture the location for layouts other than {@link JSONEventLayoutV1}, which
+     *                     tells by itself whether it needs it
+     */
+    public void setLocationInfo(boolean locationInfo) {
+        this.locationInfo = locationInfo;
+    }
+
+    public String getFile() {
+        return fileName;
+    }
+
+    public void setFile(String file) {
+        this.fileName = file == null ? null : file.trim();
+    }
+
+    public boolean getAppend() {
+        return fileAppend;
+    }
+
+    public void setAppend(boolean append) {
+        this.fileAppend = append;
+    }
+
+    public long getShutdownTimeout() {
+        return shutdownTimeout;
+    }
+
+    public void setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * @param workers the number of threads formatting events, 1 (default) to format them on the background thread
+     */
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    public int getWorkerBatchSize() {
+        return workerBatchSize;
+    }
+
+    /**
+     * @param workerBatchSize the number of events handed to a worker at once, 64 by default
+     */
+    public void setWorkerBatchSize(int workerBatchSize) {
+        this.workerBatchSize = workerBatchSize;
+    }
+
+    public boolean getPriorityLanes() {
+        return priorityLanes;
+    }
+
+    /**
+     * @param priorityLanes true to queue events in lanes by level, shedding the lowest levels first under pressure
+     */
+    public void setPriorityLanes(boolean priorityLanes) {
+        this.priorityLanes = priorityLanes;
+    }
+
+    public String getLaneWeights() {
+        return laneWeights;
+    }
+
+    /**
+     * @param laneWeights the number of events taken in turn from the lanes for ERROR and above, WARN, INFO, and DEBUG
+     *                    and below, "8,4,2,1" by default
+     */
+    public void setLaneWeights(String laneWeights) {
+        this.laneWeights = laneWeights;
+    }
+
+    /**
+     * @return the next event for the background thread, or null if none is queued
+     */
+    private LoggingEvent poll() {
+        PriorityLanes<LoggingEvent> priority = lanes;
+        return priority != null ? priority.poll() : ringBuffer.poll();
+    }
+
+    private boolean isQueueEmpty() {
+        PriorityLanes<LoggingEvent> priority = lanes;
+        return priority != null ? priority.isEmpty() : ringBuffer.isEmpty();
+    }
+
+    private int queued() {
+        PriorityLanes<LoggingEvent> priority = lanes;
+        return priority != null ? priority.size() : ringBuffer.size();
+    }
+
+    private void awaitEvent() {
+        PriorityLanes<LoggingEvent> priority = lanes;
+        if (priority != null) {
+            priority.awaitElement();
+        } else {
+            ringBuffer.awaitElement();
+        }
+    }
+
+    /**
+     * Encodes an event with the layout, as the background thread or a worker.
+     */
+    private void format(LoggingEvent event, JsonWriter writer) {
+        Layout eventLayout = layout;
+        if (eventLayout instanceof JSONEventLayoutV1 && ((JSONEventLayoutV1) eventLayout).writesJson()) {
+            ((JSONEventLayoutV1) eventLayout).encode(event, writer);
+        } else if (eventLayout instanceof JSONEventLayoutV1) {
+            byte[] encoded = ((JSONEventLayoutV1) eventLayout).toByteArray(event);
+            writer.writeRawValue(encoded, 0, encoded.length);
+        } else {
+            String text;
+            String[] lines;
+            synchronized (eventLayout) {
+                text = eventLayout.format(event);
+                lines = eventLayout.ignoresThrowable() ? event.getThrowableStrRep() : null;
+            }
+            writeText(writer, text);
+            if (lines != null) {
+                for (String line : lines) {
+                    writeText(writer, line);
+                    writeText(writer, Layout.LINE_SEP);
+                }
+            }
+        }
+    }
+
+    private static void writeText(JsonWriter writer, String text) {
+        byte[] encoded = text.getBytes(JsonWriter.UTF_8);
+        writer.writeRawValue(encoded, 0, encoded.length);
+    }
+
+    private void write(JsonWriter batch, int length) {
+        try {
+            out.write(batch.buffer(), 0, length);
+            out.flush();
+        } catch (IOException e) {
+            errorHandler.error("Could not write to [" + (fileName == null ? "System.out" : fileName) + "]", e,
+                    ErrorCode.WRITE_FAILURE);
+        }
+    }
+
+    private void closeStream() {
+        if (ownsStream) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LogLog.warn("Could not close [" + fileName + "]", e);
+            }
+        }
+    }
+
+    /**
+     * Drains the ring buffer until the appender is closed and no events are left.
+     */
+    private final class Dispatcher implements Runnable {
+        private final JsonWriter batch = new JsonWriter();
+
+        private final DropSummaries summaries = new DropSummaries();
+
+        public void run() {
+            while (true) {
+                LoggingEvent event = poll();
+                if (event == null) {
+                    event = summaries.next();
+                }
+                if (event != null) {
+                    encode(event);
+                    if (batch.size() >= batchSize) {
+                        write(batch.size());
+                    }
+                } else if (batch.size() > 0) {
+                    write(batch.size());
+                } else if (stopped && isQueueEmpty()) {
+                    break;
+                } else {
+                    awaitEvent();
+                }
+            }
+            closeStream();
+        }
+
+        private void encode(LoggingEvent event) {
+            int start = batch.size();
+            try {
+                format(event, batch);
+            } catch (Throwable t) {
+                // an Error must not end the only thread writing the events either
+                batch.truncate(start);
+                Exception e = t instanceof Exception ? (Exception) t : new RuntimeException(t);
+                errorHandler.error("Could not format event", e, ErrorCode.GENERIC_FAILURE);
+            }
+        }
+
+        private void write(int length) {
+            AsyncJSONAppender.this.write(batch, length);
+            batch.reset();
+        }
+    }
+
+    /**
+     * Drains the ring buffer into a {@link FormattingPipeline} until the appender is closed and no events are left,
+     * and writes the batches the workers formatted.
+     */
+    private final class Sequencer implements Runnable, FormattingPipeline.Formatter<LoggingEvent>,
+            FormattingPipeline.Output, EventShipper.ErrorReporter {
+
+        private final DropSummaries summaries = new DropSummaries();
+
+        public void run() {
+            FormattingPipeline<LoggingEvent> pipeline = new FormattingPipeline<LoggingEvent>(
+                    "AsyncJSONAppender-" + getName(), workers, workerBatchSize, this, this, this);
+            while (true) {
+                LoggingEvent event = poll();
+                if (event == null) {
+                    event = summaries.next();
+                }
+                if (event != null) {
+                    pipeline.add(event);
+                    pipeline.write();
+                } else if (!pipeline.isEmpty()) {
+                    pipeline.flush();
+                    if (pipeline.write() == 0) {
+                        // woken by the workers as well as by the logging threads
+                        awaitEvent();
+                    }
+                } else if (stopped && isQueueEmpty()) {
+                    break;
+                } else {
+                    awaitEvent();
+                }
+            }
+            pipeline.close(shutdownTimeout);
+            closeStream();
+        }
+
+        public void format(LoggingEvent event, JsonWriter writer) {
+            AsyncJSONAppender.this.format(event, writer);
+        }
+
+        public void write(JsonWriter batch) {
+            AsyncJSONAppender.this.write(batch, batch.size());
+        }
+
+        public void error(String message, Exception e) {
+            errorHandler.error(message, e, ErrorCode.GENERIC_FAILURE);
+        }
+    }
+
+    /**
+     * The events of one level and logger that the lanes refused.
+     */
+    private static final class DropCount {
+        final Category logger;
+        final Level level;
+        final AtomicLong events = new AtomicLong();
+
+        DropCount(Category logger, Level level) {
+            this.logger = logger;
+            this.level = level;
+        }
+    }
+
+    /**
+     * Hands the background thread the drop summary once the lanes run empty, at most once a second, and when the
+     * appender is closed.
+     */
+    private final class DropSummaries {
+        private Iterator<LoggingEvent> pending;
+        private long last;
+
+        /**
+         * @return the next summary event, or null; called only while no event is queued
+         */
+        LoggingEvent next() {
+            if (pending != null && pending.hasNext()) {
+                return pending.next();
+            }
+            pending = null;
+            if (!dropsPending) {
+                return null;
+            }
+            long now = System.currentTimeMillis();
+            if (!stopped && now - last < DROP_SUMMARY_INTERVAL) {
+                return null;
+            }
+            last = now;
+            pending = dropSummary().iterator();
+            return pending.hasNext() ? pending.next() : null;
+        }
+    }
+}
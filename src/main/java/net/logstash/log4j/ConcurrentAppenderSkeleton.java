@@ -0,0 +1,92 @@
+package net.logstash.log4j;
+
+import net.logstash.json.DiskSpool;
+import net.logstash.json.EventShipper;
+import net.logstash.json.JsonWriter;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Layout;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * {@link AppenderSkeleton} for appenders whose {@link #append(LoggingEvent)} is thread safe, so that threads logging
+ * through different loggers do not wait for each other on the appender's lock.
+ */
+abstract class ConcurrentAppenderSkeleton extends AppenderSkeleton {
+
+    /** {@link #closed} as seen by the logging threads, set by {@link #close()} */
+    protected volatile boolean stopped;
+
+    /**
+     * Same as {@link AppenderSkeleton#doAppend(LoggingEvent)}, but without holding the appender's lock.
+     */
+    @Override
+    public void doAppend(LoggingEvent event) {
+        if (stopped) {
+            LogLog.error("Attempted to append to closed appender named [" + name + "].");
+            return;
+        }
+        if (!isAsSevereAsThreshold(event.getLevel())) {
+            return;
+        }
+        Filter filter = getFirstFilter();
+        while (filter != null) {
+            switch (filter.decide(event)) {
+                case Filter.DENY:
+                    return;
+                case Filter.ACCEPT:
+                    filter = null;
+                    break;
+                default:
+                    filter = filter.getNext();
+            }
+        }
+        append(event);
+    }
+
+    /**
+     * Encodes the event for appenders that ship bytes: {@link JSONEventLayoutV1#toByteArray(LoggingEvent)} for the
+     * JSON layout, otherwise the formatted event, followed by the stack trace if the layout ignores it, in UTF-8.
+     * Other layouts, such as PatternLayout, are not thread safe and are called under their lock.
+     */
+    protected byte[] encode(LoggingEvent event) {
+        Layout eventLayout = layout;
+        if (eventLayout instanceof JSONEventLayoutV1) {
+            return ((JSONEventLayoutV1) eventLayout).toByteArray(event);
+        }
+        String text;
+        String[] lines;
+        synchronized (eventLayout) {
+            text = eventLayout.format(event);
+            lines = eventLayout.ignoresThrowable() ? event.getThrowableStrRep() : null;
+        }
+        if (lines != null) {
+            StringBuilder builder = new StringBuilder(text);
+            for (String line : lines) {
+                builder.append(line).append(Layout.LINE_SEP);
+            }
+            text = builder.toString();
+        }
+        return text.getBytes(JsonWriter.UTF_8);
+    }
+
+    /**
+     * Makes {@code shipper} spool to {@code directory}, if one is set, for the appenders shipping over the network.
+     */
+    protected void spool(EventShipper shipper, String directory, int segmentSize, long maxBytes) {
+        if (directory == null) {
+            return;
+        }
+        try {
+            shipper.spoolTo(new DiskSpool(new File(directory), segmentSize, maxBytes));
+        } catch (IOException e) {
+            errorHandler.error("Could not open spool [" + directory + "] for appender [" + name + "]", e,
+                    ErrorCode.FILE_OPEN_FAILURE);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package net.logstash.log4j;
+
+import net.logstash.json.DiskSpool;
+import net.logstash.json.EventShipper;
+import net.logstash.json.HttpShipper;
+import org.apache.log4j.Layout;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.net.MalformedURLException;
+
+/**
+ * Appender that POSTs events to a Logstash {@code http} input or to Elasticsearch's {@code _bulk} API through an
+ * {@link HttpShipper}: gzip compressed batches of newline-delimited events, sent over persistent connections with
+ * up to {@code InFlight} requests at once, and retried with backoff when the endpoint fails.
+ * <p>
+ * For {@code _bulk}, set {@code BulkIndex} on the {@link JSONEventLayoutV1} so that every event carries its action
+ * line. The content type is the layout's unless {@code ContentType} is set.
+ */
+public class HttpAppender extends ConcurrentAppenderSkeleton {
+
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT = 5000;
+
+    private String url;
+    private String contentType;
+    private boolean compress = true;
+    private int bufferSize = EventShipper.DEFAULT_BUFFER_SIZE;
+    private int batchSize = HttpShipper.DEFAULT_BATCH_SIZE;
+    private long linger = HttpShipper.DEFAULT_LINGER;
+    private int inFlight = HttpShipper.DEFAULT_IN_FLIGHT;
+    private long maxPendingBytes = HttpShipper.DEFAULT_MAX_PENDING_BYTES;
+    private EventShipper.OverflowPolicy overflowPolicy = EventShipper.OverflowPolicy.BLOCK;
+    private long reconnectDelay = EventShipper.DEFAULT_RECONNECT_DELAY;
+    private long maxReconnectDelay = EventShipper.DEFAULT_MAX_RECONNECT_DELAY;
+    private long shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+    private String spoolDirectory;
+    private int spoolSegmentSize = DiskSpool.DEFAULT_SEGMENT_SIZE;
+    private long spoolMaxBytes = DiskSpool.DEFAULT_MAX_BYTES;
+
+    private volatile HttpShipper shipper;
+
+    public HttpAppender() {
+    }
+
+    public HttpAppender(Layout layout, String url) {
+        this.layout = layout;
+        this.url = url;
+        activateOptions();
+    }
+
+    @Override
+    public void activateOptions() {
+        if (url == null) {
+            LogLog.warn("Url option not set for appender [" + name + "].");
+            return;
+        }
+        if (layout == null) {
+            layout = new JSONEventLayoutV1();
+        }
+        if (shipper != null) {
+            shipper.close(shutdownTimeout);
+        }
+        try {
+            HttpShipper created = new HttpShipper(url, contentType != null ? contentType : layout.getContentType(), compress,
+                    bufferSize, batchSize, linger, inFlight, maxPendingBytes, overflowPolicy, reconnectDelay,
+                    maxReconnectDelay, new EventShipper.ErrorReporter() {
+                        public void error(String message, Exception e) {
+                            errorHandler.error("[" + name + "] " + message, e, ErrorCode.WRITE_FAILURE);
+                        }
+                    });
+            spool(created, spoolDirectory, spoolSegmentSize, spoolMaxBytes);
+            shipper = created;
+        } catch (MalformedURLException e) {
+            errorHandler.error("Invalid Url [" + url + "] for appender [" + name + "]", e, ErrorCode.GENERIC_FAILURE);
+        }
+    }
+
+    @Override
+    protected void append(LoggingEvent event) {
+        HttpShipper target = shipper;
+        if (target == null) {
+            errorHandler.error("No url set for the appender named [" + name + "].");
+            return;
+        }
+        byte[] encoded;
+        try {
+            encoded = encode(event);
+        } catch (RuntimeException e) {
+            errorHandler.error("Could not format event", e, ErrorCode.GENERIC_FAILURE);
+            return;
+        }
+        target.send(encoded);
+    }
+
+    /**
+     * Stops accepting events and waits up to {@code ShutdownTimeout} milliseconds for the queued ones to be sent.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        stopped = true;
+        HttpShipper target = shipper;
+        if (target != null) {
+            target.close(shutdownTimeout);
+        }
+    }
+
+    public boolean requiresLayout() {
+        return true;
+    }
+
+    /**
+     * @return the number of events dropped by the overflow policy, rejected by the endpoint or left unsent on close
+     */
+    public long getDroppedEvents() {
+        HttpShipper target = shipper;
+        return target == null ? 0 : target.getDroppedEvents();
+    }
+
+    /**
+     * @return the number of events in batches the endpoint accepted
+     */
+    public long getAcknowledgedEvents() {
+        HttpShipper target = shipper;
+        return target == null ? 0 : target.getAcknowledgedEvents();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @param url the endpoint, e.g. {@code http://logstash:8080} or {@code http://elasticsearch:9200/_bulk}
+     */
+    public void setUrl(String url) {
+        this.url = url == null ? null : url.trim();
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @param contentType the content type sent instead of the layout's
+     */
+    public void setContentType(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public boolean getCompress() {
+        return compress;
+    }
+
+    /**
+     * @param compress false to send the batches uncompressed
+     */
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param bufferSize the number of events waiting to be batched, rounded up to a power of two
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize the number of uncompressed bytes after which a batch is sent
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public long getLinger() {
+        return linger;
+    }
+
+    /**
+     * @param linger the milliseconds a batch waits for more events before it is sent
+     */
+    public void setLinger(long linger) {
+        this.linger = linger;
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @param inFlight the number of requests sent concurrently
+     */
+    public void setInFlight(int inFlight) {
+        this.inFlight = inFlight;
+    }
+
+    public long getMaxPendingBytes() {
+        return maxPendingBytes;
+    }
+
+    /**
+     * @param maxPendingBytes the number of compressed bytes of batches waiting to be sent or retried
+     */
+    public void setMaxPendingBytes(long maxPendingBytes) {
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    public String getOverflowPolicy() {
+        return overflowPolicy.name().toLowerCase();
+    }
+
+    /**
+     * @param overflowPolicy what to do with new events while the buffer is full: "block" (default), "drop_oldest"
+     *                       or "drop_newest"
+     */
+    public void setOverflowPolicy(String overflowPolicy) {
+        this.overflowPolicy = EventShipper.OverflowPolicy.parse(overflowPolicy);
+    }
+
+    public long getReconnectDelay() {
+        return reconnectDelay;
+    }
+
+    /**
+     * @param reconnectDelay the milliseconds to wait before the first retry of a batch, doubled after every further
+     *                       one
+     */
+    public void setReconnectDelay(long reconnectDelay) {
+        this.reconnectDelay = reconnectDelay;
+    }
+
+    public long getMaxReconnectDelay() {
+        return maxReconnectDelay;
+    }
+
+    public void setMaxReconnectDelay(long maxReconnectDelay) {
+        this.maxReconnectDelay = maxReconnectDelay;
+    }
+
+    public long getShutdownTimeout() {
+        return shutdownTimeout;
+    }
+
+    public void setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    public String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    /**
+     * @param spoolDirectory a directory to spool events to while the endpoint cannot keep up, see {@link DiskSpool}
+     */
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory == null || spoolDirectory.trim().length() == 0 ? null : spoolDirectory.trim();
+    }
+
+    public int getSpoolSegmentSize() {
+        return spoolSegmentSize;
+    }
+
+    public void setSpoolSegmentSize(int spoolSegmentSize) {
+        this.spoolSegmentSize = spoolSegmentSize;
+    }
+
+    public long getSpoolMaxBytes() {
+        return spoolMaxBytes;
+    }
+
+    /**
+     * @param spoolMaxBytes the disk space the spool may take, beyond which events are dropped
+     */
+    public void setSpoolMaxBytes(long spoolMaxBytes) {
+        this.spoolMaxBytes = spoolMaxBytes;
+    }
+}
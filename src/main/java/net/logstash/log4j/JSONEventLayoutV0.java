@@ -1,42 +1,53 @@
 package net.logstash.log4j;
 
 import net.logstash.data.HostData;
-import net.minidev.json.JSONObject;
-import org.apache.commons.lang.StringUtils;
+import net.logstash.json.JsonWriter;
+import net.logstash.json.TimestampFormatter;
 import org.apache.commons.lang.time.FastDateFormat;
 import org.apache.log4j.Layout;
 import org.apache.log4j.spi.LocationInfo;
 import org.apache.log4j.spi.LoggingEvent;
 import org.apache.log4j.spi.ThrowableInformation;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.TimeZone;
 
 public class JSONEventLayoutV0 extends Layout {
 
-    private boolean locationInfo = false;
+    private volatile boolean locationInfo = false;
 
     private String tags;
     private boolean ignoreThrowable = false;
 
     private boolean activeIgnoreThrowable = ignoreThrowable;
-    private String hostname = new HostData().getHostName();
-    private String threadName;
-    private long timestamp;
-    private String ndc;
-    private Map mdc;
-    private LocationInfo info;
-    private HashMap<String, Object> fieldData;
-    private HashMap<String, Object> exceptionInformation;
-
-    private JSONObject logstashEvent;
+    private final String hostname = new HostData().getHostName();
 
     public static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    /**
+     * @deprecated the layout formats timestamps with {@link TimestampFormatter}, this is kept for existing callers.
+     */
+    @Deprecated
     public static final FastDateFormat ISO_DATETIME_TIME_ZONE_FORMAT_WITH_MILLIS = FastDateFormat.getInstance("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", UTC);
 
+    private static final byte[] SOURCE_HOST_FIELD = JsonWriter.fieldName("@source_host");
+    private static final byte[] MESSAGE_FIELD = JsonWriter.fieldName("@message");
+    private static final byte[] TIMESTAMP_FIELD = JsonWriter.fieldName("@timestamp");
+    private static final byte[] FIELDS_FIELD = JsonWriter.fieldName("@fields");
+    private static final byte[] EXCEPTION_FIELD = JsonWriter.fieldName("exception");
+    private static final byte[] EXCEPTION_CLASS_FIELD = JsonWriter.fieldName("exception_class");
+    private static final byte[] EXCEPTION_MESSAGE_FIELD = JsonWriter.fieldName("exception_message");
+    private static final byte[] STACKTRACE_FIELD = JsonWriter.fieldName("stacktrace");
+    private static final byte[] FILE_FIELD = JsonWriter.fieldName("file");
+    private static final byte[] LINE_NUMBER_FIELD = JsonWriter.fieldName("line_number");
+    private static final byte[] CLASS_FIELD = JsonWriter.fieldName("class");
+    private static final byte[] METHOD_FIELD = JsonWriter.fieldName("method");
+    private static final byte[] LOGGER_NAME_FIELD = JsonWriter.fieldName("loggerName");
+    private static final byte[] MDC_FIELD = JsonWriter.fieldName("mdc");
+    private static final byte[] NDC_FIELD = JsonWriter.fieldName("ndc");
+    private static final byte[] LEVEL_FIELD = JsonWriter.fieldName("level");
+    private static final byte[] THREAD_NAME_FIELD = JsonWriter.fieldName("threadName");
+
     public static String dateFormat(long timestamp) {
-        return ISO_DATETIME_TIME_ZONE_FORMAT_WITH_MILLIS.format(timestamp);
+        return TimestampFormatter.format(timestamp);
     }
 
     /**
@@ -57,50 +68,66 @@ public class JSONEventLayoutV0 extends Layout {
     }
 
     public String format(LoggingEvent loggingEvent) {
-        threadName = loggingEvent.getThreadName();
-        timestamp = loggingEvent.getTimeStamp();
-        fieldData = new HashMap<String, Object>();
-        exceptionInformation = new HashMap<String, Object>();
-        mdc = loggingEvent.getProperties();
-        ndc = loggingEvent.getNDC();
+        JsonWriter writer = JsonWriter.acquire();
+        try {
+            encode(loggingEvent, writer);
+            return writer.toString();
+        } finally {
+            writer.release();
+        }
+    }
 
-        logstashEvent = new JSONObject();
+    /**
+     * Streams the JSON representation of the event, followed by a newline, into {@code writer}.
+     * The layout keeps no per-event state, so this (and {@link #format(LoggingEvent)}) may be called from
+     * several threads at once.
+     *
+     * @param loggingEvent the event to encode
+     * @param writer the writer to append to
+     */
+    public void encode(LoggingEvent loggingEvent, JsonWriter writer) {
+        writer.writeStartObject();
 
-        logstashEvent.put("@source_host", hostname);
-        logstashEvent.put("@message", loggingEvent.getRenderedMessage());
-        logstashEvent.put("@timestamp", dateFormat(timestamp));
+        writer.writeFieldName(SOURCE_HOST_FIELD);
+        writer.writeString(hostname);
+        writer.writeFieldName(MESSAGE_FIELD);
+        writer.writeString(loggingEvent.getRenderedMessage());
+        writer.writeFieldName(TIMESTAMP_FIELD);
+        writer.writeTimestamp(loggingEvent.getTimeStamp());
+
+        writer.writeFieldName(FIELDS_FIELD);
+        writer.writeStartObject();
 
         if (loggingEvent.getThrowableInformation() != null) {
             final ThrowableInformation throwableInformation = loggingEvent.getThrowableInformation();
-            if (throwableInformation.getThrowable().getClass().getCanonicalName() != null) {
-                exceptionInformation.put("exception_class", throwableInformation.getThrowable().getClass().getCanonicalName());
-            }
-            if (throwableInformation.getThrowable().getMessage() != null) {
-                exceptionInformation.put("exception_message", throwableInformation.getThrowable().getMessage());
-            }
+            writer.writeFieldName(EXCEPTION_FIELD);
+            writer.writeStartObject();
+            addFieldData(writer, EXCEPTION_CLASS_FIELD, throwableInformation.getThrowable().getClass().getCanonicalName());
+            addFieldData(writer, EXCEPTION_MESSAGE_FIELD, throwableInformation.getThrowable().getMessage());
             if (throwableInformation.getThrowableStrRep() != null) {
-                String stackTrace = StringUtils.join(throwableInformation.getThrowableStrRep(), "\n");
-                exceptionInformation.put("stacktrace", stackTrace);
+                writer.writeFieldName(STACKTRACE_FIELD);
+                writer.writeJoinedString(throwableInformation.getThrowableStrRep(), '\n');
             }
-            addFieldData("exception", exceptionInformation);
+            writer.writeEndObject();
         }
 
         if (locationInfo) {
-            info = loggingEvent.getLocationInformation();
-            addFieldData("file", info.getFileName());
-            addFieldData("line_number", info.getLineNumber());
-            addFieldData("class", info.getClassName());
-            addFieldData("method", info.getMethodName());
+            LocationInfo info = loggingEvent.getLocationInformation();
+            addFieldData(writer, FILE_FIELD, info.getFileName());
+            addFieldData(writer, LINE_NUMBER_FIELD, info.getLineNumber());
+            addFieldData(writer, CLASS_FIELD, info.getClassName());
+            addFieldData(writer, METHOD_FIELD, info.getMethodName());
         }
 
-        addFieldData("loggerName", loggingEvent.getLoggerName());
-        addFieldData("mdc", mdc);
-        addFieldData("ndc", ndc);
-        addFieldData("level", loggingEvent.getLevel().toString());
-        addFieldData("threadName", threadName);
+        addFieldData(writer, LOGGER_NAME_FIELD, loggingEvent.getLoggerName());
+        addFieldData(writer, MDC_FIELD, loggingEvent.getProperties());
+        addFieldData(writer, NDC_FIELD, loggingEvent.getNDC());
+        addFieldData(writer, LEVEL_FIELD, loggingEvent.getLevel().toString());
+        addFieldData(writer, THREAD_NAME_FIELD, loggingEvent.getThreadName());
 
-        logstashEvent.put("@fields", fieldData);
-        return logstashEvent.toString() + "\n";
+        writer.writeEndObject();
+        writer.writeEndObject();
+        writer.writeNewLine();
     }
 
     public boolean ignoresThrowable() {
@@ -129,9 +156,10 @@ public class JSONEventLayoutV0 extends Layout {
         activeIgnoreThrowable = ignoreThrowable;
     }
 
-    private void addFieldData(String keyname, Object keyval) {
+    private static void addFieldData(JsonWriter writer, byte[] keyname, Object keyval) {
         if (null != keyval) {
-            fieldData.put(keyname, keyval);
+            writer.writeFieldName(keyname);
+            writer.writeObject(keyval);
         }
     }
 }
@@ -1,45 +1,98 @@
 package net.logstash.log4j;
 
 import net.logstash.data.HostData;
-import net.minidev.json.JSONObject;
-import org.apache.commons.lang.StringUtils;
+import net.logstash.json.BinaryWriter;
+import net.logstash.json.BulkAction;
+import net.logstash.json.ConstantFields;
+import net.logstash.json.FieldPlan;
+import net.logstash.json.JsonWriter;
+import net.logstash.json.LocationPolicy;
+import net.logstash.json.MdcFragmentCache;
+import net.logstash.json.OutputFormat;
+import net.logstash.json.StackTraceDeduplicator;
+import net.logstash.json.StackTraceWriter;
+import net.logstash.json.StringFragmentCache;
+import net.logstash.json.TimestampFormatter;
+import net.logstash.json.TokenWriter;
 import org.apache.commons.lang.time.FastDateFormat;
 import org.apache.log4j.Layout;
+import org.apache.log4j.Level;
 import org.apache.log4j.helpers.LogLog;
 import org.apache.log4j.spi.LocationInfo;
 import org.apache.log4j.spi.LoggingEvent;
 import org.apache.log4j.spi.ThrowableInformation;
 
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 
 public class JSONEventLayoutV1 extends Layout {
 
-    private boolean locationInfo = false;
-    private String customUserFields;
+    private volatile LocationPolicy locationPolicy = LocationPolicy.NEVER;
+    private volatile Level locationThreshold;
+    private volatile boolean fastLocation = false;
+    private volatile LocationResolver locationResolver;
+
+    private volatile String dropFields;
+    private volatile String renameFields;
+    private volatile String mdcIncludes;
+    private volatile String mdcExcludes;
+    private volatile FieldPlan fieldPlan;
+    private final MdcFragmentCache mdcCache = new MdcFragmentCache();
+    /** encoded logger names, levels, thread names and location fields, which take few distinct values */
+    private final StringFragmentCache strings = new StringFragmentCache();
+    private volatile String customUserFields;
 
     private boolean ignoreThrowable = false;
 
     private boolean activeIgnoreThrowable = ignoreThrowable;
-    private String hostname = new HostData().getHostName();
-    private String threadName;
-    private long timestamp;
-    private String ndc;
-    private Map mdc;
-    private LocationInfo info;
-    private HashMap<String, Object> exceptionInformation;
+    private final String hostname = new HostData().getHostName();
     private static Integer version = 1;
+    private volatile ConstantFields constantFields;
+
+    private volatile boolean stackTraceDedup = false;
+    private volatile long stackTraceDedupWindow = StackTraceDeduplicator.DEFAULT_WINDOW_MILLIS;
+    private volatile int stackTraceDedupCacheSize = StackTraceDeduplicator.DEFAULT_CACHE_SIZE;
+    private volatile StackTraceDeduplicator stackTraceDeduplicator;
 
+    private volatile StackTraceWriter.Format stackTraceFormat = StackTraceWriter.Format.TEXT;
+    private volatile int stackTraceMaxFrames = 0;
+    private volatile String stackTraceExcludes;
+    private volatile boolean stackTraceFoldCommonFrames = true;
+    private volatile StackTraceWriter stackTraceWriter;
 
-    private JSONObject logstashEvent;
+    private volatile OutputFormat outputFormat = OutputFormat.JSON;
+    private volatile String bulkIndex;
+    private volatile boolean bulkGenerateIds = false;
+    private volatile BulkAction bulkAction;
 
     public static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    /**
+     * @deprecated the layout formats timestamps with {@link TimestampFormatter}, this is kept for existing callers.
+     */
+    @Deprecated
     public static final FastDateFormat ISO_DATETIME_TIME_ZONE_FORMAT_WITH_MILLIS = FastDateFormat.getInstance("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", UTC);
     public static final String ADDITIONAL_DATA_PROPERTY = "net.logstash.log4j.JSONEventLayoutV1.UserFields";
 
+    private static final byte[] TIMESTAMP_FIELD = JsonWriter.fieldName("@timestamp");
+    private static final byte[] EXCEPTION_CLASS_FIELD = JsonWriter.fieldName("exception_class");
+    private static final byte[] EXCEPTION_MESSAGE_FIELD = JsonWriter.fieldName("exception_message");
+    private static final byte[] STACKTRACE_FIELD = JsonWriter.fieldName("stacktrace");
+    private static final byte[] STACKTRACE_HASH_FIELD = JsonWriter.fieldName("stacktrace_hash");
+
+    /**
+     * Fields written by the layout itself; user fields with these names are ignored since the layout's value wins.
+     */
+    private static final Set<String> RESERVED_FIELDS = new HashSet<String>(Arrays.asList(
+            "@version", "@timestamp", "source_host", "message", "exception", "file", "line_number",
+            "class", "method", "logger_name", "mdc", "ndc", "level", "thread_name"));
+
     public static String dateFormat(long timestamp) {
-        return ISO_DATETIME_TIME_ZONE_FORMAT_WITH_MILLIS.format(timestamp);
+        return TimestampFormatter.format(timestamp);
     }
 
     /**
@@ -56,85 +109,158 @@ public class JSONEventLayoutV1 extends Layout {
      * @param locationInfo whether or not to include location information in the log messages.
      */
     public JSONEventLayoutV1(boolean locationInfo) {
-        this.locationInfo = locationInfo;
+        this.locationPolicy = locationInfo ? LocationPolicy.ALWAYS : LocationPolicy.NEVER;
     }
 
+    /**
+     * Formats the event as JSON, whatever the output format: log4j 1.x layouts return Strings, which cannot hold a
+     * binary encoding. Only {@link #toByteArray(LoggingEvent)} produces the binary formats.
+     */
     public String format(LoggingEvent loggingEvent) {
-        threadName = loggingEvent.getThreadName();
-        timestamp = loggingEvent.getTimeStamp();
-        exceptionInformation = new HashMap<String, Object>();
-        mdc = loggingEvent.getProperties();
-        ndc = loggingEvent.getNDC();
+        JsonWriter writer = JsonWriter.acquire();
+        try {
+            encode(loggingEvent, writer);
+            return writer.toString();
+        } finally {
+            writer.release();
+        }
+    }
 
-        logstashEvent = new JSONObject();
-        String whoami = this.getClass().getSimpleName();
+    /**
+     * Encodes the event in the configured output format. Appenders that write bytes should prefer this over
+     * {@link #format(LoggingEvent)}, which always returns JSON since a binary encoding does not fit in a String.
+     *
+     * @param loggingEvent the event to encode
+     * @return the newline terminated UTF-8 JSON document, or its binary encoding; bulk output is always JSON
+     */
+    public byte[] toByteArray(LoggingEvent loggingEvent) {
+        OutputFormat format = outputFormat;
+        if (format.isBinary() && bulkIndex == null) {
+            BinaryWriter binary = BinaryWriter.acquire(format);
+            try {
+                binary.writeStartDocument();
+                writeEvent(loggingEvent, binary);
+                return binary.toByteArray();
+            } finally {
+                binary.release();
+            }
+        }
+        JsonWriter writer = JsonWriter.acquire();
+        try {
+            encode(loggingEvent, writer);
+            return writer.toByteArray();
+        } finally {
+            writer.release();
+        }
+    }
+
+    /**
+     * Streams the JSON representation of the event, followed by a newline, into {@code writer}.
+     * The layout keeps no per-event state, so this (and {@link #format(LoggingEvent)}) may be called from
+     * several threads at once.
+     *
+     * @param loggingEvent the event to encode
+     * @param writer the writer to append to
+     */
+    public void encode(LoggingEvent loggingEvent, JsonWriter writer) {
+        BulkAction bulk = bulkAction();
+        if (bulk != null) {
+            bulk.write(writer, loggingEvent.getTimeStamp());
+        }
+        encodeDocument(loggingEvent, writer);
+    }
+
+    /**
+     * Streams the JSON representation of the event, followed by a newline, into {@code writer}, but never the
+     * bulk action line, for transports that frame every event on their own such as Beats.
+     *
+     * @param loggingEvent the event to encode
+     * @param writer the writer to append to
+     */
+    public void encodeDocument(LoggingEvent loggingEvent, JsonWriter writer) {
+        writeEvent(loggingEvent, writer);
+        writer.writeNewLine();
+    }
+
+    /**
+     * Writes the event object in the writer's format.
+     */
+    private void writeEvent(LoggingEvent loggingEvent, TokenWriter writer) {
+        writer.writeStartObject();
 
         /**
          * All v1 of the event format requires is
          * "@timestamp" and "@version"
          * Every other field is arbitrary
          */
-        logstashEvent.put("@version", version);
-        logstashEvent.put("@timestamp", dateFormat(timestamp));
+        writer.writeFieldName(TIMESTAMP_FIELD);
+        writer.writeTimestamp(loggingEvent.getTimeStamp());
 
         /**
-         * Extract and add fields from log4j config, if defined
+         * The version, user fields and source_host never change, they are copied pre-encoded
          */
-        if (getUserFields() != null) {
-            String userFlds = getUserFields();
-            LogLog.debug("["+whoami+"] Got user data from log4j property: "+ userFlds);
-            addUserFields(userFlds);
-        }
+        writer.writeRawFields(constantFields().getFragment());
 
-        /**
-         * Extract fields from system properties, if defined
-         * Note that CLI props will override conflicts with log4j config
-         */
-        if (System.getProperty(ADDITIONAL_DATA_PROPERTY) != null) {
-            if (getUserFields() != null) {
-                LogLog.warn("["+whoami+"] Loading UserFields from command-line. This will override any UserFields set in the log4j configuration file");
-            }
-            String userFieldsProperty = System.getProperty(ADDITIONAL_DATA_PROPERTY);
-            LogLog.debug("["+whoami+"] Got user data from system property: " + userFieldsProperty);
-            addUserFields(userFieldsProperty);
+        FieldPlan plan = fieldPlan();
+        if (plan.includes(FieldPlan.MESSAGE)) {
+            writer.writeFieldName(plan.fieldName(FieldPlan.MESSAGE));
+            writer.writeString(loggingEvent.getRenderedMessage());
         }
 
-        /**
-         * Now we start injecting our own stuff.
-         */
-        logstashEvent.put("source_host", hostname);
-        logstashEvent.put("message", loggingEvent.getRenderedMessage());
-
-        if (loggingEvent.getThrowableInformation() != null) {
+        if (loggingEvent.getThrowableInformation() != null && plan.includes(FieldPlan.EXCEPTION)) {
             final ThrowableInformation throwableInformation = loggingEvent.getThrowableInformation();
-            if (throwableInformation.getThrowable().getClass().getCanonicalName() != null) {
-                exceptionInformation.put("exception_class", throwableInformation.getThrowable().getClass().getCanonicalName());
-            }
-            if (throwableInformation.getThrowable().getMessage() != null) {
-                exceptionInformation.put("exception_message", throwableInformation.getThrowable().getMessage());
+            writer.writeFieldName(plan.fieldName(FieldPlan.EXCEPTION));
+            writer.writeStartObject();
+            addEventData(writer, EXCEPTION_CLASS_FIELD, throwableInformation.getThrowable().getClass().getCanonicalName());
+            addEventData(writer, EXCEPTION_MESSAGE_FIELD, throwableInformation.getThrowable().getMessage());
+            boolean fullStackTrace = true;
+            StackTraceDeduplicator deduplicator = stackTraceDeduplicator();
+            if (deduplicator != null) {
+                long fingerprint = StackTraceDeduplicator.fingerprint(throwableInformation.getThrowable());
+                fullStackTrace = deduplicator.isFirstOccurrence(fingerprint, loggingEvent.getTimeStamp());
+                writer.writeFieldName(STACKTRACE_HASH_FIELD);
+                writer.writeHexString(fingerprint);
             }
-            if (throwableInformation.getThrowableStrRep() != null) {
-                String stackTrace = StringUtils.join(throwableInformation.getThrowableStrRep(), "\n");
-                exceptionInformation.put("stacktrace", stackTrace);
+            StackTraceWriter compactor = stackTraceWriter();
+            if (fullStackTrace && compactor != null) {
+                compactor.writeField(writer, throwableInformation.getThrowable());
+            } else if (fullStackTrace && throwableInformation.getThrowableStrRep() != null) {
+                writer.writeFieldName(STACKTRACE_FIELD);
+                writer.writeJoinedString(throwableInformation.getThrowableStrRep(), '\n');
             }
-            addEventData("exception", exceptionInformation);
+            writer.writeEndObject();
         }
 
-        if (locationInfo) {
-            info = loggingEvent.getLocationInformation();
-            addEventData("file", info.getFileName());
-            addEventData("line_number", info.getLineNumber());
-            addEventData("class", info.getClassName());
-            addEventData("method", info.getMethodName());
+        if (plan.includesLocation() && includeLocation(loggingEvent)) {
+            LocationResolver resolver = locationResolver(plan);
+            byte[] location = resolver == null ? null : resolver.resolve(loggingEvent.getFQNOfLoggerClass());
+            if (location != null) {
+                writer.writeRawFields(location);
+            } else {
+                LocationInfo info = loggingEvent.getLocationInformation();
+                addCachedString(writer, plan, FieldPlan.FILE, info.getFileName());
+                addCachedString(writer, plan, FieldPlan.LINE_NUMBER, info.getLineNumber());
+                addCachedString(writer, plan, FieldPlan.CLASS, info.getClassName());
+                addCachedString(writer, plan, FieldPlan.METHOD, info.getMethodName());
+            }
         }
 
-        addEventData("logger_name", loggingEvent.getLoggerName());
-        addEventData("mdc", mdc);
-        addEventData("ndc", ndc);
-        addEventData("level", loggingEvent.getLevel().toString());
-        addEventData("thread_name", threadName);
+        addCachedString(writer, plan, FieldPlan.LOGGER_NAME, loggingEvent.getLoggerName());
+        if (plan.includes(FieldPlan.MDC)) {
+            writer.writeFieldName(plan.fieldName(FieldPlan.MDC));
+            // an allowlist only looks up its keys, without copying the whole MDC like getProperties() does;
+            // the MDC is changed in place, so an unchanged MDC is recognized by comparing it with the cached one
+            mdcCache.writeByContent(writer, plan, plan.hasMdcIncludes() ? new EventMdc(loggingEvent) : loggingEvent.getProperties());
+        }
+        if (plan.includes(FieldPlan.NDC)) {
+            addEventData(writer, plan, FieldPlan.NDC, loggingEvent.getNDC());
+        }
+        addCachedString(writer, plan, FieldPlan.LEVEL, loggingEvent.getLevel().toString());
+        if (plan.includes(FieldPlan.THREAD_NAME)) {
+            addCachedString(writer, plan, FieldPlan.THREAD_NAME, loggingEvent.getThreadName());
+        }
 
-        return logstashEvent.toString() + "\n";
+        writer.writeEndObject();
     }
 
     public boolean ignoresThrowable() {
@@ -147,7 +273,7 @@ public class JSONEventLayoutV1 extends Layout {
      * @return true if location information is included in log messages, false otherwise.
      */
     public boolean getLocationInfo() {
-        return locationInfo;
+        return locationPolicy != LocationPolicy.NEVER;
     }
 
     /**
@@ -156,32 +282,436 @@ public class JSONEventLayoutV1 extends Layout {
      * @param locationInfo true if location information should be included, false otherwise.
      */
     public void setLocationInfo(boolean locationInfo) {
-        this.locationInfo = locationInfo;
+        this.locationPolicy = locationInfo ? LocationPolicy.ALWAYS : LocationPolicy.NEVER;
+    }
+
+    public String getLocationPolicy() { return locationPolicy.toString(); }
+
+    /**
+     * Set for which events location information is captured, which is by far the most expensive part of an event.
+     * Overrides {@link #setLocationInfo(boolean)}.
+     *
+     * @param locationPolicy "always", "never", "threshold:LEVEL" for events at or above LEVEL, or "sampled:N" for
+     *                       every Nth event.
+     * @throws IllegalArgumentException if the policy is malformed or names an unknown level
+     */
+    public void setLocationPolicy(String locationPolicy) {
+        LocationPolicy policy = LocationPolicy.parse(locationPolicy);
+        if (policy.getMode() == LocationPolicy.Mode.THRESHOLD) {
+            Level threshold = Level.toLevel(policy.getThreshold(), null);
+            if (threshold == null) {
+                throw new IllegalArgumentException("Unknown level in location policy: " + locationPolicy);
+            }
+            this.locationThreshold = threshold;
+        }
+        this.locationPolicy = policy;
+    }
+
+    /**
+     * Query whether the caller location is found with {@link LocationResolver} instead of log4j's
+     * {@link LocationInfo}.
+     *
+     * @return true if the fast location resolver is used, false otherwise.
+     */
+    public boolean getFastLocation() {
+        return fastLocation;
+    }
+
+    /**
+     * Set whether the caller location is found by walking the stack frames directly (with StackWalker where
+     * available) and caching the encoded fields per call site, rather than by log4j's {@link LocationInfo}, which
+     * prints and parses a stack trace for every event. Events formatted on another thread than the one that
+     * logged them, e.g. by an AsyncAppender, still use {@link LocationInfo}.
+     *
+     * @param fastLocation true to use the fast location resolver, false otherwise.
+     */
+    public void setFastLocation(boolean fastLocation) {
+        this.fastLocation = fastLocation;
+        this.locationResolver = null;
+    }
+
+    public String getDropFields() { return dropFields; }
+
+    /**
+     * @param dropFields comma separated fields to leave out, any of "message", "exception", "file",
+     *                   "line_number", "class", "method", "logger_name", "mdc", "ndc", "level", "thread_name" and
+     *                   "source_host". Dropped fields are not even looked up.
+     */
+    public void setDropFields(String dropFields) {
+        this.dropFields = dropFields;
+        invalidateFieldPlan();
+    }
+
+    public String getRenameFields() { return renameFields; }
+
+    /**
+     * @param renameFields comma separated renames of the fields listed for {@link #setDropFields(String)}, e.g.
+     *                     "logger_name:logger,thread_name:thread".
+     */
+    public void setRenameFields(String renameFields) {
+        this.renameFields = renameFields;
+        invalidateFieldPlan();
+    }
+
+    public String getMdcIncludes() { return mdcIncludes; }
+
+    /**
+     * @param mdcIncludes comma separated MDC keys to write, all keys are written if not set.
+     */
+    public void setMdcIncludes(String mdcIncludes) {
+        this.mdcIncludes = mdcIncludes;
+        invalidateFieldPlan();
+    }
+
+    public String getMdcExcludes() { return mdcExcludes; }
+
+    /**
+     * @param mdcExcludes comma separated MDC keys to leave out.
+     */
+    public void setMdcExcludes(String mdcExcludes) {
+        this.mdcExcludes = mdcExcludes;
+        invalidateFieldPlan();
     }
 
     public String getUserFields() { return customUserFields; }
-    public void setUserFields(String userFields) { this.customUserFields = userFields; }
+    public void setUserFields(String userFields) {
+        this.customUserFields = userFields;
+        this.constantFields = null;
+    }
+
+    /**
+     * Query whether repeated stack traces are replaced by their fingerprint.
+     *
+     * @return true if stack traces are deduplicated, false otherwise.
+     */
+    public boolean getStackTraceDedup() {
+        return stackTraceDedup;
+    }
+
+    /**
+     * Set whether a stack trace seen within the last {@link #setStackTraceDedupWindow(long) window} is written as
+     * "stacktrace_hash" only. The first occurrence carries both the full "stacktrace" and its "stacktrace_hash".
+     *
+     * @param stackTraceDedup true to deduplicate stack traces, false to always write them in full.
+     */
+    public void setStackTraceDedup(boolean stackTraceDedup) {
+        this.stackTraceDedup = stackTraceDedup;
+        this.stackTraceDeduplicator = null;
+    }
+
+    public long getStackTraceDedupWindow() { return stackTraceDedupWindow; }
+
+    /**
+     * @param stackTraceDedupWindow milliseconds after which a known stack trace is written in full again, 0 to only
+     *                              write it again once it was evicted from the cache.
+     */
+    public void setStackTraceDedupWindow(long stackTraceDedupWindow) {
+        this.stackTraceDedupWindow = stackTraceDedupWindow;
+        this.stackTraceDeduplicator = null;
+    }
+
+    public int getStackTraceDedupCacheSize() { return stackTraceDedupCacheSize; }
+
+    /**
+     * @param stackTraceDedupCacheSize the number of stack trace fingerprints to remember.
+     */
+    public void setStackTraceDedupCacheSize(int stackTraceDedupCacheSize) {
+        this.stackTraceDedupCacheSize = stackTraceDedupCacheSize;
+        this.stackTraceDeduplicator = null;
+    }
+
+    public String getStackTraceFormat() { return stackTraceFormat.name().toLowerCase(); }
+
+    /**
+     * @param stackTraceFormat "text" (default) for a single "stacktrace" string, "structured" for a "causes" array
+     *                         holding the class, message and frames of the exception and each of its causes.
+     */
+    public void setStackTraceFormat(String stackTraceFormat) {
+        this.stackTraceFormat = StackTraceWriter.Format.parse(stackTraceFormat);
+        this.stackTraceWriter = null;
+    }
+
+    public int getStackTraceMaxFrames() { return stackTraceMaxFrames; }
+
+    /**
+     * @param stackTraceMaxFrames the maximum number of frames written per exception and cause, 0 for all frames.
+     */
+    public void setStackTraceMaxFrames(int stackTraceMaxFrames) {
+        this.stackTraceMaxFrames = stackTraceMaxFrames;
+        this.stackTraceWriter = null;
+    }
+
+    public String getStackTraceExcludes() { return stackTraceExcludes; }
+
+    /**
+     * @param stackTraceExcludes comma separated class name prefixes of frames to leave out of stack traces,
+     *                           e.g. "sun.reflect.,java.lang.reflect.,com.sun.proxy.".
+     */
+    public void setStackTraceExcludes(String stackTraceExcludes) {
+        this.stackTraceExcludes = stackTraceExcludes;
+        this.stackTraceWriter = null;
+    }
+
+    public boolean getStackTraceFoldCommonFrames() { return stackTraceFoldCommonFrames; }
+
+    /**
+     * @param stackTraceFoldCommonFrames true to write the frames a cause shares with its enclosing trace as
+     *                                   "... n more", like {@link Throwable#printStackTrace()} does.
+     */
+    public void setStackTraceFoldCommonFrames(boolean stackTraceFoldCommonFrames) {
+        this.stackTraceFoldCommonFrames = stackTraceFoldCommonFrames;
+        this.stackTraceWriter = null;
+    }
+
+    public String getOutputFormat() { return outputFormat.name().toLowerCase(); }
+
+    /**
+     * @param outputFormat "json" (default), or "cbor", "smile" or "msgpack" for the same document in a binary
+     *                     encoding, which only {@link #toByteArray(LoggingEvent)} produces; {@link #format(LoggingEvent)}
+     *                     keeps returning JSON, so appenders that write Strings are not affected.
+     */
+    public void setOutputFormat(String outputFormat) {
+        this.outputFormat = OutputFormat.parse(outputFormat);
+    }
+
+    /**
+     * @return the content type of the binary output format, or application/json, which the HTTP appender sends
+     */
+    @Override
+    public String getContentType() {
+        OutputFormat format = outputFormat;
+        return format.isBinary() && bulkIndex == null ? format.getContentType() : "application/json";
+    }
+
+    public String getBulkIndex() { return bulkIndex; }
+
+    /**
+     * Switches to Elasticsearch bulk output: every event is preceded by an "index" action line, so that the output
+     * can be posted to the bulk API as is. Bulk output is always JSON, whatever the output format.
+     *
+     * @param bulkIndex the index name, where {@code %{+FORMAT}} is replaced by the event's timestamp, e.g.
+     *                  {@code logstash-%{+yyyy.MM.dd}}; null turns bulk output off.
+     */
+    public void setBulkIndex(String bulkIndex) {
+        if (bulkIndex != null) {
+            // fails early on a malformed pattern
+            new BulkAction(bulkIndex, false);
+        }
+        this.bulkIndex = bulkIndex;
+        this.bulkAction = null;
+    }
+
+    public boolean getBulkGenerateIds() { return bulkGenerateIds; }
+
+    /**
+     * @param bulkGenerateIds true to give every bulk action a generated "_id", so that a retried bulk request does
+     *                        not duplicate its documents.
+     */
+    public void setBulkGenerateIds(boolean bulkGenerateIds) {
+        this.bulkGenerateIds = bulkGenerateIds;
+        this.bulkAction = null;
+    }
+
+    /**
+     * @return how often a logger name, level, thread name or location field was copied from the string cache
+     */
+    public long getStringCacheHits() { return strings.getHits(); }
+
+    /**
+     * @return how often a logger name, level, thread name or location field had to be encoded
+     */
+    public long getStringCacheMisses() { return strings.getMisses(); }
+
+    private boolean includeLocation(LoggingEvent loggingEvent) {
+        LocationPolicy policy = locationPolicy;
+        switch (policy.getMode()) {
+            case ALWAYS:
+                return true;
+            case THRESHOLD:
+                return loggingEvent.getLevel().isGreaterOrEqual(locationThreshold);
+            case SAMPLED:
+                return policy.sample();
+            default:
+                return false;
+        }
+    }
 
     public void activateOptions() {
         activeIgnoreThrowable = ignoreThrowable;
+        constantFields = createConstantFields(System.getProperty(ADDITIONAL_DATA_PROPERTY));
+        stackTraceDeduplicator = stackTraceDeduplicator();
+        stackTraceWriter = stackTraceWriter();
+        fieldPlan = fieldPlan();
+        bulkAction = bulkAction();
+    }
+
+    private void invalidateFieldPlan() {
+        this.fieldPlan = null;
+        this.locationResolver = null;
+        this.constantFields = null;
+    }
+
+    private FieldPlan fieldPlan() {
+        FieldPlan plan = fieldPlan;
+        if (plan == null) {
+            plan = FieldPlan.compile(dropFields, renameFields, mdcIncludes, mdcExcludes);
+            fieldPlan = plan;
+        }
+        return plan;
+    }
+
+    private LocationResolver locationResolver(FieldPlan plan) {
+        if (!fastLocation) {
+            return null;
+        }
+        LocationResolver resolver = locationResolver;
+        if (resolver == null) {
+            resolver = new LocationResolver(LocationResolver.DEFAULT_MAX_CALL_SITES, plan);
+            locationResolver = resolver;
+        }
+        return resolver;
+    }
+
+    /**
+     * Returns the writer for structured or compacted stack traces, or null if neither is configured and log4j's
+     * own rendering of the throwable is used.
+     */
+    private StackTraceWriter stackTraceWriter() {
+        if (stackTraceFormat == StackTraceWriter.Format.TEXT && stackTraceMaxFrames <= 0 && stackTraceExcludes == null
+                && stackTraceFoldCommonFrames) {
+            return null;
+        }
+        StackTraceWriter compactor = stackTraceWriter;
+        if (compactor == null) {
+            compactor = new StackTraceWriter(stackTraceFormat, stackTraceMaxFrames,
+                    StackTraceWriter.parsePrefixes(stackTraceExcludes), stackTraceFoldCommonFrames);
+            stackTraceWriter = compactor;
+        }
+        return compactor;
     }
 
-    private void addUserFields(String data) {
-        if (null != data) {
-            String[] pairs = data.split(",");
-            for (String pair : pairs) {
-                String[] userField = pair.split(":", 2);
-                if (userField[0] != null) {
-                    String key = userField[0];
-                    String val = userField[1];
-                    addEventData(key, val);
-                }
+    /**
+     * @return true if {@link #encode(LoggingEvent, JsonWriter)} produces what {@link #toByteArray(LoggingEvent)}
+     *         returns, so that appenders can encode several events into one writer
+     */
+    boolean writesJson() {
+        return !outputFormat.isBinary() || bulkIndex != null;
+    }
+
+    private BulkAction bulkAction() {
+        String index = bulkIndex;
+        if (index == null) {
+            return null;
+        }
+        BulkAction action = bulkAction;
+        if (action == null) {
+            action = new BulkAction(index, bulkGenerateIds);
+            bulkAction = action;
+        }
+        return action;
+    }
+
+    private StackTraceDeduplicator stackTraceDeduplicator() {
+        if (!stackTraceDedup) {
+            return null;
+        }
+        StackTraceDeduplicator deduplicator = stackTraceDeduplicator;
+        if (deduplicator == null) {
+            deduplicator = new StackTraceDeduplicator(stackTraceDedupWindow, stackTraceDedupCacheSize);
+            stackTraceDeduplicator = deduplicator;
+        }
+        return deduplicator;
+    }
+
+    /**
+     * Returns the pre-encoded constant fields, rebuilding them if the user fields system property changed.
+     */
+    private ConstantFields constantFields() {
+        String userFieldsProperty = System.getProperty(ADDITIONAL_DATA_PROPERTY);
+        ConstantFields fields = constantFields;
+        if (fields == null || !fields.isBuiltFrom(userFieldsProperty)) {
+            fields = createConstantFields(userFieldsProperty);
+            constantFields = fields;
+        }
+        return fields;
+    }
+
+    private ConstantFields createConstantFields(String userFieldsProperty) {
+        String whoami = this.getClass().getSimpleName();
+        FieldPlan plan = fieldPlan();
+        Set<String> reserved = new HashSet<String>(RESERVED_FIELDS);
+        reserved.addAll(plan.outputNames());
+        Map<String, Object> fields = new LinkedHashMap<String, Object>();
+        fields.put("@version", version);
+
+        /**
+         * Extract and add fields from log4j config, if defined
+         */
+        if (getUserFields() != null) {
+            String userFlds = getUserFields();
+            LogLog.debug("["+whoami+"] Got user data from log4j property: "+ userFlds);
+            ConstantFields.parseUserFields(userFlds, fields, reserved);
+        }
+
+        /**
+         * Extract fields from system properties, if defined
+         * Note that CLI props will override conflicts with log4j config
+         */
+        if (userFieldsProperty != null) {
+            if (getUserFields() != null) {
+                LogLog.warn("["+whoami+"] Loading UserFields from command-line. This will override any UserFields set in the log4j configuration file");
             }
+            LogLog.debug("["+whoami+"] Got user data from system property: " + userFieldsProperty);
+            ConstantFields.parseUserFields(userFieldsProperty, fields, reserved);
+        }
+
+        if (plan.includes(FieldPlan.SOURCE_HOST)) {
+            fields.put(plan.outputName(FieldPlan.SOURCE_HOST), hostname);
         }
+        return new ConstantFields(fields, userFieldsProperty);
     }
-    private void addEventData(String keyname, Object keyval) {
+
+    private static void addEventData(TokenWriter writer, byte[] keyname, Object keyval) {
         if (null != keyval) {
-            logstashEvent.put(keyname, keyval);
+            writer.writeFieldName(keyname);
+            writer.writeObject(keyval);
+        }
+    }
+
+    private static void addEventData(TokenWriter writer, FieldPlan plan, int field, Object keyval) {
+        if (null != keyval && plan.includes(field)) {
+            writer.writeFieldName(plan.fieldName(field));
+            writer.writeObject(keyval);
+        }
+    }
+
+    private void addCachedString(TokenWriter writer, FieldPlan plan, int field, String keyval) {
+        if (null != keyval && plan.includes(field)) {
+            writer.writeFieldName(plan.fieldName(field));
+            writer.writeString(keyval, strings);
+        }
+    }
+
+    /**
+     * Read-only view of an event's MDC for {@link FieldPlan#writeMdc(TokenWriter, Map)}; single keys are looked up
+     * with {@link LoggingEvent#getMDC(String)}, only iterating copies the MDC.
+     */
+    private static final class EventMdc extends AbstractMap<String, Object> {
+        private final LoggingEvent loggingEvent;
+
+        EventMdc(LoggingEvent loggingEvent) {
+            this.loggingEvent = loggingEvent;
+        }
+
+        @Override
+        public Object get(Object key) {
+            return loggingEvent.getMDC(String.valueOf(key));
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<Entry<String, Object>> entrySet() {
+            return loggingEvent.getProperties().entrySet();
         }
     }
 }
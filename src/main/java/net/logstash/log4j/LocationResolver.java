@@ -0,0 +1,213 @@
+package net.logstash.log4j;
+
+import net.logstash.json.ConstantFields;
+import net.logstash.json.FieldPlan;
+import org.apache.log4j.helpers.LogLog;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Finds the caller of a log4j 1.x logger without {@link org.apache.log4j.spi.LocationInfo}, which prints a whole
+ * stack trace into a String and searches it, and returns the "file", "line_number", "class" and "method" fields
+ * pre-encoded.
+ * <p>
+ * On Java 9 and later the stack is walked lazily with {@code java.lang.StackWalker}, which is looked up
+ * reflectively so that the library still runs on older JVMs, and the walk stops at the first frame past the
+ * logger's frames. Elsewhere the frames come from {@link Throwable#getStackTrace()}. The encoded fields are cached
+ * per call site, up to {@code maxCallSites} of them.
+ * <p>
+ * The caller has to be on the current thread's stack, so the layouts fall back to
+ * {@link org.apache.log4j.spi.LoggingEvent#getLocationInformation()} when {@link #resolve(String)} returns null,
+ * for example for events formatted by an {@code AsyncAppender}. Instances are thread safe.
+ */
+public final class LocationResolver {
+
+    public static final int DEFAULT_MAX_CALL_SITES = 4096;
+
+    private static final String NA = "?";
+
+    private static final StackWalkerSupport STACK_WALKER = StackWalkerSupport.create();
+
+    private final ConcurrentMap<StackTraceElement, byte[]> callSites = new ConcurrentHashMap<StackTraceElement, byte[]>();
+    private final int maxCallSites;
+    private final FieldPlan fieldPlan;
+    private final boolean useStackWalker;
+
+    public LocationResolver() {
+        this(DEFAULT_MAX_CALL_SITES, FieldPlan.DEFAULT);
+    }
+
+    /**
+     * @param maxCallSites the number of call sites whose encoded fields are cached
+     * @param fieldPlan the names of the location fields, dropped ones are left out
+     */
+    public LocationResolver(int maxCallSites, FieldPlan fieldPlan) {
+        this(maxCallSites, fieldPlan, true);
+    }
+
+    LocationResolver(int maxCallSites, FieldPlan fieldPlan, boolean useStackWalker) {
+        this.maxCallSites = maxCallSites;
+        this.fieldPlan = fieldPlan;
+        this.useStackWalker = useStackWalker && STACK_WALKER != null;
+    }
+
+    /**
+     * @param fqnOfLoggerClass the fully qualified name of the logger class, see
+     *                         {@link org.apache.log4j.spi.LoggingEvent#getFQNOfLoggerClass()}
+     * @return the encoded location fields of the frame calling the logger, without braces, or null if the logger
+     *         class is not on the current thread's stack
+     */
+    public byte[] resolve(String fqnOfLoggerClass) {
+        StackTraceElement caller = useStackWalker ? STACK_WALKER.findCaller(fqnOfLoggerClass)
+                : findCaller(new Throwable().getStackTrace(), fqnOfLoggerClass);
+        if (caller == null) {
+            return null;
+        }
+        byte[] fragment = callSites.get(caller);
+        if (fragment == null) {
+            fragment = encode(caller);
+            if (callSites.size() < maxCallSites) {
+                callSites.putIfAbsent(caller, fragment);
+            }
+        }
+        return fragment;
+    }
+
+    /**
+     * @return the number of call sites whose fields are cached
+     */
+    public int getCachedCallSites() {
+        return callSites.size();
+    }
+
+    /**
+     * @return the first frame following the logger's frames, null if there are no logger frames
+     */
+    static StackTraceElement findCaller(StackTraceElement[] frames, String fqnOfLoggerClass) {
+        boolean inLogger = false;
+        for (StackTraceElement frame : frames) {
+            if (fqnOfLoggerClass.equals(frame.getClassName())) {
+                inLogger = true;
+            } else if (inLogger) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Encodes the fields the way the layouts write {@link org.apache.log4j.spi.LocationInfo}: unknown values
+     * become "?" and the line number is a string.
+     */
+    private byte[] encode(StackTraceElement caller) {
+        Map<String, Object> fields = new LinkedHashMap<String, Object>();
+        put(fields, FieldPlan.FILE, caller.getFileName() == null ? NA : caller.getFileName());
+        put(fields, FieldPlan.LINE_NUMBER, caller.getLineNumber() < 0 ? NA : String.valueOf(caller.getLineNumber()));
+        put(fields, FieldPlan.CLASS, caller.getClassName());
+        put(fields, FieldPlan.METHOD, caller.getMethodName());
+        return new ConstantFields(fields, null).getFragment();
+    }
+
+    private void put(Map<String, Object> fields, int field, String value) {
+        if (fieldPlan.includes(field)) {
+            fields.put(fieldPlan.outputName(field), value);
+        }
+    }
+
+    /**
+     * Reflective access to {@code StackWalker.getInstance().walk(Function)}, so this compiles and runs on Java 5.
+     * The proxy implementing the function is created once per logger class and reused by every walk.
+     */
+    private static final class StackWalkerSupport {
+        private final Object walker;
+        private final Method walk;
+        private final Method iterator;
+        private final Method getClassName;
+        private final Method toStackTraceElement;
+        private final ClassLoader loader;
+        private final Class<?>[] functionInterface;
+
+        /** the functions by logger class name, there are as many as classes that wrap a log4j logger */
+        private final ConcurrentMap<String, Object> functions = new ConcurrentHashMap<String, Object>();
+
+        private StackWalkerSupport(ClassLoader loader) throws Exception {
+            Class<?> walkerClass = Class.forName("java.lang.StackWalker");
+            Class<?> functionClass = Class.forName("java.util.function.Function");
+            Class<?> frameClass = Class.forName("java.lang.StackWalker$StackFrame");
+            this.walker = walkerClass.getMethod("getInstance").invoke(null);
+            this.walk = walkerClass.getMethod("walk", functionClass);
+            this.iterator = Class.forName("java.util.stream.BaseStream").getMethod("iterator");
+            this.getClassName = frameClass.getMethod("getClassName");
+            this.toStackTraceElement = frameClass.getMethod("toStackTraceElement");
+            this.loader = loader;
+            this.functionInterface = new Class<?>[]{functionClass};
+        }
+
+        static StackWalkerSupport create() {
+            try {
+                return new StackWalkerSupport(LocationResolver.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                return null;
+            } catch (Exception e) {
+                LogLog.debug("[LocationResolver] StackWalker is not usable, falling back to Throwable.getStackTrace()", e);
+                return null;
+            }
+        }
+
+        StackTraceElement findCaller(String fqnOfLoggerClass) {
+            Object function = functions.get(fqnOfLoggerClass);
+            if (function == null) {
+                function = Proxy.newProxyInstance(loader, functionInterface, new CallerFunction(fqnOfLoggerClass));
+                Object existing = functions.putIfAbsent(fqnOfLoggerClass, function);
+                if (existing != null) {
+                    function = existing;
+                }
+            }
+            try {
+                return (StackTraceElement) walk.invoke(walker, function);
+            } catch (InvocationTargetException e) {
+                throw new IllegalStateException("Walking the stack failed", e.getCause());
+            } catch (Exception e) {
+                throw new IllegalStateException("Walking the stack failed", e);
+            }
+        }
+
+        /**
+         * The {@code Function<Stream<StackFrame>, StackTraceElement>} passed to {@code StackWalker.walk}.
+         */
+        private final class CallerFunction implements InvocationHandler {
+            private final String fqnOfLoggerClass;
+
+            CallerFunction(String fqnOfLoggerClass) {
+                this.fqnOfLoggerClass = fqnOfLoggerClass;
+            }
+
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (!method.getName().equals("apply")) {
+                    // equals, hashCode and toString of the proxy itself
+                    return method.getName().equals("equals") ? proxy == args[0]
+                            : method.getName().equals("hashCode") ? System.identityHashCode(proxy) : toString();
+                }
+                boolean inLogger = false;
+                Iterator<?> frames = (Iterator<?>) iterator.invoke(args[0]);
+                while (frames.hasNext()) {
+                    Object frame = frames.next();
+                    if (fqnOfLoggerClass.equals(getClassName.invoke(frame))) {
+                        inLogger = true;
+                    } else if (inLogger) {
+                        return toStackTraceElement.invoke(frame);
+                    }
+                }
+                return null;
+            }
+        }
+    }
+}
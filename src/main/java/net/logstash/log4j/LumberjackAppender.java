@@ -0,0 +1,284 @@
+package net.logstash.log4j;
+
+import net.logstash.json.DiskSpool;
+import net.logstash.json.EventShipper;
+import net.logstash.json.JsonWriter;
+import net.logstash.json.LumberjackShipper;
+import org.apache.log4j.Layout;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Appender that ships events to a Logstash {@code beats} input over the Lumberjack v2 protocol through a
+ * {@link LumberjackShipper}, with windows of events that are sent again until the peer acknowledges them.
+ * <p>
+ * The layout must be a {@link JSONEventLayoutV1}, whose JSON documents become the data frames; its output format
+ * is ignored since the protocol carries JSON. The logging thread encodes the event and queues it; a single I/O
+ * thread sends up to {@code Pipelining} windows of {@code WindowSize} events before waiting for
+ * acknowledgements, compressed at {@code CompressionLevel} (0 to send them uncompressed).
+ */
+public class LumberjackAppender extends ConcurrentAppenderSkeleton {
+
+    public static final int DEFAULT_PORT = 5044;
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT = 5000;
+
+    private String remoteHost;
+    private int port = DEFAULT_PORT;
+    private int bufferSize = EventShipper.DEFAULT_BUFFER_SIZE;
+    private int windowSize = LumberjackShipper.DEFAULT_WINDOW_SIZE;
+    private int pipelining = LumberjackShipper.DEFAULT_PIPELINING;
+    private int compressionLevel = LumberjackShipper.DEFAULT_COMPRESSION_LEVEL;
+    private long ackTimeout = LumberjackShipper.DEFAULT_ACK_TIMEOUT;
+    private EventShipper.OverflowPolicy overflowPolicy = EventShipper.OverflowPolicy.BLOCK;
+    private long reconnectDelay = EventShipper.DEFAULT_RECONNECT_DELAY;
+    private long maxReconnectDelay = EventShipper.DEFAULT_MAX_RECONNECT_DELAY;
+    private long shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+    private String spoolDirectory;
+    private int spoolSegmentSize = DiskSpool.DEFAULT_SEGMENT_SIZE;
+    private long spoolMaxBytes = DiskSpool.DEFAULT_MAX_BYTES;
+
+    private volatile LumberjackShipper shipper;
+
+    public LumberjackAppender() {
+    }
+
+    public LumberjackAppender(JSONEventLayoutV1 layout, String remoteHost, int port) {
+        this.layout = layout;
+        this.remoteHost = remoteHost;
+        this.port = port;
+        activateOptions();
+    }
+
+    @Override
+    public void activateOptions() {
+        if (remoteHost == null) {
+            LogLog.warn("RemoteHost option not set for appender [" + name + "].");
+            return;
+        }
+        if (layout == null) {
+            layout = new JSONEventLayoutV1();
+        } else if (!(layout instanceof JSONEventLayoutV1)) {
+            errorHandler.error("Appender [" + name + "] needs a " + JSONEventLayoutV1.class.getName() + " layout, not "
+                    + layout.getClass().getName());
+            return;
+        }
+        if (shipper != null) {
+            shipper.close(shutdownTimeout);
+        }
+        LumberjackShipper created = new LumberjackShipper(remoteHost, port, bufferSize, windowSize, pipelining,
+                compressionLevel, ackTimeout, overflowPolicy, reconnectDelay, maxReconnectDelay,
+                new EventShipper.ErrorReporter() {
+                    public void error(String message, Exception e) {
+                        errorHandler.error("[" + name + "] " + message, e, ErrorCode.WRITE_FAILURE);
+                    }
+                });
+        spool(created, spoolDirectory, spoolSegmentSize, spoolMaxBytes);
+        shipper = created;
+    }
+
+    @Override
+    protected void append(LoggingEvent event) {
+        LumberjackShipper target = shipper;
+        if (target == null) {
+            errorHandler.error("Appender [" + name + "] is not configured.");
+            return;
+        }
+        Layout eventLayout = layout;
+        byte[] encoded;
+        JsonWriter writer = JsonWriter.acquire();
+        try {
+            ((JSONEventLayoutV1) eventLayout).encodeDocument(event, writer);
+            encoded = writer.toByteArray();
+        } catch (RuntimeException e) {
+            errorHandler.error("Could not format event", e, ErrorCode.GENERIC_FAILURE);
+            return;
+        } finally {
+            writer.release();
+        }
+        target.send(encoded);
+    }
+
+    /**
+     * Stops accepting events and waits up to {@code ShutdownTimeout} milliseconds for the queued ones to be
+     * acknowledged.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        stopped = true;
+        LumberjackShipper target = shipper;
+        if (target != null) {
+            target.close(shutdownTimeout);
+        }
+    }
+
+    public boolean requiresLayout() {
+        return true;
+    }
+
+    /**
+     * @return the number of events dropped by the overflow policy or left unacknowledged on close
+     */
+    public long getDroppedEvents() {
+        LumberjackShipper target = shipper;
+        return target == null ? 0 : target.getDroppedEvents();
+    }
+
+    /**
+     * @return the number of events the remote host acknowledged
+     */
+    public long getAcknowledgedEvents() {
+        LumberjackShipper target = shipper;
+        return target == null ? 0 : target.getAcknowledgedEvents();
+    }
+
+    /**
+     * @return true while the appender is connected to the remote host
+     */
+    public boolean isConnected() {
+        LumberjackShipper target = shipper;
+        return target != null && target.isConnected();
+    }
+
+    public String getRemoteHost() {
+        return remoteHost;
+    }
+
+    public void setRemoteHost(String remoteHost) {
+        this.remoteHost = remoteHost == null ? null : remoteHost.trim();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param bufferSize the number of events waiting to be sent, rounded up to a power of two
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * @param windowSize the maximum number of events sent in one window
+     */
+    public void setWindowSize(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    public int getPipelining() {
+        return pipelining;
+    }
+
+    /**
+     * @param pipelining the number of windows sent before waiting for acknowledgements
+     */
+    public void setPipelining(int pipelining) {
+        this.pipelining = pipelining;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * @param compressionLevel the deflate level from 1 to 9, 0 to send windows uncompressed
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public long getAckTimeout() {
+        return ackTimeout;
+    }
+
+    /**
+     * @param ackTimeout the milliseconds to wait for an acknowledgement before reconnecting and sending again
+     */
+    public void setAckTimeout(long ackTimeout) {
+        this.ackTimeout = ackTimeout;
+    }
+
+    public String getOverflowPolicy() {
+        return overflowPolicy.name().toLowerCase();
+    }
+
+    /**
+     * @param overflowPolicy what to do with new events while the buffer is full: "block" (default), "drop_oldest"
+     *                       or "drop_newest"
+     */
+    public void setOverflowPolicy(String overflowPolicy) {
+        this.overflowPolicy = EventShipper.OverflowPolicy.parse(overflowPolicy);
+    }
+
+    public long getReconnectDelay() {
+        return reconnectDelay;
+    }
+
+    public void setReconnectDelay(long reconnectDelay) {
+        this.reconnectDelay = reconnectDelay;
+    }
+
+    public long getMaxReconnectDelay() {
+        return maxReconnectDelay;
+    }
+
+    public void setMaxReconnectDelay(long maxReconnectDelay) {
+        this.maxReconnectDelay = maxReconnectDelay;
+    }
+
+    public long getShutdownTimeout() {
+        return shutdownTimeout;
+    }
+
+    public void setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    public String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    /**
+     * @param spoolDirectory a directory to spool events to while the endpoint cannot keep up, see {@link DiskSpool}
+     */
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory == null || spoolDirectory.trim().length() == 0 ? null : spoolDirectory.trim();
+    }
+
+    public int getSpoolSegmentSize() {
+        return spoolSegmentSize;
+    }
+
+    public void setSpoolSegmentSize(int spoolSegmentSize) {
+        this.spoolSegmentSize = spoolSegmentSize;
+    }
+
+    public long getSpoolMaxBytes() {
+        return spoolMaxBytes;
+    }
+
+    /**
+     * @param spoolMaxBytes the disk space the spool may take, beyond which events are dropped
+     */
+    public void setSpoolMaxBytes(long spoolMaxBytes) {
+        this.spoolMaxBytes = spoolMaxBytes;
+    }
+}
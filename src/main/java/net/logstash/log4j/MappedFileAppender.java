@@ -0,0 +1,166 @@
+package net.logstash.log4j;
+
+import net.logstash.json.JsonWriter;
+import net.logstash.json.MappedSegmentFile;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Layout;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.io.IOException;
+
+/**
+ * Appender that copies encoded events straight into memory-mapped file segments, without the {@code Writer},
+ * the {@code BufferedWriter} and the write system call per flush of {@link org.apache.log4j.FileAppender}.
+ * <p>
+ * Events are written to {@code <File>.active}, which is completed as {@code <File>.000001}, {@code <File>.000002}
+ * and so on once the next event does not fit into {@code SegmentSize} bytes, or once it is older than
+ * {@code MaxSegmentAge} milliseconds. Shippers such as Filebeat should harvest the completed segments only. See
+ * {@link MappedSegmentFile} for the {@code Durability} options.
+ * <p>
+ * A {@link JSONEventLayoutV1} encodes each event into a reusable buffer that is copied into the segment as is;
+ * other layouts are written through {@link Layout#format(LoggingEvent)}.
+ */
+public class MappedFileAppender extends AppenderSkeleton {
+
+    private String fileName;
+    private int segmentSize = MappedSegmentFile.DEFAULT_SEGMENT_SIZE;
+    private MappedSegmentFile.Durability durability = MappedSegmentFile.Durability.PAGE_CACHE;
+    private long forceInterval = MappedSegmentFile.DEFAULT_FORCE_INTERVAL;
+    private long maxSegmentAge = 0;
+
+    private MappedSegmentFile file;
+
+    public MappedFileAppender() {
+    }
+
+    public MappedFileAppender(Layout layout, String fileName) {
+        this.layout = layout;
+        this.fileName = fileName;
+        activateOptions();
+    }
+
+    @Override
+    public void activateOptions() {
+        if (fileName == null) {
+            LogLog.warn("File option not set for appender [" + name + "].");
+            return;
+        }
+        closeFile();
+        try {
+            file = new MappedSegmentFile(fileName, segmentSize, durability, forceInterval, maxSegmentAge);
+        } catch (IOException e) {
+            errorHandler.error("Could not open [" + fileName + "]", e, ErrorCode.FILE_OPEN_FAILURE);
+        }
+    }
+
+    @Override
+    protected void append(LoggingEvent event) {
+        if (file == null) {
+            errorHandler.error("No file set for the appender named [" + name + "].");
+            return;
+        }
+        try {
+            if (layout instanceof JSONEventLayoutV1 && ((JSONEventLayoutV1) layout).writesJson()) {
+                JsonWriter writer = JsonWriter.acquire();
+                try {
+                    ((JSONEventLayoutV1) layout).encode(event, writer);
+                    file.write(writer);
+                } finally {
+                    writer.release();
+                }
+            } else if (layout instanceof JSONEventLayoutV1) {
+                file.write(((JSONEventLayoutV1) layout).toByteArray(event));
+            } else {
+                StringBuilder text = new StringBuilder(layout.format(event));
+                String[] lines = layout.ignoresThrowable() ? event.getThrowableStrRep() : null;
+                if (lines != null) {
+                    for (String line : lines) {
+                        text.append(line).append(Layout.LINE_SEP);
+                    }
+                }
+                file.write(text.toString().getBytes(JsonWriter.UTF_8));
+            }
+        } catch (IOException e) {
+            errorHandler.error("Could not write to [" + fileName + "]", e, ErrorCode.WRITE_FAILURE, event);
+        }
+    }
+
+    /**
+     * Completes the active segment so that it can be harvested.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closeFile();
+    }
+
+    private void closeFile() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                LogLog.warn("Could not close [" + fileName + "]", e);
+            }
+            file = null;
+        }
+    }
+
+    public boolean requiresLayout() {
+        return true;
+    }
+
+    public String getFile() {
+        return fileName;
+    }
+
+    public void setFile(String file) {
+        this.fileName = file == null ? null : file.trim();
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * @param segmentSize the size of a segment in bytes, 64MB by default
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public String getDurability() {
+        return durability.name().toLowerCase();
+    }
+
+    /**
+     * @param durability "page_cache" (default) to leave writing back to the operating system, or "periodic" to
+     *                   force the segment to disk every {@code ForceInterval} milliseconds
+     */
+    public void setDurability(String durability) {
+        this.durability = MappedSegmentFile.Durability.parse(durability);
+    }
+
+    public long getForceInterval() {
+        return forceInterval;
+    }
+
+    public void setForceInterval(long forceInterval) {
+        this.forceInterval = forceInterval;
+    }
+
+    public long getMaxSegmentAge() {
+        return maxSegmentAge;
+    }
+
+    /**
+     * @param maxSegmentAge the milliseconds after which a segment is completed even if it is not full, 0 (default)
+     *                      to complete segments only when full
+     */
+    public void setMaxSegmentAge(long maxSegmentAge) {
+        this.maxSegmentAge = maxSegmentAge;
+    }
+}
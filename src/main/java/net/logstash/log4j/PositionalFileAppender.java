@@ -0,0 +1,122 @@
+package net.logstash.log4j;
+
+import net.logstash.json.JsonWriter;
+import net.logstash.json.PositionalFile;
+import org.apache.log4j.Layout;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Synchronous file appender that lets threads format and write at the same time: unlike
+ * {@link org.apache.log4j.FileAppender}, which formats and writes every event under the appender's lock, each
+ * thread encodes its event into its own buffer, reserves the event's region of the file with an atomic increment and
+ * writes it there with a positional write, through a {@link PositionalFile}. Lines are never interleaved.
+ * <p>
+ * Every event costs a write system call, so the appender pays off when many threads log at once, not for a single
+ * one. See {@link PositionalFile} on what a reader tailing the file may see while writes are in progress. log4j 1.2
+ * still serializes the threads logging through the same logger.
+ * <p>
+ * A {@link JSONEventLayoutV1} encodes each event into the calling thread's reusable buffer; other layouts are written
+ * through {@link Layout#format(LoggingEvent)}.
+ */
+public class PositionalFileAppender extends ConcurrentAppenderSkeleton {
+
+    private String fileName;
+    private boolean fileAppend = true;
+
+    private volatile PositionalFile file;
+
+    public PositionalFileAppender() {
+    }
+
+    public PositionalFileAppender(Layout layout, String fileName) {
+        this.layout = layout;
+        this.fileName = fileName;
+        activateOptions();
+    }
+
+    @Override
+    public void activateOptions() {
+        if (fileName == null) {
+            LogLog.warn("File option not set for appender [" + name + "].");
+            return;
+        }
+        closeFile();
+        try {
+            file = new PositionalFile(new File(fileName), fileAppend);
+        } catch (IOException e) {
+            errorHandler.error("Could not open [" + fileName + "]", e, ErrorCode.FILE_OPEN_FAILURE);
+        }
+    }
+
+    @Override
+    protected void append(LoggingEvent event) {
+        PositionalFile target = file;
+        if (target == null) {
+            errorHandler.error("No file set for the appender named [" + name + "].");
+            return;
+        }
+        try {
+            if (layout instanceof JSONEventLayoutV1 && ((JSONEventLayoutV1) layout).writesJson()) {
+                JsonWriter writer = JsonWriter.acquire();
+                try {
+                    ((JSONEventLayoutV1) layout).encode(event, writer);
+                    target.write(writer);
+                } finally {
+                    writer.release();
+                }
+            } else {
+                target.write(encode(event));
+            }
+        } catch (IOException e) {
+            errorHandler.error("Could not write to [" + fileName + "]", e, ErrorCode.WRITE_FAILURE, event);
+        }
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        stopped = true;
+        closeFile();
+    }
+
+    private void closeFile() {
+        PositionalFile target = file;
+        if (target != null) {
+            try {
+                target.close();
+            } catch (IOException e) {
+                LogLog.warn("Could not close [" + fileName + "]", e);
+            }
+            file = null;
+        }
+    }
+
+    public boolean requiresLayout() {
+        return true;
+    }
+
+    public String getFile() {
+        return fileName;
+    }
+
+    public void setFile(String file) {
+        this.fileName = file == null ? null : file.trim();
+    }
+
+    public boolean getAppend() {
+        return fileAppend;
+    }
+
+    public void setAppend(boolean append) {
+        this.fileAppend = append;
+    }
+}
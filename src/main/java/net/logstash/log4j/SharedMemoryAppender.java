@@ -0,0 +1,153 @@
+package net.logstash.log4j;
+
+import net.logstash.json.JsonWriter;
+import net.logstash.json.SharedRingFile;
+import org.apache.log4j.Layout;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Appender that hands encoded events to a shipper process on the same host through a {@link SharedRingFile}, a
+ * memory-mapped file of rings, without a copy into a socket or a file and without a system call per event. The
+ * shipper reads the file with a {@link net.logstash.json.SharedRingReader}.
+ * <p>
+ * Every logging thread writes to a ring of its own, so that threads do not wait for each other; once
+ * {@code RingCount - 1} threads hold a ring, further threads share the first one. When the shipper falls behind and
+ * a ring is full, the thread waits for space if {@code Blocking}, otherwise the event is dropped.
+ * <p>
+ * A {@link JSONEventLayoutV1} encodes each event into the calling thread's reusable buffer, which is copied into the
+ * ring as is; other layouts are written through {@link Layout#format(LoggingEvent)}.
+ */
+public class SharedMemoryAppender extends ConcurrentAppenderSkeleton {
+
+    private String fileName;
+    private int ringCount = SharedRingFile.DEFAULT_RING_COUNT;
+    private int ringSize = SharedRingFile.DEFAULT_RING_SIZE;
+    private boolean blocking = true;
+
+    private volatile SharedRingFile file;
+
+    public SharedMemoryAppender() {
+    }
+
+    public SharedMemoryAppender(Layout layout, String fileName) {
+        this.layout = layout;
+        this.fileName = fileName;
+        activateOptions();
+    }
+
+    @Override
+    public void activateOptions() {
+        if (fileName == null) {
+            LogLog.warn("File option not set for appender [" + name + "].");
+            return;
+        }
+        if (file != null) {
+            file.close();
+        }
+        try {
+            file = new SharedRingFile(new File(fileName), ringCount, ringSize, blocking);
+        } catch (IOException e) {
+            errorHandler.error("Could not open [" + fileName + "]", e, ErrorCode.FILE_OPEN_FAILURE);
+        }
+    }
+
+    @Override
+    protected void append(LoggingEvent event) {
+        SharedRingFile target = file;
+        if (target == null) {
+            errorHandler.error("No file set for the appender named [" + name + "].");
+            return;
+        }
+        try {
+            if (layout instanceof JSONEventLayoutV1 && ((JSONEventLayoutV1) layout).writesJson()) {
+                JsonWriter writer = JsonWriter.acquire();
+                try {
+                    ((JSONEventLayoutV1) layout).encode(event, writer);
+                    target.write(writer);
+                } finally {
+                    writer.release();
+                }
+            } else {
+                target.write(encode(event));
+            }
+        } catch (RuntimeException e) {
+            errorHandler.error("Could not format event", e, ErrorCode.GENERIC_FAILURE);
+        }
+    }
+
+    /**
+     * Marks the file closed, which tells the shipper that no more events will come.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        stopped = true;
+        SharedRingFile target = file;
+        if (target != null) {
+            target.close();
+        }
+    }
+
+    public boolean requiresLayout() {
+        return true;
+    }
+
+    /**
+     * @return the number of events dropped because their ring was full or they were larger than a ring
+     */
+    public long getDroppedEvents() {
+        SharedRingFile target = file;
+        return target == null ? 0 : target.getDroppedEvents();
+    }
+
+    public String getFile() {
+        return fileName;
+    }
+
+    public void setFile(String file) {
+        this.fileName = file == null ? null : file.trim();
+    }
+
+    public int getRingCount() {
+        return ringCount;
+    }
+
+    /**
+     * @param ringCount the number of rings in the file, 16 by default; the first one is shared by the threads that
+     *                  find no ring free
+     */
+    public void setRingCount(int ringCount) {
+        this.ringCount = ringCount;
+    }
+
+    public int getRingSize() {
+        return ringSize;
+    }
+
+    /**
+     * @param ringSize the capacity of a ring in bytes, rounded up to a power of two, 1MB by default
+     */
+    public void setRingSize(int ringSize) {
+        this.ringSize = ringSize;
+    }
+
+    public boolean getBlocking() {
+        return blocking;
+    }
+
+    /**
+     * @param blocking true (default) to make a thread wait while its ring is full, false to drop its events
+     */
+    public void setBlocking(boolean blocking) {
+        this.blocking = blocking;
+    }
+}
@@ -0,0 +1,228 @@
+package net.logstash.log4j;
+
+import net.logstash.json.DiskSpool;
+import net.logstash.json.TcpShipper;
+import org.apache.log4j.Layout;
+import org.apache.log4j.helpers.LogLog;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Appender that ships events to a Logstash {@code tcp} input (codec {@code json_lines}) through a
+ * {@link TcpShipper}, so that the logging thread never writes to the socket itself.
+ * <p>
+ * The logging thread encodes the event and queues the bytes; a single I/O thread sends them in large gathering
+ * writes and reconnects with backoff when the connection fails. When the peer is slow or unreachable and
+ * {@code BufferSize} events are waiting, {@code OverflowPolicy} decides between waiting ({@code block}), dropping
+ * the oldest ({@code drop_oldest}) or the new event ({@code drop_newest}).
+ */
+public class TcpAppender extends ConcurrentAppenderSkeleton {
+
+    public static final int DEFAULT_PORT = 4560;
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT = 5000;
+
+    private String remoteHost;
+    private int port = DEFAULT_PORT;
+    private int bufferSize = TcpShipper.DEFAULT_BUFFER_SIZE;
+    private int batchSize = TcpShipper.DEFAULT_BATCH_SIZE;
+    private TcpShipper.OverflowPolicy overflowPolicy = TcpShipper.OverflowPolicy.BLOCK;
+    private long reconnectDelay = TcpShipper.DEFAULT_RECONNECT_DELAY;
+    private long maxReconnectDelay = TcpShipper.DEFAULT_MAX_RECONNECT_DELAY;
+    private long shutdownTimeout = DEFAULT_SHUTDOWN_TIMEOUT;
+    private String spoolDirectory;
+    private int spoolSegmentSize = DiskSpool.DEFAULT_SEGMENT_SIZE;
+    private long spoolMaxBytes = DiskSpool.DEFAULT_MAX_BYTES;
+
+    private volatile TcpShipper shipper;
+
+    public TcpAppender() {
+    }
+
+    public TcpAppender(Layout layout, String remoteHost, int port) {
+        this.layout = layout;
+        this.remoteHost = remoteHost;
+        this.port = port;
+        activateOptions();
+    }
+
+    @Override
+    public void activateOptions() {
+        if (remoteHost == null) {
+            LogLog.warn("RemoteHost option not set for appender [" + name + "].");
+            return;
+        }
+        if (shipper != null) {
+            shipper.close(shutdownTimeout);
+        }
+        TcpShipper created = new TcpShipper(remoteHost, port, bufferSize, batchSize, overflowPolicy, reconnectDelay,
+                maxReconnectDelay, new TcpShipper.ErrorReporter() {
+                    public void error(String message, Exception e) {
+                        errorHandler.error("[" + name + "] " + message, e, ErrorCode.WRITE_FAILURE);
+                    }
+                });
+        spool(created, spoolDirectory, spoolSegmentSize, spoolMaxBytes);
+        shipper = created;
+    }
+
+    @Override
+    protected void append(LoggingEvent event) {
+        TcpShipper target = shipper;
+        if (target == null) {
+            errorHandler.error("No remote host set for the appender named [" + name + "].");
+            return;
+        }
+        byte[] encoded;
+        try {
+            encoded = encode(event);
+        } catch (RuntimeException e) {
+            errorHandler.error("Could not format event", e, ErrorCode.GENERIC_FAILURE);
+            return;
+        }
+        target.send(encoded);
+    }
+
+    /**
+     * Stops accepting events and waits up to {@code ShutdownTimeout} milliseconds for the queued ones to be sent.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        stopped = true;
+        TcpShipper target = shipper;
+        if (target != null) {
+            target.close(shutdownTimeout);
+        }
+    }
+
+    public boolean requiresLayout() {
+        return true;
+    }
+
+    /**
+     * @return the number of events dropped by the overflow policy or left unsent on close
+     */
+    public long getDroppedEvents() {
+        TcpShipper target = shipper;
+        return target == null ? 0 : target.getDroppedEvents();
+    }
+
+    /**
+     * @return true while the appender is connected to the remote host
+     */
+    public boolean isConnected() {
+        TcpShipper target = shipper;
+        return target != null && target.isConnected();
+    }
+
+    public String getRemoteHost() {
+        return remoteHost;
+    }
+
+    public void setRemoteHost(String remoteHost) {
+        this.remoteHost = remoteHost == null ? null : remoteHost.trim();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param bufferSize the number of events waiting to be sent, rounded up to a power of two
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize the number of bytes sent with one gathering write
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public String getOverflowPolicy() {
+        return overflowPolicy.name().toLowerCase();
+    }
+
+    /**
+     * @param overflowPolicy what to do with new events while the buffer is full: "block" (default), "drop_oldest"
+     *                       or "drop_newest"
+     */
+    public void setOverflowPolicy(String overflowPolicy) {
+        this.overflowPolicy = TcpShipper.OverflowPolicy.parse(overflowPolicy);
+    }
+
+    public long getReconnectDelay() {
+        return reconnectDelay;
+    }
+
+    /**
+     * @param reconnectDelay the milliseconds to wait after the first failed connection attempt, doubled after every
+     *                       further one
+     */
+    public void setReconnectDelay(long reconnectDelay) {
+        this.reconnectDelay = reconnectDelay;
+    }
+
+    public long getMaxReconnectDelay() {
+        return maxReconnectDelay;
+    }
+
+    public void setMaxReconnectDelay(long maxReconnectDelay) {
+        this.maxReconnectDelay = maxReconnectDelay;
+    }
+
+    public long getShutdownTimeout() {
+        return shutdownTimeout;
+    }
+
+    public void setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    public String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    /**
+     * @param spoolDirectory a directory to spool events to while the endpoint cannot keep up, see {@link DiskSpool}
+     */
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory == null || spoolDirectory.trim().length() == 0 ? null : spoolDirectory.trim();
+    }
+
+    public int getSpoolSegmentSize() {
+        return spoolSegmentSize;
+    }
+
+    public void setSpoolSegmentSize(int spoolSegmentSize) {
+        this.spoolSegmentSize = spoolSegmentSize;
+    }
+
+    public long getSpoolMaxBytes() {
+        return spoolMaxBytes;
+    }
+
+    /**
+     * @param spoolMaxBytes the disk space the spool may take, beyond which events are dropped
+     */
+    public void setSpoolMaxBytes(long spoolMaxBytes) {
+        this.spoolMaxBytes = spoolMaxBytes;
+    }
+}
@@ -0,0 +1,172 @@
+package net.logstash.log4j2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.MalformedURLException;
+
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+
+import net.logstash.json.DiskSpool;
+import net.logstash.json.EventShipper;
+import net.logstash.json.HttpShipper;
+import net.logstash.json.JsonWriter;
+
+/**
+ * Appender that POSTs events to a Logstash {@code http} input or to Elasticsearch's {@code _bulk} API through an
+ * {@link HttpShipper}: gzip compressed batches of newline-delimited events, sent over persistent connections with
+ * up to {@code inFlight} requests at once, and retried with backoff when the endpoint fails.
+ * <p>
+ * The content type of the requests is the layout's {@link Layout#getContentType()}. For {@code _bulk}, set
+ * {@code bulkIndex} on the {@link JSONEventLayoutV1} so that every event carries its action line.
+ */
+@Plugin(name = "LogstashHttp", category = "Core", elementType = "appender", printObject = true)
+public final class HttpAppender extends AbstractAppender {
+
+	public static final long DEFAULT_SHUTDOWN_TIMEOUT = 5000;
+
+	private final HttpShipper shipper;
+	private final long shutdownTimeout;
+
+	private HttpAppender(String name, Layout<? extends Serializable> layout, Filter filter, boolean ignoreExceptions,
+		HttpShipper shipper, long shutdownTimeout) {
+		super(name, filter, layout, ignoreExceptions);
+		this.shipper = shipper;
+		this.shutdownTimeout = shutdownTimeout;
+	}
+
+	/**
+	 * @param name
+	 * 	The name of the appender.
+	 * @param url
+	 * 	The endpoint, e.g. {@code http://logstash:8080} or {@code http://elasticsearch:9200/_bulk}.
+	 * @param compress
+	 * 	False to send the batches uncompressed.
+	 * @param bufferSize
+	 * 	The number of events waiting to be batched, rounded up to a power of two.
+	 * @param batchSize
+	 * 	The number of uncompressed bytes after which a batch is sent.
+	 * @param linger
+	 * 	The milliseconds a batch waits for more events before it is sent.
+	 * @param inFlight
+	 * 	The number of requests sent concurrently.
+	 * @param maxPendingBytes
+	 * 	The number of compressed bytes of batches waiting to be sent or retried.
+	 * @param overflowPolicy
+	 * 	What to do with new events while the buffer is full: "block", "drop_oldest" or "drop_newest".
+	 * @param reconnectDelay
+	 * 	The milliseconds to wait before the first retry of a batch, doubled after every further one.
+	 * @param maxReconnectDelay
+	 * 	The longest wait between two attempts.
+	 * @param shutdownTimeout
+	 * 	The milliseconds to wait on stop for the queued events to be sent.
+	 * @param spoolDirectory
+	 * 	A directory to spool events to while the endpoint cannot keep up, see {@link DiskSpool}.
+	 * @param spoolSegmentSize
+	 * 	The size of the spool's segment files.
+	 * @param spoolMaxBytes
+	 * 	The disk space the spool may take, beyond which events are dropped.
+	 * @param ignoreExceptions
+	 * 	Whether exceptions are logged instead of being passed to the caller.
+	 * @param layout
+	 * 	The layout, a {@link JSONEventLayoutV1} if none is given.
+	 * @param filter
+	 * 	The filter, if any.
+	 * @return The appender, or null if the configuration is incomplete.
+	 */
+	@PluginFactory
+	public static HttpAppender createAppender(
+		@PluginAttribute(value = "name") String name,
+		@PluginAttribute(value = "url") String url,
+		@PluginAttribute(value = "compress", defaultBoolean = true) boolean compress,
+		@PluginAttribute(value = "bufferSize", defaultInt = EventShipper.DEFAULT_BUFFER_SIZE) int bufferSize,
+		@PluginAttribute(value = "batchSize", defaultInt = HttpShipper.DEFAULT_BATCH_SIZE) int batchSize,
+		@PluginAttribute(value = "linger", defaultLong = HttpShipper.DEFAULT_LINGER) long linger,
+		@PluginAttribute(value = "inFlight", defaultInt = HttpShipper.DEFAULT_IN_FLIGHT) int inFlight,
+		@PluginAttribute(value = "maxPendingBytes", defaultLong = HttpShipper.DEFAULT_MAX_PENDING_BYTES) long maxPendingBytes,
+		@PluginAttribute(value = "overflowPolicy", defaultString = "block") String overflowPolicy,
+		@PluginAttribute(value = "reconnectDelay", defaultLong = EventShipper.DEFAULT_RECONNECT_DELAY) long reconnectDelay,
+		@PluginAttribute(value = "maxReconnectDelay", defaultLong = EventShipper.DEFAULT_MAX_RECONNECT_DELAY) long maxReconnectDelay,
+		@PluginAttribute(value = "shutdownTimeout", defaultLong = DEFAULT_SHUTDOWN_TIMEOUT) long shutdownTimeout,
+		@PluginAttribute(value = "spoolDirectory") String spoolDirectory,
+		@PluginAttribute(value = "spoolSegmentSize", defaultInt = DiskSpool.DEFAULT_SEGMENT_SIZE) int spoolSegmentSize,
+		@PluginAttribute(value = "spoolMaxBytes", defaultLong = DiskSpool.DEFAULT_MAX_BYTES) long spoolMaxBytes,
+		@PluginAttribute(value = "ignoreExceptions", defaultBoolean = true) boolean ignoreExceptions,
+		@PluginElement("Layout") Layout<? extends Serializable> layout,
+		@PluginElement("Filter") Filter filter) {
+		if (name == null) {
+			LOGGER.error("No name provided for HttpAppender");
+			return null;
+		}
+		if (url == null) {
+			LOGGER.error("No url provided for HttpAppender " + name);
+			return null;
+		}
+		if (layout == null) {
+			layout = new JSONEventLayoutV1(false, null, JsonWriter.UTF_8);
+		}
+		DiskSpool spool = null;
+		if (spoolDirectory != null) {
+			try {
+				spool = new DiskSpool(new File(spoolDirectory), spoolSegmentSize, spoolMaxBytes);
+			} catch (IOException e) {
+				LOGGER.error("Could not open spool " + spoolDirectory + " for HttpAppender " + name, e);
+				return null;
+			}
+		}
+		final String appenderName = name;
+		try {
+			HttpShipper shipper = new HttpShipper(url, layout.getContentType(), compress, bufferSize, batchSize, linger, inFlight,
+				maxPendingBytes, EventShipper.OverflowPolicy.parse(overflowPolicy), reconnectDelay, maxReconnectDelay,
+				new EventShipper.ErrorReporter() {
+					public void error(String message, Exception e) {
+						LOGGER.error("HttpAppender " + appenderName + ": " + message, e);
+					}
+				});
+			if (spool != null) {
+				shipper.spoolTo(spool);
+			}
+			return new HttpAppender(name, layout, filter, ignoreExceptions, shipper, shutdownTimeout);
+		} catch (MalformedURLException e) {
+			LOGGER.error("Invalid url " + url + " for HttpAppender " + name, e);
+			if (spool != null) {
+				spool.close();
+			}
+			return null;
+		}
+	}
+
+	public void append(LogEvent event) {
+		this.shipper.send(getLayout().toByteArray(event));
+	}
+
+	/**
+	 * Stops accepting events and waits up to {@code shutdownTimeout} milliseconds for the queued ones to be sent.
+	 */
+	@Override
+	public void stop() {
+		super.stop();
+		this.shipper.close(this.shutdownTimeout);
+	}
+
+	/**
+	 * @return The number of events dropped by the overflow policy, rejected by the endpoint or left unsent on stop.
+	 */
+	public long getDroppedEvents() {
+		return this.shipper.getDroppedEvents();
+	}
+
+	/**
+	 * @return The number of events in batches the endpoint accepted.
+	 */
+	public long getAcknowledgedEvents() {
+		return this.shipper.getAcknowledgedEvents();
+	}
+}
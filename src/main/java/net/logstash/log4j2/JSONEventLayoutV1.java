@@ -1,11 +1,14 @@
 package net.logstash.log4j2;
 
 import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.TimeZone;
+import java.util.Set;
 
-import org.apache.commons.lang.time.FastDateFormat;
+import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.config.plugins.Plugin;
 import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
@@ -14,7 +17,20 @@ import org.apache.logging.log4j.core.impl.ThrowableProxy;
 import org.apache.logging.log4j.core.layout.AbstractStringLayout;
 
 import net.logstash.data.HostData;
-import net.minidev.json.JSONObject;
+import net.logstash.json.BinaryWriter;
+import net.logstash.json.BulkAction;
+import net.logstash.json.ByteDestination;
+import net.logstash.json.ConstantFields;
+import net.logstash.json.FieldPlan;
+import net.logstash.json.JsonWriter;
+import net.logstash.json.LocationPolicy;
+import net.logstash.json.MdcFragmentCache;
+import net.logstash.json.OutputFormat;
+import net.logstash.json.StackTraceDeduplicator;
+import net.logstash.json.StackTraceWriter;
+import net.logstash.json.StringFragmentCache;
+import net.logstash.json.TimestampFormatter;
+import net.logstash.json.TokenWriter;
 
 /**
  * @author michaelkuechler
@@ -30,54 +46,207 @@ public class JSONEventLayoutV1 extends AbstractStringLayout {
 	 * 	log4j properties with the same name.
 	 * @param charset
 	 * 	The character set to use, defaults to "UTF-8".
+	 * @param timestampPrecision
+	 * 	Fraction digits of "@timestamp". log4j 2.0 events only carry milliseconds, so "microseconds" and "nanoseconds"
+	 * 	are refused with a warning and "milliseconds" is used.
+	 * @param stackTraceDedup
+	 * 	If "true", a stack trace seen within the dedup window is written as "stacktrace_hash" only, defaults to false.
+	 * @param stackTraceDedupWindow
+	 * 	Milliseconds after which a known stack trace is written in full again, 0 to wait for its eviction from the
+	 * 	cache. Defaults to 60000.
+	 * @param stackTraceDedupCacheSize
+	 * 	Number of stack trace fingerprints to remember, defaults to 1024.
+	 * @param stackTraceFormat
+	 * 	"text" (default) for a single "stacktrace" string, "structured" for a "causes" array holding the class,
+	 * 	message and frames of the exception and each of its causes.
+	 * @param stackTraceMaxFrames
+	 * 	Maximum number of frames written per exception and cause, defaults to 0 for all frames.
+	 * @param stackTraceExcludes
+	 * 	Comma separated class name prefixes of frames to leave out of stack traces, e.g.
+	 * 	{@code sun.reflect.,java.lang.reflect.,com.sun.proxy.}.
+	 * @param stackTraceFoldCommonFrames
+	 * 	If "true", the frames a cause shares with its enclosing trace are written as "... n more", defaults to true.
+	 * 	Setting any of the stack trace options renders the trace from its frames instead of log4j's extended
+	 * 	stack trace, which leaves out the jar and version of each frame.
+	 * @param locationPolicy
+	 * 	For which events the location information is included, overrides locationInfo: "always", "never",
+	 * 	"threshold:LEVEL" for events at or above LEVEL, or "sampled:N" for every Nth event.
+	 * @param dropFields
+	 * 	Comma separated fields to leave out, any of "message", "exception", "file", "line_number", "class", "method",
+	 * 	"logger_name", "mdc", "ndc", "level", "thread_name" and "source_host". Dropped fields are not even looked up.
+	 * @param renameFields
+	 * 	Comma separated renames of these fields, e.g. {@code logger_name:logger,thread_name:thread}.
+	 * @param mdcIncludes
+	 * 	Comma separated MDC keys to write, all keys are written if not set.
+	 * @param mdcExcludes
+	 * 	Comma separated MDC keys to leave out.
+	 * @param outputFormat
+	 * 	"json" (default), or "cbor", "smile" or "msgpack" for the same document in a binary encoding. Binary formats
+	 * 	apply to the bytes handed to appenders, {@link #toSerializable(LogEvent)} always returns JSON.
+	 * @param bulkIndex
+	 * 	If set, every event is preceded by an Elasticsearch bulk API "index" action for this index, where
+	 * 	{@code %{+FORMAT}} is replaced by the event's timestamp, e.g. {@code logstash-%{+yyyy.MM.dd}}. Bulk output is
+	 * 	always JSON, whatever the output format.
+	 * @param bulkGenerateIds
+	 * 	If "true", every bulk action carries a generated "_id", so that a retried bulk request does not duplicate its
+	 * 	documents. Defaults to false.
 	 * @return A JSON Layout customized for logstash.
 	 */
 	@PluginFactory
 	public static JSONEventLayoutV1 createLayout(
 		@PluginAttribute(value = "locationInfo", defaultBoolean = false) boolean locationInfo,
 		@PluginAttribute(value = "userFields") String userFields,
-		@PluginAttribute(value = "charset", defaultString = "UTF-8") Charset charset)
+		@PluginAttribute(value = "charset", defaultString = "UTF-8") Charset charset,
+		@PluginAttribute(value = "timestampPrecision", defaultString = "milliseconds") String timestampPrecision,
+		@PluginAttribute(value = "stackTraceDedup", defaultBoolean = false) boolean stackTraceDedup,
+		@PluginAttribute(value = "stackTraceDedupWindow", defaultLong = StackTraceDeduplicator.DEFAULT_WINDOW_MILLIS) long stackTraceDedupWindow,
+		@PluginAttribute(value = "stackTraceDedupCacheSize", defaultInt = StackTraceDeduplicator.DEFAULT_CACHE_SIZE) int stackTraceDedupCacheSize,
+		@PluginAttribute(value = "stackTraceFormat", defaultString = "text") String stackTraceFormat,
+		@PluginAttribute(value = "stackTraceMaxFrames", defaultInt = 0) int stackTraceMaxFrames,
+		@PluginAttribute(value = "stackTraceExcludes") String stackTraceExcludes,
+		@PluginAttribute(value = "stackTraceFoldCommonFrames", defaultBoolean = true) boolean stackTraceFoldCommonFrames,
+		@PluginAttribute(value = "locationPolicy") String locationPolicy,
+		@PluginAttribute(value = "dropFields") String dropFields,
+		@PluginAttribute(value = "renameFields") String renameFields,
+		@PluginAttribute(value = "mdcIncludes") String mdcIncludes,
+		@PluginAttribute(value = "mdcExcludes") String mdcExcludes,
+		@PluginAttribute(value = "outputFormat", defaultString = "json") String outputFormat,
+		@PluginAttribute(value = "bulkIndex") String bulkIndex,
+		@PluginAttribute(value = "bulkGenerateIds", defaultBoolean = false) boolean bulkGenerateIds)
 	{
+		StackTraceDeduplicator deduplicator = stackTraceDedup ? new StackTraceDeduplicator(stackTraceDedupWindow, stackTraceDedupCacheSize) : null;
+		StackTraceWriter stackTraceWriter = null;
+		StackTraceWriter.Format format = StackTraceWriter.Format.parse(stackTraceFormat);
+		if (format != StackTraceWriter.Format.TEXT || stackTraceMaxFrames > 0 || stackTraceExcludes != null || !stackTraceFoldCommonFrames) {
+			stackTraceWriter = new StackTraceWriter(format, stackTraceMaxFrames, StackTraceWriter.parsePrefixes(stackTraceExcludes), stackTraceFoldCommonFrames);
+		}
+		LocationPolicy policy = locationPolicy != null ? LocationPolicy.parse(locationPolicy)
+			: locationInfo ? LocationPolicy.ALWAYS : LocationPolicy.NEVER;
+		FieldPlan fieldPlan = FieldPlan.compile(dropFields, renameFields, mdcIncludes, mdcExcludes);
+		if (TimestampFormatter.Precision.parse(timestampPrecision) != TimestampFormatter.Precision.MILLISECONDS) {
+			LOGGER.warn("log4j 2.0 events only carry milliseconds, writing @timestamp with milliseconds instead of " + timestampPrecision);
+		}
+		return new JSONEventLayoutV1(policy, userFields, charset, deduplicator,
+			stackTraceWriter, fieldPlan, OutputFormat.parse(outputFormat), bulkIndex != null ? new BulkAction(bulkIndex, bulkGenerateIds) : null);
+	}
+
+	/** Creates a layout with the defaults of all other options. */
+	public static JSONEventLayoutV1 createLayout(boolean locationInfo, String userFields, Charset charset) {
 		return new JSONEventLayoutV1(locationInfo, userFields, charset);
 	}
 
 	private static final int LOGSTASH_JSON_EVENT_VERSION = 1;
 	private static final String USER_FIELDS_PROPERTY = "net.logstash.log4j2.JSONEventLayoutV1.UserFields";
-	private static final FastDateFormat ISO_DATETIME_TIME_ZONE_FORMAT_WITH_MILLIS = FastDateFormat.getInstance("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", TimeZone.getTimeZone("UTC"));
+
+	private static final byte[] TIMESTAMP_FIELD = JsonWriter.fieldName("@timestamp");
+	private static final byte[] EXCEPTION_CLASS_FIELD = JsonWriter.fieldName("exception_class");
+	private static final byte[] EXCEPTION_MESSAGE_FIELD = JsonWriter.fieldName("exception_message");
+	private static final byte[] STACKTRACE_FIELD = JsonWriter.fieldName("stacktrace");
+	private static final byte[] STACKTRACE_HASH_FIELD = JsonWriter.fieldName("stacktrace_hash");
+
+	/** Fields written by the layout itself; user fields with these names are ignored since the layout's value wins. */
+	private static final Set<String> RESERVED_FIELDS = new HashSet<String>(Arrays.asList(
+		"@version", "@timestamp", "source_host", "message", "exception", "file", "line_number",
+		"class", "method", "logger_name", "mdc", "ndc", "level", "thread_name"));
 
 	public static String dateFormat(long timestamp) {
-		return ISO_DATETIME_TIME_ZONE_FORMAT_WITH_MILLIS.format(timestamp);
+		return TimestampFormatter.format(timestamp);
 	}
 
 	private final String whoami = this.getClass().getSimpleName();
-	private Map<String, Object> userFields = new HashMap<String, Object>();
+	private final String log4jPropertyUserFields;
 	private final String hostname = new HostData().getHostName();
+	private volatile ConstantFields constantFields;
+
+	/** for which events the location is written, with the level of a threshold policy */
+	private final LocationPolicy locationPolicy;
+	private final Level locationThreshold;
+
+	/** replaces repeated stack traces with their hash, null to always write them */
+	private final StackTraceDeduplicator stackTraceDeduplicator;
+
+	/** renders stack traces from their frames, null for log4j's extended stack trace */
+	private final StackTraceWriter stackTraceWriter;
+
+	/** which fields are written and under which names */
+	private final FieldPlan fieldPlan;
+
+	/** the encoding of the bytes handed to appenders */
+	private final OutputFormat outputFormat;
+
+	/** the bulk action written before every event, null for plain NDJSON */
+	private final BulkAction bulkAction;
 
-	/** @see #createLayout(boolean, String, Charset) */
-	private boolean locationInfo = false;
+	private final boolean utf8;
 
-	/** @see #createLayout(boolean, String, Charset) */
+	/** encoded "mdc" objects, ThreadContext replaces its immutable map on every change so identity is enough */
+	private final MdcFragmentCache mdcCache = new MdcFragmentCache();
+
+	/** encoded logger names, levels, thread names and location fields, which take few distinct values */
+	private final StringFragmentCache strings = new StringFragmentCache();
+
+	/** Creates a layout with the defaults of all other options. */
 	public JSONEventLayoutV1(boolean locationInfo, String userFields, Charset charset) {
+		this(locationInfo ? LocationPolicy.ALWAYS : LocationPolicy.NEVER, userFields, charset, null, null, FieldPlan.DEFAULT,
+			OutputFormat.JSON, null);
+	}
+
+	private JSONEventLayoutV1(LocationPolicy locationPolicy, String userFields, Charset charset,
+		StackTraceDeduplicator stackTraceDeduplicator, StackTraceWriter stackTraceWriter, FieldPlan fieldPlan, OutputFormat outputFormat,
+		BulkAction bulkAction) {
 		super(charset);
-		this.locationInfo = locationInfo;
-		this.userFields = createUserFields(userFields);
+		this.utf8 = JsonWriter.UTF_8.equals(charset);
+		this.locationPolicy = locationPolicy;
+		this.locationThreshold = locationPolicy.getMode() == LocationPolicy.Mode.THRESHOLD
+			? Level.toLevel(locationPolicy.getThreshold(), null) : null;
+		if (locationPolicy.getMode() == LocationPolicy.Mode.THRESHOLD && locationThreshold == null) {
+			throw new IllegalArgumentException("Unknown level in location policy: " + locationPolicy);
+		}
+		this.stackTraceDeduplicator = stackTraceDeduplicator;
+		this.stackTraceWriter = stackTraceWriter;
+		this.fieldPlan = fieldPlan;
+		this.outputFormat = bulkAction != null ? OutputFormat.JSON : outputFormat;
+		this.bulkAction = bulkAction;
+		this.log4jPropertyUserFields = userFields;
+		this.constantFields = createConstantFields(System.getProperty(USER_FIELDS_PROPERTY));
 	}
 
-	private Map<String, Object> createUserFields(String log4jPropertyUserFields) {
-		Map<String, Object> userFields = new HashMap<String, Object>();
+	/**
+	 * Encodes "@version", the user fields and "source_host" once; they are copied into every event as is.
+	 */
+	private ConstantFields createConstantFields(String systemPropertyUserFields) {
+		Map<String, Object> fields = new LinkedHashMap<String, Object>();
+		fields.put("@version", LOGSTASH_JSON_EVENT_VERSION);
+		Set<String> reserved = new HashSet<String>(RESERVED_FIELDS);
+		reserved.addAll(this.fieldPlan.outputNames());
 
 		// extract user fields from log4j config, if defined
-		LOGGER.debug("["+this.whoami+"] Adding user fields from log4j property: "+ log4jPropertyUserFields);
-		appendUserFields(userFields, log4jPropertyUserFields);
+		LOGGER.debug("["+this.whoami+"] Adding user fields from log4j property: "+ this.log4jPropertyUserFields);
+		ConstantFields.parseUserFields(this.log4jPropertyUserFields, fields, reserved);
 
 		// extract user fields from system properties, if defined. Note that CLI props will override conflicts with log4j config
-		String systemPropertyUserFields = System.getProperty(USER_FIELDS_PROPERTY);
 		if (systemPropertyUserFields != null) {
 			LOGGER.debug("["+this.whoami+"] Adding user fields from system property: " + systemPropertyUserFields);
-			appendUserFields(userFields, systemPropertyUserFields);
+			ConstantFields.parseUserFields(systemPropertyUserFields, fields, reserved);
 		}
 
-		return userFields;
+		if (this.fieldPlan.includes(FieldPlan.SOURCE_HOST)) {
+			fields.put(this.fieldPlan.outputName(FieldPlan.SOURCE_HOST), this.hostname);
+		}
+		return new ConstantFields(fields, systemPropertyUserFields);
+	}
+
+	/**
+	 * Returns the pre-encoded constant fields, rebuilding them if the user fields system property changed.
+	 */
+	private ConstantFields constantFields() {
+		String systemPropertyUserFields = System.getProperty(USER_FIELDS_PROPERTY);
+		ConstantFields fields = this.constantFields;
+		if (!fields.isBuiltFrom(systemPropertyUserFields)) {
+			fields = createConstantFields(systemPropertyUserFields);
+			this.constantFields = fields;
+		}
+		return fields;
 	}
 
 	/**
@@ -88,54 +257,170 @@ public class JSONEventLayoutV1 extends AbstractStringLayout {
 	 * @return The JSON representation of the LogEvent tailored for logstash.
 	 */
 	public String toSerializable(LogEvent event) {
-		return toLogstashEvent(event).toString() + "\n";
+		JsonWriter writer = JsonWriter.acquire();
+		try {
+			encode(event, writer);
+			return writer.toString();
+		} finally {
+			writer.release();
+		}
 	}
 
+	/**
+	 * Encodes a {@link org.apache.logging.log4j.core.LogEvent} straight from the layout's byte buffer, without
+	 * building the intermediate String that {@link AbstractStringLayout#toByteArray(LogEvent)} would create.
+	 *
+	 * @param event
+	 * 	The LogEvent.
+	 * @return The JSON representation of the LogEvent in the layout's charset, or its binary encoding if an
+	 * 	output format other than JSON is configured.
+	 */
+	@Override
+	public byte[] toByteArray(LogEvent event) {
+		if (this.outputFormat.isBinary()) {
+			BinaryWriter binary = BinaryWriter.acquire(this.outputFormat);
+			try {
+				binary.writeStartDocument();
+				writeEvent(event, binary);
+				return binary.toByteArray();
+			} finally {
+				binary.release();
+			}
+		}
+		JsonWriter writer = JsonWriter.acquire();
+		try {
+			encode(event, writer);
+			if (this.utf8) {
+				return writer.toByteArray();
+			}
+			return writer.toString().getBytes(getCharset());
+		} finally {
+			writer.release();
+		}
+	}
+
+	/**
+	 * Garbage-free counterpart of {@link #toByteArray(LogEvent)}: encodes the LogEvent into the destination's
+	 * buffer using the calling thread's reusable writer and, for charsets other than UTF-8, its reusable encoder.
+	 *
+	 * @param event
+	 * 	The LogEvent.
+	 * @param destination
+	 * 	The buffer owner to write to, drained whenever it fills up.
+	 */
+	public void encode(LogEvent event, ByteDestination destination) {
+		if (this.outputFormat.isBinary()) {
+			BinaryWriter binary = BinaryWriter.acquire(this.outputFormat);
+			try {
+				binary.writeStartDocument();
+				writeEvent(event, binary);
+				binary.writeTo(destination);
+			} finally {
+				binary.release();
+			}
+			return;
+		}
+		JsonWriter writer = JsonWriter.acquire();
+		try {
+			encode(event, writer);
+			writer.writeTo(destination, getCharset());
+		} finally {
+			writer.release();
+		}
+	}
+
+	/**
+	 * Streams the JSON representation of the LogEvent, followed by a newline, into {@code writer}.
+	 *
+	 * @param event
+	 * 	The LogEvent.
+	 * @param writer
+	 * 	The writer to append to.
+	 */
+	public void encode(LogEvent event, JsonWriter writer) {
+		if (this.bulkAction != null) {
+			this.bulkAction.write(writer, event.getTimeMillis());
+		}
+		encodeDocument(event, writer);
+	}
+
+	/**
+	 * Streams the JSON representation of the LogEvent, followed by a newline, into {@code writer}, but never the
+	 * bulk action line, for transports that frame every event on their own such as Beats.
+	 *
+	 * @param event
+	 * 	The LogEvent.
+	 * @param writer
+	 * 	The writer to append to.
+	 */
+	public void encodeDocument(LogEvent event, JsonWriter writer) {
+		writeEvent(event, writer);
+		writer.writeNewLine();
+	}
+
+	/**
+	 * Writes the LogEvent object in the writer's format.
+	 */
 	@SuppressWarnings("ThrowableResultOfMethodCallIgnored")
-	private JSONObject toLogstashEvent(LogEvent event) {
+	private void writeEvent(LogEvent event, TokenWriter writer) {
 
 		/*
 		 * NOTE: v1 of the event format only requires "@timestamp" and "@version", every other field is arbitrary
 		 */
 
-		JSONObject logstashEvent = new JSONObject(this.userFields);
-		logstashEvent.put("@timestamp", dateFormat(event.getTimeMillis()));
-		logstashEvent.put("@version", LOGSTASH_JSON_EVENT_VERSION);
+		writer.writeStartObject();
+		writer.writeFieldName(TIMESTAMP_FIELD);
+		writer.writeTimestamp(event.getTimeMillis());
+
+		// "@version", user fields and "source_host" never change between events
+		writer.writeRawFields(constantFields().getFragment());
 
 		// now we start injecting our own stuff
-		logstashEvent.put("source_host", this.hostname);
-		logstashEvent.put("message", event.getMessage().getFormattedMessage());
+		FieldPlan plan = this.fieldPlan;
+		if (plan.includes(FieldPlan.MESSAGE)) {
+			writer.writeFieldName(plan.fieldName(FieldPlan.MESSAGE));
+			writer.writeString(event.getMessage().getFormattedMessage());
+		}
 
-		if (event.getThrownProxy() != null) {
-			Map<String, Object> exceptionInformation = new HashMap<String, Object>();
+		if (event.getThrownProxy() != null && plan.includes(FieldPlan.EXCEPTION)) {
 			ThrowableProxy thrownProxy = event.getThrownProxy();
-			if (thrownProxy.getThrowable().getClass().getCanonicalName() != null) {
-				exceptionInformation.put("exception_class", thrownProxy.getThrowable().getClass().getCanonicalName());
+			writer.writeFieldName(plan.fieldName(FieldPlan.EXCEPTION));
+			writer.writeStartObject();
+			append(writer, EXCEPTION_CLASS_FIELD, thrownProxy.getThrowable().getClass().getCanonicalName());
+			append(writer, EXCEPTION_MESSAGE_FIELD, thrownProxy.getThrowable().getMessage());
+			boolean fullStackTrace = true;
+			if (this.stackTraceDeduplicator != null) {
+				long fingerprint = StackTraceDeduplicator.fingerprint(thrownProxy.getThrowable());
+				fullStackTrace = this.stackTraceDeduplicator.isFirstOccurrence(fingerprint, event.getTimeMillis());
+				writer.writeFieldName(STACKTRACE_HASH_FIELD);
+				writer.writeHexString(fingerprint);
 			}
-			if (thrownProxy.getThrowable().getMessage() != null) {
-				exceptionInformation.put("exception_message", thrownProxy.getThrowable().getMessage());
+			if (fullStackTrace && this.stackTraceWriter != null) {
+				this.stackTraceWriter.writeField(writer, thrownProxy.getThrowable());
+			} else if (fullStackTrace) {
+				append(writer, STACKTRACE_FIELD, thrownProxy.getExtendedStackTraceAsString());
 			}
-			if (thrownProxy.getExtendedStackTraceAsString() != null) {
-				exceptionInformation.put("stacktrace", thrownProxy.getExtendedStackTraceAsString());
-			}
-			append(logstashEvent, "exception", exceptionInformation);
+			writer.writeEndObject();
 		}
 
-		if (this.locationInfo) {
+		if (plan.includesLocation() && includeLocation(event)) {
 			StackTraceElement source = event.getSource();
-			append(logstashEvent, "file", source.getFileName());
-			append(logstashEvent, "line_number", source.getLineNumber());
-			append(logstashEvent, "class", source.getClassName());
-			append(logstashEvent, "method", source.getMethodName());
+			appendCached(writer, plan, FieldPlan.FILE, source.getFileName());
+			append(writer, plan, FieldPlan.LINE_NUMBER, source.getLineNumber());
+			appendCached(writer, plan, FieldPlan.CLASS, source.getClassName());
+			appendCached(writer, plan, FieldPlan.METHOD, source.getMethodName());
 		}
 
-		append(logstashEvent, "logger_name", event.getLoggerName());
-		append(logstashEvent, "mdc", event.getContextMap());
-		append(logstashEvent, "ndc", event.getContextStack().asList());
-		append(logstashEvent, "level", event.getLevel());
-		append(logstashEvent, "thread_name", event.getThreadName());
+		appendCached(writer, plan, FieldPlan.LOGGER_NAME, event.getLoggerName());
+		if (plan.includes(FieldPlan.MDC) && event.getContextMap() != null) {
+			writer.writeFieldName(plan.fieldName(FieldPlan.MDC));
+			this.mdcCache.writeByIdentity(writer, plan, event.getContextMap());
+		}
+		append(writer, plan, FieldPlan.NDC, event.getContextStack());
+		appendCached(writer, plan, FieldPlan.LEVEL, event.getLevel().toString());
+		appendCached(writer, plan, FieldPlan.THREAD_NAME, event.getThreadName());
 
-		return logstashEvent;
+		writer.writeEndObject();
 	}
 
 	public Map<String, String> getContentFormat() {
@@ -144,21 +429,65 @@ public class JSONEventLayoutV1 extends AbstractStringLayout {
 
 	@Override
 	public String getContentType() {
+		if (this.outputFormat.isBinary()) {
+			return this.outputFormat.getContentType();
+		}
 		return "application/json; charset=" + this.getCharset();
 	}
 
-	private static void appendUserFields(Map<String, Object> logstashEvent, String userFieldsString) {
-		if (userFieldsString != null ) {
-			for (String pair : userFieldsString.trim().split(",")) {
-				String[] field = pair.trim().split(":", 2);
-				append(logstashEvent, field[0], field[1]);
-			}
+	/**
+	 * @return how often a logger name, level, thread name or location field was copied from the string cache
+	 */
+	public long getStringCacheHits() {
+		return this.strings.getHits();
+	}
+
+	/**
+	 * @return how often a logger name, level, thread name or location field had to be encoded
+	 */
+	public long getStringCacheMisses() {
+		return this.strings.getMisses();
+	}
+
+	/**
+	 * @return true if {@link #encode(LogEvent, JsonWriter)} produces what {@link #toByteArray(LogEvent)} returns, so
+	 * 	that appenders can copy the writer's buffer as is
+	 */
+	boolean writesJson() {
+		return this.utf8 && !this.outputFormat.isBinary();
+	}
+
+	private boolean includeLocation(LogEvent event) {
+		switch (this.locationPolicy.getMode()) {
+			case ALWAYS:
+				return true;
+			case THRESHOLD:
+				return event.getLevel().isMoreSpecificThan(this.locationThreshold);
+			case SAMPLED:
+				return this.locationPolicy.sample();
+			default:
+				return false;
+		}
+	}
+
+	private static void append(TokenWriter writer, byte[] keyname, Object keyval) {
+		if (null != keyval) {
+			writer.writeFieldName(keyname);
+			writer.writeObject(keyval);
+		}
+	}
+
+	private static void append(TokenWriter writer, FieldPlan plan, int field, Object keyval) {
+		if (null != keyval && plan.includes(field)) {
+			writer.writeFieldName(plan.fieldName(field));
+			writer.writeObject(keyval);
 		}
 	}
 
-	private static void append(Map<String, Object> logstashEvent, String keyname, Object keyval) {
-		if (null != keyname && null != keyval) {
-			logstashEvent.put(keyname, keyval);
+	private void appendCached(TokenWriter writer, FieldPlan plan, int field, String keyval) {
+		if (null != keyval && plan.includes(field)) {
+			writer.writeFieldName(plan.fieldName(field));
+			writer.writeString(keyval, this.strings);
 		}
 	}
 }
@@ -0,0 +1,177 @@
+package net.logstash.log4j2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+
+import net.logstash.json.DiskSpool;
+import net.logstash.json.EventShipper;
+import net.logstash.json.JsonWriter;
+import net.logstash.json.LumberjackShipper;
+
+/**
+ * Appender that ships events to a Logstash {@code beats} input over the Lumberjack v2 protocol through a
+ * {@link LumberjackShipper}, with windows of events that are sent again until the peer acknowledges them.
+ * <p>
+ * The layout must be a {@link JSONEventLayoutV1}, whose JSON documents become the data frames; its output format
+ * and charset are ignored since the protocol carries UTF-8 JSON.
+ */
+@Plugin(name = "Lumberjack", category = "Core", elementType = "appender", printObject = true)
+public final class LumberjackAppender extends AbstractAppender {
+
+	public static final long DEFAULT_SHUTDOWN_TIMEOUT = 5000;
+
+	private final JSONEventLayoutV1 jsonLayout;
+	private final LumberjackShipper shipper;
+	private final long shutdownTimeout;
+
+	private LumberjackAppender(String name, JSONEventLayoutV1 layout, Filter filter, boolean ignoreExceptions, String host,
+		int port, int bufferSize, int windowSize, int pipelining, int compressionLevel, long ackTimeout,
+		EventShipper.OverflowPolicy overflowPolicy, long reconnectDelay, long maxReconnectDelay, long shutdownTimeout,
+		DiskSpool spool) {
+		super(name, filter, layout, ignoreExceptions);
+		this.jsonLayout = layout;
+		this.shutdownTimeout = shutdownTimeout;
+		this.shipper = new LumberjackShipper(host, port, bufferSize, windowSize, pipelining, compressionLevel, ackTimeout,
+			overflowPolicy, reconnectDelay, maxReconnectDelay, new EventShipper.ErrorReporter() {
+				public void error(String message, Exception e) {
+					LumberjackAppender.this.error(message, e);
+				}
+			});
+		if (spool != null) {
+			this.shipper.spoolTo(spool);
+		}
+	}
+
+	/**
+	 * @param name
+	 * 	The name of the appender.
+	 * @param host
+	 * 	The host of the Logstash beats input.
+	 * @param port
+	 * 	Its port.
+	 * @param bufferSize
+	 * 	The number of events waiting to be sent, rounded up to a power of two.
+	 * @param windowSize
+	 * 	The maximum number of events sent in one window.
+	 * @param pipelining
+	 * 	The number of windows sent before waiting for acknowledgements.
+	 * @param compressionLevel
+	 * 	The deflate level from 1 to 9, 0 to send windows uncompressed.
+	 * @param ackTimeout
+	 * 	The milliseconds to wait for an acknowledgement before reconnecting and sending again.
+	 * @param overflowPolicy
+	 * 	What to do with new events while the buffer is full: "block", "drop_oldest" or "drop_newest".
+	 * @param reconnectDelay
+	 * 	The milliseconds to wait after the first failed connection attempt, doubled after every further one.
+	 * @param maxReconnectDelay
+	 * 	The longest wait between two connection attempts.
+	 * @param shutdownTimeout
+	 * 	The milliseconds to wait on stop for the queued events to be acknowledged.
+	 * @param spoolDirectory
+	 * 	A directory to spool events to while the endpoint cannot keep up, see {@link DiskSpool}.
+	 * @param spoolSegmentSize
+	 * 	The size of the spool's segment files.
+	 * @param spoolMaxBytes
+	 * 	The disk space the spool may take, beyond which events are dropped.
+	 * @param ignoreExceptions
+	 * 	Whether exceptions are logged instead of being passed to the caller.
+	 * @param layout
+	 * 	The layout, a {@link JSONEventLayoutV1} if none is given.
+	 * @param filter
+	 * 	The filter, if any.
+	 * @return The appender, or null if the configuration is incomplete.
+	 */
+	@PluginFactory
+	public static LumberjackAppender createAppender(
+		@PluginAttribute(value = "name") String name,
+		@PluginAttribute(value = "host") String host,
+		@PluginAttribute(value = "port", defaultInt = 5044) int port,
+		@PluginAttribute(value = "bufferSize", defaultInt = EventShipper.DEFAULT_BUFFER_SIZE) int bufferSize,
+		@PluginAttribute(value = "windowSize", defaultInt = LumberjackShipper.DEFAULT_WINDOW_SIZE) int windowSize,
+		@PluginAttribute(value = "pipelining", defaultInt = LumberjackShipper.DEFAULT_PIPELINING) int pipelining,
+		@PluginAttribute(value = "compressionLevel", defaultInt = LumberjackShipper.DEFAULT_COMPRESSION_LEVEL) int compressionLevel,
+		@PluginAttribute(value = "ackTimeout", defaultLong = LumberjackShipper.DEFAULT_ACK_TIMEOUT) long ackTimeout,
+		@PluginAttribute(value = "overflowPolicy", defaultString = "block") String overflowPolicy,
+		@PluginAttribute(value = "reconnectDelay", defaultLong = EventShipper.DEFAULT_RECONNECT_DELAY) long reconnectDelay,
+		@PluginAttribute(value = "maxReconnectDelay", defaultLong = EventShipper.DEFAULT_MAX_RECONNECT_DELAY) long maxReconnectDelay,
+		@PluginAttribute(value = "shutdownTimeout", defaultLong = DEFAULT_SHUTDOWN_TIMEOUT) long shutdownTimeout,
+		@PluginAttribute(value = "spoolDirectory") String spoolDirectory,
+		@PluginAttribute(value = "spoolSegmentSize", defaultInt = DiskSpool.DEFAULT_SEGMENT_SIZE) int spoolSegmentSize,
+		@PluginAttribute(value = "spoolMaxBytes", defaultLong = DiskSpool.DEFAULT_MAX_BYTES) long spoolMaxBytes,
+		@PluginAttribute(value = "ignoreExceptions", defaultBoolean = true) boolean ignoreExceptions,
+		@PluginElement("Layout") Layout<? extends Serializable> layout,
+		@PluginElement("Filter") Filter filter) {
+		if (name == null) {
+			LOGGER.error("No name provided for LumberjackAppender");
+			return null;
+		}
+		if (host == null) {
+			LOGGER.error("No host provided for LumberjackAppender " + name);
+			return null;
+		}
+		if (layout == null) {
+			layout = new JSONEventLayoutV1(false, null, JsonWriter.UTF_8);
+		} else if (!(layout instanceof JSONEventLayoutV1)) {
+			LOGGER.error("LumberjackAppender " + name + " needs a JSONEventLayoutV1 layout, not " + layout.getClass().getName());
+			return null;
+		}
+		DiskSpool spool = null;
+		if (spoolDirectory != null) {
+			try {
+				spool = new DiskSpool(new File(spoolDirectory), spoolSegmentSize, spoolMaxBytes);
+			} catch (IOException e) {
+				LOGGER.error("Could not open spool " + spoolDirectory + " for LumberjackAppender " + name, e);
+				return null;
+			}
+		}
+		return new LumberjackAppender(name, (JSONEventLayoutV1) layout, filter, ignoreExceptions, host, port, bufferSize,
+			windowSize, pipelining, compressionLevel, ackTimeout, EventShipper.OverflowPolicy.parse(overflowPolicy), reconnectDelay,
+			maxReconnectDelay, shutdownTimeout, spool);
+	}
+
+	public void append(LogEvent event) {
+		byte[] encoded;
+		JsonWriter writer = JsonWriter.acquire();
+		try {
+			this.jsonLayout.encodeDocument(event, writer);
+			encoded = writer.toByteArray();
+		} finally {
+			writer.release();
+		}
+		this.shipper.send(encoded);
+	}
+
+	/**
+	 * Stops accepting events and waits up to {@code shutdownTimeout} milliseconds for the queued ones to be
+	 * acknowledged.
+	 */
+	@Override
+	public void stop() {
+		super.stop();
+		this.shipper.close(this.shutdownTimeout);
+	}
+
+	/**
+	 * @return The number of events dropped by the overflow policy or left unacknowledged on stop.
+	 */
+	public long getDroppedEvents() {
+		return this.shipper.getDroppedEvents();
+	}
+
+	/**
+	 * @return The number of events the remote host acknowledged.
+	 */
+	public long getAcknowledgedEvents() {
+		return this.shipper.getAcknowledgedEvents();
+	}
+}
@@ -0,0 +1,138 @@
+package net.logstash.log4j2;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+
+import net.logstash.json.JsonWriter;
+import net.logstash.json.MappedSegmentFile;
+
+/**
+ * Appender that copies encoded events straight into memory-mapped file segments.
+ * <p>
+ * Events are written to {@code <fileName>.active}, which is completed as {@code <fileName>.000001},
+ * {@code <fileName>.000002} and so on once the next event does not fit into {@code segmentSize} bytes, or once it
+ * is older than {@code maxSegmentAge} milliseconds. Shippers such as Filebeat should harvest the completed segments
+ * only. See {@link MappedSegmentFile} for the {@code durability} options.
+ * <p>
+ * A {@link JSONEventLayoutV1} with a UTF-8 charset encodes each event into the calling thread's reusable buffer,
+ * outside of any lock, which is then copied into the segment as is; other layouts are written through
+ * {@link Layout#toByteArray(LogEvent)}.
+ */
+@Plugin(name = "MappedFile", category = "Core", elementType = "appender", printObject = true)
+public final class MappedFileAppender extends AbstractAppender {
+
+	private final MappedSegmentFile file;
+
+	private MappedFileAppender(String name, Layout<? extends Serializable> layout, Filter filter, boolean ignoreExceptions,
+		MappedSegmentFile file) {
+		super(name, filter, layout, ignoreExceptions);
+		this.file = file;
+	}
+
+	/**
+	 * @param name
+	 * 	The name of the appender.
+	 * @param fileName
+	 * 	The name completed segments are numbered after.
+	 * @param segmentSize
+	 * 	The size of a segment in bytes, 64MB by default.
+	 * @param durability
+	 * 	"page_cache" to leave writing back to the operating system, or "periodic" to force the segment to disk every
+	 * 	{@code forceInterval} milliseconds.
+	 * @param forceInterval
+	 * 	The milliseconds between two forces with periodic durability.
+	 * @param maxSegmentAge
+	 * 	The milliseconds after which a segment is completed even if it is not full, 0 to complete segments only when
+	 * 	full.
+	 * @param ignoreExceptions
+	 * 	Whether exceptions are logged instead of being passed to the caller.
+	 * @param layout
+	 * 	The layout, a {@link JSONEventLayoutV1} if none is given.
+	 * @param filter
+	 * 	The filter, if any.
+	 * @return The appender, or null if the file could not be opened.
+	 */
+	@PluginFactory
+	public static MappedFileAppender createAppender(
+		@PluginAttribute(value = "name") String name,
+		@PluginAttribute(value = "fileName") String fileName,
+		@PluginAttribute(value = "segmentSize", defaultInt = MappedSegmentFile.DEFAULT_SEGMENT_SIZE) int segmentSize,
+		@PluginAttribute(value = "durability", defaultString = "page_cache") String durability,
+		@PluginAttribute(value = "forceInterval", defaultLong = MappedSegmentFile.DEFAULT_FORCE_INTERVAL) long forceInterval,
+		@PluginAttribute(value = "maxSegmentAge", defaultLong = 0) long maxSegmentAge,
+		@PluginAttribute(value = "ignoreExceptions", defaultBoolean = true) boolean ignoreExceptions,
+		@PluginElement("Layout") Layout<? extends Serializable> layout,
+		@PluginElement("Filter") Filter filter) {
+		if (name == null) {
+			LOGGER.error("No name provided for MappedFileAppender");
+			return null;
+		}
+		if (fileName == null) {
+			LOGGER.error("No fileName provided for MappedFileAppender " + name);
+			return null;
+		}
+		if (layout == null) {
+			layout = new JSONEventLayoutV1(false, null, JsonWriter.UTF_8);
+		}
+		try {
+			MappedSegmentFile file = new MappedSegmentFile(fileName, segmentSize, MappedSegmentFile.Durability.parse(durability),
+				forceInterval, maxSegmentAge);
+			return new MappedFileAppender(name, layout, filter, ignoreExceptions, file);
+		} catch (IOException e) {
+			LOGGER.error("Could not open " + fileName + " for MappedFileAppender " + name, e);
+			return null;
+		}
+	}
+
+	public void append(LogEvent event) {
+		Layout<? extends Serializable> layout = getLayout();
+		try {
+			if (layout instanceof JSONEventLayoutV1 && ((JSONEventLayoutV1) layout).writesJson()) {
+				JsonWriter writer = JsonWriter.acquire();
+				try {
+					((JSONEventLayoutV1) layout).encode(event, writer);
+					this.file.write(writer);
+				} finally {
+					writer.release();
+				}
+			} else {
+				this.file.write(layout.toByteArray(event));
+			}
+		} catch (IOException e) {
+			error("Could not write to " + this.file.getFile(), event, e);
+			if (!ignoreExceptions()) {
+				throw new AppenderLoggingException(e);
+			}
+		}
+	}
+
+	/**
+	 * Completes the active segment so that it can be harvested.
+	 */
+	@Override
+	public void stop() {
+		super.stop();
+		try {
+			this.file.close();
+		} catch (IOException e) {
+			LOGGER.error("Could not close " + this.file.getFile(), e);
+		}
+	}
+
+	/**
+	 * @return The segment file the appender writes to.
+	 */
+	public MappedSegmentFile getSegmentFile() {
+		return this.file;
+	}
+}
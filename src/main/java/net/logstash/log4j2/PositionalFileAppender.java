@@ -0,0 +1,120 @@
+package net.logstash.log4j2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.appender.AppenderLoggingException;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+
+import net.logstash.json.JsonWriter;
+import net.logstash.json.PositionalFile;
+
+/**
+ * Synchronous file appender that lets threads format and write at the same time: unlike the {@code File} appender,
+ * whose {@code OutputStreamManager} writes under a lock, each thread encodes its event into its own buffer, reserves
+ * the event's region of the file with an atomic increment and writes it there with a positional write, through a
+ * {@link PositionalFile}. Lines are never interleaved.
+ * <p>
+ * A {@link JSONEventLayoutV1} with a UTF-8 charset encodes each event into the calling thread's reusable buffer;
+ * other layouts are written through {@link Layout#toByteArray(LogEvent)}.
+ */
+@Plugin(name = "PositionalFile", category = "Core", elementType = "appender", printObject = true)
+public final class PositionalFileAppender extends AbstractAppender {
+
+	private final PositionalFile file;
+
+	private PositionalFileAppender(String name, Layout<? extends Serializable> layout, Filter filter, boolean ignoreExceptions,
+		PositionalFile file) {
+		super(name, filter, layout, ignoreExceptions);
+		this.file = file;
+	}
+
+	/**
+	 * @param name
+	 * 	The name of the appender.
+	 * @param fileName
+	 * 	The file to write to.
+	 * @param append
+	 * 	Whether events are written after the current content of the file, or the file is truncated.
+	 * @param ignoreExceptions
+	 * 	Whether exceptions are logged instead of being passed to the caller.
+	 * @param layout
+	 * 	The layout, a {@link JSONEventLayoutV1} if none is given.
+	 * @param filter
+	 * 	The filter, if any.
+	 * @return The appender, or null if the file could not be opened.
+	 */
+	@PluginFactory
+	public static PositionalFileAppender createAppender(
+		@PluginAttribute(value = "name") String name,
+		@PluginAttribute(value = "fileName") String fileName,
+		@PluginAttribute(value = "append", defaultBoolean = true) boolean append,
+		@PluginAttribute(value = "ignoreExceptions", defaultBoolean = true) boolean ignoreExceptions,
+		@PluginElement("Layout") Layout<? extends Serializable> layout,
+		@PluginElement("Filter") Filter filter) {
+		if (name == null) {
+			LOGGER.error("No name provided for PositionalFileAppender");
+			return null;
+		}
+		if (fileName == null) {
+			LOGGER.error("No fileName provided for PositionalFileAppender " + name);
+			return null;
+		}
+		if (layout == null) {
+			layout = new JSONEventLayoutV1(false, null, JsonWriter.UTF_8);
+		}
+		try {
+			return new PositionalFileAppender(name, layout, filter, ignoreExceptions, new PositionalFile(new File(fileName), append));
+		} catch (IOException e) {
+			LOGGER.error("Could not open " + fileName + " for PositionalFileAppender " + name, e);
+			return null;
+		}
+	}
+
+	public void append(LogEvent event) {
+		Layout<? extends Serializable> layout = getLayout();
+		try {
+			if (layout instanceof JSONEventLayoutV1 && ((JSONEventLayoutV1) layout).writesJson()) {
+				JsonWriter writer = JsonWriter.acquire();
+				try {
+					((JSONEventLayoutV1) layout).encode(event, writer);
+					this.file.write(writer);
+				} finally {
+					writer.release();
+				}
+			} else {
+				this.file.write(layout.toByteArray(event));
+			}
+		} catch (IOException e) {
+			error("Could not write to " + this.file.getFile(), event, e);
+			if (!ignoreExceptions()) {
+				throw new AppenderLoggingException(e);
+			}
+		}
+	}
+
+	@Override
+	public void stop() {
+		super.stop();
+		try {
+			this.file.close();
+		} catch (IOException e) {
+			LOGGER.error("Could not close " + this.file.getFile(), e);
+		}
+	}
+
+	/**
+	 * @return The file the appender writes to.
+	 */
+	public PositionalFile getPositionalFile() {
+		return this.file;
+	}
+}
@@ -0,0 +1,121 @@
+package net.logstash.log4j2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+
+import net.logstash.json.JsonWriter;
+import net.logstash.json.SharedRingFile;
+
+/**
+ * Appender that hands encoded events to a shipper process on the same host through a {@link SharedRingFile}, a
+ * memory-mapped file of rings, without a system call per event. The shipper reads the file with a
+ * {@link net.logstash.json.SharedRingReader}.
+ * <p>
+ * Every logging thread writes to a ring of its own; once {@code ringCount - 1} threads hold a ring, further threads
+ * share the first one. When the shipper falls behind and a ring is full, the thread waits for space if
+ * {@code blocking}, otherwise the event is dropped.
+ * <p>
+ * A {@link JSONEventLayoutV1} with a UTF-8 charset encodes each event into the calling thread's reusable buffer,
+ * which is then copied into the ring as is; other layouts are written through {@link Layout#toByteArray(LogEvent)}.
+ */
+@Plugin(name = "SharedMemory", category = "Core", elementType = "appender", printObject = true)
+public final class SharedMemoryAppender extends AbstractAppender {
+
+	private final SharedRingFile file;
+
+	private SharedMemoryAppender(String name, Layout<? extends Serializable> layout, Filter filter, boolean ignoreExceptions,
+		SharedRingFile file) {
+		super(name, filter, layout, ignoreExceptions);
+		this.file = file;
+	}
+
+	/**
+	 * @param name
+	 * 	The name of the appender.
+	 * @param fileName
+	 * 	The ring file, created or initialized again.
+	 * @param ringCount
+	 * 	The number of rings in the file, the first one being shared by the threads that find no ring free.
+	 * @param ringSize
+	 * 	The capacity of a ring in bytes, rounded up to a power of two.
+	 * @param blocking
+	 * 	Whether a thread waits while its ring is full, or drops its events.
+	 * @param ignoreExceptions
+	 * 	Whether exceptions are logged instead of being passed to the caller.
+	 * @param layout
+	 * 	The layout, a {@link JSONEventLayoutV1} if none is given.
+	 * @param filter
+	 * 	The filter, if any.
+	 * @return The appender, or null if the file could not be opened.
+	 */
+	@PluginFactory
+	public static SharedMemoryAppender createAppender(
+		@PluginAttribute(value = "name") String name,
+		@PluginAttribute(value = "fileName") String fileName,
+		@PluginAttribute(value = "ringCount", defaultInt = SharedRingFile.DEFAULT_RING_COUNT) int ringCount,
+		@PluginAttribute(value = "ringSize", defaultInt = SharedRingFile.DEFAULT_RING_SIZE) int ringSize,
+		@PluginAttribute(value = "blocking", defaultBoolean = true) boolean blocking,
+		@PluginAttribute(value = "ignoreExceptions", defaultBoolean = true) boolean ignoreExceptions,
+		@PluginElement("Layout") Layout<? extends Serializable> layout,
+		@PluginElement("Filter") Filter filter) {
+		if (name == null) {
+			LOGGER.error("No name provided for SharedMemoryAppender");
+			return null;
+		}
+		if (fileName == null) {
+			LOGGER.error("No fileName provided for SharedMemoryAppender " + name);
+			return null;
+		}
+		if (layout == null) {
+			layout = new JSONEventLayoutV1(false, null, JsonWriter.UTF_8);
+		}
+		try {
+			return new SharedMemoryAppender(name, layout, filter, ignoreExceptions,
+				new SharedRingFile(new File(fileName), ringCount, ringSize, blocking));
+		} catch (IOException e) {
+			LOGGER.error("Could not open " + fileName + " for SharedMemoryAppender " + name, e);
+			return null;
+		}
+	}
+
+	public void append(LogEvent event) {
+		Layout<? extends Serializable> layout = getLayout();
+		if (layout instanceof JSONEventLayoutV1 && ((JSONEventLayoutV1) layout).writesJson()) {
+			JsonWriter writer = JsonWriter.acquire();
+			try {
+				((JSONEventLayoutV1) layout).encode(event, writer);
+				this.file.write(writer);
+			} finally {
+				writer.release();
+			}
+		} else {
+			this.file.write(layout.toByteArray(event));
+		}
+	}
+
+	/**
+	 * Marks the file closed, which tells the shipper that no more events will come.
+	 */
+	@Override
+	public void stop() {
+		super.stop();
+		this.file.close();
+	}
+
+	/**
+	 * @return The ring file the appender writes to.
+	 */
+	public SharedRingFile getRingFile() {
+		return this.file;
+	}
+}
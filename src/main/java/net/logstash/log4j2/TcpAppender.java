@@ -0,0 +1,153 @@
+package net.logstash.log4j2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+
+import net.logstash.json.DiskSpool;
+import net.logstash.json.JsonWriter;
+import net.logstash.json.TcpShipper;
+
+/**
+ * Appender that ships events to a Logstash {@code tcp} input (codec {@code json_lines}) through a
+ * {@link TcpShipper}, so that the logging thread never writes to the socket itself.
+ * <p>
+ * The logging thread encodes the event and queues the bytes; a single I/O thread sends them in large gathering
+ * writes and reconnects with backoff when the connection fails. When the peer is slow or unreachable and
+ * {@code bufferSize} events are waiting, {@code overflowPolicy} decides between waiting ({@code block}), dropping
+ * the oldest ({@code drop_oldest}) or the new event ({@code drop_newest}).
+ */
+@Plugin(name = "LogstashTcp", category = "Core", elementType = "appender", printObject = true)
+public final class TcpAppender extends AbstractAppender {
+
+	public static final long DEFAULT_SHUTDOWN_TIMEOUT = 5000;
+
+	private final TcpShipper shipper;
+	private final long shutdownTimeout;
+
+	private TcpAppender(String name, Layout<? extends Serializable> layout, Filter filter, boolean ignoreExceptions,
+		String host, int port, int bufferSize, int batchSize, TcpShipper.OverflowPolicy overflowPolicy, long reconnectDelay,
+		long maxReconnectDelay, long shutdownTimeout, DiskSpool spool) {
+		super(name, filter, layout, ignoreExceptions);
+		this.shutdownTimeout = shutdownTimeout;
+		this.shipper = new TcpShipper(host, port, bufferSize, batchSize, overflowPolicy, reconnectDelay, maxReconnectDelay,
+			new TcpShipper.ErrorReporter() {
+				public void error(String message, Exception e) {
+					TcpAppender.this.error(message, e);
+				}
+			});
+		if (spool != null) {
+			this.shipper.spoolTo(spool);
+		}
+	}
+
+	/**
+	 * @param name
+	 * 	The name of the appender.
+	 * @param host
+	 * 	The host of the Logstash tcp input.
+	 * @param port
+	 * 	Its port.
+	 * @param bufferSize
+	 * 	The number of events waiting to be sent, rounded up to a power of two.
+	 * @param batchSize
+	 * 	The number of bytes sent with one gathering write.
+	 * @param overflowPolicy
+	 * 	What to do with new events while the buffer is full: "block", "drop_oldest" or "drop_newest".
+	 * @param reconnectDelay
+	 * 	The milliseconds to wait after the first failed connection attempt, doubled after every further one.
+	 * @param maxReconnectDelay
+	 * 	The longest wait between two connection attempts.
+	 * @param shutdownTimeout
+	 * 	The milliseconds to wait on stop for the queued events to be sent.
+	 * @param spoolDirectory
+	 * 	A directory to spool events to while the endpoint cannot keep up, see {@link DiskSpool}.
+	 * @param spoolSegmentSize
+	 * 	The size of the spool's segment files.
+	 * @param spoolMaxBytes
+	 * 	The disk space the spool may take, beyond which events are dropped.
+	 * @param ignoreExceptions
+	 * 	Whether exceptions are logged instead of being passed to the caller.
+	 * @param layout
+	 * 	The layout, a {@link JSONEventLayoutV1} if none is given.
+	 * @param filter
+	 * 	The filter, if any.
+	 * @return The appender, or null if the configuration is incomplete.
+	 */
+	@PluginFactory
+	public static TcpAppender createAppender(
+		@PluginAttribute(value = "name") String name,
+		@PluginAttribute(value = "host") String host,
+		@PluginAttribute(value = "port", defaultInt = 4560) int port,
+		@PluginAttribute(value = "bufferSize", defaultInt = TcpShipper.DEFAULT_BUFFER_SIZE) int bufferSize,
+		@PluginAttribute(value = "batchSize", defaultInt = TcpShipper.DEFAULT_BATCH_SIZE) int batchSize,
+		@PluginAttribute(value = "overflowPolicy", defaultString = "block") String overflowPolicy,
+		@PluginAttribute(value = "reconnectDelay", defaultLong = TcpShipper.DEFAULT_RECONNECT_DELAY) long reconnectDelay,
+		@PluginAttribute(value = "maxReconnectDelay", defaultLong = TcpShipper.DEFAULT_MAX_RECONNECT_DELAY) long maxReconnectDelay,
+		@PluginAttribute(value = "shutdownTimeout", defaultLong = DEFAULT_SHUTDOWN_TIMEOUT) long shutdownTimeout,
+		@PluginAttribute(value = "spoolDirectory") String spoolDirectory,
+		@PluginAttribute(value = "spoolSegmentSize", defaultInt = DiskSpool.DEFAULT_SEGMENT_SIZE) int spoolSegmentSize,
+		@PluginAttribute(value = "spoolMaxBytes", defaultLong = DiskSpool.DEFAULT_MAX_BYTES) long spoolMaxBytes,
+		@PluginAttribute(value = "ignoreExceptions", defaultBoolean = true) boolean ignoreExceptions,
+		@PluginElement("Layout") Layout<? extends Serializable> layout,
+		@PluginElement("Filter") Filter filter) {
+		if (name == null) {
+			LOGGER.error("No name provided for TcpAppender");
+			return null;
+		}
+		if (host == null) {
+			LOGGER.error("No host provided for TcpAppender " + name);
+			return null;
+		}
+		if (layout == null) {
+			layout = new JSONEventLayoutV1(false, null, JsonWriter.UTF_8);
+		}
+		DiskSpool spool = null;
+		if (spoolDirectory != null) {
+			try {
+				spool = new DiskSpool(new File(spoolDirectory), spoolSegmentSize, spoolMaxBytes);
+			} catch (IOException e) {
+				LOGGER.error("Could not open spool " + spoolDirectory + " for TcpAppender " + name, e);
+				return null;
+			}
+		}
+		return new TcpAppender(name, layout, filter, ignoreExceptions, host, port, bufferSize, batchSize,
+			TcpShipper.OverflowPolicy.parse(overflowPolicy), reconnectDelay, maxReconnectDelay, shutdownTimeout, spool);
+	}
+
+	public void append(LogEvent event) {
+		this.shipper.send(getLayout().toByteArray(event));
+	}
+
+	/**
+	 * Stops accepting events and waits up to {@code shutdownTimeout} milliseconds for the queued ones to be sent.
+	 */
+	@Override
+	public void stop() {
+		super.stop();
+		this.shipper.close(this.shutdownTimeout);
+	}
+
+	/**
+	 * @return The number of events dropped by the overflow policy or left unsent on stop.
+	 */
+	public long getDroppedEvents() {
+		return this.shipper.getDroppedEvents();
+	}
+
+	/**
+	 * @return True while the appender is connected to the remote host.
+	 */
+	public boolean isConnected() {
+		return this.shipper.isConnected();
+	}
+}
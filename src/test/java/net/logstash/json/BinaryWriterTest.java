@@ -0,0 +1,186 @@
+package net.logstash.json;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class BinaryWriterTest {
+
+    private static final String DOCUMENT = "{\"a\":1,\"b\":[true,null,-20],\"c\":\"é\",\"d\":1.5}\n";
+
+    @Test
+    public void testCbor() {
+        Assert.assertEquals("bf61610161629ff5f633ff616362c3a96164fb3ff8000000000000ff", transcode(OutputFormat.CBOR, DOCUMENT));
+        Assert.assertEquals("1b7fffffffffffffff", transcode(OutputFormat.CBOR, String.valueOf(Long.MAX_VALUE)));
+        Assert.assertEquals("3b7fffffffffffffff", transcode(OutputFormat.CBOR, String.valueOf(Long.MIN_VALUE)));
+        Assert.assertEquals("1903e8", transcode(OutputFormat.CBOR, "1000"));
+    }
+
+    @Test
+    public void testSmile() {
+        Assert.assertEquals("3a290a00fa8061c28062f8232124a7f9806380c3a9806429003f7c00000000000000fb",
+                transcode(OutputFormat.SMILE, DOCUMENT));
+        Assert.assertEquals("3a290a00254000000080", transcode(OutputFormat.SMILE, "4294967296"));
+    }
+
+    @Test
+    public void testMessagePack() {
+        Assert.assertEquals("84a16101a16293c3c0eca163a2c3a9a164cb3ff8000000000000", transcode(OutputFormat.MSGPACK, DOCUMENT));
+        Assert.assertEquals("cdffff", transcode(OutputFormat.MSGPACK, "65535"));
+        Assert.assertEquals("d1ff7f", transcode(OutputFormat.MSGPACK, "-129"));
+    }
+
+    @Test
+    public void testMessagePackHeadersShrinkToSize() {
+        StringBuilder json = new StringBuilder("{\"x\":[");
+        StringBuilder expected = new StringBuilder("82a178dc0014");
+        for (int i = 0; i < 20; i++) {
+            json.append(i == 0 ? "" : ",").append(i);
+            expected.append(String.format("%02x", i));
+        }
+        json.append("],\"y\":{}}");
+        expected.append("a17980");
+        Assert.assertEquals(expected.toString(), transcode(OutputFormat.MSGPACK, json.toString()));
+    }
+
+    @Test
+    public void testEscapedStrings() {
+        String json = "{\"m\":\"a\\\"b\\u00e9\\ud83d\\ude00\\/\"}";
+        Assert.assertEquals("bf616d6a612262c3a9f09f98802fff", transcode(OutputFormat.CBOR, json));
+        Assert.assertEquals("81a16daa612262c3a9f09f98802f", transcode(OutputFormat.MSGPACK, json));
+    }
+
+    @Test
+    public void testLongStrings() {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 70; i++) {
+            value.append('x');
+        }
+        String smile = transcode(OutputFormat.SMILE, "\"" + value + "\"");
+        Assert.assertTrue(smile.startsWith("3a290a00e07878"));
+        Assert.assertTrue(smile.endsWith("78fc"));
+        Assert.assertTrue(transcode(OutputFormat.MSGPACK, "\"" + value + "\"").startsWith("d946"));
+        Assert.assertTrue(transcode(OutputFormat.CBOR, "\"" + value + "\"").startsWith("7846"));
+    }
+
+    @Test
+    public void testTranscodesJsonWriterOutput() {
+        JsonWriter json = new JsonWriter();
+        json.writeStartObject();
+        json.writeFieldName("message");
+        json.writeString("tab\there");
+        json.writeFieldName("mdc");
+        json.writeObject(java.util.Collections.singletonMap("n", 2.5d));
+        json.writeEndObject();
+        json.writeNewLine();
+
+        BinaryWriter writer = BinaryWriter.acquire(OutputFormat.CBOR);
+        try {
+            writer.transcode(json);
+            Assert.assertEquals("bf676d657373616765687461620968657265636d6463bf616efb4004000000000000ffff",
+                    hex(writer.toByteArray()));
+        } finally {
+            writer.release();
+        }
+    }
+
+    @Test
+    public void testWritesTokensLikeTranscodedJson() {
+        for (OutputFormat format : new OutputFormat[]{OutputFormat.CBOR, OutputFormat.SMILE, OutputFormat.MSGPACK}) {
+            JsonWriter json = new JsonWriter();
+            writeTokens(json);
+            BinaryWriter expected = format.newWriter();
+            expected.transcode(json);
+
+            BinaryWriter writer = format.newWriter();
+            writer.writeStartDocument();
+            writeTokens(writer);
+            Assert.assertEquals(format.name(), hex(expected.toByteArray()), hex(writer.toByteArray()));
+        }
+    }
+
+    @Test
+    public void testTranslatesRawFieldsOnce() {
+        byte[] fragment = "\"@version\":1,\"host\":\"h\\u00e9\"".getBytes(JsonWriter.UTF_8);
+        BinaryWriter writer = OutputFormat.MSGPACK.newWriter();
+        writer.writeStartObject();
+        writer.writeRawFields(fragment);
+        writer.writeEndObject();
+        String first = hex(writer.toByteArray());
+        // the translation is copied from now on, even if the fragment changes
+        fragment[11] = '2';
+        writer.reset();
+        writer.writeStartObject();
+        writer.writeRawFields(fragment);
+        writer.writeEndObject();
+        Assert.assertEquals("82a84076657273696f6e01a4686f7374a368c3a9", first);
+        Assert.assertEquals(first, hex(writer.toByteArray()));
+    }
+
+    private static void writeTokens(TokenWriter writer) {
+        Map<String, Object> mdc = new LinkedHashMap<String, Object>();
+        mdc.put("user", "caf\u00e9 \ud83d\ude00");
+        mdc.put("ratio", 2.5d);
+        mdc.put("tags", Arrays.asList("a", 1L, true, null));
+        byte[] constants = "\"@version\":1,\"source_host\":\"h\\\"1\"".getBytes(JsonWriter.UTF_8);
+
+        writer.writeStartObject();
+        writer.writeFieldName(JsonWriter.fieldName("@timestamp"));
+        writer.writeTimestamp(1400000000123L);
+        writer.writeRawFields(constants);
+        writer.writeFieldName(JsonWriter.fieldName("quo\"ted"));
+        writer.writeTimestamp(1400000000L, 123456789, TimestampFormatter.Precision.NANOSECONDS);
+        writer.writeFieldName("message");
+        writer.writeString("tab\there \u2028 \ud800 " + Long.MIN_VALUE);
+        writer.writeFieldName("cached");
+        writer.writeString("INFO", new StringFragmentCache());
+        writer.writeFieldName("lines");
+        writer.writeJoinedString(new String[]{"first", null, "th\u00efrd"}, '\n');
+        writer.writeFieldName("pieces");
+        writer.writeStartString();
+        writer.writeStringContent("at ");
+        writer.writeStringContent('\u00e9');
+        writer.writeStringContent(-42L);
+        writer.writeEndString();
+        writer.writeFieldName("hash");
+        writer.writeHexString(0xCAFEL);
+        writer.writeFieldName("mdc");
+        int start = writer.size();
+        writer.writeObject(mdc);
+        byte[] encodedMdc = Arrays.copyOfRange(writer.buffer(), start, writer.size());
+        writer.writeFieldName("copy");
+        writer.writeRawValue(encodedMdc, 0, encodedMdc.length);
+        writer.writeFieldName("list");
+        writer.writeStartArray();
+        writer.writeNumber(-1);
+        writer.writeRawValue(encodedMdc, 0, encodedMdc.length);
+        writer.writeBoolean(false);
+        writer.writeNull();
+        writer.writeEndArray();
+        writer.writeRawFields(constants);
+        writer.writeEndObject();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedJson() {
+        transcode(OutputFormat.CBOR, "{\"a\" 1}");
+    }
+
+    private static String transcode(OutputFormat format, String json) {
+        BinaryWriter writer = format.newWriter();
+        byte[] bytes = json.getBytes(JsonWriter.UTF_8);
+        writer.transcode(bytes, 0, bytes.length);
+        return hex(writer.toByteArray());
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,78 @@
+package net.logstash.json;
+
+import junit.framework.Assert;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+import org.junit.Test;
+
+public class BulkActionTest {
+
+    // 2026-10-18T10:15:30.000Z
+    private static final long TIMESTAMP = 1792318530000L;
+
+    @Test
+    public void testIndexNameFromTimestamp() {
+        BulkAction action = new BulkAction("logstash-%{+yyyy.MM.dd}", false);
+        Assert.assertEquals("logstash-2026.10.18", action.indexName(TIMESTAMP));
+        Assert.assertEquals("logs-2026-10-18T10-app", new BulkAction("logs-%{+yyyy-MM-dd}T%{+HH}-app", false).indexName(TIMESTAMP));
+        Assert.assertEquals("static", new BulkAction("static", false).indexName(TIMESTAMP));
+    }
+
+    @Test
+    public void testActionLine() {
+        BulkAction action = new BulkAction("logstash-%{+yyyy.MM.dd}", false);
+        Assert.assertEquals("{\"index\":{\"_index\":\"logstash-2026.10.18\"}}\n", write(action, TIMESTAMP));
+        Assert.assertEquals("{\"index\":{\"_index\":\"logstash-2026.10.18\"}}\n", write(action, TIMESTAMP + 1000));
+        Assert.assertEquals("{\"index\":{\"_index\":\"logstash-2026.10.19\"}}\n", write(action, TIMESTAMP + 24 * 60 * 60 * 1000L));
+        Assert.assertEquals("Cached line of the next day was reused",
+                "{\"index\":{\"_index\":\"logstash-2026.10.18\"}}\n", write(action, TIMESTAMP));
+    }
+
+    @Test
+    public void testSubHourlyPatternIsFormattedPerEvent() {
+        BulkAction action = new BulkAction("logs-%{+HH.mm}", false);
+        Assert.assertEquals("{\"index\":{\"_index\":\"logs-10.15\"}}\n", write(action, TIMESTAMP));
+        Assert.assertEquals("{\"index\":{\"_index\":\"logs-10.16\"}}\n", write(action, TIMESTAMP + 60 * 1000L));
+    }
+
+    @Test
+    public void testGeneratedIds() {
+        BulkAction action = new BulkAction("logstash", true);
+        String first = write(action, TIMESTAMP);
+        String second = write(action, TIMESTAMP);
+        Assert.assertTrue(first.endsWith("\n"));
+        String firstId = (String) ((JSONObject) ((JSONObject) JSONValue.parse(first)).get("index")).get("_id");
+        String secondId = (String) ((JSONObject) ((JSONObject) JSONValue.parse(second)).get("index")).get("_id");
+        Assert.assertEquals(32, firstId.length());
+        Assert.assertFalse("Ids should be unique", firstId.equals(secondId));
+        Assert.assertEquals("Ids should start with the timestamp", firstId.substring(0, 12), secondId.substring(0, 12));
+    }
+
+    @Test
+    public void testLogstashYearOfEra() {
+        Assert.assertEquals("logstash-2026.10.18", new BulkAction("logstash-%{+YYYY.MM.dd}", false).indexName(TIMESTAMP));
+        Assert.assertEquals("Y-2026", new BulkAction("%{+'Y'-YYYY}", false).indexName(TIMESTAMP));
+    }
+
+    @Test
+    public void testInvalidDateFormat() {
+        try {
+            new BulkAction("logstash-%{+yyyy.MM.dd.q}", false);
+            Assert.fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("%{+yyyy.MM.dd.q}"));
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("logstash-%{+yyyy.MM.dd.q}"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnterminatedPattern() {
+        new BulkAction("logstash-%{+yyyy.MM.dd", false);
+    }
+
+    private static String write(BulkAction action, long timestamp) {
+        JsonWriter writer = new JsonWriter();
+        action.write(writer, timestamp);
+        return writer.toString();
+    }
+}
@@ -0,0 +1,43 @@
+package net.logstash.json;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class BulkBatchTest {
+
+    private static final byte[] EVENT = "{\"index\":{}}\n{\"message\":\"m\"}\n".getBytes(JsonWriter.UTF_8);
+
+    @Test
+    public void testEventLimit() {
+        BulkBatch batch = new BulkBatch(1024, 2);
+        Assert.assertTrue(batch.add(EVENT));
+        Assert.assertTrue(batch.add(EVENT));
+        Assert.assertTrue(batch.isFull());
+        Assert.assertFalse(batch.add(EVENT));
+        Assert.assertEquals(2, batch.getEvents());
+        Assert.assertEquals(new String(EVENT, JsonWriter.UTF_8) + new String(EVENT, JsonWriter.UTF_8),
+                new String(batch.toByteArray(), JsonWriter.UTF_8));
+
+        batch.clear();
+        Assert.assertTrue(batch.isEmpty());
+        Assert.assertTrue(batch.add(EVENT));
+    }
+
+    @Test
+    public void testByteLimit() {
+        BulkBatch batch = new BulkBatch(EVENT.length * 2 + 1, 100);
+        Assert.assertTrue(batch.add(EVENT));
+        Assert.assertTrue(batch.add(EVENT));
+        Assert.assertFalse("Batch would exceed its byte limit", batch.add(EVENT));
+        Assert.assertEquals(EVENT.length * 2, batch.size());
+    }
+
+    @Test
+    public void testOversizedEventIsSentAlone() {
+        BulkBatch batch = new BulkBatch(8, 100);
+        Assert.assertTrue(batch.add(EVENT));
+        Assert.assertTrue(batch.isFull());
+        Assert.assertFalse(batch.add(EVENT));
+        Assert.assertEquals(EVENT.length, batch.size());
+    }
+}
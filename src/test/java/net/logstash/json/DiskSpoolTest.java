@@ -0,0 +1,166 @@
+package net.logstash.json;
+
+import junit.framework.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+public class DiskSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReadsInOrderAcrossSegments() throws Exception {
+        DiskSpool spool = new DiskSpool(folder.getRoot(), 64, 1024 * 1024);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(spool.append(event(i)));
+        }
+        Assert.assertEquals(100, spool.getPendingEvents());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals("event " + i, new String(spool.read(), JsonWriter.UTF_8));
+        }
+        Assert.assertNull(spool.read());
+        Assert.assertEquals(100, spool.getPendingEvents());
+        Assert.assertEquals(0, spool.getUnreadEvents());
+        spool.close();
+    }
+
+    @Test
+    public void testDeletesAcknowledgedSegments() throws Exception {
+        DiskSpool spool = new DiskSpool(folder.getRoot(), 64, 1024 * 1024);
+        for (int i = 0; i < 100; i++) {
+            spool.append(event(i));
+        }
+        int segments = countSegments();
+        Assert.assertTrue(segments > 10);
+        for (int i = 0; i < 50; i++) {
+            spool.read();
+        }
+        spool.acknowledge(50);
+        Assert.assertEquals(50, spool.getPendingEvents());
+        Assert.assertTrue("Acknowledged segments should be deleted", countSegments() <= segments / 2 + 1);
+
+        for (int i = 50; i < 100; i++) {
+            spool.read();
+        }
+        spool.acknowledge(50);
+        Assert.assertEquals(0, spool.getPendingEvents());
+        Assert.assertEquals(1, countSegments());
+        Assert.assertEquals(64, spool.getDiskBytes());
+        spool.close();
+    }
+
+    @Test
+    public void testAcknowledgesOnlyWhatWasRead() throws Exception {
+        DiskSpool spool = new DiskSpool(folder.getRoot(), 1024, 1024 * 1024);
+        spool.append(event(0));
+        spool.append(event(1));
+        spool.read();
+        spool.acknowledge(5);
+        Assert.assertEquals(1, spool.getPendingEvents());
+        Assert.assertEquals("event 1", new String(spool.read(), JsonWriter.UTF_8));
+        spool.close();
+    }
+
+    @Test
+    public void testReplaysUnacknowledgedAfterReopen() throws Exception {
+        DiskSpool spool = new DiskSpool(folder.getRoot(), 64, 1024 * 1024);
+        for (int i = 0; i < 20; i++) {
+            spool.append(event(i));
+        }
+        for (int i = 0; i < 10; i++) {
+            spool.read();
+        }
+        spool.acknowledge(7);
+        spool.close();
+
+        spool = new DiskSpool(folder.getRoot(), 64, 1024 * 1024);
+        Assert.assertEquals(13, spool.getPendingEvents());
+        for (int i = 7; i < 20; i++) {
+            Assert.assertEquals("event " + i, new String(spool.read(), JsonWriter.UTF_8));
+        }
+        Assert.assertNull(spool.read());
+        Assert.assertTrue("Appending should continue after the replayed events", spool.append(event(20)));
+        Assert.assertEquals("event 20", new String(spool.read(), JsonWriter.UTF_8));
+        spool.close();
+    }
+
+    @Test
+    public void testReplaysWithoutCheckpoint() throws Exception {
+        DiskSpool spool = new DiskSpool(folder.getRoot(), 1024, 1024 * 1024);
+        spool.append(event(0));
+        spool.append(event(1));
+        // a process killed before the first acknowledgement leaves no checkpoint behind
+        spool = new DiskSpool(folder.getRoot(), 1024, 1024 * 1024);
+        Assert.assertEquals(2, spool.getPendingEvents());
+        Assert.assertEquals("event 0", new String(spool.read(), JsonWriter.UTF_8));
+        spool.close();
+    }
+
+    @Test
+    public void testIgnoresTornRecord() throws Exception {
+        DiskSpool spool = new DiskSpool(folder.getRoot(), 1024, 1024 * 1024);
+        spool.append(event(0));
+        spool.close();
+        // the bytes of a record whose length was never written
+        RandomAccessFile segment = new RandomAccessFile(new File(folder.getRoot(), "spool.000001"), "rw");
+        segment.seek(4 + 7 + 4);
+        segment.write("garbage".getBytes(JsonWriter.UTF_8));
+        segment.close();
+
+        spool = new DiskSpool(folder.getRoot(), 1024, 1024 * 1024);
+        Assert.assertEquals(1, spool.getPendingEvents());
+        Assert.assertEquals("event 0", new String(spool.read(), JsonWriter.UTF_8));
+        spool.append(event(1));
+        Assert.assertEquals("event 1", new String(spool.read(), JsonWriter.UTF_8));
+        spool.close();
+    }
+
+    @Test
+    public void testRefusesEventsBeyondBudget() throws Exception {
+        DiskSpool spool = new DiskSpool(folder.getRoot(), 64, 128);
+        int accepted = 0;
+        while (spool.append(event(accepted))) {
+            accepted++;
+        }
+        Assert.assertEquals("Two segments of 64 bytes hold 5 events of 7 bytes each", 10, accepted);
+        for (int i = 0; i < 5; i++) {
+            spool.read();
+        }
+        spool.acknowledge(5);
+        Assert.assertTrue("Space frees up once a segment is acknowledged", spool.append(event(accepted)));
+        spool.close();
+    }
+
+    @Test
+    public void testLargeEventGetsItsOwnSegment() throws Exception {
+        DiskSpool spool = new DiskSpool(folder.getRoot(), 64, 1024 * 1024);
+        byte[] large = new byte[1000];
+        large[999] = 'x';
+        spool.append(event(0));
+        Assert.assertTrue(spool.append(large));
+        spool.append(event(1));
+        spool.read();
+        Assert.assertEquals(1000, spool.read().length);
+        Assert.assertEquals("event 1", new String(spool.read(), JsonWriter.UTF_8));
+        spool.close();
+    }
+
+    private int countSegments() {
+        int segments = 0;
+        for (String name : folder.getRoot().list()) {
+            if (name.startsWith(DiskSpool.SEGMENT_PREFIX)) {
+                segments++;
+            }
+        }
+        return segments;
+    }
+
+    private static byte[] event(int i) {
+        return ("event " + i).getBytes(JsonWriter.UTF_8);
+    }
+}
@@ -0,0 +1,75 @@
+package net.logstash.json;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class FieldPlanTest {
+
+    @Test
+    public void testDefaultPlanWritesEverything() {
+        for (int field = FieldPlan.MESSAGE; field <= FieldPlan.SOURCE_HOST; field++) {
+            Assert.assertTrue(FieldPlan.DEFAULT.includes(field));
+        }
+        Assert.assertEquals("logger_name", FieldPlan.DEFAULT.outputName(FieldPlan.LOGGER_NAME));
+        Assert.assertTrue(FieldPlan.DEFAULT.isMdcUnfiltered());
+    }
+
+    @Test
+    public void testCompile() {
+        FieldPlan plan = FieldPlan.compile(" ndc , file", "logger_name:logger, thread_name : thread", "a,b,c", "b");
+
+        Assert.assertFalse(plan.includes(FieldPlan.NDC));
+        Assert.assertTrue("Location is still partly written", plan.includesLocation());
+        Assert.assertEquals("logger", plan.outputName(FieldPlan.LOGGER_NAME));
+        Assert.assertEquals("\"thread\":", new String(plan.fieldName(FieldPlan.THREAD_NAME), JsonWriter.UTF_8));
+
+        Map<String, Object> mdc = new LinkedHashMap<String, Object>();
+        mdc.put("c", "3");
+        mdc.put("b", "2");
+        mdc.put("z", "26");
+        JsonWriter writer = new JsonWriter();
+        plan.writeMdc(writer, mdc);
+        Assert.assertEquals("{\"c\":\"3\"}", writer.toString());
+    }
+
+    @Test
+    public void testMdcExcludes() {
+        Map<String, Object> mdc = new LinkedHashMap<String, Object>();
+        mdc.put("keep", "1");
+        mdc.put("drop", "2");
+        JsonWriter writer = new JsonWriter();
+        FieldPlan.compile(null, null, null, "drop").writeMdc(writer, mdc);
+        Assert.assertEquals("{\"keep\":\"1\"}", writer.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsRequiredFields() {
+        FieldPlan.compile("@timestamp", null, null, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsMalformedRenames() {
+        FieldPlan.compile(null, "logger_name", null, null);
+    }
+
+    @Test
+    public void testRejectsConflictingRenameTargets() {
+        String[] conflicts = {"thread_name:@timestamp", "level:@version", "logger_name:message",
+                "logger_name:logger,thread_name:logger"};
+        for (String rename : conflicts) {
+            try {
+                FieldPlan.compile(null, rename, null, null);
+                Assert.fail("Expected " + rename + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        Assert.assertEquals("A dropped field's name is free", "message",
+                FieldPlan.compile("message", "logger_name:message", null, null).outputName(FieldPlan.LOGGER_NAME));
+        Assert.assertEquals("Fields can swap names", "logger_name",
+                FieldPlan.compile(null, "message:logger_name,logger_name:message", null, null).outputName(FieldPlan.MESSAGE));
+    }
+}
@@ -0,0 +1,113 @@
+package net.logstash.json;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class FormattingPipelineTest {
+
+    private final List<String> errors = new ArrayList<String>();
+    private final StringBuilder output = new StringBuilder();
+
+    private final FormattingPipeline.Output collect = new FormattingPipeline.Output() {
+        public void write(JsonWriter batch) {
+            output.append(batch.toString());
+        }
+    };
+
+    private final EventShipper.ErrorReporter report = new EventShipper.ErrorReporter() {
+        public void error(String message, Exception e) {
+            synchronized (errors) {
+                errors.add(message + ": " + e.getMessage());
+            }
+        }
+    };
+
+    @Test
+    public void testWritesInOrderWhateverWorkerFinishesFirst() {
+        final Random random = new Random(42);
+        FormattingPipeline<Integer> pipeline = new FormattingPipeline<Integer>("test", 4, 8,
+                new FormattingPipeline.Formatter<Integer>() {
+                    public void format(Integer event, JsonWriter writer) {
+                        if (event % 50 == 0) {
+                            // makes some batches finish long after the ones behind them
+                            sleep(random.nextInt(5));
+                        }
+                        writer.writeNumber(event);
+                        writer.writeNewLine();
+                    }
+                }, collect, report);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            pipeline.add(i);
+            pipeline.write();
+            expected.append(i).append('\n');
+        }
+        Assert.assertTrue(pipeline.close(5000));
+        Assert.assertEquals(expected.toString(), output.toString());
+        Assert.assertTrue(pipeline.isEmpty());
+    }
+
+    @Test
+    public void testWritesPartialBatchOnFlush() {
+        FormattingPipeline<String> pipeline = new FormattingPipeline<String>("test", 2, 64, strings(), collect, report);
+        pipeline.add("a");
+        pipeline.add("b");
+        Assert.assertFalse(pipeline.isEmpty());
+        pipeline.flush();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!pipeline.isEmpty() && System.currentTimeMillis() < deadline) {
+            pipeline.write();
+        }
+        Assert.assertEquals("a\nb\n", output.toString());
+        pipeline.close(1000);
+    }
+
+    @Test
+    public void testDropsEventsThatFailToFormat() {
+        FormattingPipeline<String> pipeline = new FormattingPipeline<String>("test", 2, 4, strings(), collect, report);
+        pipeline.add("a");
+        pipeline.add("fail");
+        pipeline.add("c");
+        Assert.assertTrue(pipeline.close(5000));
+        Assert.assertEquals("The partly formatted event must be discarded", "a\nc\n", output.toString());
+        Assert.assertEquals(1, errors.size());
+    }
+
+    @Test
+    public void testWorkersSurviveErrors() {
+        FormattingPipeline<String> pipeline = new FormattingPipeline<String>("test", 1, 2, strings(), collect, report);
+        for (int i = 0; i < 6; i++) {
+            pipeline.add(i % 2 == 0 ? "overflow" : "b");
+        }
+        Assert.assertTrue("The sequencer must not wait for a batch whose worker failed", pipeline.close(5000));
+        Assert.assertEquals("b\nb\nb\n", output.toString());
+        Assert.assertEquals(3, errors.size());
+    }
+
+    private static FormattingPipeline.Formatter<String> strings() {
+        return new FormattingPipeline.Formatter<String>() {
+            public void format(String event, JsonWriter writer) {
+                writer.writeRawValue(event.getBytes(JsonWriter.UTF_8), 0, event.length());
+                if (event.equals("fail")) {
+                    throw new IllegalStateException("cannot format " + event);
+                }
+                if (event.equals("overflow")) {
+                    throw new StackOverflowError();
+                }
+                writer.writeNewLine();
+            }
+        };
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package net.logstash.json;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.Assert;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Minimal bulk endpoint, the receiving end of a Logstash http input: collects the lines of every POSTed body,
+ * gunzipped if needed, and answers 200, or {@code failures} times the configured error status first.
+ */
+public class HttpServerStub implements HttpHandler {
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final BlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+    private volatile String contentType;
+    private volatile String contentEncoding;
+    /** the number of requests still to answer with {@code errorStatus} */
+    private volatile int failures;
+    private volatile int errorStatus = 503;
+    private volatile long delay;
+
+    public HttpServerStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", this);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/_bulk";
+    }
+
+    public void fail(int failures, int errorStatus) {
+        this.errorStatus = errorStatus;
+        this.failures = failures;
+    }
+
+    /**
+     * @param delay the milliseconds every request takes to be answered
+     */
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    public String take() throws InterruptedException {
+        String line = lines.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull("No line received", line);
+        return line;
+    }
+
+    public String poll(long millis) throws InterruptedException {
+        return lines.poll(millis, TimeUnit.MILLISECONDS);
+    }
+
+    public int getRequests() {
+        return requests.get();
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent.get();
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        int current = concurrent.incrementAndGet();
+        int max;
+        while (current > (max = maxConcurrent.get()) && !maxConcurrent.compareAndSet(max, current)) {
+            // retry
+        }
+        try {
+            contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            InputStream body = exchange.getRequestBody();
+            if ("gzip".equals(contentEncoding)) {
+                body = new GZIPInputStream(body);
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(body, "UTF-8"));
+            StringBuilder received = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                received.append(line).append('\n');
+            }
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+            int status = 200;
+            synchronized (this) {
+                if (failures > 0) {
+                    failures--;
+                    status = errorStatus;
+                }
+            }
+            if (status == 200) {
+                for (String accepted : received.toString().split("\n")) {
+                    lines.add(accepted);
+                }
+            }
+            byte[] response = "{\"errors\":false}".getBytes("UTF-8");
+            exchange.sendResponseHeaders(status, response.length);
+            exchange.getResponseBody().write(response);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            concurrent.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
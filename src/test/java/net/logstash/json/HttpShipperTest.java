@@ -0,0 +1,166 @@
+package net.logstash.json;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.HashSet;
+import java.util.Set;
+
+public class HttpShipperTest {
+
+    private static final EventShipper.ErrorReporter IGNORE = new EventShipper.ErrorReporter() {
+        public void error(String message, Exception e) {
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServerStub server;
+    private HttpShipper shipper;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new HttpServerStub();
+    }
+
+    @After
+    public void shutdown() {
+        if (shipper != null) {
+            shipper.close(1000);
+        }
+        server.close();
+    }
+
+    @Test
+    public void testPostsCompressedBatches() throws Exception {
+        shipper = new HttpShipper(server.getUrl(), "application/x-ndjson", true, 1024, 1024, 50, 1, 1024 * 1024,
+                EventShipper.OverflowPolicy.BLOCK, 10, 100, IGNORE);
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(shipper.send(event(i)));
+        }
+        shipper.close(5000);
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals("With a single request in flight batches stay in order", "event " + i, server.take());
+        }
+        Assert.assertEquals("application/x-ndjson", server.getContentType());
+        Assert.assertEquals("gzip", server.getContentEncoding());
+        Assert.assertEquals(1000, shipper.getAcknowledgedEvents());
+        Assert.assertEquals(0, shipper.getDroppedEvents());
+        Assert.assertTrue("Events should have been batched", shipper.getRequests() < 1000);
+        Assert.assertTrue(shipper.isConnected());
+    }
+
+    @Test
+    public void testPostsUncompressed() throws Exception {
+        shipper = new HttpShipper(server.getUrl(), "application/json", false, 64, 1024, 10, 1, 1024 * 1024,
+                EventShipper.OverflowPolicy.BLOCK, 10, 100, IGNORE);
+        shipper.send(event(0));
+        Assert.assertEquals("event 0", server.take());
+        Assert.assertNull(server.getContentEncoding());
+    }
+
+    @Test
+    public void testSendsAfterLinger() throws Exception {
+        shipper = new HttpShipper(server.getUrl(), "application/json", true, 64, 1024 * 1024, 20, 1, 1024 * 1024,
+                EventShipper.OverflowPolicy.BLOCK, 10, 100, IGNORE);
+        shipper.send(event(0));
+        Assert.assertEquals("A partial batch must be sent once it lingered", "event 0", server.take());
+    }
+
+    @Test
+    public void testRetriesServerErrors() throws Exception {
+        server.fail(3, 503);
+        shipper = new HttpShipper(server.getUrl(), "application/json", true, 64, 1024, 10, 1, 1024 * 1024,
+                EventShipper.OverflowPolicy.BLOCK, 10, 100, IGNORE);
+        shipper.send(event(0));
+        shipper.close(5000);
+        Assert.assertEquals("event 0", server.take());
+        Assert.assertEquals(4, shipper.getRequests());
+        Assert.assertEquals(1, shipper.getAcknowledgedEvents());
+        Assert.assertEquals(0, shipper.getDroppedEvents());
+    }
+
+    @Test
+    public void testDropsRejectedBatches() throws Exception {
+        server.fail(1, 400);
+        shipper = new HttpShipper(server.getUrl(), "application/json", true, 64, 1024, 1000, 1, 1024 * 1024,
+                EventShipper.OverflowPolicy.BLOCK, 10, 100, IGNORE);
+        shipper.send(event(0));
+        shipper.send(event(1));
+        shipper.close(5000);
+        Assert.assertEquals(2, shipper.getDroppedEvents());
+        Assert.assertEquals(1, shipper.getRequests());
+        Assert.assertNull(server.poll(100));
+    }
+
+    @Test
+    public void testSendsBatchesConcurrently() throws Exception {
+        server.setDelay(100);
+        shipper = new HttpShipper(server.getUrl(), "application/json", true, 1024, 64, 1000, 4, 1024 * 1024,
+                EventShipper.OverflowPolicy.BLOCK, 10, 100, IGNORE);
+        for (int i = 0; i < 100; i++) {
+            shipper.send(event(i));
+        }
+        shipper.close(5000);
+        Set<String> received = new HashSet<String>();
+        String line;
+        while ((line = server.poll(100)) != null) {
+            received.add(line);
+        }
+        Assert.assertEquals(100, received.size());
+        Assert.assertEquals(100, shipper.getAcknowledgedEvents());
+        Assert.assertTrue("Requests should overlap", server.getMaxConcurrent() > 1);
+        Assert.assertTrue(server.getMaxConcurrent() <= 4);
+    }
+
+    @Test
+    public void testAcknowledgesSpoolInOrder() throws Exception {
+        server.setDelay(20);
+        server.fail(2, 503);
+        shipper = new HttpShipper(server.getUrl(), "application/json", true, 16, 64, 1000, 4, 1024 * 1024,
+                EventShipper.OverflowPolicy.BLOCK, 10, 100, IGNORE);
+        shipper.spoolTo(new DiskSpool(folder.getRoot(), 1024, 1024 * 1024));
+        for (int i = 0; i < 200; i++) {
+            Assert.assertTrue(shipper.send(event(i)));
+        }
+        shipper.close(5000);
+        Assert.assertEquals(200, shipper.getAcknowledgedEvents());
+        Assert.assertEquals("Batches completing out of order must all be acknowledged in the spool",
+                0, new DiskSpool(folder.getRoot(), 1024, 1024 * 1024).getPendingEvents());
+    }
+
+    @Test
+    public void testBoundsPendingBatches() throws Exception {
+        shipper = new HttpShipper("http://localhost:" + unusedPort() + "/", "application/json", true, 4, 16, 0, 1, 1,
+                EventShipper.OverflowPolicy.DROP_NEWEST, 1000, 1000, IGNORE);
+        int rejected = 0;
+        for (int i = 0; i < 100; i++) {
+            if (!shipper.send(event(i))) {
+                rejected++;
+            }
+            Thread.sleep(1);
+        }
+        Assert.assertTrue("Events should be dropped once the pending batches are full", rejected >= 80);
+        Assert.assertFalse(shipper.isConnected());
+        shipper.close(100);
+        Assert.assertEquals(100, shipper.getDroppedEvents());
+    }
+
+    private static byte[] event(int i) {
+        return ("event " + i + "\n").getBytes(JsonWriter.UTF_8);
+    }
+
+    private static int unusedPort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+}
@@ -0,0 +1,91 @@
+package net.logstash.json;
+
+import junit.framework.Assert;
+import net.minidev.json.JSONValue;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class JsonWriterTest {
+
+    @Test
+    public void testEscapingMatchesJsonSmart() {
+        StringBuilder everyChar = new StringBuilder();
+        for (char c = 0; c < 0x2200; c++) {
+            everyChar.append(c);
+        }
+        everyChar.append("😀 emoji and a trailing quote\"");
+        String value = everyChar.toString();
+
+        JsonWriter writer = new JsonWriter();
+        writer.writeString(value);
+
+        Assert.assertEquals("escaped output differs from json-smart", JSONValue.toJSONString(value), writer.toString());
+    }
+
+    @Test
+    public void testNestedValuesMatchJsonSmart() {
+        Map<String, Object> nested = new LinkedHashMap<String, Object>();
+        nested.put("string", "a/b");
+        nested.put("number", 42);
+        nested.put("long", -9000000000L);
+        nested.put("double", 1.5d);
+        nested.put("bool", Boolean.TRUE);
+        nested.put("null", null);
+        nested.put("date", new Date(0));
+        List<Object> list = new ArrayList<Object>();
+        list.add("x");
+        list.add(Arrays.asList(1, 2));
+        nested.put("list", list);
+        nested.put("array", new String[]{"y", "z"});
+        Map<String, Object> root = new LinkedHashMap<String, Object>();
+        root.put("nested", nested);
+
+        JsonWriter writer = new JsonWriter();
+        writer.writeObject(root);
+
+        Assert.assertEquals("nested output differs from json-smart", JSONValue.toJSONString(root), writer.toString());
+    }
+
+    @Test
+    public void testFieldsAndCommas() {
+        JsonWriter writer = new JsonWriter();
+        writer.writeStartObject();
+        writer.writeFieldName(JsonWriter.fieldName("a"));
+        writer.writeNumber(1);
+        writer.writeRawFields("\"b\":2,\"c\":3".getBytes());
+        writer.writeFieldName("d");
+        writer.writeStartArray();
+        writer.writeString("e");
+        writer.writeNull();
+        writer.writeEndArray();
+        writer.writeFieldName("f");
+        writer.writeJoinedString(new String[]{"g", "h"}, '\n');
+        writer.writeEndObject();
+
+        Assert.assertEquals("{\"a\":1,\"b\":2,\"c\":3,\"d\":[\"e\",null],\"f\":\"g\\nh\"}", writer.toString());
+    }
+
+    @Test
+    public void testAcquireIsReentrant() {
+        JsonWriter outer = JsonWriter.acquire();
+        try {
+            outer.writeString("outer");
+            JsonWriter inner = JsonWriter.acquire();
+            try {
+                Assert.assertNotSame("nested acquire must not hand out the busy writer", outer, inner);
+                inner.writeString("inner");
+            } finally {
+                inner.release();
+            }
+            Assert.assertEquals("\"outer\"", outer.toString());
+        } finally {
+            outer.release();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package net.logstash.json;
+
+import junit.framework.Assert;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Minimal Lumberjack v2 server, the receiving end of a Logstash beats input: accepts one connection at a time,
+ * collects the JSON payloads of the data frames, compressed or not, and acknowledges every window once all its
+ * events arrived, and optionally every {@code ackEvery} events in between.
+ */
+public class LumberjackServerStub implements Runnable {
+
+    private final ServerSocket socket;
+    private final Thread thread;
+    private final BlockingQueue<String> payloads = new LinkedBlockingQueue<String>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger compressedFrames = new AtomicInteger();
+
+    private volatile int ackEvery;
+    /** the number of connections still to hang up on after their first window, without acknowledging it */
+    private volatile int hangUps;
+    /** the number of connections still to never acknowledge anything on */
+    private volatile int silent;
+
+    public LumberjackServerStub() throws IOException {
+        socket = new ServerSocket(0);
+        thread = new Thread(this, "LumberjackServerStub");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    public void setAckEvery(int ackEvery) {
+        this.ackEvery = ackEvery;
+    }
+
+    public void setHangUps(int hangUps) {
+        this.hangUps = hangUps;
+    }
+
+    public void setSilent(int silent) {
+        this.silent = silent;
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public int getCompressedFrames() {
+        return compressedFrames.get();
+    }
+
+    /**
+     * @return the next payload received, failing the test if none arrives within 5 seconds
+     */
+    public String take() throws InterruptedException {
+        String payload = payloads.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull("No event received", payload);
+        return payload;
+    }
+
+    public String poll(long millis) throws InterruptedException {
+        return payloads.poll(millis, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                Socket connection = socket.accept();
+                connections.incrementAndGet();
+                boolean hangUp = false;
+                boolean mute = false;
+                if (hangUps > 0) {
+                    hangUps--;
+                    hangUp = true;
+                } else if (silent > 0) {
+                    silent--;
+                    mute = true;
+                }
+                try {
+                    new Connection(connection, hangUp, mute).read();
+                } catch (IOException e) {
+                    // closed by the client
+                } finally {
+                    connection.close();
+                }
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    private final class Connection {
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final boolean hangUp;
+        private final boolean mute;
+        private int window;
+
+        Connection(Socket connection, boolean hangUp, boolean mute) throws IOException {
+            this.in = new DataInputStream(connection.getInputStream());
+            this.out = new DataOutputStream(connection.getOutputStream());
+            this.hangUp = hangUp;
+            this.mute = mute;
+        }
+
+        void read() throws IOException {
+            try {
+                while (frame(in)) {
+                    // until the client closes the connection
+                }
+            } catch (EOFException e) {
+                // closed by the client
+            }
+        }
+
+        /**
+         * @return false to hang up
+         */
+        private boolean frame(DataInputStream frames) throws IOException {
+            Assert.assertEquals("version", '2', frames.readByte());
+            byte type = frames.readByte();
+            switch (type) {
+                case 'W':
+                    window = frames.readInt();
+                    return true;
+                case 'C':
+                    compressedFrames.incrementAndGet();
+                    byte[] compressed = new byte[frames.readInt()];
+                    frames.readFully(compressed);
+                    InputStream inflated = new InflaterInputStream(new ByteArrayInputStream(compressed));
+                    DataInputStream nested = new DataInputStream(inflated);
+                    try {
+                        while (true) {
+                            if (!frame(nested)) {
+                                return false;
+                            }
+                        }
+                    } catch (EOFException e) {
+                        return true;
+                    }
+                case 'J':
+                    int sequence = frames.readInt();
+                    byte[] payload = new byte[frames.readInt()];
+                    frames.readFully(payload);
+                    payloads.add(new String(payload, "UTF-8"));
+                    if (sequence == window) {
+                        if (hangUp) {
+                            return false;
+                        }
+                        ack(sequence);
+                    } else if (ackEvery > 0 && sequence % ackEvery == 0) {
+                        ack(sequence);
+                    }
+                    return true;
+                default:
+                    throw new IOException("Unexpected frame type " + (char) type);
+            }
+        }
+
+        private void ack(int sequence) throws IOException {
+            if (mute) {
+                return;
+            }
+            out.writeByte('2');
+            out.writeByte('A');
+            out.writeInt(sequence);
+            out.flush();
+        }
+    }
+}
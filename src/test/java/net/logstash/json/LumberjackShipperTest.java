@@ -0,0 +1,117 @@
+package net.logstash.json;
+
+import junit.framework.Assert;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+public class LumberjackShipperTest {
+
+    private static final EventShipper.ErrorReporter IGNORE = new EventShipper.ErrorReporter() {
+        public void error(String message, Exception e) {
+        }
+    };
+
+    private LumberjackServerStub server;
+    private LumberjackShipper shipper;
+
+    @After
+    public void shutdown() throws IOException {
+        if (shipper != null) {
+            shipper.close(1000);
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testSendsCompressedWindows() throws Exception {
+        server = new LumberjackServerStub();
+        shipper = createShipper(16, 2, 6, 30000);
+        sendAndReceive(200);
+        Assert.assertTrue("Windows should have been compressed", server.getCompressedFrames() > 0);
+        assertAcknowledged(200);
+    }
+
+    @Test
+    public void testSendsUncompressedWindowsWithPartialAcks() throws Exception {
+        server = new LumberjackServerStub();
+        server.setAckEvery(3);
+        shipper = createShipper(10, 1, 0, 30000);
+        sendAndReceive(95);
+        Assert.assertEquals(0, server.getCompressedFrames());
+        assertAcknowledged(95);
+    }
+
+    @Test
+    public void testResendsAfterConnectionLoss() throws Exception {
+        server = new LumberjackServerStub();
+        server.setHangUps(2);
+        shipper = createShipper(8, 2, 3, 30000);
+        for (int i = 0; i < 50; i++) {
+            shipper.send(event(i));
+        }
+        assertAllReceived(50);
+        assertAcknowledged(50);
+        Assert.assertTrue("Shipper should have reconnected", server.getConnections() >= 3);
+        Assert.assertEquals(0, shipper.getDroppedEvents());
+    }
+
+    @Test
+    public void testResendsAfterAckTimeout() throws Exception {
+        server = new LumberjackServerStub();
+        server.setSilent(1);
+        shipper = createShipper(8, 1, 3, 200);
+        for (int i = 0; i < 20; i++) {
+            shipper.send(event(i));
+        }
+        assertAllReceived(20);
+        assertAcknowledged(20);
+        Assert.assertEquals(2, server.getConnections());
+        Assert.assertEquals(1, shipper.getReconnects());
+    }
+
+    private LumberjackShipper createShipper(int windowSize, int pipelining, int compressionLevel, long ackTimeout) {
+        return new LumberjackShipper("localhost", server.getPort(), 64, windowSize, pipelining, compressionLevel, ackTimeout,
+                EventShipper.OverflowPolicy.BLOCK, 10, 100, IGNORE);
+    }
+
+    private void sendAndReceive(int events) throws InterruptedException {
+        for (int i = 0; i < events; i++) {
+            shipper.send(event(i));
+        }
+        for (int i = 0; i < events; i++) {
+            JSONObject event = (JSONObject) JSONValue.parse(server.take());
+            Assert.assertEquals("event " + i, event.get("message"));
+        }
+    }
+
+    /**
+     * Events can arrive more than once after a connection loss, but all of them must arrive.
+     */
+    private void assertAllReceived(int events) throws InterruptedException {
+        Set<Object> messages = new HashSet<Object>();
+        while (messages.size() < events) {
+            JSONObject event = (JSONObject) JSONValue.parse(server.take());
+            messages.add(event.get("message"));
+        }
+    }
+
+    private void assertAcknowledged(long events) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (shipper.getAcknowledgedEvents() < events && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(events, shipper.getAcknowledgedEvents());
+    }
+
+    private static byte[] event(int i) {
+        return ("{\"message\":\"event " + i + "\"}\n").getBytes(JsonWriter.UTF_8);
+    }
+}
@@ -0,0 +1,133 @@
+package net.logstash.json;
+
+import junit.framework.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class MappedSegmentFileTest {
+
+    private static final byte[] RECORD = "{\"message\":\"0123456789\"}\n".getBytes(JsonWriter.UTF_8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRollsWithoutSplittingRecords() throws IOException {
+        String name = new File(folder.getRoot(), "app.json").getPath();
+        MappedSegmentFile file = new MappedSegmentFile(name, RECORD.length * 3 + 5, MappedSegmentFile.Durability.PAGE_CACHE, 0, 0);
+        for (int i = 0; i < 7; i++) {
+            file.write(RECORD);
+        }
+        Assert.assertEquals(2, file.getSequence());
+        Assert.assertTrue("Active segment should exist", new File(name + ".active").exists());
+        file.close();
+
+        Assert.assertFalse("Active segment should be completed on close", new File(name + ".active").exists());
+        Assert.assertEquals(3, file.getSequence());
+        Assert.assertEquals(records(3), read(file.segmentFile(1)));
+        Assert.assertEquals(records(3), read(file.segmentFile(2)));
+        Assert.assertEquals(records(1), read(file.segmentFile(3)));
+        Assert.assertEquals(name + ".000001", file.segmentFile(1).getPath());
+    }
+
+    @Test
+    public void testUnmapsBuffers() throws IOException {
+        File file = folder.newFile("mapped");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer buffer;
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 4096);
+        } finally {
+            raf.close();
+        }
+        buffer.put(RECORD);
+        Assert.assertTrue("Buffer should be unmapped on this JVM", MappedBuffers.unmap(buffer));
+        Assert.assertTrue(file.delete());
+    }
+
+    @Test
+    public void testOversizedRecordGetsItsOwnSegment() throws IOException {
+        String name = new File(folder.getRoot(), "app.json").getPath();
+        MappedSegmentFile file = new MappedSegmentFile(name, 8, MappedSegmentFile.Durability.PERIODIC, 10, 0);
+        file.write(RECORD);
+        file.write(RECORD);
+        file.close();
+        Assert.assertEquals(records(1), read(file.segmentFile(1)));
+        Assert.assertEquals(records(1), read(file.segmentFile(2)));
+    }
+
+    @Test
+    public void testContinuesNumberingAndRecoversActiveSegment() throws IOException {
+        String name = new File(folder.getRoot(), "app.json").getPath();
+        MappedSegmentFile file = new MappedSegmentFile(name, 1024, MappedSegmentFile.Durability.PAGE_CACHE, 0, 0);
+        file.write(RECORD);
+        file.close();
+
+        // what a crash leaves behind: complete records, a partial one and the zero filled tail
+        FileOutputStream active = new FileOutputStream(name + ".active");
+        active.write(RECORD);
+        active.write(RECORD, 0, 5);
+        active.write(new byte[100]);
+        active.close();
+
+        file = new MappedSegmentFile(name, 1024, MappedSegmentFile.Durability.PAGE_CACHE, 0, 0);
+        Assert.assertEquals(2, file.getSequence());
+        Assert.assertEquals(records(1), read(file.segmentFile(2)));
+        file.write(RECORD);
+        file.close();
+        Assert.assertEquals(records(1), read(file.segmentFile(3)));
+    }
+
+    @Test
+    public void testCompletesAgedSegment() throws Exception {
+        String name = new File(folder.getRoot(), "app.json").getPath();
+        MappedSegmentFile file = new MappedSegmentFile(name, 1024, MappedSegmentFile.Durability.PAGE_CACHE, 0, 20);
+        file.write(RECORD);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (file.getSequence() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, file.getSequence());
+        Assert.assertEquals(records(1), read(file.segmentFile(1)));
+        file.close();
+        Assert.assertEquals("Nothing left to complete", 1, file.getSequence());
+    }
+
+    @Test
+    public void testParseDurability() {
+        Assert.assertEquals(MappedSegmentFile.Durability.PAGE_CACHE, MappedSegmentFile.Durability.parse(null));
+        Assert.assertEquals(MappedSegmentFile.Durability.PAGE_CACHE, MappedSegmentFile.Durability.parse("page-cache"));
+        Assert.assertEquals(MappedSegmentFile.Durability.PERIODIC, MappedSegmentFile.Durability.parse(" Periodic "));
+    }
+
+    private static String records(int count) {
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            expected.append(new String(RECORD, JsonWriter.UTF_8));
+        }
+        return expected.toString();
+    }
+
+    static String read(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < content.length) {
+                read += in.read(content, read, content.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return new String(content, JsonWriter.UTF_8);
+    }
+}
@@ -0,0 +1,114 @@
+package net.logstash.json;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class MdcFragmentCacheTest {
+
+    @Test
+    public void testIdentityReusesFragment() {
+        MdcFragmentCache cache = new MdcFragmentCache();
+        Map<String, Object> mdc = new HashMap<String, Object>();
+        mdc.put("request", "r-1");
+
+        Assert.assertEquals("{\"request\":\"r-1\"}", writeByIdentity(cache, FieldPlan.DEFAULT, mdc));
+        // a changed map instance is not noticed, which is why this is only used for immutable maps
+        mdc.put("request", "r-2");
+        Assert.assertEquals("{\"request\":\"r-1\"}", writeByIdentity(cache, FieldPlan.DEFAULT, mdc));
+        Assert.assertEquals("{\"request\":\"r-2\"}", writeByIdentity(cache, FieldPlan.DEFAULT, new HashMap<String, Object>(mdc)));
+    }
+
+    @Test
+    public void testContentDetectsChanges() {
+        MdcFragmentCache cache = new MdcFragmentCache();
+        Map<String, Object> mdc = new HashMap<String, Object>();
+        mdc.put("request", "r-1");
+
+        Assert.assertEquals("{\"request\":\"r-1\"}", writeByContent(cache, FieldPlan.DEFAULT, mdc));
+        Assert.assertEquals("{\"request\":\"r-1\"}", writeByContent(cache, FieldPlan.DEFAULT, mdc));
+        mdc.put("request", "r-2");
+        Assert.assertEquals("{\"request\":\"r-2\"}", writeByContent(cache, FieldPlan.DEFAULT, mdc));
+        mdc.put("user", "u-1");
+        Assert.assertEquals(mdc.size(), ((Map) net.minidev.json.JSONValue.parse(writeByContent(cache, FieldPlan.DEFAULT, mdc))).size());
+    }
+
+    @Test
+    public void testContentWithAllowlist() {
+        MdcFragmentCache cache = new MdcFragmentCache();
+        FieldPlan plan = FieldPlan.compile(null, null, "request", null);
+        Map<String, Object> mdc = new HashMap<String, Object>();
+        mdc.put("request", "r-1");
+        mdc.put("ignored", "a");
+
+        Assert.assertEquals("{\"request\":\"r-1\"}", writeByContent(cache, plan, mdc));
+        mdc.put("ignored", "b");
+        Assert.assertEquals("{\"request\":\"r-1\"}", writeByContent(cache, plan, mdc));
+        mdc.remove("request");
+        Assert.assertEquals("{}", writeByContent(cache, plan, mdc));
+        Assert.assertEquals("{\"request\":\"r-1\"}", writeByContent(cache, FieldPlan.compile(null, null, "request", null),
+                java.util.Collections.singletonMap("request", "r-1")));
+    }
+
+    @Test
+    public void testMutableValuesAreNotCached() {
+        MdcFragmentCache cache = new MdcFragmentCache();
+        List<String> roles = new ArrayList<String>();
+        roles.add("admin");
+        Map<String, Object> mdc = new HashMap<String, Object>();
+        mdc.put("roles", roles);
+
+        Assert.assertEquals("{\"roles\":[\"admin\"]}", writeByContent(cache, FieldPlan.DEFAULT, mdc));
+        roles.add("user");
+        Assert.assertEquals("{\"roles\":[\"admin\",\"user\"]}", writeByContent(cache, FieldPlan.DEFAULT, mdc));
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        MdcFragmentCache cache = new MdcFragmentCache(2);
+        Map<String, Object> first = new HashMap<String, Object>();
+        first.put("request", "r-1");
+        writeByIdentity(cache, FieldPlan.DEFAULT, first);
+        first.put("request", "changed");
+        Assert.assertEquals("{\"request\":\"r-1\"}", writeByIdentity(cache, FieldPlan.DEFAULT, first));
+
+        writeByIdentity(cache, FieldPlan.DEFAULT, new HashMap<String, Object>());
+        writeByIdentity(cache, FieldPlan.DEFAULT, new HashMap<String, Object>());
+        Assert.assertEquals("Evicted fragment was reused", "{\"request\":\"changed\"}", writeByIdentity(cache, FieldPlan.DEFAULT, first));
+    }
+
+    @Test
+    public void testFragmentInsideObject() {
+        MdcFragmentCache cache = new MdcFragmentCache();
+        Map<String, Object> mdc = new HashMap<String, Object>();
+        mdc.put("request", "r-1");
+        for (int i = 0; i < 2; i++) {
+            JsonWriter writer = new JsonWriter();
+            writer.writeStartObject();
+            writer.writeFieldName("message");
+            writer.writeString("hi");
+            writer.writeFieldName("mdc");
+            cache.writeByIdentity(writer, FieldPlan.DEFAULT, mdc);
+            writer.writeFieldName("level");
+            writer.writeString("INFO");
+            writer.writeEndObject();
+            Assert.assertEquals("{\"message\":\"hi\",\"mdc\":{\"request\":\"r-1\"},\"level\":\"INFO\"}", writer.toString());
+        }
+    }
+
+    private static String writeByIdentity(MdcFragmentCache cache, FieldPlan plan, Map<?, ?> mdc) {
+        JsonWriter writer = new JsonWriter();
+        cache.writeByIdentity(writer, plan, mdc);
+        return writer.toString();
+    }
+
+    private static String writeByContent(MdcFragmentCache cache, FieldPlan plan, Map<?, ?> mdc) {
+        JsonWriter writer = new JsonWriter();
+        cache.writeByContent(writer, plan, mdc);
+        return writer.toString();
+    }
+}
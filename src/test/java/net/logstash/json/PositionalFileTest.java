@@ -0,0 +1,104 @@
+package net.logstash.json;
+
+import junit.framework.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+public class PositionalFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWritesWholeLinesFromManyThreads() throws Exception {
+        File name = new File(folder.getRoot(), "app.json");
+        final PositionalFile file = new PositionalFile(name, true);
+        final int events = 2000;
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    StringBuilder padding = new StringBuilder();
+                    for (int i = 0; i < events; i++) {
+                        if (padding.length() > 300) {
+                            padding.setLength(0);
+                        }
+                        padding.append(i % 10);
+                        try {
+                            file.write((thread + " " + i + " " + padding + "\n").getBytes(JsonWriter.UTF_8));
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        file.close();
+
+        String content = read(name);
+        Assert.assertEquals(content.length(), file.size());
+        Set<String> seen = new HashSet<String>();
+        for (String line : content.split("\n")) {
+            String[] parts = line.split(" ");
+            Assert.assertEquals("Lines must not be interleaved: " + line, 3, parts.length);
+            Assert.assertTrue(seen.add(parts[0] + " " + parts[1]));
+        }
+        Assert.assertEquals(threads.length * events, seen.size());
+    }
+
+    @Test
+    public void testAppendsOrTruncates() throws Exception {
+        File name = new File(folder.getRoot(), "app.json");
+        PositionalFile file = new PositionalFile(name, true);
+        file.write("first\n".getBytes(JsonWriter.UTF_8));
+        file.close();
+        file = new PositionalFile(name, true);
+        file.write("second\n".getBytes(JsonWriter.UTF_8));
+        file.close();
+        Assert.assertEquals("first\nsecond\n", read(name));
+
+        file = new PositionalFile(name, false);
+        file.write("third\n".getBytes(JsonWriter.UTF_8));
+        file.close();
+        Assert.assertEquals("third\n", read(name));
+    }
+
+    @Test
+    public void testWritesDespiteInterrupt() throws Exception {
+        File name = new File(folder.getRoot(), "app.json");
+        PositionalFile file = new PositionalFile(name, true);
+        file.write("before\n".getBytes(JsonWriter.UTF_8));
+        Thread.currentThread().interrupt();
+        file.write("interrupted\n".getBytes(JsonWriter.UTF_8));
+        Assert.assertTrue("The interrupt status must be kept", Thread.interrupted());
+        file.write("after\n".getBytes(JsonWriter.UTF_8));
+        file.close();
+        Assert.assertEquals("before\ninterrupted\nafter\n", read(name));
+    }
+
+    private static String read(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < content.length) {
+                read += in.read(content, read, content.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return new String(content, "UTF-8");
+    }
+}
@@ -0,0 +1,59 @@
+package net.logstash.json;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class PriorityLanesTest {
+
+    @Test
+    public void testDrainsByWeight() {
+        PriorityLanes<String> lanes = new PriorityLanes<String>(16, new int[]{3, 1}, RingBuffer.WaitStrategy.PARK);
+        for (int i = 0; i < 6; i++) {
+            Assert.assertTrue(lanes.offer(0, "high" + i));
+        }
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(lanes.offer(1, "low" + i));
+        }
+        StringBuilder order = new StringBuilder();
+        String element;
+        while ((element = lanes.poll()) != null) {
+            order.append(element).append(' ');
+        }
+        Assert.assertEquals("high0 high1 high2 low0 high3 high4 high5 low1 low2 ", order.toString());
+        Assert.assertTrue(lanes.isEmpty());
+    }
+
+    @Test
+    public void testEmptyLaneHandsItsTurnOn() {
+        PriorityLanes<String> lanes = new PriorityLanes<String>(16, new int[]{8, 1}, RingBuffer.WaitStrategy.PARK);
+        lanes.offer(1, "low0");
+        lanes.offer(1, "low1");
+        Assert.assertEquals("low0", lanes.poll());
+        Assert.assertEquals("low1", lanes.poll());
+        Assert.assertNull(lanes.poll());
+    }
+
+    @Test
+    public void testShedsLowestLanesFirst() {
+        // four lanes of 16 shed from 64, 54, 43 and 32 queued elements on
+        PriorityLanes<Integer> lanes = new PriorityLanes<Integer>(16, new int[]{8, 4, 2, 1}, RingBuffer.WaitStrategy.PARK);
+        for (int i = 0; i < 16; i++) {
+            Assert.assertTrue(lanes.offer(0, i));
+        }
+        for (int i = 0; i < 15; i++) {
+            Assert.assertTrue(lanes.offer(1, i));
+        }
+        Assert.assertTrue("The last lane takes elements below half of the capacity", lanes.offer(3, 0));
+        Assert.assertFalse("The last lane sheds from half of the capacity on", lanes.offer(3, 1));
+        Assert.assertFalse("The first lane takes elements until it is full", lanes.offer(0, 16));
+        for (int i = 0; i < 11; i++) {
+            Assert.assertTrue(lanes.offer(2, i));
+        }
+        Assert.assertFalse("The third lane sheds from 43 elements on", lanes.offer(2, 11));
+        Assert.assertTrue(lanes.offer(1, 15));
+        Assert.assertEquals(44, lanes.size());
+
+        Assert.assertEquals(Integer.valueOf(0), lanes.poll());
+        Assert.assertTrue("Space in the first lane is taken regardless of the others", lanes.offer(0, 16));
+    }
+}
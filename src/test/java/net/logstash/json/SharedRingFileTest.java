@@ -0,0 +1,186 @@
+package net.logstash.json;
+
+import junit.framework.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SharedRingFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReadsEventsWritten() throws Exception {
+        File file = new File(folder.getRoot(), "rings");
+        SharedRingFile rings = new SharedRingFile(file, 4, 1024, true);
+        SharedRingReader reader = new SharedRingReader(file);
+        Collector collector = new Collector();
+        Assert.assertEquals(0, reader.read(collector, 100));
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(rings.write(event(i)));
+        }
+        Assert.assertEquals(4, reader.read(collector, 4));
+        Assert.assertEquals(6, reader.read(collector, 100));
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals("event " + i, collector.events.get(i));
+        }
+        Assert.assertFalse(reader.isProducerClosed());
+        rings.close();
+        Assert.assertTrue(reader.isProducerClosed());
+        Assert.assertFalse("Events written after close are dropped", rings.write(event(10)));
+        Assert.assertEquals(1, rings.getDroppedEvents());
+    }
+
+    @Test
+    public void testCountersAreOrderedLittleEndianLongs() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(folder.newFile("counters"), "rw");
+        ByteBuffer mapped;
+        try {
+            mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 64).order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            raf.close();
+        }
+        MappedLongs counters = new MappedLongs(mapped);
+        Assert.assertTrue("Counters should use ordered accesses on this JVM", counters.isOrdered());
+        counters.putOrdered(8, 0x0102030405060708L);
+        Assert.assertEquals(0x0102030405060708L, mapped.getLong(8));
+        Assert.assertEquals(0x08, mapped.get(8));
+        mapped.putLong(16, -2);
+        Assert.assertEquals(-2, counters.getVolatile(16));
+    }
+
+    @Test
+    public void testWrapsAroundTheEndOfARing() throws Exception {
+        File file = new File(folder.getRoot(), "rings");
+        SharedRingFile rings = new SharedRingFile(file, 2, 64, false);
+        SharedRingReader reader = new SharedRingReader(file);
+        Collector collector = new Collector();
+        for (int i = 0; i < 1000; i++) {
+            String event = i % 3 == 0 ? "e" + i : "a longer event " + i;
+            Assert.assertTrue(rings.write(event.getBytes(JsonWriter.UTF_8)));
+            Assert.assertEquals(1, reader.read(collector, 100));
+            Assert.assertEquals(event, collector.events.get(i));
+        }
+    }
+
+    @Test
+    public void testDropsWhileRingIsFull() throws Exception {
+        File file = new File(folder.getRoot(), "rings");
+        SharedRingFile rings = new SharedRingFile(file, 2, 64, false);
+        int written = 0;
+        while (rings.write(event(written))) {
+            written++;
+        }
+        Assert.assertEquals("A ring of 64 bytes holds 5 records of 12 bytes", 5, written);
+        Assert.assertEquals(1, rings.getDroppedEvents());
+        Assert.assertFalse("Events larger than a ring are dropped", rings.write(new byte[64]));
+
+        SharedRingReader reader = new SharedRingReader(file);
+        Collector collector = new Collector();
+        Assert.assertEquals(5, reader.read(collector, 100));
+        Assert.assertTrue("Space frees up once the reader moved on", rings.write(event(5)));
+    }
+
+    @Test
+    public void testKeepsTheOrderOfEachThread() throws Exception {
+        File file = new File(folder.getRoot(), "rings");
+        final SharedRingFile rings = new SharedRingFile(file, 4, 256, true);
+        final int events = 20000;
+        // six threads for three rings of their own, so that some share the first one
+        Thread[] threads = new Thread[6];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < events; i++) {
+                        rings.write((thread + " " + i).getBytes(JsonWriter.UTF_8));
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        SharedRingReader reader = new SharedRingReader(file);
+        final int[] next = new int[threads.length];
+        SharedRingReader.Handler handler = new SharedRingReader.Handler() {
+            public void event(ByteBuffer buffer, int offset, int length) {
+                String[] parts = decode(buffer, offset, length).split(" ");
+                int thread = Integer.parseInt(parts[0]);
+                Assert.assertEquals("Events of thread " + thread, next[thread]++, Integer.parseInt(parts[1]));
+            }
+        };
+        int read = 0;
+        long deadline = System.currentTimeMillis() + 30000;
+        while (read < threads.length * events && System.currentTimeMillis() < deadline) {
+            read += reader.read(handler, 64);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(threads.length * events, read);
+        Assert.assertEquals(0, rings.getDroppedEvents());
+    }
+
+    @Test
+    public void testStartsOverWhenProducerInitializesAgain() throws Exception {
+        File file = new File(folder.getRoot(), "rings");
+        SharedRingFile rings = new SharedRingFile(file, 2, 1024, true);
+        SharedRingReader reader = new SharedRingReader(file);
+        rings.write(event(0));
+        rings.write(event(1));
+        Collector collector = new Collector();
+        Assert.assertEquals(1, reader.read(collector, 1));
+        long generation = reader.getGeneration();
+
+        rings = new SharedRingFile(file, 2, 1024, true);
+        rings.write(event(2));
+        Assert.assertEquals(1, reader.read(collector, 100));
+        Assert.assertEquals("event 2", collector.events.get(1));
+        Assert.assertTrue(generation != reader.getGeneration());
+
+        new SharedRingFile(file, 2, 2048, true);
+        try {
+            reader.read(collector, 100);
+            Assert.fail("Other dimensions need a new reader");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectsUninitializedFile() throws Exception {
+        File file = new File(folder.getRoot(), "rings");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(1024);
+        raf.close();
+        new SharedRingReader(file);
+    }
+
+    private static byte[] event(int i) {
+        return ("event " + i).getBytes(JsonWriter.UTF_8);
+    }
+
+    static String decode(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, JsonWriter.UTF_8);
+    }
+
+    private static final class Collector implements SharedRingReader.Handler {
+        final List<String> events = new ArrayList<String>();
+
+        public void event(ByteBuffer buffer, int offset, int length) {
+            events.add(decode(buffer, offset, length));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package net.logstash.json;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class StackTraceDeduplicatorTest {
+
+    private static Throwable createThrowable(String message) {
+        return new IllegalStateException(message, new RuntimeException("cause of " + message));
+    }
+
+    @Test
+    public void testFingerprintIgnoresMessages() {
+        Throwable[] throwables = new Throwable[2];
+        for (int i = 0; i < throwables.length; i++) {
+            throwables[i] = createThrowable("message " + i);
+        }
+        Throwable first = throwables[0];
+        Throwable second = throwables[1];
+        Throwable elsewhere = new IllegalStateException("message 0");
+
+        Assert.assertEquals("Same throw site should have the same fingerprint",
+                StackTraceDeduplicator.fingerprint(first), StackTraceDeduplicator.fingerprint(second));
+        Assert.assertFalse("Different throw sites should have different fingerprints",
+                StackTraceDeduplicator.fingerprint(first) == StackTraceDeduplicator.fingerprint(elsewhere));
+    }
+
+    @Test
+    public void testFingerprintSurvivesCauseCycles() {
+        Exception a = new Exception("a");
+        Exception b = new Exception("b", a);
+        a.initCause(b);
+
+        StackTraceDeduplicator.fingerprint(a);
+    }
+
+    @Test
+    public void testWindowExpiry() {
+        StackTraceDeduplicator deduplicator = new StackTraceDeduplicator(1000L, 16);
+        long fingerprint = StackTraceDeduplicator.fingerprint(createThrowable("x"));
+
+        Assert.assertTrue(deduplicator.isFirstOccurrence(fingerprint, 10000L));
+        Assert.assertFalse(deduplicator.isFirstOccurrence(fingerprint, 10500L));
+        Assert.assertFalse(deduplicator.isFirstOccurrence(fingerprint, 10999L));
+        Assert.assertTrue(deduplicator.isFirstOccurrence(fingerprint, 11000L));
+        Assert.assertFalse(deduplicator.isFirstOccurrence(fingerprint, 11001L));
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        StackTraceDeduplicator deduplicator = new StackTraceDeduplicator(0L, 16);
+        for (long fingerprint = 0; fingerprint < 10000; fingerprint++) {
+            Assert.assertTrue(deduplicator.isFirstOccurrence(fingerprint * 0x9E3779B97F4A7C15L, fingerprint));
+        }
+        // the oldest fingerprints have been evicted, the most recent one is still known
+        Assert.assertTrue(deduplicator.isFirstOccurrence(0L, 10000L));
+        Assert.assertFalse(deduplicator.isFirstOccurrence(9999L * 0x9E3779B97F4A7C15L, 10001L));
+    }
+}
@@ -0,0 +1,98 @@
+package net.logstash.json;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class StackTraceWriterTest {
+
+    @Test
+    public void testMatchesPrintStackTraceWithoutCompaction() {
+        Throwable throwable = createNestedThrowable();
+        StringWriter expected = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(expected));
+
+        String actual = write(new StackTraceWriter(0, new String[0], true), throwable);
+        Assert.assertEquals(expected.toString().trim().replace(System.getProperty("line.separator"), "\n"), actual);
+    }
+
+    @Test
+    public void testCompaction() {
+        StackTraceWriter stackTraceWriter = new StackTraceWriter(2, StackTraceWriter.parsePrefixes(" sun.reflect., com.example.proxy. "), true);
+        String actual = write(stackTraceWriter, createNestedThrowable());
+        Assert.assertEquals(
+                "java.lang.IllegalStateException: outer\n" +
+                "\tat com.example.Service.handle(Service.java:10)\n" +
+                "\t... 1 filtered\n" +
+                "\tat com.example.Controller.call(Controller.java:20)\n" +
+                "\t... 2 frames truncated\n" +
+                "Caused by: java.io.IOException: \"inner\"\n" +
+                "\tat com.example.Dao.load(Unknown Source)\n" +
+                "\tat com.example.Dao.query(Native Method)\n" +
+                "\t... 3 more", actual);
+    }
+
+    @Test
+    public void testWithoutFolding() {
+        StackTraceWriter stackTraceWriter = new StackTraceWriter(0, new String[0], false);
+        String actual = write(stackTraceWriter, createNestedThrowable());
+        Assert.assertTrue(actual, actual.endsWith("\tat com.example.Dao.query(Native Method)\n" +
+                "\tat com.example.Controller.call(Controller.java:20)\n" +
+                "\tat com.example.Dispatcher.dispatch(Dispatcher.java)\n" +
+                "\tat java.lang.Thread.run(Thread.java:745)"));
+    }
+
+    @Test
+    public void testStructuredCauses() {
+        StackTraceWriter stackTraceWriter = new StackTraceWriter(StackTraceWriter.Format.STRUCTURED, 2,
+                StackTraceWriter.parsePrefixes("sun.reflect."), true);
+        JsonWriter writer = new JsonWriter();
+        writer.writeStartObject();
+        stackTraceWriter.writeField(writer, createNestedThrowable());
+        writer.writeEndObject();
+        Assert.assertEquals("{\"causes\":[" +
+                "{\"class\":\"java.lang.IllegalStateException\",\"message\":\"outer\",\"frames\":[" +
+                "{\"class\":\"com.example.Service\",\"method\":\"handle\",\"file\":\"Service.java\",\"line\":10}," +
+                "{\"class\":\"com.example.Controller\",\"method\":\"call\",\"file\":\"Controller.java\",\"line\":20}]," +
+                "\"filtered_frames\":1,\"truncated_frames\":2}," +
+                "{\"class\":\"java.io.IOException\",\"message\":\"\\\"inner\\\"\",\"frames\":[" +
+                "{\"class\":\"com.example.Dao\",\"method\":\"load\",\"line\":5}," +
+                "{\"class\":\"com.example.Dao\",\"method\":\"query\",\"file\":\"Dao.java\"}]," +
+                "\"frames_in_common\":3}]}", writer.toString());
+    }
+
+    @Test
+    public void testCircularCauses() {
+        Exception first = new Exception("first");
+        Exception second = new Exception("second", first);
+        first.initCause(second);
+        String actual = write(new StackTraceWriter(1, new String[0], true), first);
+        Assert.assertTrue(actual, actual.endsWith("Caused by: [CIRCULAR REFERENCE: java.lang.Exception: first]"));
+    }
+
+    private static Throwable createNestedThrowable() {
+        StackTraceElement controller = new StackTraceElement("com.example.Controller", "call", "Controller.java", 20);
+        StackTraceElement dispatcher = new StackTraceElement("com.example.Dispatcher", "dispatch", "Dispatcher.java", -1);
+        StackTraceElement thread = new StackTraceElement("java.lang.Thread", "run", "Thread.java", 745);
+
+        Exception cause = new java.io.IOException("\"inner\"");
+        cause.setStackTrace(new StackTraceElement[]{
+                new StackTraceElement("com.example.Dao", "load", null, 5),
+                new StackTraceElement("com.example.Dao", "query", "Dao.java", -2),
+                controller, dispatcher, thread});
+        Exception throwable = new IllegalStateException("outer", cause);
+        throwable.setStackTrace(new StackTraceElement[]{
+                new StackTraceElement("com.example.Service", "handle", "Service.java", 10),
+                new StackTraceElement("sun.reflect.GeneratedMethodAccessor1", "invoke", null, -1),
+                controller, dispatcher, thread});
+        return throwable;
+    }
+
+    private static String write(StackTraceWriter stackTraceWriter, Throwable throwable) {
+        JsonWriter writer = new JsonWriter();
+        stackTraceWriter.write(writer, throwable);
+        return (String) net.minidev.json.JSONValue.parse(writer.toString());
+    }
+}
@@ -0,0 +1,83 @@
+package net.logstash.json;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+public class StringFragmentCacheTest {
+
+    @Test
+    public void testRepeatedStringIsCopied() {
+        StringFragmentCache cache = new StringFragmentCache();
+        Assert.assertEquals("\"INFO\"", write(cache, "INFO"));
+        Assert.assertEquals(0, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+
+        Assert.assertEquals("\"INFO\"", write(cache, "INFO"));
+        Assert.assertEquals("Equal strings are hits too", "\"INFO\"", write(cache, new String("INFO")));
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testEscapedStringIsCached() {
+        StringFragmentCache cache = new StringFragmentCache();
+        Assert.assertEquals("\"pool-1\\/\\\"worker\\\"\"", write(cache, "pool-1/\"worker\""));
+        Assert.assertEquals("\"pool-1\\/\\\"worker\\\"\"", write(cache, "pool-1/\"worker\""));
+        Assert.assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testCollidingStringsShareASet() {
+        // "Aa" and "BB" have the same hash code
+        StringFragmentCache cache = new StringFragmentCache(2);
+        write(cache, "Aa");
+        write(cache, "BB");
+        Assert.assertEquals("\"Aa\"", write(cache, "Aa"));
+        Assert.assertEquals("\"BB\"", write(cache, "BB"));
+        Assert.assertEquals(2, cache.getHits());
+
+        write(cache, "C#");
+        Assert.assertEquals("\"C#\"", write(cache, "C#"));
+        Assert.assertEquals("\"BB\"", write(cache, "BB"));
+        Assert.assertEquals("\"Aa\"", write(cache, "Aa"));
+        Assert.assertEquals(4, cache.getHits());
+        Assert.assertEquals("Oldest entry should have been evicted", 4, cache.getMisses());
+    }
+
+    @Test
+    public void testLongStringsAreNotCached() {
+        StringFragmentCache cache = new StringFragmentCache();
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i <= StringFragmentCache.MAX_LENGTH; i++) {
+            value.append('x');
+        }
+        write(cache, value.toString());
+        write(cache, value.toString());
+        Assert.assertEquals(0, cache.getHits());
+        Assert.assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testFragmentInsideObject() {
+        StringFragmentCache cache = new StringFragmentCache();
+        for (int i = 0; i < 2; i++) {
+            JsonWriter writer = new JsonWriter();
+            writer.writeStartObject();
+            writer.writeFieldName("level");
+            writer.writeString("WARN", cache);
+            writer.writeFieldName("thread_name");
+            writer.writeString("main", cache);
+            writer.writeFieldName("ndc");
+            writer.writeString(null, cache);
+            writer.writeEndObject();
+            Assert.assertEquals("{\"level\":\"WARN\",\"thread_name\":\"main\",\"ndc\":null}", writer.toString());
+        }
+        Assert.assertEquals(2, cache.getHits());
+    }
+
+    private static String write(StringFragmentCache cache, String value) {
+        JsonWriter writer = new JsonWriter();
+        writer.writeString(value, cache);
+        return writer.toString();
+    }
+}
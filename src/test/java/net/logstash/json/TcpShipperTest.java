@@ -0,0 +1,223 @@
+package net.logstash.json;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class TcpShipperTest {
+
+    private static final TcpShipper.ErrorReporter IGNORE = new TcpShipper.ErrorReporter() {
+        public void error(String message, Exception e) {
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LineServer server;
+    private TcpShipper shipper;
+
+    @After
+    public void shutdown() throws IOException {
+        if (shipper != null) {
+            shipper.close(1000);
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testSendsEventsInOrder() throws Exception {
+        server = new LineServer(new ServerSocket(0), false);
+        shipper = new TcpShipper("localhost", server.getPort(), 64, 1024, TcpShipper.OverflowPolicy.BLOCK, 10, 100, IGNORE);
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(shipper.send(event(i)));
+        }
+        shipper.close(5000);
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals("event " + i, server.take());
+        }
+        Assert.assertEquals(0, shipper.getDroppedEvents());
+    }
+
+    @Test
+    public void testReconnectsAfterPeerClosed() throws Exception {
+        server = new LineServer(new ServerSocket(0), true);
+        shipper = new TcpShipper("localhost", server.getPort(), 64, 1024, TcpShipper.OverflowPolicy.BLOCK, 10, 100, IGNORE);
+        shipper.send(event(0));
+        Assert.assertEquals("event 0", server.take());
+
+        // the server hung up after the first line; events sent before the failure shows are lost with the connection
+        String received = null;
+        for (int i = 1; i < 1000 && received == null; i++) {
+            shipper.send(event(i));
+            received = server.poll(20);
+        }
+        Assert.assertNotNull("Nothing arrived after reconnecting", received);
+        Assert.assertEquals(1, shipper.getReconnects());
+        shipper.send("last".getBytes(JsonWriter.UTF_8));
+        shipper.send(new byte[]{'\n'});
+        String line;
+        while ((line = server.take()).startsWith("event ")) {
+            // events sent while reconnecting
+        }
+        Assert.assertEquals("last", line);
+    }
+
+    @Test
+    public void testDropsNewestWhileUnreachable() throws Exception {
+        shipper = new TcpShipper("localhost", unusedPort(), 4, 1024, TcpShipper.OverflowPolicy.DROP_NEWEST, 1000, 1000, IGNORE);
+        int rejected = 0;
+        for (int i = 0; i < 100; i++) {
+            if (!shipper.send(event(i))) {
+                rejected++;
+            }
+        }
+        Assert.assertTrue("Most events should have been dropped", rejected >= 90);
+        Assert.assertEquals(rejected, shipper.getDroppedEvents());
+        Assert.assertFalse(shipper.isConnected());
+    }
+
+    @Test
+    public void testDropsOldestWhileUnreachable() throws Exception {
+        int port = unusedPort();
+        shipper = new TcpShipper("localhost", port, 4, 1024, TcpShipper.OverflowPolicy.DROP_OLDEST, 10, 20, IGNORE);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(shipper.send(event(i)));
+        }
+        ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress("localhost", port));
+        server = new LineServer(socket, false);
+        shipper.close(5000);
+
+        List<String> received = new ArrayList<String>();
+        String line;
+        while ((line = server.poll(200)) != null) {
+            received.add(line);
+        }
+        Assert.assertEquals(100, received.size() + shipper.getDroppedEvents());
+        Assert.assertEquals("The newest events must be kept", "event 99", received.get(received.size() - 1));
+        Assert.assertEquals("event 96", received.get(received.size() - 4));
+    }
+
+    @Test
+    public void testSpoolsWhileUnreachable() throws Exception {
+        int port = unusedPort();
+        shipper = new TcpShipper("localhost", port, 4, 1024, TcpShipper.OverflowPolicy.BLOCK, 10, 20, IGNORE);
+        shipper.spoolTo(new DiskSpool(folder.getRoot(), 1024, 1024 * 1024));
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue("The spool takes the events the buffer has no room for", shipper.send(event(i)));
+        }
+        shipper.close(100);
+
+        ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress("localhost", port));
+        server = new LineServer(socket, false);
+        // the next shipper sends what the previous one left in the spool
+        shipper = new TcpShipper("localhost", port, 4, 1024, TcpShipper.OverflowPolicy.BLOCK, 10, 20, IGNORE);
+        shipper.spoolTo(new DiskSpool(folder.getRoot(), 1024, 1024 * 1024));
+        shipper.send(event(100));
+        shipper.close(5000);
+        for (int i = 0; i <= 100; i++) {
+            Assert.assertEquals("event " + i, server.take());
+        }
+        Assert.assertEquals(0, new DiskSpool(folder.getRoot(), 1024, 1024 * 1024).getPendingEvents());
+    }
+
+    @Test
+    public void testParseOverflowPolicy() {
+        Assert.assertEquals(TcpShipper.OverflowPolicy.BLOCK, TcpShipper.OverflowPolicy.parse(null));
+        Assert.assertEquals(TcpShipper.OverflowPolicy.DROP_OLDEST, TcpShipper.OverflowPolicy.parse("drop-oldest"));
+        Assert.assertEquals(TcpShipper.OverflowPolicy.DROP_NEWEST, TcpShipper.OverflowPolicy.parse(" DROP_NEWEST "));
+    }
+
+    private static byte[] event(int i) {
+        return ("event " + i + "\n").getBytes(JsonWriter.UTF_8);
+    }
+
+    private static int unusedPort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    /**
+     * Accepts connections one after the other and collects the lines they send.
+     */
+    static final class LineServer implements Runnable {
+        private final ServerSocket socket;
+        private final boolean hangUpAfterFirstLine;
+        private final BlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+        private final Thread thread;
+
+        LineServer(ServerSocket socket, boolean hangUpAfterFirstLine) {
+            this.socket = socket;
+            this.hangUpAfterFirstLine = hangUpAfterFirstLine;
+            this.thread = new Thread(this, "LineServer");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        String take() throws InterruptedException {
+            String line = lines.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull("No line received", line);
+            return line;
+        }
+
+        String poll(long millis) throws InterruptedException {
+            return lines.poll(millis, TimeUnit.MILLISECONDS);
+        }
+
+        public void run() {
+            boolean first = true;
+            try {
+                while (true) {
+                    Socket connection = socket.accept();
+                    try {
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            lines.add(line);
+                            if (first && hangUpAfterFirstLine) {
+                                break;
+                            }
+                        }
+                    } catch (IOException e) {
+                        // connection reset by the shipper
+                    } finally {
+                        first = false;
+                        connection.close();
+                    }
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
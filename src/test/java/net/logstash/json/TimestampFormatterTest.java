@@ -0,0 +1,89 @@
+package net.logstash.json;
+
+import junit.framework.Assert;
+import org.apache.commons.lang.time.FastDateFormat;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TimeZone;
+
+public class TimestampFormatterTest {
+    static final FastDateFormat FAST_DATE_FORMAT = FastDateFormat.getInstance("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", TimeZone.getTimeZone("UTC"));
+
+    @Test
+    public void testMatchesFastDateFormat() {
+        long[] timestamps = new long[]{
+                0L, 1L, 999L, 1000L, -1L, -999L, -1000L, -1001L,
+                1364844991207L,     // 2013-04-01T19:36:31.207Z
+                951782400000L,      // 2000-02-29, leap day
+                4107542399999L,     // 2100-02-28T23:59:59.999Z, not a leap year
+                -12219292800000L,   // 1582-10-15, first Gregorian day
+                253402300799999L    // 9999-12-31T23:59:59.999Z
+        };
+        TimestampFormatter formatter = new TimestampFormatter();
+        for (long timestamp : timestamps) {
+            Assert.assertEquals("format differs for " + timestamp, FAST_DATE_FORMAT.format(timestamp), format(formatter, timestamp));
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long timestamp = (long) (random.nextDouble() * 4102444800000L);
+            Assert.assertEquals("format differs for " + timestamp, FAST_DATE_FORMAT.format(timestamp), format(formatter, timestamp));
+        }
+    }
+
+    @Test
+    public void testCachedSecondIsReused() {
+        TimestampFormatter formatter = new TimestampFormatter();
+        Assert.assertEquals("2013-04-01T19:36:31.207Z", format(formatter, 1364844991207L));
+        Assert.assertEquals("2013-04-01T19:36:31.999Z", format(formatter, 1364844991999L));
+        Assert.assertEquals("2013-04-01T19:36:32.000Z", format(formatter, 1364844992000L));
+        Assert.assertEquals("2013-04-01T19:36:31.001Z", format(formatter, 1364844991001L));
+    }
+
+    @Test
+    public void testFinerPrecisions() {
+        TimestampFormatter formatter = new TimestampFormatter();
+        byte[] bytes = new byte[TimestampFormatter.length(TimestampFormatter.Precision.NANOSECONDS)];
+
+        formatter.format(1364844991L, 207001002, TimestampFormatter.Precision.NANOSECONDS, bytes, 0);
+        Assert.assertEquals("2013-04-01T19:36:31.207001002Z", new String(bytes, JsonWriter.UTF_8));
+
+        int length = formatter.format(1364844991L, 5001999, TimestampFormatter.Precision.MICROSECONDS, bytes, 0);
+        Assert.assertEquals("2013-04-01T19:36:31.005001Z", new String(bytes, 0, length, JsonWriter.UTF_8));
+    }
+
+    @Test
+    @Ignore
+    public void measureTimestampFormatterPerformance() {
+        int iterations = 10000000;
+        long base = System.currentTimeMillis();
+        long start, stop;
+        int sink = 0;
+
+        start = System.currentTimeMillis();
+        for (int i = 0; i < iterations; i++) {
+            sink += FAST_DATE_FORMAT.format(base + (i >> 4)).length();
+        }
+        stop = System.currentTimeMillis();
+        long fastDateFormatMeasurement = stop - start;
+
+        TimestampFormatter formatter = new TimestampFormatter();
+        byte[] bytes = new byte[TimestampFormatter.length(TimestampFormatter.Precision.MILLISECONDS)];
+        start = System.currentTimeMillis();
+        for (int i = 0; i < iterations; i++) {
+            sink += formatter.format(base + (i >> 4), bytes, 0);
+        }
+        stop = System.currentTimeMillis();
+        long timestampFormatterMeasurement = stop - start;
+
+        System.out.println("FastDateFormat: " + fastDateFormatMeasurement + "ms, TimestampFormatter: " + timestampFormatterMeasurement + "ms (" + sink + ")");
+    }
+
+    private static String format(TimestampFormatter formatter, long timestamp) {
+        byte[] bytes = new byte[TimestampFormatter.length(TimestampFormatter.Precision.MILLISECONDS)];
+        formatter.format(timestamp, bytes, 0);
+        return new String(bytes, JsonWriter.UTF_8);
+    }
+}
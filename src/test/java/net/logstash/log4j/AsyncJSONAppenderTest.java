@@ -0,0 +1,401 @@
+package net.logstash.log4j;
+
+import junit.framework.Assert;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+import org.apache.log4j.AsyncAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.WriterAppender;
+import org.apache.log4j.helpers.OnlyOnceErrorHandler;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+public class AsyncJSONAppenderTest {
+
+    private static final Logger logger = Logger.getLogger(AsyncJSONAppenderTest.class);
+
+    @Test
+    public void testWritesEventsOfAllThreads() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final AsyncJSONAppender appender = createAppender(out, 16, true);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 250; i++) {
+                        MDC.put("request", thread + "-" + i);
+                        appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.INFO, thread + "-" + i, null));
+                        MDC.remove("request");
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        appender.close();
+
+        String[] lines = new String(out.toByteArray(), "UTF-8").split("\n");
+        Assert.assertEquals(1000, lines.length);
+        Set<String> messages = new HashSet<String>();
+        for (String line : lines) {
+            JSONObject event = (JSONObject) JSONValue.parse(line);
+            Assert.assertEquals("MDC was not captured by the logging thread",
+                    event.get("message"), ((JSONObject) event.get("mdc")).get("request"));
+            messages.add((String) event.get("message"));
+        }
+        Assert.assertEquals(1000, messages.size());
+        Assert.assertEquals(0, appender.getDroppedEvents());
+    }
+
+    @Test
+    public void testDropsEventsWhenNotBlocking() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        OutputStream stalled = new OutputStream() {
+            @Override
+            public void write(int b) {
+                written.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+                written.write(b, off, len);
+            }
+        };
+        AsyncJSONAppender appender = createAppender(stalled, 4, false);
+        for (int i = 0; i < 100; i++) {
+            appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.INFO, "event " + i, null));
+        }
+        release.countDown();
+        appender.close();
+
+        int lines = new String(written.toByteArray(), "UTF-8").split("\n").length;
+        Assert.assertTrue("Events should have been dropped", appender.getDroppedEvents() > 0);
+        Assert.assertEquals(100, lines + appender.getDroppedEvents());
+    }
+
+    @Test
+    public void testPlainLayout() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsyncJSONAppender appender = new AsyncJSONAppender();
+        appender.setLayout(new org.apache.log4j.PatternLayout("%p %m%n"));
+        appender.setOutputStream(out);
+        appender.activateOptions();
+        appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.WARN, "plain", null));
+        appender.close();
+        Assert.assertEquals("WARN plain\n", new String(out.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void testSurvivesErrorsFromTheLayout() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsyncJSONAppender appender = new AsyncJSONAppender();
+        appender.setLayout(new org.apache.log4j.PatternLayout("%m%n") {
+            @Override
+            public String format(LoggingEvent event) {
+                if ("overflow".equals(event.getMessage())) {
+                    throw new StackOverflowError();
+                }
+                return super.format(event);
+            }
+        });
+        final List<String> errors = new ArrayList<String>();
+        appender.setErrorHandler(new OnlyOnceErrorHandler() {
+            @Override
+            public void error(String message, Exception e, int errorCode) {
+                synchronized (errors) {
+                    errors.add(message + ": " + e.getCause());
+                }
+            }
+        });
+        appender.setOutputStream(out);
+        appender.activateOptions();
+        appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.INFO, "before", null));
+        appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.INFO, "overflow", null));
+        appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.INFO, "after", null));
+        appender.close();
+        Assert.assertEquals("before\nafter\n", new String(out.toByteArray(), "UTF-8"));
+        Assert.assertEquals(Arrays.asList("Could not format event: java.lang.StackOverflowError"), errors);
+        Assert.assertEquals(0, appender.getDroppedEvents());
+    }
+
+    @Test
+    public void testWorkersKeepTheOrderOfEvents() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsyncJSONAppender appender = new AsyncJSONAppender();
+        appender.setName("workers");
+        appender.setLayout(new JSONEventLayoutV1(false));
+        appender.setBufferSize(64);
+        appender.setWorkers(4);
+        appender.setWorkerBatchSize(7);
+        appender.setOutputStream(out);
+        appender.activateOptions();
+        for (int i = 0; i < 2000; i++) {
+            Throwable error = i % 10 == 0 ? new IllegalStateException("failure " + i) : null;
+            appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.INFO, "event " + i, error));
+        }
+        appender.close();
+
+        String[] lines = new String(out.toByteArray(), "UTF-8").split("\n");
+        Assert.assertEquals(2000, lines.length);
+        for (int i = 0; i < lines.length; i++) {
+            JSONObject event = (JSONObject) JSONValue.parse(lines[i]);
+            Assert.assertEquals("event " + i, event.get("message"));
+        }
+    }
+
+    @Test
+    public void testWorkersWithPlainLayout() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AsyncJSONAppender appender = new AsyncJSONAppender();
+        appender.setLayout(new org.apache.log4j.PatternLayout("%m%n"));
+        appender.setWorkers(2);
+        appender.setWorkerBatchSize(3);
+        appender.setOutputStream(out);
+        appender.activateOptions();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.INFO, "line " + i, null));
+            expected.append("line ").append(i).append('\n');
+        }
+        appender.close();
+        Assert.assertEquals(expected.toString(), new String(out.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void testPriorityLanesShedLowLevelsAndSummarizeDrops() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        OutputStream stalled = new OutputStream() {
+            @Override
+            public void write(int b) {
+                written.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+                written.write(b, off, len);
+            }
+        };
+        AsyncJSONAppender appender = new AsyncJSONAppender();
+        appender.setName("lanes");
+        appender.setLayout(new JSONEventLayoutV1(false));
+        appender.setBufferSize(16);
+        appender.setPriorityLanes(true);
+        appender.setOutputStream(stalled);
+        appender.activateOptions();
+        appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.INFO, "first", null));
+        writing.await();
+        // the lanes of 16 events shed DEBUG from 32 queued events on, but take ERROR until its lane is full
+        for (int i = 0; i < 200; i++) {
+            appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.DEBUG, "debug " + i, null));
+        }
+        for (int i = 0; i < 10; i++) {
+            appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.ERROR, "error " + i, null));
+        }
+        Assert.assertEquals(184, appender.getDroppedEvents());
+        release.countDown();
+        appender.close();
+
+        int errors = 0;
+        int debugs = 0;
+        JSONObject summary = null;
+        for (String line : new String(written.toByteArray(), "UTF-8").split("\n")) {
+            JSONObject event = (JSONObject) JSONValue.parse(line);
+            String message = (String) event.get("message");
+            if (message.startsWith("error ")) {
+                Assert.assertEquals("error " + errors++, message);
+            } else if (message.startsWith("debug ")) {
+                debugs++;
+            } else if (message.startsWith("Dropped ")) {
+                summary = event;
+            }
+        }
+        Assert.assertEquals(10, errors);
+        Assert.assertEquals(16, debugs);
+        Assert.assertNotNull("A summary of the dropped events must be written", summary);
+        Assert.assertEquals("WARN", summary.get("level"));
+        Assert.assertEquals(logger.getName(), summary.get("logger_name"));
+        JSONObject mdc = (JSONObject) summary.get("mdc");
+        Assert.assertEquals(184, ((Number) mdc.get("dropped_count")).intValue());
+        Assert.assertEquals("DEBUG", mdc.get("dropped_level"));
+    }
+
+    /**
+     * Measures how formatting throughput scales with the number of workers, for events with location information
+     * and a stack trace each. The events are prepared beforehand, so that the logging threads do not limit the
+     * throughput.
+     */
+    @Test
+    @Ignore
+    public void measureWorkerScaling() throws Exception {
+        final int producers = 4;
+        final int events = 200000;
+        final LoggingEvent[] prepared = new LoggingEvent[1024];
+        for (int i = 0; i < prepared.length; i++) {
+            prepared[i] = new LoggingEvent(logger.getName(), logger, Level.ERROR, "benchmark message " + i,
+                    new IllegalStateException("benchmark failure " + i));
+            prepared[i].getLocationInformation();
+            prepared[i].getThreadName();
+            prepared[i].getMDCCopy();
+            prepared[i].getNDC();
+            prepared[i].getRenderedMessage();
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int round = 0; round < 2; round++) {
+            for (int workers = 1; workers <= Math.max(1, cores - producers - 1); workers *= 2) {
+                AsyncJSONAppender appender = new AsyncJSONAppender();
+                appender.setName("workers" + workers);
+                JSONEventLayoutV1 layout = new JSONEventLayoutV1(true);
+                appender.setLayout(layout);
+                appender.setBufferSize(65536);
+                appender.setWorkers(workers);
+                appender.setOutputStream(new NullOutputStream());
+                appender.setShutdownTimeout(600000);
+                appender.activateOptions();
+
+                final CountDownLatch start = new CountDownLatch(1);
+                Thread[] threads = new Thread[producers];
+                for (int t = 0; t < producers; t++) {
+                    final org.apache.log4j.Appender target = appender;
+                    final int offset = t;
+                    threads[t] = new Thread(new Runnable() {
+                        public void run() {
+                            try {
+                                start.await();
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                            for (int i = 0; i < events; i++) {
+                                target.doAppend(prepared[(i + offset) & (prepared.length - 1)]);
+                            }
+                        }
+                    });
+                    threads[t].start();
+                }
+                long begin = System.nanoTime();
+                start.countDown();
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                appender.close();
+                long elapsed = System.nanoTime() - begin;
+                System.out.println(workers + " workers: " + (producers * (long) events * 1000000000L / elapsed)
+                        + " events/s");
+            }
+        }
+    }
+
+    /**
+     * Compares throughput and append latency with log4j's AsyncAppender, both formatting with JSONEventLayoutV1.
+     */
+    @Test
+    @Ignore
+    public void measureAgainstAsyncAppender() throws Exception {
+        final int producers = 4;
+        final int events = 250000;
+        for (int round = 0; round < 3; round++) {
+            AsyncAppender asyncAppender = new AsyncAppender();
+            asyncAppender.setBufferSize(8192);
+            asyncAppender.addAppender(new WriterAppender(new JSONEventLayoutV1(false), new OutputStreamWriter(new NullOutputStream(), "UTF-8")));
+            measure("AsyncAppender", asyncAppender, producers, events);
+
+            AsyncJSONAppender ringAppender = new AsyncJSONAppender();
+            ringAppender.setLayout(new JSONEventLayoutV1(false));
+            ringAppender.setOutputStream(new NullOutputStream());
+            ringAppender.activateOptions();
+            measure("AsyncJSONAppender", ringAppender, producers, events);
+        }
+    }
+
+    private static void measure(String name, final org.apache.log4j.Appender appender, int producers, final int events) throws Exception {
+        final long[][] latencies = new long[producers][events];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int t = 0; t < producers; t++) {
+            final long[] threadLatencies = latencies[t];
+            // one logger per thread, log4j 1.2 serializes the threads logging through the same logger
+            final Logger threadLogger = Logger.getLogger(AsyncJSONAppenderTest.class.getName() + ".producer" + t);
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < events; i++) {
+                        long begin = System.nanoTime();
+                        appender.doAppend(new LoggingEvent(threadLogger.getName(), threadLogger, Level.INFO, "benchmark message", null));
+                        threadLatencies[i] = System.nanoTime() - begin;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        appender.close();
+        long elapsed = System.nanoTime() - begin;
+
+        long[] all = new long[producers * events];
+        for (int t = 0; t < producers; t++) {
+            System.arraycopy(latencies[t], 0, all, t * events, events);
+        }
+        Arrays.sort(all);
+        System.out.println(name + ": " + (all.length * 1000000000L / elapsed) + " events/s, p99 " + all[(int) (all.length * 0.99)] / 1000
+                + "us, p99.9 " + all[(int) (all.length * 0.999)] / 1000 + "us, max " + all[all.length - 1] / 1000 + "us");
+    }
+
+    private static AsyncJSONAppender createAppender(OutputStream out, int bufferSize, boolean blocking) {
+        AsyncJSONAppender appender = new AsyncJSONAppender();
+        appender.setName("test");
+        appender.setLayout(new JSONEventLayoutV1(false));
+        appender.setBufferSize(bufferSize);
+        appender.setBlocking(blocking);
+        appender.setOutputStream(out);
+        appender.activateOptions();
+        return appender;
+    }
+
+    private static final class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
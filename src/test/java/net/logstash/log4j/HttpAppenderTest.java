@@ -0,0 +1,42 @@
+package net.logstash.log4j;
+
+import junit.framework.Assert;
+import net.logstash.json.HttpServerStub;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+public class HttpAppenderTest {
+
+    private static final Logger logger = Logger.getLogger(HttpAppenderTest.class);
+
+    @Test
+    public void testPostsJSONEvents() throws Exception {
+        HttpServerStub server = new HttpServerStub();
+        try {
+            HttpAppender appender = new HttpAppender();
+            appender.setName("http");
+            appender.setLayout(new JSONEventLayoutV1(false));
+            appender.setUrl(server.getUrl());
+            appender.setLinger(10);
+            appender.activateOptions();
+            for (int i = 0; i < 10; i++) {
+                appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.INFO, "event " + i, null));
+            }
+            appender.close();
+            for (int i = 0; i < 10; i++) {
+                JSONObject event = (JSONObject) JSONValue.parse(server.take());
+                Assert.assertEquals("event " + i, event.get("message"));
+            }
+            Assert.assertEquals("application/json", server.getContentType());
+            Assert.assertEquals("gzip", server.getContentEncoding());
+            Assert.assertEquals(10, appender.getAcknowledgedEvents());
+            Assert.assertEquals(0, appender.getDroppedEvents());
+        } finally {
+            server.close();
+        }
+    }
+}
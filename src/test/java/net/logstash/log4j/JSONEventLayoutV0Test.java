@@ -7,11 +7,20 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.NDC;
 import org.apache.log4j.MDC;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
 import org.junit.After;
 import org.junit.BeforeClass;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
 /**
  * Created with IntelliJ IDEA.
  * User: jvincent
@@ -180,6 +189,57 @@ public class JSONEventLayoutV0Test {
         layout.setLocationInfo(prevLocationInfo);
     }
 
+    @Test
+    public void testJSONEventLayoutIsReentrant() throws Exception {
+        final JSONEventLayoutV0 layout = new JSONEventLayoutV0(false);
+        layout.activateOptions();
+        final int threadCount = 8;
+        final int eventCount = 2000;
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        Thread[] threads = new Thread[threadCount];
+
+        for (int t = 0; t < threadCount; t++) {
+            final String id = "t" + t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        startSignal.await();
+                        for (int i = 0; i < eventCount; i++) {
+                            String seq = id + "/" + i;
+                            Map<String, String> properties = new HashMap<String, String>();
+                            properties.put("seq", seq);
+                            ThrowableInformation throwable = i % 10 == 0 ? new ThrowableInformation(new IllegalStateException(seq)) : null;
+                            LoggingEvent event = new LoggingEvent(Logger.class.getName(), Logger.getLogger("stress." + id), System.currentTimeMillis(),
+                                    Level.INFO, "message " + seq, "thread-" + id, throwable, "ndc-" + seq, null, properties);
+
+                            JSONObject jsonObject = (JSONObject) JSONValue.parse(layout.format(event));
+                            JSONObject fields = (JSONObject) jsonObject.get("@fields");
+                            if (!("message " + seq).equals(jsonObject.get("@message"))
+                                    || !("thread-" + id).equals(fields.get("threadName"))
+                                    || !("stress." + id).equals(fields.get("loggerName"))
+                                    || !("ndc-" + seq).equals(fields.get("ndc"))
+                                    || !seq.equals(((JSONObject) fields.get("mdc")).get("seq"))
+                                    || (throwable != null) != fields.containsKey("exception")
+                                    || (throwable != null && !seq.equals(((JSONObject) fields.get("exception")).get("exception_message")))) {
+                                failures.add("event " + seq + " leaked fields: " + jsonObject);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e.toString());
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        startSignal.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertTrue("Concurrent formatting failed: " + (failures.isEmpty() ? "" : failures.get(0)), failures.isEmpty());
+    }
+
     @Test
     @Ignore
     public void measureJSONEventLayoutLocationInfoPerformance() {
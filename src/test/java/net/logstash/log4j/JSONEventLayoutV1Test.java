@@ -1,10 +1,15 @@
 package net.logstash.log4j;
 
 import junit.framework.Assert;
+import net.logstash.json.BinaryWriter;
+import net.logstash.json.JsonWriter;
+import net.logstash.json.OutputFormat;
 import net.minidev.json.JSONObject;
 import net.minidev.json.JSONValue;
 import org.apache.log4j.*;
 import org.apache.log4j.or.ObjectRenderer;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.AfterClass;
@@ -12,7 +17,13 @@ import org.junit.BeforeClass;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Created with IntelliJ IDEA.
@@ -133,6 +144,35 @@ public class JSONEventLayoutV1Test {
 
     }
 
+    @Test
+    public void testJSONEventLayoutUserFieldsFollowPropChanges() {
+        logger.info("no user fields yet");
+        System.setProperty(JSONEventLayoutV1.ADDITIONAL_DATA_PROPERTY, userFieldsSingleProperty);
+        logger.info("user fields from the property");
+        System.clearProperty(JSONEventLayoutV1.ADDITIONAL_DATA_PROPERTY);
+        logger.info("user fields gone again");
+
+        String[] messages = appender.getMessages();
+        Assert.assertFalse("Event contains field 'field1'", ((JSONObject) JSONValue.parse(messages[0])).containsKey("field1"));
+        Assert.assertEquals("Event does not contain value 'propval1'", "propval1", ((JSONObject) JSONValue.parse(messages[1])).get("field1"));
+        Assert.assertFalse("Event contains field 'field1'", ((JSONObject) JSONValue.parse(messages[2])).containsKey("field1"));
+    }
+
+    @Test
+    public void testJSONEventLayoutUserFieldsCannotOverrideLayoutFields() {
+        JSONEventLayoutV1 layout = (JSONEventLayoutV1) appender.getLayout();
+        String prevUserData = layout.getUserFields();
+        layout.setUserFields("source_host:spoofed,@version:2,field4:value4");
+
+        logger.info("this is an info message with user fields");
+        JSONObject jsonObject = (JSONObject) JSONValue.parse(appender.getMessages()[0]);
+        Assert.assertFalse("source_host was overridden", "spoofed".equals(jsonObject.get("source_host")));
+        Assert.assertEquals("@version was overridden", 1, jsonObject.get("@version"));
+        Assert.assertEquals("Event does not contain value 'value4'", "value4", jsonObject.get("field4"));
+
+        layout.setUserFields(prevUserData);
+    }
+
     @Test
     public void testJSONEventLayoutHasKeys() {
         logger.info("this is a test message");
@@ -197,6 +237,120 @@ public class JSONEventLayoutV1Test {
         Assert.assertEquals("Exception exception message", exceptionMessage, exceptionInformation.get("exception_message"));
     }
 
+    @Test
+    public void testJSONEventLayoutDeduplicatesStackTraces() {
+        JSONEventLayoutV1 layout = (JSONEventLayoutV1) appender.getLayout();
+        layout.setStackTraceDedup(true);
+        layout.activateOptions();
+
+        JSONObject[] exceptions = new JSONObject[3];
+        for (int i = 0; i < 2; i++) {
+            logger.error("storm", new IllegalArgumentException("storm " + i));
+        }
+        logger.error("different site", new IllegalArgumentException("storm 2"));
+        for (int i = 0; i < exceptions.length; i++) {
+            exceptions[i] = (JSONObject) ((JSONObject) JSONValue.parse(appender.getMessages()[i])).get("exception");
+        }
+
+        Assert.assertNotNull("First occurrence lacks the stacktrace", exceptions[0].get("stacktrace"));
+        Assert.assertNull("Repeated occurrence has a stacktrace", exceptions[1].get("stacktrace"));
+        Assert.assertEquals("Fingerprints differ", exceptions[0].get("stacktrace_hash"), exceptions[1].get("stacktrace_hash"));
+        Assert.assertEquals("Exception message missing", "storm 1", exceptions[1].get("exception_message"));
+        Assert.assertNotNull("Other throw site lacks the stacktrace", exceptions[2].get("stacktrace"));
+        Assert.assertFalse("Other throw site has the same fingerprint", exceptions[0].get("stacktrace_hash").equals(exceptions[2].get("stacktrace_hash")));
+
+        layout.setStackTraceDedup(false);
+    }
+
+    @Test
+    public void testJSONEventLayoutCompactsStackTraces() {
+        JSONEventLayoutV1 layout = (JSONEventLayoutV1) appender.getLayout();
+        layout.setStackTraceMaxFrames(1);
+        layout.setStackTraceExcludes("org.junit.");
+        layout.activateOptions();
+
+        logger.error("compact", new IllegalArgumentException("outer", new IllegalStateException("inner")));
+        String stacktrace = (String) ((JSONObject) ((JSONObject) JSONValue.parse(appender.getMessages()[0])).get("exception")).get("stacktrace");
+
+        String[] lines = stacktrace.split("\n");
+        Assert.assertEquals("java.lang.IllegalArgumentException: outer", lines[0]);
+        Assert.assertTrue("Unexpected frame: " + lines[1], lines[1].startsWith("\tat net.logstash.log4j.JSONEventLayoutV1Test.testJSONEventLayoutCompactsStackTraces("));
+        Assert.assertTrue("Frames are not truncated: " + lines[2], lines[2].matches("\t\\.\\.\\. \\d+ frames truncated"));
+        Assert.assertEquals("Caused by: java.lang.IllegalStateException: inner", lines[3]);
+        Assert.assertFalse("Excluded frames are present", stacktrace.contains("\tat org.junit."));
+
+        layout.setStackTraceMaxFrames(0);
+        layout.setStackTraceExcludes(null);
+    }
+
+    @Test
+    public void testJSONEventLayoutLocationPolicy() {
+        JSONEventLayoutV1 layout = (JSONEventLayoutV1) appender.getLayout();
+        layout.setLocationPolicy("threshold:WARN");
+
+        logger.info("no location");
+        logger.warn("location");
+        Assert.assertNull("Location below the threshold", ((JSONObject) JSONValue.parse(appender.getMessages()[0])).get("file"));
+        Assert.assertEquals("JSONEventLayoutV1Test.java", ((JSONObject) JSONValue.parse(appender.getMessages()[1])).get("file"));
+
+        layout.setLocationPolicy("never");
+        Assert.assertFalse(layout.getLocationInfo());
+        layout.setLocationInfo(true);
+        Assert.assertEquals("always", layout.getLocationPolicy());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testJSONEventLayoutRejectsUnknownThresholdLevel() {
+        new JSONEventLayoutV1().setLocationPolicy("threshold:WARNING");
+    }
+
+    @Test
+    public void testJSONEventLayoutFastLocationMatchesLocationInfo() {
+        JSONEventLayoutV1 layout = (JSONEventLayoutV1) appender.getLayout();
+        String[] locationFields = new String[]{"file", "line_number", "class", "method"};
+
+        for (int i = 0; i < 2; i++) {
+            layout.setFastLocation(i == 1);
+            logger.warn("where am I");
+        }
+        JSONObject slow = (JSONObject) JSONValue.parse(appender.getMessages()[0]);
+        JSONObject fast = (JSONObject) JSONValue.parse(appender.getMessages()[1]);
+        for (String field : locationFields) {
+            Assert.assertEquals("Location field differs: " + field, slow.get(field), fast.get(field));
+        }
+        Assert.assertTrue(layout.getFastLocation());
+
+        layout.setFastLocation(false);
+    }
+
+    @Test
+    public void testJSONEventLayoutFieldProjection() {
+        JSONEventLayoutV1 layout = (JSONEventLayoutV1) appender.getLayout();
+        layout.setDropFields("thread_name");
+        layout.setRenameFields("logger_name:logger");
+        layout.setMdcExcludes("secret");
+        MDC.put("request", "r-1");
+        MDC.put("secret", "hunter2");
+
+        logger.warn("projected");
+        JSONObject jsonObject = (JSONObject) JSONValue.parse(appender.getMessages()[0]);
+        Assert.assertEquals(logger.getName(), jsonObject.get("logger"));
+        Assert.assertFalse("Dropped field is present", jsonObject.containsKey("thread_name"));
+        Assert.assertEquals("r-1", ((JSONObject) jsonObject.get("mdc")).get("request"));
+        Assert.assertFalse("Excluded MDC key is present", ((JSONObject) jsonObject.get("mdc")).containsKey("secret"));
+
+        layout.setMdcExcludes(null);
+        layout.setMdcIncludes("secret,missing");
+        logger.warn("allowlisted");
+        Assert.assertEquals("{\"secret\":\"hunter2\"}", ((JSONObject) ((JSONObject) JSONValue.parse(appender.getMessages()[1])).get("mdc")).toJSONString());
+
+        MDC.remove("request");
+        MDC.remove("secret");
+        layout.setDropFields(null);
+        layout.setRenameFields(null);
+        layout.setMdcIncludes(null);
+    }
+
     @Test
     public void testJSONEventLayoutHasClassName() {
         logger.warn("warning dawg");
@@ -235,6 +389,83 @@ public class JSONEventLayoutV1Test {
         Assert.assertNotNull("ThreadName value is missing", jsonObject.get("thread_name"));
     }
 
+    @Test
+    public void testJSONEventLayoutBinaryOutputFormat() {
+        JSONEventLayoutV1 layout = new JSONEventLayoutV1(false);
+        LoggingEvent event = new LoggingEvent(logger.getClass().getName(), logger, Level.INFO, "binary", null);
+        byte[] json = layout.toByteArray(event);
+        Assert.assertEquals(layout.format(event), new String(json, JsonWriter.UTF_8));
+
+        layout.setOutputFormat("smile");
+        byte[] smile = layout.toByteArray(event);
+        Assert.assertEquals("application/x-jackson-smile", layout.getContentType());
+        Assert.assertEquals(":)\n", new String(smile, 0, 3, JsonWriter.UTF_8));
+        Assert.assertTrue("Smile should be smaller than JSON", smile.length < json.length);
+
+        layout.setOutputFormat("msgpack");
+        Assert.assertEquals("Map header expected", 0x80, layout.toByteArray(event)[0] & 0xF0);
+        Assert.assertTrue("format() should still return JSON", layout.format(event).startsWith("{"));
+    }
+
+    @Test
+    public void testJSONEventLayoutBinaryOutputMatchesJson() {
+        JSONEventLayoutV1 layout = new JSONEventLayoutV1(true);
+        layout.setUserFields("env:prod");
+        layout.setStackTraceFormat("structured");
+        MDC.put("request", "r-\u00e9");
+        try {
+            LoggingEvent event = new LoggingEvent(logger.getClass().getName(), logger, Level.ERROR, "caf\u00e9\ttab",
+                    new IllegalStateException("failed"));
+            byte[] json = layout.toByteArray(event);
+            for (OutputFormat format : new OutputFormat[]{OutputFormat.CBOR, OutputFormat.SMILE, OutputFormat.MSGPACK}) {
+                layout.setOutputFormat(format.name());
+                BinaryWriter expected = BinaryWriter.acquire(format);
+                try {
+                    expected.transcode(json, 0, json.length);
+                    // the second round copies the cached constant fields and MDC
+                    for (int round = 0; round < 2; round++) {
+                        Assert.assertTrue(format.name(), Arrays.equals(expected.toByteArray(), layout.toByteArray(event)));
+                    }
+                } finally {
+                    expected.release();
+                }
+            }
+        } finally {
+            MDC.remove("request");
+        }
+    }
+
+    @Test
+    public void testJSONEventLayoutBulkOutput() {
+        JSONEventLayoutV1 layout = (JSONEventLayoutV1) appender.getLayout();
+        layout.setBulkIndex("logstash-%{+yyyy.MM.dd}");
+        logger.warn("bulk");
+        layout.setBulkIndex(null);
+        logger.warn("plain");
+
+        String[] lines = appender.getMessages()[0].split("\n");
+        Assert.assertEquals(2, lines.length);
+        String index = (String) ((JSONObject) ((JSONObject) JSONValue.parse(lines[0])).get("index")).get("_index");
+        Assert.assertTrue(index, index.matches("logstash-\\d{4}\\.\\d{2}\\.\\d{2}"));
+        Assert.assertEquals("bulk", ((JSONObject) JSONValue.parse(lines[1])).get("message"));
+        Assert.assertEquals("plain", ((JSONObject) JSONValue.parse(appender.getMessages()[1])).get("message"));
+    }
+
+    @Test
+    public void testJSONEventLayoutCachesRepeatedStrings() {
+        JSONEventLayoutV1 layout = (JSONEventLayoutV1) appender.getLayout();
+        logger.warn("first");
+        long hits = layout.getStringCacheHits();
+        logger.warn("second");
+        Assert.assertTrue("Logger name, level and thread name were encoded again", layout.getStringCacheHits() >= hits + 3);
+
+        JSONObject first = (JSONObject) JSONValue.parse(appender.getMessages()[0]);
+        JSONObject second = (JSONObject) JSONValue.parse(appender.getMessages()[1]);
+        Assert.assertEquals(first.get("logger_name"), second.get("logger_name"));
+        Assert.assertEquals("WARN", second.get("level"));
+        Assert.assertEquals(Thread.currentThread().getName(), second.get("thread_name"));
+    }
+
     @Test
     public void testJSONEventLayoutNoLocationInfo() {
         JSONEventLayoutV1 layout = (JSONEventLayoutV1) appender.getLayout();
@@ -256,6 +487,83 @@ public class JSONEventLayoutV1Test {
         layout.setLocationInfo(prevLocationInfo);
     }
 
+    @Test
+    public void testJSONEventLayoutIsReentrant() throws Exception {
+        final JSONEventLayoutV1 layout = new JSONEventLayoutV1(false);
+        layout.activateOptions();
+        final int threadCount = 8;
+        final int eventCount = 2000;
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        Thread[] threads = new Thread[threadCount];
+
+        for (int t = 0; t < threadCount; t++) {
+            final String id = "t" + t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        startSignal.await();
+                        for (int i = 0; i < eventCount; i++) {
+                            String seq = id + "/" + i;
+                            Map<String, String> properties = new HashMap<String, String>();
+                            properties.put("seq", seq);
+                            ThrowableInformation throwable = i % 10 == 0 ? new ThrowableInformation(new IllegalStateException(seq)) : null;
+                            LoggingEvent event = new LoggingEvent(Logger.class.getName(), Logger.getLogger("stress." + id), System.currentTimeMillis(),
+                                    Level.INFO, "message " + seq, "thread-" + id, throwable, "ndc-" + seq, null, properties);
+
+                            JSONObject jsonObject = (JSONObject) JSONValue.parse(layout.format(event));
+                            if (!("message " + seq).equals(jsonObject.get("message"))
+                                    || !("thread-" + id).equals(jsonObject.get("thread_name"))
+                                    || !("stress." + id).equals(jsonObject.get("logger_name"))
+                                    || !("ndc-" + seq).equals(jsonObject.get("ndc"))
+                                    || !seq.equals(((JSONObject) jsonObject.get("mdc")).get("seq"))
+                                    || (throwable != null) != jsonObject.containsKey("exception")
+                                    || (throwable != null && !seq.equals(((JSONObject) jsonObject.get("exception")).get("exception_message")))) {
+                                failures.add("event " + seq + " leaked fields: " + jsonObject);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e.toString());
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        startSignal.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertTrue("Concurrent formatting failed: " + (failures.isEmpty() ? "" : failures.get(0)), failures.isEmpty());
+    }
+
+    @Test
+    @Ignore
+    public void measureJSONEventLayoutOutputFormatPerformance() {
+        JSONEventLayoutV1 layout = new JSONEventLayoutV1(false);
+        layout.setUserFields("env:prod,region:eu");
+        MDC.put("request", "r-1");
+        try {
+            LoggingEvent event = new LoggingEvent(logger.getClass().getName(), logger, Level.INFO, "measuring output formats", null);
+            int iterations = 500000;
+            for (int round = 0; round < 3; round++) {
+                StringBuilder result = new StringBuilder();
+                for (OutputFormat format : OutputFormat.values()) {
+                    layout.setOutputFormat(format.name());
+                    int sink = 0;
+                    long start = System.currentTimeMillis();
+                    for (int i = 0; i < iterations; i++) {
+                        sink += layout.toByteArray(event).length;
+                    }
+                    result.append(format).append(": ").append(System.currentTimeMillis() - start + (sink == 0 ? 1 : 0)).append("ms ");
+                }
+                System.out.println(result);
+            }
+        } finally {
+            MDC.remove("request");
+        }
+    }
+
     @Test
     @Ignore
     public void measureJSONEventLayoutLocationInfoPerformance() {
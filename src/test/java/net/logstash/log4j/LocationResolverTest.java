@@ -0,0 +1,106 @@
+package net.logstash.log4j;
+
+import junit.framework.Assert;
+import net.logstash.json.FieldPlan;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+import org.apache.log4j.spi.LocationInfo;
+import org.junit.Ignore;
+import org.junit.Test;
+
+public class LocationResolverTest {
+
+    @Test
+    public void testResolvesCallerWithStackWalker() {
+        LocationResolver resolver = new LocationResolver(16, FieldPlan.DEFAULT, true);
+        JSONObject location = FakeLogger.log(resolver);
+
+        Assert.assertEquals("LocationResolverTest.java", location.get("file"));
+        Assert.assertEquals(LocationResolverTest.class.getName(), location.get("class"));
+        Assert.assertEquals("testResolvesCallerWithStackWalker", location.get("method"));
+    }
+
+    @Test
+    public void testResolvesCallerWithThrowable() {
+        LocationResolver resolver = new LocationResolver(16, FieldPlan.DEFAULT, false);
+        JSONObject location = FakeLogger.log(resolver);
+
+        Assert.assertEquals("LocationResolverTest.java", location.get("file"));
+        Assert.assertEquals(LocationResolverTest.class.getName(), location.get("class"));
+        Assert.assertEquals("testResolvesCallerWithThrowable", location.get("method"));
+        Assert.assertTrue("Line number is not a string", location.get("line_number") instanceof String);
+    }
+
+    @Test
+    public void testCachesCallSites() {
+        LocationResolver resolver = new LocationResolver(2, FieldPlan.DEFAULT);
+        for (int i = 0; i < 3; i++) {
+            FakeLogger.log(resolver);
+        }
+        Assert.assertEquals(1, resolver.getCachedCallSites());
+        FakeLogger.log(resolver);
+        FakeLogger.log(resolver);
+        FakeLogger.log(resolver);
+        Assert.assertEquals("Cache exceeds its bound", 2, resolver.getCachedCallSites());
+    }
+
+    @Test
+    public void testReturnsNullWithoutLogger() {
+        Assert.assertNull(new LocationResolver(16, FieldPlan.DEFAULT, true).resolve("org.example.NotOnTheStack"));
+        Assert.assertNull(new LocationResolver(16, FieldPlan.DEFAULT, false).resolve("org.example.NotOnTheStack"));
+    }
+
+    @Test
+    public void testFindCaller() {
+        StackTraceElement caller = new StackTraceElement("com.example.App", "run", "App.java", 7);
+        StackTraceElement[] frames = new StackTraceElement[]{
+                new StackTraceElement("com.example.Layout", "format", "Layout.java", 1),
+                new StackTraceElement("org.apache.log4j.Category", "callAppenders", "Category.java", 2),
+                new StackTraceElement("org.apache.log4j.Category", "info", "Category.java", 3),
+                caller,
+                new StackTraceElement("java.lang.Thread", "run", "Thread.java", 4)};
+        Assert.assertSame(caller, LocationResolver.findCaller(frames, "org.apache.log4j.Category"));
+    }
+
+    @Test
+    @Ignore
+    public void measureLocationResolverPerformance() {
+        // application servers log from 100+ frames deep, which is what makes LocationInfo expensive
+        int depth = 150;
+        for (int round = 0; round < 3; round++) {
+            System.out.println("LocationInfo: " + measureAtDepth(depth, null) + "ms, LocationResolver(Throwable): "
+                    + measureAtDepth(depth, new LocationResolver(16, FieldPlan.DEFAULT, false))
+                    + "ms, LocationResolver(StackWalker): "
+                    + measureAtDepth(depth, new LocationResolver(16, FieldPlan.DEFAULT, true)) + "ms");
+        }
+    }
+
+    private static long measureAtDepth(int depth, LocationResolver resolver) {
+        if (depth > 0) {
+            return measureAtDepth(depth - 1, resolver);
+        }
+        int iterations = 100000;
+        int sink = 0;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < iterations; i++) {
+            sink += resolver == null ? FakeLogger.locationInfo().getLineNumber().length() : FakeLogger.resolve(resolver).length;
+        }
+        long stop = System.currentTimeMillis();
+        return stop - start + (sink == 0 ? 1 : 0);
+    }
+
+    /** Stands in for a log4j logger: its caller is the location being resolved. */
+    static class FakeLogger {
+        static JSONObject log(LocationResolver resolver) {
+            return (JSONObject) JSONValue.parse("{" + new String(resolve(resolver), net.logstash.json.JsonWriter.UTF_8) + "}");
+        }
+
+        static byte[] resolve(LocationResolver resolver) {
+            return resolver.resolve(FakeLogger.class.getName());
+        }
+
+        static LocationInfo locationInfo() {
+            return new LocationInfo(new Throwable(), FakeLogger.class.getName());
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package net.logstash.log4j;
+
+import junit.framework.Assert;
+import net.logstash.json.LumberjackServerStub;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+public class LumberjackAppenderTest {
+
+    private static final Logger logger = Logger.getLogger(LumberjackAppenderTest.class);
+
+    @Test
+    public void testShipsJSONEvents() throws Exception {
+        LumberjackServerStub server = new LumberjackServerStub();
+        try {
+            LumberjackAppender appender = new LumberjackAppender();
+            appender.setName("lumberjack");
+            appender.setLayout(new JSONEventLayoutV1(false));
+            appender.setRemoteHost("localhost");
+            appender.setPort(server.getPort());
+            appender.setWindowSize(4);
+            appender.activateOptions();
+            for (int i = 0; i < 10; i++) {
+                appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.INFO, "event " + i, null));
+            }
+            for (int i = 0; i < 10; i++) {
+                JSONObject event = (JSONObject) JSONValue.parse(server.take());
+                Assert.assertEquals("event " + i, event.get("message"));
+                Assert.assertEquals(LumberjackAppenderTest.class.getName(), event.get("logger_name"));
+            }
+            appender.close();
+            Assert.assertEquals(10, appender.getAcknowledgedEvents());
+            Assert.assertEquals(0, appender.getDroppedEvents());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testLeavesOutTheBulkActionOfTheLayout() throws Exception {
+        LumberjackServerStub server = new LumberjackServerStub();
+        try {
+            JSONEventLayoutV1 layout = new JSONEventLayoutV1(false);
+            layout.setBulkIndex("logstash-%{+yyyy.MM.dd}");
+            LumberjackAppender appender = new LumberjackAppender(layout, "localhost", server.getPort());
+            appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.INFO, "bulk", null));
+            String frame = server.take();
+            Assert.assertFalse("A frame must hold one document: " + frame, frame.contains("\"_index\""));
+            Assert.assertEquals("bulk", ((JSONObject) JSONValue.parse(frame)).get("message"));
+            appender.close();
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package net.logstash.log4j;
+
+import junit.framework.Assert;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+import org.apache.log4j.FileAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+public class MappedFileAppenderTest {
+
+    private static final Logger logger = Logger.getLogger(MappedFileAppenderTest.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWritesJSONLines() throws IOException {
+        String name = new File(folder.getRoot(), "app.json").getPath();
+        MappedFileAppender appender = new MappedFileAppender();
+        appender.setLayout(new JSONEventLayoutV1(false));
+        appender.setFile(name);
+        appender.setSegmentSize(1024);
+        appender.setDurability("periodic");
+        appender.activateOptions();
+        for (int i = 0; i < 20; i++) {
+            appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.INFO, "event " + i, null));
+        }
+        appender.close();
+
+        int events = 0;
+        for (int sequence = 1; new File(name + "." + pad(sequence)).exists(); sequence++) {
+            String content = read(new File(name + "." + pad(sequence)));
+            Assert.assertTrue("Segment must end with a complete line", content.endsWith("\n"));
+            Assert.assertTrue("Segment must not exceed its size", content.length() <= 1024);
+            for (String line : content.split("\n")) {
+                JSONObject event = (JSONObject) JSONValue.parse(line);
+                Assert.assertEquals("event " + events, event.get("message"));
+                events++;
+            }
+        }
+        Assert.assertEquals(20, events);
+    }
+
+    @Test
+    public void testPlainLayout() throws IOException {
+        String name = new File(folder.getRoot(), "app.log").getPath();
+        MappedFileAppender appender = new MappedFileAppender(new PatternLayout("%p %m%n"), name);
+        appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.WARN, "plain", null));
+        appender.close();
+        Assert.assertEquals("WARN plain\n", read(new File(name + ".000001")));
+    }
+
+    /**
+     * Compares the time to write events through FileAppender (buffered and unbuffered) and MappedFileAppender.
+     */
+    @Test
+    @Ignore
+    public void measureAgainstFileAppender() throws IOException {
+        int events = 1000000;
+        for (int round = 0; round < 3; round++) {
+            FileAppender fileAppender = new FileAppender(new JSONEventLayoutV1(false), new File(folder.getRoot(), "file" + round).getPath());
+            measure("FileAppender", fileAppender, events);
+
+            FileAppender bufferedAppender = new FileAppender(new JSONEventLayoutV1(false), new File(folder.getRoot(), "buffered" + round).getPath(),
+                    true, true, 64 * 1024);
+            measure("FileAppender(BufferedIO)", bufferedAppender, events);
+
+            MappedFileAppender mappedAppender = new MappedFileAppender(new JSONEventLayoutV1(false),
+                    new File(folder.getRoot(), "mapped" + round).getPath());
+            measure("MappedFileAppender", mappedAppender, events);
+        }
+    }
+
+    private static void measure(String name, org.apache.log4j.Appender appender, int events) {
+        LoggingEvent event = new LoggingEvent(logger.getName(), logger, Level.INFO, "benchmark message", null);
+        long begin = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            appender.doAppend(event);
+        }
+        appender.close();
+        long elapsed = System.nanoTime() - begin;
+        System.out.println(name + ": " + (events * 1000000000L / elapsed) + " events/s");
+    }
+
+    private static String pad(int sequence) {
+        String digits = Integer.toString(sequence);
+        return "000000".substring(digits.length()) + digits;
+    }
+
+    private static String read(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < content.length) {
+                read += in.read(content, read, content.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return new String(content, "UTF-8");
+    }
+}
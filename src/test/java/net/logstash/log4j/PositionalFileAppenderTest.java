@@ -0,0 +1,178 @@
+package net.logstash.log4j;
+
+import junit.framework.Assert;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+import org.apache.log4j.FileAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+public class PositionalFileAppenderTest {
+
+    private static final Logger logger = Logger.getLogger(PositionalFileAppenderTest.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWritesWholeJSONLinesFromManyThreads() throws Exception {
+        File name = new File(folder.getRoot(), "app.json");
+        final PositionalFileAppender appender = new PositionalFileAppender();
+        appender.setLayout(new JSONEventLayoutV1(false));
+        appender.setFile(name.getPath());
+        appender.activateOptions();
+        Thread[] threads = new Thread[32];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        Throwable error = i % 10 == 0 ? new IllegalStateException("failure") : null;
+                        appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.INFO, thread + "-" + i,
+                                error));
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        appender.close();
+
+        String[] lines = read(name).split("\n");
+        Assert.assertEquals(3200, lines.length);
+        Set<Object> messages = new HashSet<Object>();
+        for (String line : lines) {
+            Assert.assertTrue("Lines must not be interleaved: " + line, JSONValue.isValidJsonStrict(line));
+            messages.add(((JSONObject) JSONValue.parse(line)).get("message"));
+        }
+        Assert.assertEquals(3200, messages.size());
+    }
+
+    @Test
+    public void testPlainLayout() throws IOException {
+        File name = new File(folder.getRoot(), "app.log");
+        PositionalFileAppender appender = new PositionalFileAppender(new PatternLayout("%p %m%n"), name.getPath());
+        appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.WARN, "plain", null));
+        appender.close();
+        Assert.assertEquals("WARN plain\n", read(name));
+    }
+
+    @Test
+    public void testPlainLayoutFromManyThreads() throws Exception {
+        // PatternLayout formats into a buffer of its own, so the appender must not call it from two threads at once
+        File name = new File(folder.getRoot(), "app.log");
+        final PositionalFileAppender appender = new PositionalFileAppender(new PatternLayout("%m %m%n"), name.getPath());
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 500; i++) {
+                        appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.INFO,
+                                "message-" + thread + "-" + i, null));
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        appender.close();
+
+        String[] lines = read(name).split("\n");
+        Assert.assertEquals(4000, lines.length);
+        Set<String> messages = new HashSet<String>();
+        for (String line : lines) {
+            String[] parts = line.split(" ");
+            Assert.assertTrue("Lines must not be mixed up: " + line, parts.length == 2 && parts[0].equals(parts[1]));
+            messages.add(parts[0]);
+        }
+        Assert.assertEquals(4000, messages.size());
+    }
+
+    /**
+     * Compares FileAppender, buffered and unbuffered, with PositionalFileAppender for 32 threads logging at once,
+     * each through a logger of its own, since log4j 1.2 serializes the threads logging through the same logger.
+     */
+    @Test
+    @Ignore
+    public void measureContention() throws Exception {
+        int threads = 32;
+        int events = 50000;
+        for (int round = 0; round < 3; round++) {
+            FileAppender fileAppender = new FileAppender(new JSONEventLayoutV1(true),
+                    new File(folder.getRoot(), "file" + round).getPath());
+            measure("FileAppender", fileAppender, threads, events);
+
+            FileAppender bufferedAppender = new FileAppender(new JSONEventLayoutV1(true),
+                    new File(folder.getRoot(), "buffered" + round).getPath(), true, true, 64 * 1024);
+            measure("FileAppender(BufferedIO)", bufferedAppender, threads, events);
+
+            PositionalFileAppender positionalAppender = new PositionalFileAppender(new JSONEventLayoutV1(true),
+                    new File(folder.getRoot(), "positional" + round).getPath());
+            measure("PositionalFileAppender", positionalAppender, threads, events);
+        }
+    }
+
+    private static void measure(String name, final org.apache.log4j.Appender appender, int threads, final int events)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] producers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final Logger threadLogger = Logger.getLogger(PositionalFileAppenderTest.class.getName() + ".thread" + t);
+            producers[t] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < events; i++) {
+                        appender.doAppend(new LoggingEvent(threadLogger.getName(), threadLogger, Level.INFO,
+                                "benchmark message", null));
+                    }
+                }
+            };
+            producers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        appender.close();
+        long elapsed = System.nanoTime() - begin;
+        System.out.println(name + ", " + threads + " threads: " + (threads * (long) events * 1000000000L / elapsed)
+                + " events/s");
+    }
+
+    private static String read(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < content.length) {
+                read += in.read(content, read, content.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return new String(content, "UTF-8");
+    }
+}
@@ -0,0 +1,158 @@
+package net.logstash.log4j;
+
+import junit.framework.Assert;
+import net.logstash.json.JsonWriter;
+import net.logstash.json.SharedRingReader;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class SharedMemoryAppenderTest {
+
+    private static final Logger logger = Logger.getLogger(SharedMemoryAppenderTest.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWritesJSONEvents() throws Exception {
+        File file = new File(folder.getRoot(), "rings");
+        SharedMemoryAppender appender = new SharedMemoryAppender();
+        appender.setLayout(new JSONEventLayoutV1(false));
+        appender.setFile(file.getPath());
+        appender.setRingCount(2);
+        appender.setRingSize(4096);
+        appender.activateOptions();
+        for (int i = 0; i < 10; i++) {
+            appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.INFO, "event " + i, null));
+        }
+        appender.close();
+
+        final List<String> lines = new ArrayList<String>();
+        SharedRingReader reader = new SharedRingReader(file);
+        Assert.assertTrue(reader.isProducerClosed());
+        reader.read(new SharedRingReader.Handler() {
+            public void event(ByteBuffer buffer, int offset, int length) {
+                lines.add(decode(buffer, offset, length));
+            }
+        }, 100);
+        Assert.assertEquals(10, lines.size());
+        for (int i = 0; i < 10; i++) {
+            JSONObject event = (JSONObject) JSONValue.parse(lines.get(i));
+            Assert.assertEquals("event " + i, event.get("message"));
+        }
+    }
+
+    @Test
+    public void testPlainLayout() throws Exception {
+        File file = new File(folder.getRoot(), "rings");
+        SharedMemoryAppender appender = new SharedMemoryAppender(new PatternLayout("%p %m%n"), file.getPath());
+        appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.WARN, "plain", null));
+        final List<String> lines = new ArrayList<String>();
+        new SharedRingReader(file).read(new SharedRingReader.Handler() {
+            public void event(ByteBuffer buffer, int offset, int length) {
+                lines.add(decode(buffer, offset, length));
+            }
+        }, 100);
+        appender.close();
+        Assert.assertEquals(1, lines.size());
+        Assert.assertEquals("WARN plain\n", lines.get(0));
+    }
+
+    /**
+     * Runs {@link SharedMemoryProducer} in a second JVM and reads its events as a shipper process would.
+     */
+    @Test
+    public void testReadsFromAnotherProcess() throws Exception {
+        File file = new File(folder.getRoot(), "rings");
+        final int threads = 6;
+        final int events = 5000;
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        Process producer = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                SharedMemoryProducer.class.getName(), file.getPath(), Integer.toString(threads),
+                Integer.toString(events)).redirectErrorStream(true).start();
+        try {
+            long deadline = System.currentTimeMillis() + 30000;
+            SharedRingReader reader = open(file, deadline);
+            final Map<String, Integer> next = new HashMap<String, Integer>();
+            SharedRingReader.Handler handler = new SharedRingReader.Handler() {
+                public void event(ByteBuffer buffer, int offset, int length) {
+                    JSONObject event = (JSONObject) JSONValue.parse(decode(buffer, offset, length));
+                    String thread = (String) event.get("thread_name");
+                    Integer expected = next.get(thread);
+                    expected = expected == null ? 0 : expected;
+                    Assert.assertEquals("Events of " + thread, expected.toString(), event.get("message"));
+                    next.put(thread, expected + 1);
+                }
+            };
+            int read = 0;
+            boolean closed = false;
+            while (System.currentTimeMillis() < deadline) {
+                int batch = reader.read(handler, 256);
+                read += batch;
+                if (batch == 0) {
+                    if (closed) {
+                        break;
+                    }
+                    // whatever the producer wrote before closing is read by the next round
+                    closed = reader.isProducerClosed();
+                    Thread.sleep(1);
+                }
+            }
+            int exit = producer.waitFor();
+            Assert.assertEquals(read(producer.getInputStream()), 0, exit);
+            Assert.assertEquals(threads * events, read);
+            Assert.assertEquals(threads, next.size());
+        } finally {
+            producer.destroy();
+        }
+    }
+
+    private static SharedRingReader open(File file, long deadline) throws Exception {
+        while (true) {
+            try {
+                return new SharedRingReader(file);
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static String decode(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, JsonWriter.UTF_8);
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+}
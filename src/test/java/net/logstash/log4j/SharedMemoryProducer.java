@@ -0,0 +1,42 @@
+package net.logstash.log4j;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Logs through a {@link SharedMemoryAppender} in a process of its own, for {@link SharedMemoryAppenderTest}.
+ * Arguments: the ring file, the number of threads and the number of events per thread.
+ */
+public final class SharedMemoryProducer {
+
+    private static final Logger logger = Logger.getLogger(SharedMemoryProducer.class);
+
+    public static void main(String[] args) throws InterruptedException {
+        final SharedMemoryAppender appender = new SharedMemoryAppender();
+        appender.setName("shared");
+        appender.setLayout(new JSONEventLayoutV1(false));
+        appender.setFile(args[0]);
+        appender.setRingCount(4);
+        appender.setRingSize(4096);
+        appender.activateOptions();
+        final int events = Integer.parseInt(args[2]);
+        Thread[] threads = new Thread[Integer.parseInt(args[1])];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread("producer-" + t) {
+                public void run() {
+                    for (int i = 0; i < events; i++) {
+                        appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.INFO, Integer.toString(i),
+                                null));
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        appender.close();
+        System.exit(appender.getDroppedEvents() == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,52 @@
+package net.logstash.log4j;
+
+import junit.framework.Assert;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+public class TcpAppenderTest {
+
+    private static final Logger logger = Logger.getLogger(TcpAppenderTest.class);
+
+    @Test
+    public void testShipsJSONLines() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        try {
+            TcpAppender appender = new TcpAppender();
+            appender.setName("tcp");
+            appender.setLayout(new JSONEventLayoutV1(false));
+            appender.setRemoteHost("localhost");
+            appender.setPort(server.getLocalPort());
+            appender.setOverflowPolicy("drop_oldest");
+            appender.activateOptions();
+            for (int i = 0; i < 10; i++) {
+                appender.doAppend(new LoggingEvent(logger.getName(), logger, Level.INFO, "event " + i, null));
+            }
+
+            server.setSoTimeout(5000);
+            Socket connection = server.accept();
+            connection.setSoTimeout(5000);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+            for (int i = 0; i < 10; i++) {
+                JSONObject event = (JSONObject) JSONValue.parse(reader.readLine());
+                Assert.assertEquals("event " + i, event.get("message"));
+            }
+            Assert.assertTrue(appender.isConnected());
+            appender.close();
+            Assert.assertNull("Connection should be closed with the appender", reader.readLine());
+            Assert.assertEquals(0, appender.getDroppedEvents());
+            connection.close();
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package net.logstash.log4j2;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+import net.logstash.json.HttpServerStub;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+
+public class HttpAppenderTest {
+
+    @Test
+    public void testPostsJSONEvents() throws Exception {
+        HttpServerStub server = new HttpServerStub();
+        try {
+            HttpAppender appender = HttpAppender.createAppender("http", server.getUrl(), true, 64, 1024 * 1024, 10, 2,
+                1024 * 1024, "block", 10, 100, 5000, null, 0, 0, true, null, null);
+            appender.start();
+            for (int i = 0; i < 3; i++) {
+                appender.append(JSONEventLayoutV1Test.createLog4j2Event("event " + i, null, new HashMap<String, String>()));
+            }
+            appender.stop();
+            for (int i = 0; i < 3; i++) {
+                JSONObject event = (JSONObject) JSONValue.parse(server.take());
+                Assert.assertEquals("event " + i, event.get("message"));
+            }
+            Assert.assertEquals("gzip", server.getContentEncoding());
+            Assert.assertEquals(3, appender.getAcknowledgedEvents());
+            Assert.assertEquals(0, appender.getDroppedEvents());
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -1,17 +1,26 @@
 package net.logstash.log4j2;
 
+import java.nio.charset.Charset;
 import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.MDC;
 import org.apache.log4j.NDC;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.spi.DefaultThreadContextStack;
 import org.junit.After;
 import org.junit.BeforeClass;
 import org.junit.Ignore;
 import org.junit.Test;
 
 import junit.framework.Assert;
+import net.logstash.json.BinaryWriter;
+import net.logstash.json.BulkAction;
+import net.logstash.json.OutputFormat;
 import net.minidev.json.JSONObject;
 import net.minidev.json.JSONValue;
 
@@ -284,4 +293,263 @@ public class JSONEventLayoutV1Test {
         long timestamp = 1364844991207L;
         Assert.assertEquals("format does not produce expected output", "2013-04-01T19:36:31.207Z", JSONEventLayoutV1.dateFormat(timestamp));
     }
+
+    static LogEvent createLog4j2Event(String message, Throwable thrown, Map<String, String> mdc) {
+        DefaultThreadContextStack ndc = new DefaultThreadContextStack(true);
+        ndc.push("ndc-entry");
+        StackTraceElement source = new StackTraceElement(JSONEventLayoutV1Test.class.getName(), "createLog4j2Event", "JSONEventLayoutV1Test.java", 42);
+        return new Log4jLogEvent("log4j2.logger", null, null, org.apache.logging.log4j.Level.WARN, new SimpleMessage(message),
+                thrown, mdc, ndc, "log4j2-thread", source, 1364844991207L);
+    }
+
+    @Test
+    public void testLog4j2LayoutEncodesEvent() {
+        JSONEventLayoutV1 layout = JSONEventLayoutV1.createLayout(true, userFieldsMulti, Charset.forName("UTF-8"));
+        Map<String, String> mdc = new HashMap<String, String>();
+        mdc.put("request", "r-1");
+        String message = layout.toSerializable(createLog4j2Event("quote \" slash / tab \t", new IllegalStateException("boom"), mdc));
+
+        Assert.assertTrue("Event does not end with a newline", message.endsWith("\n"));
+        Assert.assertTrue("Event is not valid JSON", JSONValue.isValidJsonStrict(message));
+        JSONObject jsonObject = (JSONObject) JSONValue.parse(message);
+        Assert.assertEquals("quote \" slash / tab \t", jsonObject.get("message"));
+        Assert.assertEquals("2013-04-01T19:36:31.207Z", jsonObject.get("@timestamp"));
+        Assert.assertEquals(1, jsonObject.get("@version"));
+        Assert.assertEquals("WARN", jsonObject.get("level"));
+        Assert.assertEquals("log4j2-thread", jsonObject.get("thread_name"));
+        Assert.assertEquals("log4j2.logger", jsonObject.get("logger_name"));
+        Assert.assertEquals(42, jsonObject.get("line_number"));
+        Assert.assertEquals("value2", jsonObject.get("field2"));
+        Assert.assertEquals("r-1", ((JSONObject) jsonObject.get("mdc")).get("request"));
+        Assert.assertEquals("ndc-entry", ((net.minidev.json.JSONArray) jsonObject.get("ndc")).get(0));
+        JSONObject exceptionInformation = (JSONObject) jsonObject.get("exception");
+        Assert.assertEquals("java.lang.IllegalStateException", exceptionInformation.get("exception_class"));
+        Assert.assertEquals("boom", exceptionInformation.get("exception_message"));
+        Assert.assertTrue("Stacktrace is missing", ((String) exceptionInformation.get("stacktrace")).startsWith("java.lang.IllegalStateException: boom"));
+        Assert.assertTrue("Escaped slash expected", message.contains("slash \\/ tab"));
+    }
+
+    @Test
+    public void testLog4j2LayoutToByteArrayMatchesToSerializable() throws Exception {
+        JSONEventLayoutV1 layout = JSONEventLayoutV1.createLayout(true, null, Charset.forName("UTF-8"));
+        LogEvent event = createLog4j2Event("caf\u00e9 \u2603", null, new HashMap<String, String>());
+
+        Assert.assertTrue("toByteArray differs from toSerializable",
+                java.util.Arrays.equals(layout.toSerializable(event).getBytes("UTF-8"), layout.toByteArray(event)));
+    }
+
+    @Test
+    public void testLog4j2LayoutEncodesIntoSmallDestination() throws Exception {
+        LogEvent event = createLog4j2Event("caf\u00e9 \u2603 \ud83d\ude00", new IllegalStateException("boom"), new HashMap<String, String>());
+        for (String charsetName : new String[]{"UTF-8", "ISO-8859-1", "UTF-16"}) {
+            Charset charset = Charset.forName(charsetName);
+            JSONEventLayoutV1 layout = JSONEventLayoutV1.createLayout(true, null, charset);
+            CollectingDestination destination = new CollectingDestination(7);
+
+            layout.encode(event, destination);
+
+            Assert.assertEquals("encode differs from toSerializable for " + charsetName,
+                    new String(layout.toSerializable(event).getBytes(charset), charset), new String(destination.toByteArray(), charset));
+        }
+    }
+
+    @Test
+    public void testLog4j2LayoutUserFieldsFollowPropChanges() {
+        String property = "net.logstash.log4j2.JSONEventLayoutV1.UserFields";
+        JSONEventLayoutV1 layout = JSONEventLayoutV1.createLayout(false, userFieldsSingle, Charset.forName("UTF-8"));
+        LogEvent event = createLog4j2Event("user fields", null, new HashMap<String, String>());
+
+        Assert.assertEquals("value1", ((JSONObject) JSONValue.parse(layout.toSerializable(event))).get("field1"));
+        System.setProperty(property, userFieldsSingleProperty);
+        try {
+            Assert.assertEquals("propval1", ((JSONObject) JSONValue.parse(layout.toSerializable(event))).get("field1"));
+        } finally {
+            System.clearProperty(property);
+        }
+        Assert.assertEquals("value1", ((JSONObject) JSONValue.parse(layout.toSerializable(event))).get("field1"));
+    }
+
+    @Test
+    public void testLog4j2LayoutKeepsMillisecondTimestamps() {
+        JSONEventLayoutV1 layout = JSONEventLayoutV1.createLayout(false, null, Charset.forName("UTF-8"), "microseconds", false, 0, 0, null, 0, null, true, null, null, null, null, null, null, null, false);
+        LogEvent event = createLog4j2Event("precise", null, new HashMap<String, String>());
+
+        Assert.assertEquals("Events only carry milliseconds", "2013-04-01T19:36:31.207Z",
+                ((JSONObject) JSONValue.parse(layout.toSerializable(event))).get("@timestamp"));
+    }
+
+    @Test
+    public void testLog4j2LayoutDeduplicatesStackTraces() {
+        JSONEventLayoutV1 layout = JSONEventLayoutV1.createLayout(false, null, Charset.forName("UTF-8"), null, true, 60000L, 16, null, 0, null, true, null, null, null, null, null, null, null, false);
+        JSONObject[] exceptions = new JSONObject[2];
+        for (int i = 0; i < exceptions.length; i++) {
+            String message = layout.toSerializable(createLog4j2Event("storm", new IllegalStateException("boom " + i), new HashMap<String, String>()));
+            exceptions[i] = (JSONObject) ((JSONObject) JSONValue.parse(message)).get("exception");
+        }
+
+        Assert.assertNotNull("First occurrence lacks the stacktrace", exceptions[0].get("stacktrace"));
+        Assert.assertNull("Repeated occurrence has a stacktrace", exceptions[1].get("stacktrace"));
+        Assert.assertEquals("Fingerprints differ", exceptions[0].get("stacktrace_hash"), exceptions[1].get("stacktrace_hash"));
+        Assert.assertEquals("boom 1", exceptions[1].get("exception_message"));
+        Assert.assertEquals("java.lang.IllegalStateException", exceptions[1].get("exception_class"));
+    }
+
+    @Test
+    public void testLog4j2LayoutCompactsStackTraces() {
+        JSONEventLayoutV1 layout = JSONEventLayoutV1.createLayout(false, null, Charset.forName("UTF-8"), null, false, 0, 0, null, 2, "org.junit.", true, null, null, null, null, null, null, null, false);
+        Exception cause = new IllegalArgumentException("cause");
+        String message = layout.toSerializable(createLog4j2Event("compact", new IllegalStateException("boom", cause), new HashMap<String, String>()));
+        String stacktrace = (String) ((JSONObject) ((JSONObject) JSONValue.parse(message)).get("exception")).get("stacktrace");
+
+        Assert.assertTrue("Stack trace does not start with the exception: " + stacktrace,
+            stacktrace.startsWith("java.lang.IllegalStateException: boom\n\tat net.logstash.log4j2.JSONEventLayoutV1Test.testLog4j2LayoutCompactsStackTraces("));
+        Assert.assertTrue("Cause is missing", stacktrace.contains("\nCaused by: java.lang.IllegalArgumentException: cause\n\tat "));
+        Assert.assertTrue("Frames are not truncated", stacktrace.contains(" frames truncated"));
+        Assert.assertFalse("Excluded frames are present", stacktrace.contains("\tat org.junit."));
+    }
+
+    @Test
+    public void testLog4j2LayoutWritesStructuredStackTraces() {
+        JSONEventLayoutV1 layout = JSONEventLayoutV1.createLayout(false, null, Charset.forName("UTF-8"), null, false, 0, 0, "structured", 0, null, true, null, null, null, null, null, null, null, false);
+        String message = layout.toSerializable(createLog4j2Event("structured", new IllegalStateException("boom", new IllegalArgumentException("cause")), new HashMap<String, String>()));
+        JSONObject exception = (JSONObject) ((JSONObject) JSONValue.parse(message)).get("exception");
+
+        Assert.assertNull("Structured exception has a stacktrace string", exception.get("stacktrace"));
+        net.minidev.json.JSONArray causes = (net.minidev.json.JSONArray) exception.get("causes");
+        Assert.assertEquals(2, causes.size());
+        Assert.assertEquals("java.lang.IllegalStateException", ((JSONObject) causes.get(0)).get("class"));
+        Assert.assertEquals("cause", ((JSONObject) causes.get(1)).get("message"));
+        JSONObject frame = (JSONObject) ((net.minidev.json.JSONArray) ((JSONObject) causes.get(0)).get("frames")).get(0);
+        Assert.assertEquals(this.getClass().getName(), frame.get("class"));
+        Assert.assertEquals("testLog4j2LayoutWritesStructuredStackTraces", frame.get("method"));
+        Assert.assertEquals("JSONEventLayoutV1Test.java", frame.get("file"));
+        Assert.assertTrue("Line is not a number", frame.get("line") instanceof Number);
+    }
+
+    @Test
+    public void testLog4j2LayoutLocationPolicy() {
+        LogEvent event = createLog4j2Event("located", null, new HashMap<String, String>());
+        JSONEventLayoutV1 warnLayout = JSONEventLayoutV1.createLayout(false, null, Charset.forName("UTF-8"), null, false, 0, 0, null, 0, null, true, "threshold:WARN", null, null, null, null, null, null, false);
+        JSONEventLayoutV1 errorLayout = JSONEventLayoutV1.createLayout(true, null, Charset.forName("UTF-8"), null, false, 0, 0, null, 0, null, true, "threshold:ERROR", null, null, null, null, null, null, false);
+        JSONEventLayoutV1 sampledLayout = JSONEventLayoutV1.createLayout(false, null, Charset.forName("UTF-8"), null, false, 0, 0, null, 0, null, true, "sampled:3", null, null, null, null, null, null, false);
+
+        Assert.assertEquals("JSONEventLayoutV1Test.java", ((JSONObject) JSONValue.parse(warnLayout.toSerializable(event))).get("file"));
+        Assert.assertNull("Location below the threshold", ((JSONObject) JSONValue.parse(errorLayout.toSerializable(event))).get("file"));
+        int located = 0;
+        for (int i = 0; i < 6; i++) {
+            if (((JSONObject) JSONValue.parse(sampledLayout.toSerializable(event))).containsKey("file")) {
+                located++;
+            }
+        }
+        Assert.assertEquals("Every third event should be located", 2, located);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLog4j2LayoutRejectsUnknownThresholdLevel() {
+        JSONEventLayoutV1.createLayout(false, null, Charset.forName("UTF-8"), null, false, 0, 0, null, 0, null, true, "threshold:INF", null, null, null, null, null, null, false);
+    }
+
+    @Test
+    public void testLog4j2LayoutFieldProjection() {
+        JSONEventLayoutV1 layout = JSONEventLayoutV1.createLayout(true, null, Charset.forName("UTF-8"), null, false, 0, 0, null, 0, null, true, null,
+            "ndc,file,line_number", "logger_name:logger,source_host:host", "request,user", null, null, null, false);
+        Map<String, String> mdc = new HashMap<String, String>();
+        mdc.put("request", "r-1");
+        mdc.put("tenant", "t-1");
+        JSONObject jsonObject = (JSONObject) JSONValue.parse(layout.toSerializable(createLog4j2Event("projected", null, mdc)));
+
+        Assert.assertEquals("log4j2.logger", jsonObject.get("logger"));
+        Assert.assertFalse("Renamed field is still present", jsonObject.containsKey("logger_name"));
+        Assert.assertTrue("Host was not renamed", jsonObject.containsKey("host") && !jsonObject.containsKey("source_host"));
+        Assert.assertFalse("Dropped field is present", jsonObject.containsKey("ndc") || jsonObject.containsKey("file") || jsonObject.containsKey("line_number"));
+        Assert.assertEquals("createLog4j2Event", jsonObject.get("method"));
+        Assert.assertEquals("{\"request\":\"r-1\"}", ((JSONObject) jsonObject.get("mdc")).toJSONString());
+    }
+
+    @Test
+    public void testLog4j2LayoutCachesRepeatedStrings() {
+        JSONEventLayoutV1 layout = new JSONEventLayoutV1(true, null, Charset.forName("UTF-8"));
+        layout.toSerializable(createLog4j2Event("first", null, null));
+        Assert.assertEquals(0, layout.getStringCacheHits());
+        long misses = layout.getStringCacheMisses();
+
+        JSONObject jsonObject = (JSONObject) JSONValue.parse(layout.toSerializable(createLog4j2Event("second", null, null)));
+        Assert.assertEquals("Every string should have been copied", misses, layout.getStringCacheHits());
+        Assert.assertEquals(misses, layout.getStringCacheMisses());
+        Assert.assertEquals("log4j2.logger", jsonObject.get("logger_name"));
+        Assert.assertEquals("createLog4j2Event", jsonObject.get("method"));
+        Assert.assertEquals("WARN", jsonObject.get("level"));
+    }
+
+    @Test
+    public void testLog4j2LayoutBinaryOutputFormat() {
+        JSONEventLayoutV1 layout = JSONEventLayoutV1.createLayout(true, "env:prod", Charset.forName("UTF-8"), null, false, 0, 0, null, 0, null, true, null,
+            null, null, null, null, "cbor", null, false);
+        Map<String, String> mdc = new HashMap<String, String>();
+        mdc.put("request", "r-\u00e9");
+        LogEvent event = createLog4j2Event("binary", new IllegalStateException("failed"), mdc);
+        byte[] cbor = layout.toByteArray(event);
+        String json = layout.toSerializable(event);
+
+        BinaryWriter expected = BinaryWriter.acquire(OutputFormat.CBOR);
+        try {
+            byte[] jsonBytes = json.getBytes(Charset.forName("UTF-8"));
+            expected.transcode(jsonBytes, 0, jsonBytes.length);
+            Assert.assertTrue("CBOR should carry the JSON document", java.util.Arrays.equals(expected.toByteArray(), cbor));
+        } finally {
+            expected.release();
+        }
+
+        Assert.assertEquals("application/cbor", layout.getContentType());
+        Assert.assertEquals("Indefinite length map expected", (byte) 0xBF, cbor[0]);
+        Assert.assertEquals("Break expected", (byte) 0xFF, cbor[cbor.length - 1]);
+        Assert.assertTrue("CBOR should be smaller than JSON", cbor.length < json.getBytes(Charset.forName("UTF-8")).length);
+        Assert.assertEquals("binary", ((JSONObject) JSONValue.parse(json)).get("message"));
+
+        CollectingDestination destination = new CollectingDestination(7);
+        layout.encode(event, destination);
+        Assert.assertTrue(java.util.Arrays.equals(cbor, destination.toByteArray()));
+    }
+
+    @Test
+    public void testLog4j2LayoutBulkOutput() {
+        JSONEventLayoutV1 layout = JSONEventLayoutV1.createLayout(false, null, Charset.forName("UTF-8"), null, false, 0, 0, null, 0, null, true, null,
+            null, null, null, null, "cbor", "logstash-%{+yyyy.MM.dd}", true);
+        LogEvent event = createLog4j2Event("bulk", null, new HashMap<String, String>());
+        String[] lines = new String(layout.toByteArray(event), Charset.forName("UTF-8")).split("\n");
+
+        Assert.assertEquals("Bulk output should be JSON", 2, lines.length);
+        JSONObject action = (JSONObject) ((JSONObject) JSONValue.parse(lines[0])).get("index");
+        Assert.assertEquals(new BulkAction("logstash-%{+yyyy.MM.dd}", false).indexName(event.getTimeMillis()), action.get("_index"));
+        Assert.assertEquals(32, ((String) action.get("_id")).length());
+        Assert.assertEquals("bulk", ((JSONObject) JSONValue.parse(lines[1])).get("message"));
+    }
+
+    /** Destination with a deliberately tiny buffer so that every encode has to drain several times. */
+    static class CollectingDestination implements net.logstash.json.ByteDestination {
+        private final java.nio.ByteBuffer buffer;
+        private final java.io.ByteArrayOutputStream drained = new java.io.ByteArrayOutputStream();
+
+        CollectingDestination(int capacity) {
+            this.buffer = java.nio.ByteBuffer.allocate(capacity);
+        }
+
+        public java.nio.ByteBuffer getByteBuffer() {
+            return buffer;
+        }
+
+        public java.nio.ByteBuffer drain(java.nio.ByteBuffer buf) {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                drained.write(buf.get());
+            }
+            buf.clear();
+            return buf;
+        }
+
+        byte[] toByteArray() {
+            drain(buffer);
+            return drained.toByteArray();
+        }
+    }
 }
@@ -0,0 +1,60 @@
+package net.logstash.log4j2;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+import net.logstash.json.JsonWriter;
+import net.logstash.json.LumberjackServerStub;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+
+public class LumberjackAppenderTest {
+
+    @Test
+    public void testShipsJSONEvents() throws Exception {
+        LumberjackServerStub server = new LumberjackServerStub();
+        try {
+            LumberjackAppender appender = LumberjackAppender.createAppender("lumberjack", "localhost", server.getPort(), 64, 2, 2, 3,
+                30000, "block", 10, 100, 5000, null, 0, 0, true, null, null);
+            appender.start();
+            for (int i = 0; i < 5; i++) {
+                appender.append(JSONEventLayoutV1Test.createLog4j2Event("event " + i, null, new HashMap<String, String>()));
+            }
+            for (int i = 0; i < 5; i++) {
+                JSONObject event = (JSONObject) JSONValue.parse(server.take());
+                Assert.assertEquals("event " + i, event.get("message"));
+            }
+            appender.stop();
+            Assert.assertEquals(5, appender.getAcknowledgedEvents());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testRejectsOtherLayouts() {
+        Assert.assertNull(LumberjackAppender.createAppender("lumberjack", "localhost", 5044, 64, 2, 2, 3, 30000, "block", 10, 100,
+            5000, null, 0, 0, true, org.apache.logging.log4j.core.layout.PatternLayout.createDefaultLayout(), null));
+    }
+
+    @Test
+    public void testLeavesOutTheBulkActionOfTheLayout() throws Exception {
+        LumberjackServerStub server = new LumberjackServerStub();
+        try {
+            JSONEventLayoutV1 layout = JSONEventLayoutV1.createLayout(false, null, JsonWriter.UTF_8, null, false, 0, 0, null, 0, null, true,
+                null, null, null, null, null, null, "logstash-%{+yyyy.MM.dd}", false);
+            LumberjackAppender appender = LumberjackAppender.createAppender("lumberjack", "localhost", server.getPort(), 64, 2, 2, 3,
+                30000, "block", 10, 100, 5000, null, 0, 0, true, layout, null);
+            appender.start();
+            appender.append(JSONEventLayoutV1Test.createLog4j2Event("bulk", null, new HashMap<String, String>()));
+            String frame = server.take();
+            Assert.assertFalse("A frame must hold one document: " + frame, frame.contains("\"_index\""));
+            Assert.assertEquals("bulk", ((JSONObject) JSONValue.parse(frame)).get("message"));
+            appender.stop();
+        } finally {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package net.logstash.log4j2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import junit.framework.Assert;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+
+public class MappedFileAppenderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWritesJSONLines() throws IOException {
+        String fileName = new File(folder.getRoot(), "app.json").getPath();
+        MappedFileAppender appender = MappedFileAppender.createAppender("mapped", fileName, 64 * 1024, "page_cache", 1000, 0, true,
+            JSONEventLayoutV1.createLayout(false, null, Charset.forName("UTF-8")), null);
+        appender.start();
+        for (int i = 0; i < 3; i++) {
+            appender.append(JSONEventLayoutV1Test.createLog4j2Event("event " + i, null, new HashMap<String, String>()));
+        }
+        appender.stop();
+
+        String[] lines = read(appender.getSegmentFile().segmentFile(1)).split("\n");
+        Assert.assertEquals(3, lines.length);
+        for (int i = 0; i < lines.length; i++) {
+            JSONObject event = (JSONObject) JSONValue.parse(lines[i]);
+            Assert.assertEquals("event " + i, event.get("message"));
+            Assert.assertEquals("log4j2.logger", event.get("logger_name"));
+        }
+    }
+
+    @Test
+    public void testDefaultsToJSONLayout() throws IOException {
+        String fileName = new File(folder.getRoot(), "app.json").getPath();
+        MappedFileAppender appender = MappedFileAppender.createAppender("mapped", fileName, 1024, null, 1000, 0, true, null, null);
+        Assert.assertTrue(appender.getLayout() instanceof JSONEventLayoutV1);
+        appender.append(JSONEventLayoutV1Test.createLog4j2Event("default", null, new HashMap<String, String>()));
+        appender.stop();
+        Assert.assertTrue(JSONValue.isValidJsonStrict(read(appender.getSegmentFile().segmentFile(1)).trim()));
+    }
+
+    private static String read(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < content.length) {
+                read += in.read(content, read, content.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return new String(content, "UTF-8");
+    }
+}
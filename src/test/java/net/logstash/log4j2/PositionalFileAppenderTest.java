@@ -0,0 +1,140 @@
+package net.logstash.log4j2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.FileAppender;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import junit.framework.Assert;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+
+public class PositionalFileAppenderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWritesWholeJSONLinesFromManyThreads() throws Exception {
+        String fileName = new File(folder.getRoot(), "app.json").getPath();
+        final PositionalFileAppender appender = PositionalFileAppender.createAppender("positional", fileName, true, true,
+            JSONEventLayoutV1.createLayout(false, null, Charset.forName("UTF-8")), null);
+        appender.start();
+        Thread[] threads = new Thread[32];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        appender.append(JSONEventLayoutV1Test.createLog4j2Event(thread + "-" + i, null,
+                            new HashMap<String, String>()));
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        appender.stop();
+
+        String[] lines = read(new File(fileName)).split("\n");
+        Assert.assertEquals(3200, lines.length);
+        for (String line : lines) {
+            Assert.assertTrue("Lines must not be interleaved: " + line, JSONValue.isValidJsonStrict(line));
+            Assert.assertEquals("log4j2.logger", ((JSONObject) JSONValue.parse(line)).get("logger_name"));
+        }
+    }
+
+    @Test
+    public void testDefaultsToJSONLayout() throws IOException {
+        String fileName = new File(folder.getRoot(), "app.json").getPath();
+        PositionalFileAppender appender = PositionalFileAppender.createAppender("positional", fileName, false, true, null, null);
+        Assert.assertTrue(appender.getLayout() instanceof JSONEventLayoutV1);
+        appender.append(JSONEventLayoutV1Test.createLog4j2Event("default", null, new HashMap<String, String>()));
+        appender.stop();
+        Assert.assertTrue(JSONValue.isValidJsonStrict(read(new File(fileName)).trim()));
+        Assert.assertNull(PositionalFileAppender.createAppender("positional", null, true, true, null, null));
+    }
+
+    /**
+     * Compares the File appender, which writes under the lock of its OutputStreamManager, with PositionalFileAppender
+     * for 32 threads logging at once.
+     */
+    @Test
+    @Ignore
+    public void measureContention() throws Exception {
+        int threads = 32;
+        int events = 50000;
+        for (int round = 0; round < 3; round++) {
+            FileAppender fileAppender = FileAppender.createAppender(new File(folder.getRoot(), "file" + round).getPath(),
+                "true", "false", "file", "true", "true", "false", null,
+                JSONEventLayoutV1.createLayout(true, null, Charset.forName("UTF-8")), null, "false", null, null);
+            measure("File", fileAppender, threads, events);
+
+            FileAppender bufferedAppender = FileAppender.createAppender(new File(folder.getRoot(), "buffered" + round).getPath(),
+                "true", "false", "buffered", "false", "true", "true", "65536",
+                JSONEventLayoutV1.createLayout(true, null, Charset.forName("UTF-8")), null, "false", null, null);
+            measure("File(bufferedIO)", bufferedAppender, threads, events);
+
+            PositionalFileAppender positionalAppender = PositionalFileAppender.createAppender("positional",
+                new File(folder.getRoot(), "positional" + round).getPath(), true, true,
+                JSONEventLayoutV1.createLayout(true, null, Charset.forName("UTF-8")), null);
+            measure("PositionalFile", positionalAppender, threads, events);
+        }
+    }
+
+    private static void measure(String name, final Appender appender, int threads, final int events) throws InterruptedException {
+        appender.start();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] producers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            producers[t] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < events; i++) {
+                        LogEvent event = JSONEventLayoutV1Test.createLog4j2Event("benchmark message", null, new HashMap<String, String>());
+                        appender.append(event);
+                    }
+                }
+            };
+            producers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        appender.stop();
+        long elapsed = System.nanoTime() - begin;
+        System.out.println(name + ", " + threads + " threads: " + (threads * (long) events * 1000000000L / elapsed) + " events/s");
+    }
+
+    private static String read(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < content.length) {
+                read += in.read(content, read, content.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return new String(content, "UTF-8");
+    }
+}
@@ -0,0 +1,66 @@
+package net.logstash.log4j2;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import junit.framework.Assert;
+import net.logstash.json.JsonWriter;
+import net.logstash.json.SharedRingReader;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+
+public class SharedMemoryAppenderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWritesJSONEvents() throws Exception {
+        File file = new File(folder.getRoot(), "rings");
+        SharedMemoryAppender appender = SharedMemoryAppender.createAppender("shared", file.getPath(), 2, 4096, true, true,
+            JSONEventLayoutV1.createLayout(false, null, Charset.forName("UTF-8")), null);
+        appender.start();
+        for (int i = 0; i < 3; i++) {
+            appender.append(JSONEventLayoutV1Test.createLog4j2Event("event " + i, null, new HashMap<String, String>()));
+        }
+        appender.stop();
+
+        final List<String> lines = new ArrayList<String>();
+        SharedRingReader reader = new SharedRingReader(file);
+        Assert.assertTrue(reader.isProducerClosed());
+        reader.read(new SharedRingReader.Handler() {
+            public void event(ByteBuffer buffer, int offset, int length) {
+                byte[] bytes = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    bytes[i] = buffer.get(offset + i);
+                }
+                lines.add(new String(bytes, JsonWriter.UTF_8));
+            }
+        }, 100);
+        Assert.assertEquals(3, lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            JSONObject event = (JSONObject) JSONValue.parse(lines.get(i));
+            Assert.assertEquals("event " + i, event.get("message"));
+            Assert.assertEquals("log4j2.logger", event.get("logger_name"));
+        }
+    }
+
+    @Test
+    public void testDefaultsToJSONLayout() throws Exception {
+        File file = new File(folder.getRoot(), "rings");
+        SharedMemoryAppender appender = SharedMemoryAppender.createAppender("shared", file.getPath(), 2, 4096, true, true,
+            null, null);
+        Assert.assertTrue(appender.getLayout() instanceof JSONEventLayoutV1);
+        Assert.assertEquals(4096, appender.getRingFile().getCapacity());
+        Assert.assertNull(SharedMemoryAppender.createAppender("shared", null, 2, 4096, true, true, null, null));
+        appender.stop();
+    }
+}
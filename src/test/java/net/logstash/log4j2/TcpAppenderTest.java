@@ -0,0 +1,43 @@
+package net.logstash.log4j2;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import junit.framework.Assert;
+import net.minidev.json.JSONObject;
+import net.minidev.json.JSONValue;
+
+public class TcpAppenderTest {
+
+    @Test
+    public void testShipsJSONLines() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        try {
+            TcpAppender appender = TcpAppender.createAppender("tcp", "localhost", server.getLocalPort(), 64, 1024, "drop_newest",
+                10, 100, 5000, null, 0, 0, true, null, null);
+            appender.start();
+            for (int i = 0; i < 3; i++) {
+                appender.append(JSONEventLayoutV1Test.createLog4j2Event("event " + i, null, new HashMap<String, String>()));
+            }
+
+            server.setSoTimeout(5000);
+            Socket connection = server.accept();
+            connection.setSoTimeout(5000);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+            for (int i = 0; i < 3; i++) {
+                JSONObject event = (JSONObject) JSONValue.parse(reader.readLine());
+                Assert.assertEquals("event " + i, event.get("message"));
+            }
+            appender.stop();
+            Assert.assertNull("Connection should be closed with the appender", reader.readLine());
+            connection.close();
+        } finally {
+            server.close();
+        }
+    }
+}